@@ -0,0 +1,243 @@
+package org.whispersystems.libsignal;
+
+import org.whispersystems.libsignal.state.BulkIdentityKeyStore;
+import org.whispersystems.libsignal.state.BulkSessionStore;
+import org.whispersystems.libsignal.state.IdentityKeyStore;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionState;
+import org.whispersystems.libsignal.state.SessionStore;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * Builds sessions with many remote devices at once, each from a
+ * {@link org.whispersystems.libsignal.state.PreKeyBundle} retrieved from a server.
+ * <p>
+ * Each session is set up just as {@link SessionBuilder#process(PreKeyBundle)} would set it up.
+ * The signature checks, key generation and agreements for each device run in parallel on an
+ * executor, outside of {@link SessionCipher#SESSION_LOCK}.  The lock is then taken once, to
+ * check trust and store every new session together.  Stores which implement
+ * {@link BulkSessionStore} or {@link BulkIdentityKeyStore} are read and written in batches.
+ * <p>
+ * A device whose bundle can't be used doesn't stop sessions being built with the others.  The
+ * outcome for each device is reported in the returned {@link Results}.
+ */
+public class BulkSessionBuilder {
+
+  private final SessionStore               sessionStore;
+  private final IdentityKeyStore           identityKeyStore;
+  private final Executor                   executor;
+  private final SignatureVerificationCache signatureVerificationCache;
+
+  public BulkSessionBuilder(SignalProtocolStore store, Executor executor) {
+    this(store, store, executor, null);
+  }
+
+  /**
+   * @param sessionStore The {@link SessionStore} to store the constructed sessions in.
+   * @param identityKeyStore The {@link IdentityKeyStore} containing the client's identity key information.
+   * @param executor The executor to set up each session on.
+   * @param signatureVerificationCache The signature cache to use, or null to verify every signature.
+   */
+  public BulkSessionBuilder(SessionStore sessionStore, IdentityKeyStore identityKeyStore,
+                            Executor executor, SignatureVerificationCache signatureVerificationCache)
+  {
+    this.sessionStore               = sessionStore;
+    this.identityKeyStore           = identityKeyStore;
+    this.executor                   = executor;
+    this.signatureVerificationCache = signatureVerificationCache;
+  }
+
+  /**
+   * Build a new session with each remote device, and wait until they have all been stored.
+   *
+   * @param preKeys A PreKey for each destination device, retrieved from a server, keyed by the
+   *                device's address.
+   * @return which sessions were built, and why the others weren't.
+   * @throws InterruptedException if interrupted while waiting, in which case no sessions are
+   *                              stored.
+   */
+  public Results process(Map<SignalProtocolAddress, PreKeyBundle> preKeys) throws InterruptedException {
+    final IdentityKeyPair                          ourIdentityKey = identityKeyStore.getIdentityKeyPair();
+    final int                                      registrationId = identityKeyStore.getLocalRegistrationId();
+    final Map<SignalProtocolAddress, SessionState> sessions       = new ConcurrentHashMap<>();
+    final Map<SignalProtocolAddress, Exception>    failures       = new ConcurrentHashMap<>();
+    final CountDownLatch                           latch          = new CountDownLatch(preKeys.size());
+
+    for (final Map.Entry<SignalProtocolAddress, PreKeyBundle> preKey : preKeys.entrySet()) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            sessions.put(preKey.getKey(), SessionInitializer.initializeSession(ourIdentityKey, registrationId,
+                                                                               preKey.getValue(),
+                                                                               signatureVerificationCache));
+          } catch (InvalidKeyException | RuntimeException e) {
+            failures.put(preKey.getKey(), e);
+          } finally {
+            latch.countDown();
+          }
+        }
+      });
+    }
+
+    latch.await();
+
+    synchronized (SessionCipher.SESSION_LOCK) {
+      Map<SignalProtocolAddress, IdentityKey> trusted = checkTrust(preKeys, failures);
+
+      sessions.keySet().retainAll(trusted.keySet());
+      storeSessions(sessions);
+      saveIdentities(trusted, sessions.keySet());
+    }
+
+    return new Results(sessions.keySet(), failures);
+  }
+
+  /**
+   * Check the identity of every device, recording an {@link UntrustedIdentityException} for each
+   * untrusted one in place of any other failure, as the single-device path checks trust first.
+   *
+   * @return the identity key of every trusted device, keyed by address.
+   */
+  private Map<SignalProtocolAddress, IdentityKey> checkTrust(Map<SignalProtocolAddress, PreKeyBundle> preKeys,
+                                                             Map<SignalProtocolAddress, Exception> failures)
+  {
+    Map<String, IdentityKey> identities  = new HashMap<>();
+    Set<String>              conflicting = new HashSet<>();
+
+    for (Map.Entry<SignalProtocolAddress, PreKeyBundle> preKey : preKeys.entrySet()) {
+      String      name     = preKey.getKey().getName();
+      IdentityKey identity = preKey.getValue().getIdentityKey();
+      IdentityKey previous = identities.put(name, identity);
+
+      if (previous != null && !previous.equals(identity)) {
+        conflicting.add(name);
+      }
+    }
+
+    Map<String, Boolean> trustedNames;
+
+    if (identityKeyStore instanceof BulkIdentityKeyStore) {
+      identities.keySet().removeAll(conflicting);
+      trustedNames = ((BulkIdentityKeyStore)identityKeyStore).isTrustedIdentities(identities);
+    } else {
+      trustedNames = new HashMap<>();
+    }
+
+    Map<SignalProtocolAddress, IdentityKey> trusted = new LinkedHashMap<>();
+
+    for (Map.Entry<SignalProtocolAddress, PreKeyBundle> preKey : preKeys.entrySet()) {
+      String      name     = preKey.getKey().getName();
+      IdentityKey identity = preKey.getValue().getIdentityKey();
+      Boolean     isTrusted;
+
+      if (conflicting.contains(name)) {
+        // Devices claiming different identities are checked one at a time, as separate calls
+        // to SessionBuilder would, so that each trusted identity is seen by the next check.
+        isTrusted = identityKeyStore.isTrustedIdentity(name, identity);
+
+        if (isTrusted && !failures.containsKey(preKey.getKey())) {
+          identityKeyStore.saveIdentity(name, identity);
+        }
+      } else {
+        isTrusted = trustedNames.get(name);
+
+        if (isTrusted == null) {
+          isTrusted = identityKeyStore.isTrustedIdentity(name, identity);
+          trustedNames.put(name, isTrusted);
+        }
+      }
+
+      if (isTrusted) {
+        trusted.put(preKey.getKey(), identity);
+      } else {
+        failures.put(preKey.getKey(), new UntrustedIdentityException(name, identity));
+      }
+    }
+
+    return trusted;
+  }
+
+  private void storeSessions(Map<SignalProtocolAddress, SessionState> sessions) {
+    Map<SignalProtocolAddress, SessionRecord> records;
+
+    if (sessionStore instanceof BulkSessionStore) {
+      records = ((BulkSessionStore)sessionStore).loadSessions(sessions.keySet());
+    } else {
+      records = new HashMap<>(sessions.size());
+
+      for (SignalProtocolAddress address : sessions.keySet()) {
+        records.put(address, sessionStore.loadSession(address));
+      }
+    }
+
+    for (Map.Entry<SignalProtocolAddress, SessionState> session : sessions.entrySet()) {
+      SessionInitializer.setSessionState(records.get(session.getKey()), session.getValue());
+    }
+
+    if (sessionStore instanceof BulkSessionStore) {
+      ((BulkSessionStore)sessionStore).storeSessions(records);
+    } else {
+      for (Map.Entry<SignalProtocolAddress, SessionRecord> record : records.entrySet()) {
+        sessionStore.storeSession(record.getKey(), record.getValue());
+      }
+    }
+  }
+
+  private void saveIdentities(Map<SignalProtocolAddress, IdentityKey> trusted, Set<SignalProtocolAddress> established) {
+    Map<String, IdentityKey> identities = new HashMap<>();
+
+    for (SignalProtocolAddress address : established) {
+      identities.put(address.getName(), trusted.get(address));
+    }
+
+    if (identityKeyStore instanceof BulkIdentityKeyStore) {
+      ((BulkIdentityKeyStore)identityKeyStore).saveIdentities(identities);
+    } else {
+      for (Map.Entry<String, IdentityKey> identity : identities.entrySet()) {
+        identityKeyStore.saveIdentity(identity.getKey(), identity.getValue());
+      }
+    }
+  }
+
+  /**
+   * The outcome of building a session with each remote device.
+   */
+  public static class Results {
+
+    private final Set<SignalProtocolAddress>            established;
+    private final Map<SignalProtocolAddress, Exception> failures;
+
+    private Results(Set<SignalProtocolAddress> established, Map<SignalProtocolAddress, Exception> failures) {
+      this.established = Collections.unmodifiableSet(new HashSet<>(established));
+      this.failures    = Collections.unmodifiableMap(new HashMap<>(failures));
+    }
+
+    /**
+     * @return the devices a new session was built and stored with.
+     */
+    public Set<SignalProtocolAddress> getEstablished() {
+      return established;
+    }
+
+    /**
+     * @return the reason each other device's session couldn't be built, such as an
+     *         {@link UntrustedIdentityException} or an {@link InvalidKeyException} for a bad
+     *         signature.
+     */
+    public Map<SignalProtocolAddress, Exception> getFailures() {
+      return failures;
+    }
+  }
+}
@@ -3,13 +3,11 @@ package org.whispersystems.libsignal;
 
 import org.whispersystems.libsignal.ecc.Curve;
 import org.whispersystems.libsignal.ecc.ECKeyPair;
-import org.whispersystems.libsignal.ecc.ECPublicKey;
 import org.whispersystems.libsignal.logging.Log;
 import org.whispersystems.libsignal.protocol.CiphertextMessage;
 import org.whispersystems.libsignal.protocol.KeyExchangeMessage;
 import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
 import org.whispersystems.libsignal.protocol.SignalMessage;
-import org.whispersystems.libsignal.ratchet.AliceSignalProtocolParameters;
 import org.whispersystems.libsignal.ratchet.BobSignalProtocolParameters;
 import org.whispersystems.libsignal.ratchet.RatchetingSession;
 import org.whispersystems.libsignal.ratchet.SymmetricSignalProtocolParameters;
@@ -21,10 +19,21 @@ import org.whispersystems.libsignal.state.SessionRecord;
 import org.whispersystems.libsignal.state.SessionState;
 import org.whispersystems.libsignal.state.SessionStore;
 import org.whispersystems.libsignal.state.SignedPreKeyStore;
+import org.whispersystems.libsignal.util.ByteUtil;
 import org.whispersystems.libsignal.util.KeyHelper;
 import org.whispersystems.libsignal.util.Medium;
 import org.whispersystems.libsignal.util.guava.Optional;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 /**
  * SessionBuilder is responsible for setting up encrypted sessions.
  * Once a session has been established, {@link org.whispersystems.libsignal.SessionCipher}
@@ -51,6 +60,8 @@ public class SessionBuilder {
   private final SignedPreKeyStore signedPreKeyStore;
   private final IdentityKeyStore  identityKeyStore;
   private final SignalProtocolAddress remoteAddress;
+  private final StaticAgreementCache       staticAgreementCache;
+  private final SignatureVerificationCache signatureVerificationCache;
 
   /**
    * Constructs a SessionBuilder.
@@ -66,11 +77,48 @@ public class SessionBuilder {
                         IdentityKeyStore identityKeyStore,
                         SignalProtocolAddress remoteAddress)
   {
-    this.sessionStore      = sessionStore;
-    this.preKeyStore       = preKeyStore;
-    this.signedPreKeyStore = signedPreKeyStore;
-    this.identityKeyStore  = identityKeyStore;
-    this.remoteAddress     = remoteAddress;
+    this(sessionStore, preKeyStore, signedPreKeyStore, identityKeyStore, remoteAddress, null);
+  }
+
+  /**
+   * Constructs a SessionBuilder which caches the agreement between a sender's identity key and
+   * our signed prekey when building sessions from received {@link PreKeySignalMessage}s.
+   *
+   * @param staticAgreementCache The cache to use, or null to calculate every agreement.
+   */
+  public SessionBuilder(SessionStore sessionStore,
+                        PreKeyStore preKeyStore,
+                        SignedPreKeyStore signedPreKeyStore,
+                        IdentityKeyStore identityKeyStore,
+                        SignalProtocolAddress remoteAddress,
+                        StaticAgreementCache staticAgreementCache)
+  {
+    this(sessionStore, preKeyStore, signedPreKeyStore, identityKeyStore, remoteAddress,
+         staticAgreementCache, null);
+  }
+
+  /**
+   * Constructs a SessionBuilder which also remembers the signed prekey signatures it has verified
+   * when building sessions from {@link org.whispersystems.libsignal.state.PreKeyBundle}s.
+   *
+   * @param staticAgreementCache The agreement cache to use, or null to calculate every agreement.
+   * @param signatureVerificationCache The signature cache to use, or null to verify every signature.
+   */
+  public SessionBuilder(SessionStore sessionStore,
+                        PreKeyStore preKeyStore,
+                        SignedPreKeyStore signedPreKeyStore,
+                        IdentityKeyStore identityKeyStore,
+                        SignalProtocolAddress remoteAddress,
+                        StaticAgreementCache staticAgreementCache,
+                        SignatureVerificationCache signatureVerificationCache)
+  {
+    this.sessionStore               = sessionStore;
+    this.preKeyStore                = preKeyStore;
+    this.signedPreKeyStore          = signedPreKeyStore;
+    this.identityKeyStore           = identityKeyStore;
+    this.remoteAddress              = remoteAddress;
+    this.staticAgreementCache       = staticAgreementCache;
+    this.signatureVerificationCache = signatureVerificationCache;
   }
 
   /**
@@ -82,6 +130,19 @@ public class SessionBuilder {
     this(store, store, store, store, remoteAddress);
   }
 
+  public SessionBuilder(SignalProtocolStore store, SignalProtocolAddress remoteAddress,
+                        StaticAgreementCache staticAgreementCache)
+  {
+    this(store, store, store, store, remoteAddress, staticAgreementCache);
+  }
+
+  public SessionBuilder(SignalProtocolStore store, SignalProtocolAddress remoteAddress,
+                        StaticAgreementCache staticAgreementCache,
+                        SignatureVerificationCache signatureVerificationCache)
+  {
+    this(store, store, store, store, remoteAddress, staticAgreementCache, signatureVerificationCache);
+  }
+
   /**
    * Build a new session from a received {@link PreKeySignalMessage}.
    *
@@ -136,9 +197,22 @@ public class SessionBuilder {
       parameters.setOurOneTimePreKey(Optional.<ECKeyPair>absent());
     }
 
+    byte[] staticAgreement = null;
+
+    if (staticAgreementCache != null) {
+      staticAgreement = staticAgreementCache.calculateAgreement(message.getIdentityKey(),
+                                                                message.getSignedPreKeyId(),
+                                                                ourSignedPreKey);
+      parameters.setStaticAgreement(Optional.of(staticAgreement));
+    }
+
     if (!sessionRecord.isFresh()) sessionRecord.archiveCurrentState();
 
-    RatchetingSession.initializeSession(sessionRecord.getSessionState(), parameters.create());
+    try {
+      RatchetingSession.initializeSession(sessionRecord.getSessionState(), parameters.create());
+    } finally {
+      if (staticAgreement != null) Arrays.fill(staticAgreement, (byte)0);
+    }
 
     sessionRecord.getSessionState().setLocalRegistrationId(identityKeyStore.getLocalRegistrationId());
     sessionRecord.getSessionState().setRemoteRegistrationId(message.getRegistrationId());
@@ -168,46 +242,143 @@ public class SessionBuilder {
         throw new UntrustedIdentityException(remoteAddress.getName(), preKey.getIdentityKey());
       }
 
-      if (preKey.getSignedPreKey() != null &&
-          !Curve.verifySignature(preKey.getIdentityKey().getPublicKey(),
-                                 preKey.getSignedPreKey().serialize(),
-                                 preKey.getSignedPreKeySignature()))
-      {
-        throw new InvalidKeyException("Invalid signature on device key!");
+      SessionState  sessionState  = SessionInitializer.initializeSession(identityKeyStore.getIdentityKeyPair(),
+                                                                         identityKeyStore.getLocalRegistrationId(),
+                                                                         preKey, signatureVerificationCache);
+      SessionRecord sessionRecord = sessionStore.loadSession(remoteAddress);
+
+      SessionInitializer.setSessionState(sessionRecord, sessionState);
+
+      sessionStore.storeSession(remoteAddress, sessionRecord);
+      identityKeyStore.saveIdentity(remoteAddress.getName(), preKey.getIdentityKey());
+    }
+  }
+
+  /**
+   * Build new sessions with several devices of the remote user, from a
+   * {@link org.whispersystems.libsignal.state.PreKeyBundle} for each retrieved from a server.
+   * Each session is built with the device named by its bundle's device id.
+   * <p>
+   * Every session is built before any is stored, so if any bundle is untrusted or badly
+   * formatted, no sessions are stored.  The bundles must all carry the same identity key.
+   *
+   * @param preKeys A PreKey for each destination device, retrieved from a server.
+   * @throws InvalidKeyException when a {@link org.whispersystems.libsignal.state.PreKeyBundle} is
+   *                             badly formatted.
+   * @throws org.whispersystems.libsignal.UntrustedIdentityException when the sender's
+   *                                                                  {@link IdentityKey} is not
+   *                                                                  trusted, or the bundles
+   *                                                                  carry different identity
+   *                                                                  keys.
+   */
+  public void process(List<PreKeyBundle> preKeys) throws InvalidKeyException, UntrustedIdentityException {
+    process(preKeys, null);
+  }
+
+  /**
+   * Build new sessions with several devices of the remote user, verifying the distinct signed
+   * prekeys among the bundles in parallel.
+   *
+   * @param preKeys A PreKey for each destination device, retrieved from a server.
+   * @param pool The pool to verify signatures on, or null to do so on the calling thread.
+   * @see #process(List)
+   */
+  public void process(List<PreKeyBundle> preKeys, ForkJoinPool pool)
+      throws InvalidKeyException, UntrustedIdentityException
+  {
+    PreKeyBundle[] bundles  = preKeys.toArray(new PreKeyBundle[preKeys.size()]);
+    boolean[]      verified = verifySignedPreKeys(bundles, pool);
+
+    if (bundles.length == 0) {
+      return;
+    }
+
+    IdentityKey identityKey = bundles[0].getIdentityKey();
+
+    synchronized (SessionCipher.SESSION_LOCK) {
+      for (int i=0;i<bundles.length;i++) {
+        if (!bundles[i].getIdentityKey().equals(identityKey)) {
+          throw new UntrustedIdentityException(remoteAddress.getName(), bundles[i].getIdentityKey());
+        }
+
+        SessionInitializer.checkSignedPreKey(bundles[i], verified[i]);
+      }
+
+      if (!identityKeyStore.isTrustedIdentity(remoteAddress.getName(), identityKey)) {
+        throw new UntrustedIdentityException(remoteAddress.getName(), identityKey);
       }
 
+      IdentityKeyPair                           ourIdentityKey = identityKeyStore.getIdentityKeyPair();
+      int                                       registrationId = identityKeyStore.getLocalRegistrationId();
+      Map<SignalProtocolAddress, SessionRecord> records        = new LinkedHashMap<>();
+
+      for (PreKeyBundle bundle : bundles) {
+        SignalProtocolAddress address      = new SignalProtocolAddress(remoteAddress.getName(), bundle.getDeviceId());
+        SessionState          sessionState = SessionInitializer.initializeSession(ourIdentityKey, registrationId, bundle);
+        SessionRecord         record       = records.get(address);
+
+        if (record == null) {
+          record = sessionStore.loadSession(address);
+          records.put(address, record);
+        }
+
+        SessionInitializer.setSessionState(record, sessionState);
+      }
+
+      for (Map.Entry<SignalProtocolAddress, SessionRecord> record : records.entrySet()) {
+        sessionStore.storeSession(record.getKey(), record.getValue());
+      }
+
+      identityKeyStore.saveIdentity(remoteAddress.getName(), identityKey);
+    }
+  }
+
+  private boolean[] verifySignedPreKeys(PreKeyBundle[] preKeys, ForkJoinPool pool) {
+    Map<ByteBuffer, Integer> distinct = new HashMap<>();
+    List<PreKeyBundle>       unique   = new ArrayList<>();
+    int[]                    indexes  = new int[preKeys.length];
+
+    for (int i=0;i<preKeys.length;i++) {
+      PreKeyBundle preKey = preKeys[i];
+
       if (preKey.getSignedPreKey() == null) {
-        throw new InvalidKeyException("No signed prekey!");
+        indexes[i] = -1;
+        continue;
       }
 
-      SessionRecord         sessionRecord        = sessionStore.loadSession(remoteAddress);
-      ECKeyPair             ourBaseKey           = Curve.generateKeyPair();
-      ECPublicKey           theirSignedPreKey    = preKey.getSignedPreKey();
-      Optional<ECPublicKey> theirOneTimePreKey   = Optional.fromNullable(preKey.getPreKey());
-      Optional<Integer>     theirOneTimePreKeyId = theirOneTimePreKey.isPresent() ? Optional.of(preKey.getPreKeyId()) :
-                                                                                    Optional.<Integer>absent();
+      if (preKey.getSignedPreKeySignature() == null) {
+        indexes[i] = unique.size();
+        unique.add(preKey);
+        continue;
+      }
 
-      AliceSignalProtocolParameters.Builder parameters = AliceSignalProtocolParameters.newBuilder();
+      ByteBuffer tuple = ByteBuffer.wrap(ByteUtil.combine(preKey.getIdentityKey().serialize(),
+                                                          preKey.getSignedPreKey().serialize(),
+                                                          preKey.getSignedPreKeySignature()));
+      Integer    index = distinct.get(tuple);
 
-      parameters.setOurBaseKey(ourBaseKey)
-                .setOurIdentityKey(identityKeyStore.getIdentityKeyPair())
-                .setTheirIdentityKey(preKey.getIdentityKey())
-                .setTheirSignedPreKey(theirSignedPreKey)
-                .setTheirRatchetKey(theirSignedPreKey)
-                .setTheirOneTimePreKey(theirOneTimePreKey);
+      if (index == null) {
+        index = unique.size();
+        distinct.put(tuple, index);
+        unique.add(preKey);
+      }
 
-      if (!sessionRecord.isFresh()) sessionRecord.archiveCurrentState();
+      indexes[i] = index;
+    }
 
-      RatchetingSession.initializeSession(sessionRecord.getSessionState(), parameters.create());
+    boolean[]  uniqueResults = new boolean[unique.size()];
+    VerifyTask task          = new VerifyTask(unique, uniqueResults, 0, uniqueResults.length);
 
-      sessionRecord.getSessionState().setUnacknowledgedPreKeyMessage(theirOneTimePreKeyId, preKey.getSignedPreKeyId(), ourBaseKey.getPublicKey());
-      sessionRecord.getSessionState().setLocalRegistrationId(identityKeyStore.getLocalRegistrationId());
-      sessionRecord.getSessionState().setRemoteRegistrationId(preKey.getRegistrationId());
-      sessionRecord.getSessionState().setAliceBaseKey(ourBaseKey.getPublicKey().serialize());
+    if (pool != null) pool.invoke(task);
+    else              task.verify(0, uniqueResults.length);
 
-      sessionStore.storeSession(remoteAddress, sessionRecord);
-      identityKeyStore.saveIdentity(remoteAddress.getName(), preKey.getIdentityKey());
+    boolean[] results = new boolean[preKeys.length];
+
+    for (int i=0;i<results.length;i++) {
+      results[i] = indexes[i] != -1 && uniqueResults[indexes[i]];
     }
+
+    return results;
   }
 
   /**
@@ -348,5 +519,42 @@ public class SessionBuilder {
     }
   }
 
+  private class VerifyTask extends RecursiveAction {
+
+    private static final int BATCH_SIZE = 4;
+
+    private final List<PreKeyBundle> preKeys;
+    private final boolean[]          results;
+    private final int                from;
+    private final int                to;
 
+    private VerifyTask(List<PreKeyBundle> preKeys, boolean[] results, int from, int to) {
+      this.preKeys = preKeys;
+      this.results = results;
+      this.from    = from;
+      this.to      = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= BATCH_SIZE) {
+        verify(from, to);
+      } else {
+        int middle = (from + to) >>> 1;
+        invokeAll(new VerifyTask(preKeys, results, from, middle),
+                  new VerifyTask(preKeys, results, middle, to));
+      }
+    }
+
+    private void verify(int from, int to) {
+      for (int i=from;i<to;i++) {
+        try {
+          results[i] = SessionInitializer.verifySignedPreKey(preKeys.get(i), signatureVerificationCache);
+        } catch (InvalidKeyException e) {
+          Log.w(TAG, e);
+          results[i] = false;
+        }
+      }
+    }
+  }
 }
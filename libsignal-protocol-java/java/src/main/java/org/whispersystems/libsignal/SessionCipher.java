@@ -19,25 +19,40 @@ package org.whispersystems.libsignal;
 import org.whispersystems.libsignal.ecc.Curve;
 import org.whispersystems.libsignal.ecc.ECKeyPair;
 import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.logging.Log;
 import org.whispersystems.libsignal.protocol.CiphertextMessage;
 import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
 import org.whispersystems.libsignal.protocol.SignalMessage;
+import org.whispersystems.libsignal.protocol.SignalMessageOutputStream;
+import org.whispersystems.libsignal.protocol.StreamingSignalMessage;
+import org.whispersystems.libsignal.protocol.VerifiedPlaintext;
 import org.whispersystems.libsignal.ratchet.ChainKey;
 import org.whispersystems.libsignal.ratchet.MessageKeys;
 import org.whispersystems.libsignal.ratchet.RootKey;
 import org.whispersystems.libsignal.state.SignalProtocolStore;
 import org.whispersystems.libsignal.state.IdentityKeyStore;
+import org.whispersystems.libsignal.state.IncrementalSessionStore;
 import org.whispersystems.libsignal.state.PreKeyStore;
+import org.whispersystems.libsignal.state.ReplayWindow;
+import org.whispersystems.libsignal.state.ReplayWindowStore;
+import org.whispersystems.libsignal.state.SessionChangeSet;
 import org.whispersystems.libsignal.state.SessionRecord;
 import org.whispersystems.libsignal.state.SessionState;
 import org.whispersystems.libsignal.state.SessionStore;
 import org.whispersystems.libsignal.state.SignedPreKeyStore;
+import org.whispersystems.libsignal.state.VersionedSessionStore;
 import org.whispersystems.libsignal.util.ByteUtil;
 import org.whispersystems.libsignal.util.Pair;
 import org.whispersystems.libsignal.util.guava.Optional;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -46,6 +61,7 @@ import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -62,12 +78,15 @@ import static org.whispersystems.libsignal.state.SessionState.UnacknowledgedPreK
  */
 public class SessionCipher {
 
+  private static final String TAG = SessionCipher.class.getSimpleName();
+
   public static final Object SESSION_LOCK = new Object();
 
   private final SessionStore          sessionStore;
   private final SessionBuilder        sessionBuilder;
   private final PreKeyStore           preKeyStore;
   private final SignalProtocolAddress remoteAddress;
+  private final SkipAheadLimiter      skipAheadLimiter;
 
   /**
    * Construct a SessionCipher for encrypt/decrypt operations on a session.
@@ -81,17 +100,59 @@ public class SessionCipher {
                        SignedPreKeyStore signedPreKeyStore, IdentityKeyStore identityKeyStore,
                        SignalProtocolAddress remoteAddress)
   {
-    this.sessionStore   = sessionStore;
-    this.preKeyStore    = preKeyStore;
-    this.remoteAddress  = remoteAddress;
-    this.sessionBuilder = new SessionBuilder(sessionStore, preKeyStore, signedPreKeyStore,
-                                             identityKeyStore, remoteAddress);
+    this(sessionStore, preKeyStore, signedPreKeyStore, identityKeyStore, remoteAddress,
+         SkipAheadLimiter.getDefault());
+  }
+
+  /**
+   * Construct a SessionCipher which limits how far ahead received messages may skip.
+   *
+   * @param  skipAheadLimiter Checks each gap in the received counters before any skipped message
+   *                          keys are derived.
+   */
+  public SessionCipher(SessionStore sessionStore, PreKeyStore preKeyStore,
+                       SignedPreKeyStore signedPreKeyStore, IdentityKeyStore identityKeyStore,
+                       SignalProtocolAddress remoteAddress, SkipAheadLimiter skipAheadLimiter)
+  {
+    this(sessionStore, preKeyStore, signedPreKeyStore, identityKeyStore, remoteAddress,
+         skipAheadLimiter, null);
+  }
+
+  /**
+   * Construct a SessionCipher which also caches static agreements when setting up sessions from
+   * received {@link PreKeySignalMessage}s.
+   *
+   * @param  staticAgreementCache The cache to use, or null to calculate every agreement.
+   */
+  public SessionCipher(SessionStore sessionStore, PreKeyStore preKeyStore,
+                       SignedPreKeyStore signedPreKeyStore, IdentityKeyStore identityKeyStore,
+                       SignalProtocolAddress remoteAddress, SkipAheadLimiter skipAheadLimiter,
+                       StaticAgreementCache staticAgreementCache)
+  {
+    this.sessionStore     = sessionStore;
+    this.preKeyStore      = preKeyStore;
+    this.remoteAddress    = remoteAddress;
+    this.skipAheadLimiter = skipAheadLimiter;
+    this.sessionBuilder   = new SessionBuilder(sessionStore, preKeyStore, signedPreKeyStore,
+                                               identityKeyStore, remoteAddress, staticAgreementCache);
   }
 
   public SessionCipher(SignalProtocolStore store, SignalProtocolAddress remoteAddress) {
     this(store, store, store, store, remoteAddress);
   }
 
+  public SessionCipher(SignalProtocolStore store, SignalProtocolAddress remoteAddress,
+                       SkipAheadLimiter skipAheadLimiter)
+  {
+    this(store, store, store, store, remoteAddress, skipAheadLimiter);
+  }
+
+  public SessionCipher(SignalProtocolStore store, SignalProtocolAddress remoteAddress,
+                       SkipAheadLimiter skipAheadLimiter, StaticAgreementCache staticAgreementCache)
+  {
+    this(store, store, store, store, remoteAddress, skipAheadLimiter, staticAgreementCache);
+  }
+
   /**
    * Encrypt a message.
    *
@@ -99,36 +160,147 @@ public class SessionCipher {
    * @return A ciphertext message encrypted to the recipient+device tuple.
    */
   public CiphertextMessage encrypt(byte[] paddedMessage) {
-    synchronized (SESSION_LOCK) {
-      SessionRecord sessionRecord   = sessionStore.loadSession(remoteAddress);
-      SessionState  sessionState    = sessionRecord.getSessionState();
-      ChainKey      chainKey        = sessionState.getSenderChainKey();
-      MessageKeys   messageKeys     = chainKey.getMessageKeys();
-      ECPublicKey   senderEphemeral = sessionState.getSenderRatchetKey();
-      int           previousCounter = sessionState.getPreviousCounter();
-      int           sessionVersion  = sessionState.getSessionVersion();
-
-      byte[]            ciphertextBody    = getCiphertext(sessionVersion, messageKeys, paddedMessage);
-      CiphertextMessage ciphertextMessage = new SignalMessage(sessionVersion, messageKeys.getMacKey(),
-                                                              senderEphemeral, chainKey.getIndex(),
-                                                              previousCounter, ciphertextBody,
-                                                              sessionState.getLocalIdentityKey(),
-                                                              sessionState.getRemoteIdentityKey());
-
-      if (sessionState.hasUnacknowledgedPreKeyMessage()) {
-        UnacknowledgedPreKeyMessageItems items = sessionState.getUnacknowledgedPreKeyMessageItems();
-        int localRegistrationId = sessionState.getLocalRegistrationId();
-
-        ciphertextMessage = new PreKeySignalMessage(sessionVersion, localRegistrationId, items.getPreKeyId(),
-                                                    items.getSignedPreKeyId(), items.getBaseKey(),
-                                                    sessionState.getLocalIdentityKey(),
-                                                    (SignalMessage) ciphertextMessage);
-      }
+    SessionState      sessionState      = reserveSenderChainKey();
+    ChainKey          chainKey          = sessionState.getSenderChainKey();
+    MessageKeys       messageKeys       = chainKey.getMessageKeys();
+    int               sessionVersion    = sessionState.getSessionVersion();
+    byte[]            ciphertextBody    = getCiphertext(sessionVersion, messageKeys, paddedMessage);
+    CiphertextMessage ciphertextMessage = new SignalMessage(sessionVersion, messageKeys.getMacKey(),
+                                                            sessionState.getSenderRatchetKey(),
+                                                            chainKey.getIndex(),
+                                                            sessionState.getPreviousCounter(),
+                                                            ciphertextBody,
+                                                            sessionState.getLocalIdentityKey(),
+                                                            sessionState.getRemoteIdentityKey());
 
-      sessionState.setSenderChainKey(chainKey.getNextChainKey());
-      sessionStore.storeSession(remoteAddress, sessionRecord);
-      return ciphertextMessage;
+    if (sessionState.hasUnacknowledgedPreKeyMessage()) {
+      UnacknowledgedPreKeyMessageItems items = sessionState.getUnacknowledgedPreKeyMessageItems();
+      int localRegistrationId = sessionState.getLocalRegistrationId();
+
+      ciphertextMessage = new PreKeySignalMessage(sessionVersion, localRegistrationId, items.getPreKeyId(),
+                                                  items.getSignedPreKeyId(), items.getBaseKey(),
+                                                  sessionState.getLocalIdentityKey(),
+                                                  (SignalMessage) ciphertextMessage);
+    }
+
+    return ciphertextMessage;
+  }
+
+  /**
+   * @return the largest number of bytes {@link #encrypt(ByteBuffer, ByteBuffer)} can write for
+   *         a plaintext of the given length.
+   */
+  public static int getMaxCiphertextSize(int plaintextLength) {
+    int ciphertextLength = (plaintextLength / 16 + 1) * 16;
+    return PreKeySignalMessage.getMaxSerializedSize(SignalMessage.getMaxSerializedSize(ciphertextLength));
+  }
+
+  /**
+   * Encrypt a message directly into a buffer, without intermediate copies of the plaintext or
+   * ciphertext.  The serialized {@link CiphertextMessage} is written at the output's position,
+   * and both buffers are advanced.
+   *
+   * @param  paddedMessage The plaintext message bytes, optionally padded to a constant multiple.
+   * @param  output A buffer with at least {@link #getMaxCiphertextSize(int)} bytes remaining.
+   * @return The type of the written message, as returned by {@link CiphertextMessage#getType()}.
+   * @throws BufferOverflowException if the output is too small, in which case nothing is written
+   *                                 and the session is left unchanged.
+   */
+  public int encrypt(ByteBuffer paddedMessage, ByteBuffer output) {
+    if (output.remaining() < getMaxCiphertextSize(paddedMessage.remaining())) {
+      throw new BufferOverflowException();
     }
+
+    SessionState sessionState     = reserveSenderChainKey();
+    ChainKey     chainKey         = sessionState.getSenderChainKey();
+    MessageKeys  messageKeys      = chainKey.getMessageKeys();
+    int          sessionVersion   = sessionState.getSessionVersion();
+    Cipher       cipher           = getCipher(Cipher.ENCRYPT_MODE, sessionVersion, messageKeys);
+    int          ciphertextLength = cipher.getOutputSize(paddedMessage.remaining());
+    boolean      preKeyMessage    = sessionState.hasUnacknowledgedPreKeyMessage();
+
+    if (preKeyMessage) {
+      UnacknowledgedPreKeyMessageItems items = sessionState.getUnacknowledgedPreKeyMessageItems();
+
+      PreKeySignalMessage.writeHeader(output, sessionVersion, items.getPreKeyId(), items.getBaseKey(),
+                                      sessionState.getLocalIdentityKey(),
+                                      SignalMessage.getSerializedSize(sessionState.getSenderRatchetKey(),
+                                                                      chainKey.getIndex(),
+                                                                      sessionState.getPreviousCounter(),
+                                                                      ciphertextLength));
+    }
+
+    SignalMessage.write(output, sessionVersion, messageKeys.getMacKey(),
+                        sessionState.getSenderRatchetKey(), chainKey.getIndex(),
+                        sessionState.getPreviousCounter(), cipher, paddedMessage,
+                        sessionState.getLocalIdentityKey(), sessionState.getRemoteIdentityKey());
+
+    if (preKeyMessage) {
+      PreKeySignalMessage.writeTrailer(output, sessionState.getLocalRegistrationId(),
+                                       sessionState.getUnacknowledgedPreKeyMessageItems().getSignedPreKeyId());
+      return CiphertextMessage.PREKEY_TYPE;
+    }
+
+    return CiphertextMessage.WHISPER_TYPE;
+  }
+
+  /**
+   * Encrypt a message of known length as a stream, so that memory use stays constant however
+   * large the message is.  The message uses the next sender chain key, exactly as
+   * {@link #encrypt(byte[])} would, and the serialized {@link CiphertextMessage} written to the
+   * output is identical in form.
+   *
+   * @param  output The stream the serialized message is written to.
+   * @param  plaintextLength The exact number of plaintext bytes that will be written.
+   * @return A stream to write the plaintext to.  The message is complete once the stream has been
+   *         finished or closed.
+   */
+  public SignalMessageOutputStream encrypt(OutputStream output, int plaintextLength) throws IOException {
+    final SessionState sessionState     = reserveSenderChainKey();
+    ChainKey           chainKey         = sessionState.getSenderChainKey();
+    MessageKeys        messageKeys      = chainKey.getMessageKeys();
+    int                sessionVersion   = sessionState.getSessionVersion();
+    Cipher             cipher           = getCipher(Cipher.ENCRYPT_MODE, sessionVersion, messageKeys);
+    int                ciphertextLength = cipher.getOutputSize(plaintextLength);
+
+    if (!sessionState.hasUnacknowledgedPreKeyMessage()) {
+      return new SignalMessageOutputStream(output, sessionVersion, messageKeys.getMacKey(),
+                                           sessionState.getSenderRatchetKey(), chainKey.getIndex(),
+                                           sessionState.getPreviousCounter(), cipher, plaintextLength,
+                                           sessionState.getLocalIdentityKey(),
+                                           sessionState.getRemoteIdentityKey());
+    }
+
+    final UnacknowledgedPreKeyMessageItems items  = sessionState.getUnacknowledgedPreKeyMessageItems();
+    ByteBuffer                             header = ByteBuffer.allocate(PreKeySignalMessage.getMaxSerializedSize(0));
+
+    PreKeySignalMessage.writeHeader(header, sessionVersion, items.getPreKeyId(), items.getBaseKey(),
+                                    sessionState.getLocalIdentityKey(),
+                                    SignalMessage.getSerializedSize(sessionState.getSenderRatchetKey(),
+                                                                    chainKey.getIndex(),
+                                                                    sessionState.getPreviousCounter(),
+                                                                    ciphertextLength));
+
+    output.write(header.array(), 0, header.position());
+
+    return new SignalMessageOutputStream(output, sessionVersion, messageKeys.getMacKey(),
+                                         sessionState.getSenderRatchetKey(), chainKey.getIndex(),
+                                         sessionState.getPreviousCounter(), cipher, plaintextLength,
+                                         sessionState.getLocalIdentityKey(),
+                                         sessionState.getRemoteIdentityKey())
+    {
+      @Override
+      public int getType() {
+        return CiphertextMessage.PREKEY_TYPE;
+      }
+
+      @Override
+      protected void writeTrailer(OutputStream out) throws IOException {
+        ByteBuffer trailer = ByteBuffer.allocate(PreKeySignalMessage.getMaxSerializedSize(0));
+        PreKeySignalMessage.writeTrailer(trailer, sessionState.getLocalRegistrationId(), items.getSignedPreKeyId());
+        out.write(trailer.array(), 0, trailer.position());
+      }
+    };
   }
 
   /**
@@ -162,7 +334,9 @@ public class SessionCipher {
    *                    DB.  This allows some implementations to store the committed plaintext
    *                    to a DB first, in case they are concerned with a crash happening between
    *                    the time the session state is updated but before they're able to store
-   *                    the plaintext to disk.
+   *                    the plaintext to disk.  If the session store is a
+   *                    {@link VersionedSessionStore} and a concurrent writer forces the
+   *                    decryption to be retried, the callback may be triggered more than once.
    *
    * @return The plaintext.
    * @throws InvalidMessageException if the input is not valid ciphertext.
@@ -178,20 +352,48 @@ public class SessionCipher {
       throws DuplicateMessageException, LegacyMessageException, InvalidMessageException,
              InvalidKeyIdException, InvalidKeyException, UntrustedIdentityException
   {
+    SignalMessage message = ciphertext.getWhisperMessage();
+
     synchronized (SESSION_LOCK) {
-      SessionRecord     sessionRecord    = sessionStore.loadSession(remoteAddress);
-      Optional<Integer> unsignedPreKeyId = sessionBuilder.process(sessionRecord, ciphertext);
-      byte[]            plaintext        = decrypt(sessionRecord, ciphertext.getWhisperMessage());
+      ReplayWindow replayWindow = loadReplayWindow();
+
+      if (replayWindow != null && replayWindow.isPreKeyReplay(ciphertext.getBaseKey(), message.getCounter())) {
+        throw new DuplicateMessageException("Replayed PreKey message: " + message.getCounter());
+      }
 
-      callback.handlePlaintext(plaintext);
+      checkReplay(replayWindow, message.getSenderRatchetKey(), message.getCounter());
 
-      sessionStore.storeSession(remoteAddress, sessionRecord);
+      SkipCharge skipCharge = new SkipCharge();
 
-      if (unsignedPreKeyId.isPresent()) {
-        preKeyStore.removePreKey(unsignedPreKeyId.get());
-      }
+      try {
+        while (true) {
+          SessionRecord     sessionRecord    = sessionStore.loadSession(remoteAddress);
+          Optional<Integer> unsignedPreKeyId = sessionBuilder.process(sessionRecord, ciphertext);
+          byte[]            plaintext        = decrypt(sessionRecord, message, null, skipCharge);
 
-      return plaintext;
+          callback.handlePlaintext(plaintext);
+
+          if (!commitSession(sessionRecord, null)) {
+            continue;
+          }
+
+          skipCharge.keep();
+
+          if (replayWindow != null) {
+            replayWindow.markPreKeyReceived(ciphertext.getBaseKey(), message.getCounter());
+          }
+
+          storeReplayWindow(replayWindow, message.getSenderRatchetKey(), message.getCounter());
+
+          if (unsignedPreKeyId.isPresent()) {
+            preKeyStore.removePreKey(unsignedPreKeyId.get());
+          }
+
+          return plaintext;
+        }
+      } finally {
+        skipCharge.refund();
+      }
     }
   }
 
@@ -223,7 +425,9 @@ public class SessionCipher {
    *                    DB.  This allows some implementations to store the committed plaintext
    *                    to a DB first, in case they are concerned with a crash happening between
    *                    the time the session state is updated but before they're able to store
-   *                    the plaintext to disk.
+   *                    the plaintext to disk.  If the session store is a
+   *                    {@link VersionedSessionStore} and a concurrent writer forces the
+   *                    decryption to be retried, the callback may be triggered more than once.
    *
    * @return The plaintext.
    * @throws InvalidMessageException if the input is not valid ciphertext.
@@ -237,34 +441,203 @@ public class SessionCipher {
              NoSessionException
   {
     synchronized (SESSION_LOCK) {
+      ReplayWindow replayWindow = loadReplayWindow();
+      checkReplay(replayWindow, ciphertext.getSenderRatchetKey(), ciphertext.getCounter());
 
-      if (!sessionStore.containsSession(remoteAddress)) {
-        throw new NoSessionException("No session for: " + remoteAddress);
+      SkipCharge skipCharge = new SkipCharge();
+
+      try {
+        while (true) {
+          if (!sessionStore.containsSession(remoteAddress)) {
+            throw new NoSessionException("No session for: " + remoteAddress);
+          }
+
+          SessionRecord    sessionRecord = sessionStore.loadSession(remoteAddress);
+          SessionChangeSet changes       = new SessionChangeSet(sessionRecord.getVersion());
+          byte[]           plaintext     = decrypt(sessionRecord, ciphertext, changes, skipCharge);
+
+          callback.handlePlaintext(plaintext);
+
+          if (commitSession(sessionRecord, changes)) {
+            skipCharge.keep();
+            storeReplayWindow(replayWindow, ciphertext.getSenderRatchetKey(), ciphertext.getCounter());
+            return plaintext;
+          }
+        }
+      } finally {
+        skipCharge.refund();
       }
+    }
+  }
 
-      SessionRecord sessionRecord = sessionStore.loadSession(remoteAddress);
-      byte[]        plaintext     = decrypt(sessionRecord, ciphertext);
+  /**
+   * Decrypt a serialized {@link SignalMessage} directly into a buffer.  The message is parsed in
+   * place, and the plaintext is written at the output's position without intermediate copies.
+   * The input is advanced to its limit, and the output past the plaintext.
+   *
+   * @param  signalMessage The serialized {@link SignalMessage} to decrypt.
+   * @param  plaintext A buffer with at least as many bytes remaining as the message's ciphertext.
+   * @return The number of plaintext bytes written.
+   * @throws InvalidMessageException if the input is not valid ciphertext.
+   * @throws DuplicateMessageException if the input is a message that has already been received.
+   * @throws LegacyMessageException if the input is a message formatted by a protocol version that
+   *                                is no longer supported.
+   * @throws NoSessionException if there is no established session for this contact.
+   */
+  public int decrypt(ByteBuffer signalMessage, ByteBuffer plaintext)
+      throws InvalidMessageException, DuplicateMessageException, LegacyMessageException,
+             NoSessionException
+  {
+    SignalMessage ciphertext = new SignalMessage(signalMessage);
+    int           start      = plaintext.position();
 
-      callback.handlePlaintext(plaintext);
+    if (plaintext.remaining() < ciphertext.getBodyBuffer().remaining()) {
+      throw new BufferOverflowException();
+    }
 
-      sessionStore.storeSession(remoteAddress, sessionRecord);
+    synchronized (SESSION_LOCK) {
+      ReplayWindow replayWindow = loadReplayWindow();
+      checkReplay(replayWindow, ciphertext.getSenderRatchetKey(), ciphertext.getCounter());
 
-      return plaintext;
+      SkipCharge skipCharge = new SkipCharge();
+
+      try {
+        while (true) {
+          if (!sessionStore.containsSession(remoteAddress)) {
+            throw new NoSessionException("No session for: " + remoteAddress);
+          }
+
+          SessionRecord    sessionRecord = sessionStore.loadSession(remoteAddress);
+          SessionChangeSet changes       = new SessionChangeSet(sessionRecord.getVersion());
+
+          decrypt(sessionRecord, ciphertext, changes, skipCharge, plaintext);
+
+          if (commitSession(sessionRecord, changes)) {
+            skipCharge.keep();
+            storeReplayWindow(replayWindow, ciphertext.getSenderRatchetKey(), ciphertext.getCounter());
+            return plaintext.position() - start;
+          }
+
+          plaintext.position(start);
+        }
+      } finally {
+        skipCharge.refund();
+      }
     }
   }
 
-  private byte[] decrypt(SessionRecord sessionRecord, SignalMessage ciphertext)
+  /**
+   * Decrypt a serialized {@link SignalMessage} as a stream, so that memory use stays constant
+   * however large the message is.  The message is authenticated and decrypted in a single pass
+   * over the channel, and no plaintext is released unless the whole message is authentic.
+   * <p>
+   * The channel is read outside of the session lock, so decrypting a large message doesn't hold
+   * up other sessions.  The updated session is only committed once the message has been
+   * authenticated, and the plaintext is only written once the session has been committed.  If
+   * writing the plaintext fails, the message can't be decrypted again.
+   *
+   * @param  signalMessage A channel holding the serialized {@link SignalMessage}, from its
+   *                       position to its end.
+   * @param  plaintext The stream the plaintext is written to.
+   * @return The number of plaintext bytes written.
+   * @throws InvalidMessageException if the input is not valid ciphertext.
+   * @throws DuplicateMessageException if the input is a message that has already been received.
+   * @throws LegacyMessageException if the input is a message formatted by a protocol version that
+   *                                is no longer supported.
+   * @throws NoSessionException if there is no established session for this contact.
+   */
+  public long decrypt(SeekableByteChannel signalMessage, OutputStream plaintext)
+      throws InvalidMessageException, DuplicateMessageException, LegacyMessageException,
+             NoSessionException, IOException
+  {
+    StreamingSignalMessage ciphertext = new StreamingSignalMessage(signalMessage);
+    SkipCharge             skipCharge = new SkipCharge();
+    StreamedPlaintext      verified   = null;
+
+    synchronized (SESSION_LOCK) {
+      checkReplay(loadReplayWindow(), ciphertext.getSenderRatchetKey(), ciphertext.getCounter());
+    }
+
+    try {
+      while (true) {
+        SessionRecord sessionRecord;
+        byte[]        loaded = null;
+
+        synchronized (SESSION_LOCK) {
+          if (!sessionStore.containsSession(remoteAddress)) {
+            throw new NoSessionException("No session for: " + remoteAddress);
+          }
+
+          sessionRecord = sessionStore.loadSession(remoteAddress);
+
+          if (!(sessionStore instanceof VersionedSessionStore)) {
+            loaded = sessionRecord.serialize();
+          }
+        }
+
+        SessionChangeSet  changes = new SessionChangeSet(sessionRecord.getVersion());
+        StreamedPlaintext attempt = decrypt(sessionRecord, ciphertext, changes, skipCharge, verified);
+
+        if (verified != null && verified != attempt) {
+          verified.plaintext.close();
+        }
+
+        verified = attempt;
+
+        synchronized (SESSION_LOCK) {
+          ReplayWindow replayWindow = loadReplayWindow();
+          checkReplay(replayWindow, ciphertext.getSenderRatchetKey(), ciphertext.getCounter());
+
+          if (isSessionUnchanged(loaded) && commitSession(sessionRecord, changes)) {
+            skipCharge.keep();
+            storeReplayWindow(replayWindow, ciphertext.getSenderRatchetKey(), ciphertext.getCounter());
+            break;
+          }
+        }
+      }
+
+      return verified.plaintext.writeTo(plaintext);
+    } finally {
+      skipCharge.refund();
+
+      if (verified != null) {
+        verified.plaintext.close();
+      }
+    }
+  }
+
+  /**
+   * @param changes If not null, the changes made to the record are added to this change set.
+   * @param skipCharge The skipped keys charged for this message so far, across every session
+   *                   state and retry it has been tried against.
+   */
+  private byte[] decrypt(SessionRecord sessionRecord, SignalMessage ciphertext, SessionChangeSet changes,
+                         SkipCharge skipCharge)
+      throws DuplicateMessageException, LegacyMessageException, InvalidMessageException
+  {
+    return decrypt(sessionRecord, ciphertext, changes, skipCharge, null);
+  }
+
+  /**
+   * @param output If not null, the plaintext is written to this buffer rather than returned.
+   */
+  private byte[] decrypt(SessionRecord sessionRecord, SignalMessage ciphertext, SessionChangeSet changes,
+                         SkipCharge skipCharge, ByteBuffer output)
       throws DuplicateMessageException, LegacyMessageException, InvalidMessageException
   {
     synchronized (SESSION_LOCK) {
       Iterator<SessionState> previousStates = sessionRecord.getPreviousSessionStates().iterator();
       List<Exception>        exceptions     = new LinkedList<>();
+      int                    previousIndex  = 0;
 
       try {
-        SessionState sessionState = new SessionState(sessionRecord.getSessionState());
-        byte[]       plaintext    = decrypt(sessionState, ciphertext);
+        SessionState     sessionState = new SessionState(sessionRecord.getSessionState());
+        SessionChangeSet stateChanges = new SessionChangeSet(sessionRecord.getVersion());
+        byte[]           plaintext    = decrypt(sessionState, ciphertext, stateChanges, skipCharge, output);
 
         sessionRecord.setState(sessionState);
+        if (changes != null) changes.addAll(stateChanges);
+
         return plaintext;
       } catch (InvalidMessageException e) {
         exceptions.add(e);
@@ -272,54 +645,171 @@ public class SessionCipher {
 
       while (previousStates.hasNext()) {
         try {
-          SessionState promotedState = new SessionState(previousStates.next());
-          byte[]       plaintext     = decrypt(promotedState, ciphertext);
+          SessionState     promotedState = new SessionState(previousStates.next());
+          SessionChangeSet stateChanges  = new SessionChangeSet(sessionRecord.getVersion());
+          byte[]           plaintext     = decrypt(promotedState, ciphertext, stateChanges, skipCharge, output);
 
           previousStates.remove();
           sessionRecord.promoteState(promotedState);
 
+          if (changes != null) {
+            changes.statePromoted(previousIndex);
+            changes.addAll(stateChanges);
+          }
+
           return plaintext;
         } catch (InvalidMessageException e) {
           exceptions.add(e);
         }
+
+        previousIndex++;
       }
 
       throw new InvalidMessageException("No valid sessions.", exceptions);
     }
   }
 
-  private byte[] decrypt(SessionState sessionState, SignalMessage ciphertextMessage)
+  private byte[] decrypt(SessionState sessionState, SignalMessage ciphertextMessage, SessionChangeSet changes,
+                         SkipCharge skipCharge, ByteBuffer output)
       throws InvalidMessageException, DuplicateMessageException, LegacyMessageException
   {
-    if (!sessionState.hasSenderChain()) {
-      throw new InvalidMessageException("Uninitialized session!");
-    }
-
-    if (ciphertextMessage.getMessageVersion() != sessionState.getSessionVersion()) {
-      throw new InvalidMessageException(String.format("Message version %d, but session version %d",
-                                                      ciphertextMessage.getMessageVersion(),
-                                                      sessionState.getSessionVersion()));
-    }
+    checkSessionState(sessionState, ciphertextMessage.getMessageVersion());
 
     int            messageVersion    = ciphertextMessage.getMessageVersion();
     ECPublicKey    theirEphemeral    = ciphertextMessage.getSenderRatchetKey();
     int            counter           = ciphertextMessage.getCounter();
-    ChainKey       chainKey          = getOrCreateChainKey(sessionState, theirEphemeral);
+    List<ChainKey> skippedChainKeys  = new LinkedList<>();
+    ChainKey       chainKey          = getOrCreateChainKey(sessionState, theirEphemeral, changes);
     MessageKeys    messageKeys       = getOrCreateMessageKeys(sessionState, theirEphemeral,
-                                                              chainKey, counter);
+                                                              chainKey, counter, skippedChainKeys, changes,
+                                                              skipCharge);
 
     ciphertextMessage.verifyMac(messageVersion,
                                 sessionState.getRemoteIdentityKey(),
                                 sessionState.getLocalIdentityKey(),
                                 messageKeys.getMacKey());
 
-    byte[] plaintext = getPlaintext(messageVersion, messageKeys, ciphertextMessage.getBody());
+    setSkippedMessageKeys(sessionState, theirEphemeral, skippedChainKeys, changes);
+
+    byte[] plaintext = null;
+
+    if (output == null) plaintext = getPlaintext(messageVersion, messageKeys, ciphertextMessage.getBody());
+    else                getPlaintext(messageVersion, messageKeys, ciphertextMessage.getBodyBuffer(), output);
+
+    if (sessionState.hasUnacknowledgedPreKeyMessage()) {
+      sessionState.clearUnacknowledgedPreKeyMessage();
+      changes.preKeyAcknowledged();
+    }
+
+    return plaintext;
+  }
+
+  /**
+   * Find the session state a streamed message belongs to, and authenticate and decrypt the
+   * message against it.  The record must be a private copy, as this is called outside of the
+   * session lock.
+   *
+   * @param verified The plaintext from an earlier attempt against a record that has since been
+   *                 modified, or null.  It is reused if the message keys are still the same.
+   */
+  private StreamedPlaintext decrypt(SessionRecord sessionRecord, StreamingSignalMessage ciphertext,
+                                    SessionChangeSet changes, SkipCharge skipCharge,
+                                    StreamedPlaintext verified)
+      throws DuplicateMessageException, InvalidMessageException, IOException
+  {
+    Iterator<SessionState> previousStates = sessionRecord.getPreviousSessionStates().iterator();
+    List<Exception>        exceptions     = new LinkedList<>();
+    int                    previousIndex  = 0;
+
+    try {
+      SessionState      sessionState = new SessionState(sessionRecord.getSessionState());
+      SessionChangeSet  stateChanges = new SessionChangeSet(sessionRecord.getVersion());
+      StreamedPlaintext plaintext    = decrypt(sessionState, ciphertext, stateChanges, skipCharge, verified);
+
+      sessionRecord.setState(sessionState);
+      changes.addAll(stateChanges);
+
+      return plaintext;
+    } catch (InvalidMessageException e) {
+      exceptions.add(e);
+    }
+
+    while (previousStates.hasNext()) {
+      try {
+        SessionState      promotedState = new SessionState(previousStates.next());
+        SessionChangeSet  stateChanges  = new SessionChangeSet(sessionRecord.getVersion());
+        StreamedPlaintext plaintext     = decrypt(promotedState, ciphertext, stateChanges, skipCharge, verified);
+
+        previousStates.remove();
+        sessionRecord.promoteState(promotedState);
+
+        changes.statePromoted(previousIndex);
+        changes.addAll(stateChanges);
+
+        return plaintext;
+      } catch (InvalidMessageException e) {
+        exceptions.add(e);
+      }
+
+      previousIndex++;
+    }
+
+    throw new InvalidMessageException("No valid sessions.", exceptions);
+  }
+
+  /**
+   * Derive the message keys for a streamed message, and authenticate and decrypt it with them.
+   */
+  private StreamedPlaintext decrypt(SessionState sessionState, StreamingSignalMessage ciphertextMessage,
+                                    SessionChangeSet changes, SkipCharge skipCharge,
+                                    StreamedPlaintext verified)
+      throws InvalidMessageException, DuplicateMessageException, IOException
+  {
+    checkSessionState(sessionState, ciphertextMessage.getMessageVersion());
+
+    ECPublicKey    theirEphemeral   = ciphertextMessage.getSenderRatchetKey();
+    List<ChainKey> skippedChainKeys = new LinkedList<>();
+    ChainKey       chainKey         = getOrCreateChainKey(sessionState, theirEphemeral, changes);
+    MessageKeys    messageKeys      = getOrCreateMessageKeys(sessionState, theirEphemeral, chainKey,
+                                                             ciphertextMessage.getCounter(),
+                                                             skippedChainKeys, changes, skipCharge);
+
+    StreamedPlaintext plaintext;
+
+    if (verified != null && verified.isFor(messageKeys)) {
+      plaintext = verified;
+    } else {
+      plaintext = new StreamedPlaintext(messageKeys,
+                                        ciphertextMessage.decrypt(sessionState.getRemoteIdentityKey(),
+                                                                  sessionState.getLocalIdentityKey(),
+                                                                  messageKeys.getMacKey(),
+                                                                  getCipher(Cipher.DECRYPT_MODE,
+                                                                            ciphertextMessage.getMessageVersion(),
+                                                                            messageKeys)));
+    }
+
+    setSkippedMessageKeys(sessionState, theirEphemeral, skippedChainKeys, changes);
 
-    sessionState.clearUnacknowledgedPreKeyMessage();
+    if (sessionState.hasUnacknowledgedPreKeyMessage()) {
+      sessionState.clearUnacknowledgedPreKeyMessage();
+      changes.preKeyAcknowledged();
+    }
 
     return plaintext;
   }
 
+  private void checkSessionState(SessionState sessionState, int messageVersion) throws InvalidMessageException {
+    if (!sessionState.hasSenderChain()) {
+      throw new InvalidMessageException("Uninitialized session!");
+    }
+
+    if (messageVersion != sessionState.getSessionVersion()) {
+      throw new InvalidMessageException(String.format("Message version %d, but session version %d",
+                                                      messageVersion,
+                                                      sessionState.getSessionVersion()));
+    }
+  }
+
   public int getRemoteRegistrationId() {
     synchronized (SESSION_LOCK) {
       SessionRecord record = sessionStore.loadSession(remoteAddress);
@@ -338,13 +828,124 @@ public class SessionCipher {
     }
   }
 
-  private ChainKey getOrCreateChainKey(SessionState sessionState, ECPublicKey theirEphemeral)
+  /**
+   * Advance the sender chain and commit the session, reserving the current sender chain key
+   * for one outgoing message.  The message itself is built outside of the session lock, so
+   * encryptions for different recipients can proceed in parallel.
+   *
+   * @return the session state as it was before the chain was advanced.
+   */
+  private SessionState reserveSenderChainKey() {
+    synchronized (SESSION_LOCK) {
+      while (true) {
+        SessionRecord    sessionRecord = sessionStore.loadSession(remoteAddress);
+        SessionState     sessionState  = sessionRecord.getSessionState();
+        SessionState     reserved      = new SessionState(sessionState.getStructure());
+        SessionChangeSet changes       = new SessionChangeSet(sessionRecord.getVersion());
+        ChainKey         nextChainKey  = sessionState.getSenderChainKey().getNextChainKey();
+
+        sessionState.setSenderChainKey(nextChainKey);
+        changes.senderChainAdvanced(nextChainKey);
+
+        if (commitSession(sessionRecord, changes)) {
+          return reserved;
+        }
+      }
+    }
+  }
+
+  /**
+   * Store an updated session record.  When the session store supports incremental writes and
+   * the changes can be expressed as a change set, only the changes are stored.  When the session
+   * store supports versioned writes, the record is only stored if nobody else has modified it
+   * since it was loaded.
+   *
+   * @param changes The changes made to the record, or null if they weren't tracked.
+   * @return true if the record was stored, false if the caller should retry the operation
+   *         against a freshly loaded record.
+   */
+  private boolean commitSession(SessionRecord sessionRecord, SessionChangeSet changes) {
+    if (changes != null && !changes.isFullRecordRequired() && sessionStore instanceof IncrementalSessionStore) {
+      boolean stored = ((IncrementalSessionStore) sessionStore).storeSessionChanges(remoteAddress, changes);
+
+      if (!stored) {
+        Log.w(TAG, "Concurrent modification of session for " + remoteAddress + ", retrying...");
+      }
+
+      return stored;
+    } else if (sessionStore instanceof VersionedSessionStore) {
+      boolean stored = ((VersionedSessionStore) sessionStore).storeSessionIfVersion(remoteAddress, sessionRecord,
+                                                                                    sessionRecord.getVersion());
+
+      if (!stored) {
+        Log.w(TAG, "Concurrent modification of session for " + remoteAddress + ", retrying...");
+      }
+
+      return stored;
+    } else {
+      sessionStore.storeSession(remoteAddress, sessionRecord);
+      return true;
+    }
+  }
+
+  /**
+   * @param loaded The serialized record as it was loaded, or null if the session store is a
+   *               {@link VersionedSessionStore}, which checks this itself on commit.
+   * @return true if the stored session hasn't been modified since it was loaded.
+   */
+  private boolean isSessionUnchanged(byte[] loaded) {
+    if (loaded == null) {
+      return true;
+    }
+
+    if (Arrays.equals(loaded, sessionStore.loadSession(remoteAddress).serialize())) {
+      return true;
+    }
+
+    Log.w(TAG, "Concurrent modification of session for " + remoteAddress + ", retrying...");
+    return false;
+  }
+
+  /**
+   * @return the replay window for the remote address, or null if the session store doesn't keep
+   *         replay windows.
+   */
+  private ReplayWindow loadReplayWindow() {
+    if (sessionStore instanceof ReplayWindowStore) {
+      return ((ReplayWindowStore) sessionStore).loadReplayWindow(remoteAddress);
+    } else {
+      return null;
+    }
+  }
+
+  private void checkReplay(ReplayWindow replayWindow, ECPublicKey senderRatchetKey, int counter)
+      throws DuplicateMessageException
+  {
+    if (replayWindow != null && replayWindow.isReplay(senderRatchetKey, counter)) {
+      throw new DuplicateMessageException("Replayed message with counter: " + counter);
+    }
+  }
+
+  /**
+   * Mark an authenticated and committed message as received.
+   */
+  private void storeReplayWindow(ReplayWindow replayWindow, ECPublicKey senderRatchetKey, int counter) {
+    if (replayWindow != null) {
+      replayWindow.markReceived(senderRatchetKey, counter);
+      ((ReplayWindowStore) sessionStore).storeReplayWindow(remoteAddress, replayWindow);
+    }
+  }
+
+  private ChainKey getOrCreateChainKey(SessionState sessionState, ECPublicKey theirEphemeral,
+                                       SessionChangeSet changes)
       throws InvalidMessageException
   {
     try {
       if (sessionState.hasReceiverChain(theirEphemeral)) {
         return sessionState.getReceiverChainKey(theirEphemeral);
       } else {
+        changes.setFullRecordRequired();
+
         RootKey                 rootKey         = sessionState.getRootKey();
         ECKeyPair               ourEphemeral    = sessionState.getSenderRatchetKeyPair();
         Pair<RootKey, ChainKey> receiverChain   = rootKey.createChain(theirEphemeral, ourEphemeral);
@@ -363,13 +964,25 @@ public class SessionCipher {
     }
   }
 
+  /**
+   * Derive the message keys for a received counter.  The chain keys for any skipped messages are
+   * collected rather than turned into message keys, so that a forged message costs one HMAC per
+   * skipped message and doesn't touch the session.  Once the message has been authenticated,
+   * {@link #setSkippedMessageKeys(SessionState, ECPublicKey, List, SessionChangeSet)} stores
+   * their message keys.  The gap is checked against the limiter's gap limit, and charged to the
+   * peer's budget through the message's skip charge.
+   */
   private MessageKeys getOrCreateMessageKeys(SessionState sessionState,
                                              ECPublicKey theirEphemeral,
-                                             ChainKey chainKey, int counter)
+                                             ChainKey chainKey, int counter,
+                                             List<ChainKey> skippedChainKeys,
+                                             SessionChangeSet changes,
+                                             SkipCharge skipCharge)
       throws InvalidMessageException, DuplicateMessageException
   {
     if (chainKey.getIndex() > counter) {
       if (sessionState.hasMessageKeys(theirEphemeral, counter)) {
+        changes.messageKeysRemoved(theirEphemeral, counter);
         return sessionState.removeMessageKeys(theirEphemeral, counter);
       } else {
         throw new DuplicateMessageException("Received message with old counter: " +
@@ -377,31 +990,41 @@ public class SessionCipher {
       }
     }
 
-    if (counter - chainKey.getIndex() > 2000) {
-      throw new InvalidMessageException("Over 2000 messages into the future!");
-    }
+    int skip = counter - chainKey.getIndex();
+
+    skipAheadLimiter.checkSessionGap(skip);
+    skipCharge.charge(skip);
 
     while (chainKey.getIndex() < counter) {
-      MessageKeys messageKeys = chainKey.getMessageKeys();
-      sessionState.setMessageKeys(theirEphemeral, messageKeys);
+      skippedChainKeys.add(chainKey);
       chainKey = chainKey.getNextChainKey();
     }
 
-    sessionState.setReceiverChainKey(theirEphemeral, chainKey.getNextChainKey());
+    ChainKey nextChainKey = chainKey.getNextChainKey();
+
+    sessionState.setReceiverChainKey(theirEphemeral, nextChainKey);
+    changes.receiverChainKeyUpdated(theirEphemeral, nextChainKey);
+
     return chainKey.getMessageKeys();
   }
 
-  private byte[] getCiphertext(int version, MessageKeys messageKeys, byte[] plaintext) {
-    try {
-      Cipher cipher;
+  private void setSkippedMessageKeys(SessionState sessionState, ECPublicKey theirEphemeral,
+                                     List<ChainKey> skippedChainKeys, SessionChangeSet changes)
+  {
+    List<MessageKeys> skippedMessageKeys = new LinkedList<>();
 
-      if (version >= 3) {
-        cipher = getCipher(Cipher.ENCRYPT_MODE, messageKeys.getCipherKey(), messageKeys.getIv());
-      } else {
-        cipher = getCipher(Cipher.ENCRYPT_MODE, messageKeys.getCipherKey(), messageKeys.getCounter());
-      }
+    for (ChainKey chainKey : skippedChainKeys) {
+      MessageKeys messageKeys = chainKey.getMessageKeys();
+      skippedMessageKeys.add(messageKeys);
+      changes.messageKeysAdded(theirEphemeral, messageKeys);
+    }
 
-      return cipher.doFinal(plaintext);
+    sessionState.setMessageKeys(theirEphemeral, skippedMessageKeys);
+  }
+
+  private byte[] getCiphertext(int version, MessageKeys messageKeys, byte[] plaintext) {
+    try {
+      return getCipher(Cipher.ENCRYPT_MODE, version, messageKeys).doFinal(plaintext);
     } catch (IllegalBlockSizeException | BadPaddingException e) {
       throw new AssertionError(e);
     }
@@ -411,20 +1034,33 @@ public class SessionCipher {
       throws InvalidMessageException
   {
     try {
-      Cipher cipher;
+      return getCipher(Cipher.DECRYPT_MODE, version, messageKeys).doFinal(cipherText);
+    } catch (IllegalBlockSizeException | BadPaddingException e) {
+      throw new InvalidMessageException(e);
+    }
+  }
 
-      if (version >= 3) {
-        cipher = getCipher(Cipher.DECRYPT_MODE, messageKeys.getCipherKey(), messageKeys.getIv());
-      } else {
-        cipher = getCipher(Cipher.DECRYPT_MODE, messageKeys.getCipherKey(), messageKeys.getCounter());
-      }
+  private void getPlaintext(int version, MessageKeys messageKeys, ByteBuffer cipherText, ByteBuffer output)
+      throws InvalidMessageException
+  {
+    int start = output.position();
 
-      return cipher.doFinal(cipherText);
-    } catch (IllegalBlockSizeException | BadPaddingException e) {
+    try {
+      getCipher(Cipher.DECRYPT_MODE, version, messageKeys).doFinal(cipherText, output);
+    } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+      output.position(start);
       throw new InvalidMessageException(e);
     }
   }
 
+  private Cipher getCipher(int mode, int version, MessageKeys messageKeys) {
+    if (version >= 3) {
+      return getCipher(mode, messageKeys.getCipherKey(), messageKeys.getIv());
+    } else {
+      return getCipher(mode, messageKeys.getCipherKey(), messageKeys.getCounter());
+    }
+  }
+
   private Cipher getCipher(int mode, SecretKeySpec key, int counter)  {
     try {
       Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
@@ -455,6 +1091,53 @@ public class SessionCipher {
     }
   }
 
+  /**
+   * The skipped keys charged to the peer's budget for one message.  However many session states
+   * and retries a message is tried against, it's charged once, for its largest gap.  The charge
+   * is refunded unless the message is authenticated and committed.
+   */
+  private class SkipCharge {
+
+    private int charged;
+
+    void charge(int skip) throws InvalidMessageException {
+      if (skip > charged) {
+        skipAheadLimiter.charge(remoteAddress, skip - charged);
+        charged = skip;
+      }
+    }
+
+    void keep() {
+      charged = 0;
+    }
+
+    void refund() {
+      skipAheadLimiter.refund(remoteAddress, charged);
+      charged = 0;
+    }
+  }
+
+  /**
+   * The authenticated plaintext of a streamed message, and the message keys it was
+   * authenticated with.
+   */
+  private static class StreamedPlaintext {
+
+    private final MessageKeys       messageKeys;
+    private final VerifiedPlaintext plaintext;
+
+    private StreamedPlaintext(MessageKeys messageKeys, VerifiedPlaintext plaintext) {
+      this.messageKeys = messageKeys;
+      this.plaintext   = plaintext;
+    }
+
+    private boolean isFor(MessageKeys other) {
+      return messageKeys.getCipherKey().equals(other.getCipherKey()) &&
+             messageKeys.getMacKey().equals(other.getMacKey())       &&
+             Arrays.equals(messageKeys.getIv().getIV(), other.getIv().getIV());
+    }
+  }
+
   private static class NullDecryptionCallback implements DecryptionCallback {
     @Override
     public void handlePlaintext(byte[] plaintext) {}
@@ -0,0 +1,105 @@
+package org.whispersystems.libsignal;
+
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.ratchet.AliceSignalProtocolParameters;
+import org.whispersystems.libsignal.ratchet.RatchetingSession;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionState;
+import org.whispersystems.libsignal.util.guava.Optional;
+
+/**
+ * Sets up the initiating side of a session from a {@link PreKeyBundle}.  Both
+ * {@link SessionBuilder} and {@link BulkSessionBuilder} build their sessions here, so that a
+ * bundle is checked and a session is set up the same way whichever is used.
+ */
+class SessionInitializer {
+
+  /**
+   * Verify the signature on a bundle's signed prekey, and build a new session state from it.
+   *
+   * @throws InvalidKeyException if the bundle has no signed prekey, or its signature is bad.
+   */
+  static SessionState initializeSession(IdentityKeyPair ourIdentityKey, int registrationId,
+                                        PreKeyBundle preKey, SignatureVerificationCache signatureVerificationCache)
+      throws InvalidKeyException
+  {
+    checkSignedPreKey(preKey, preKey.getSignedPreKey() != null &&
+                              verifySignedPreKey(preKey, signatureVerificationCache));
+
+    return initializeSession(ourIdentityKey, registrationId, preKey);
+  }
+
+  /**
+   * Build a new session state from a bundle whose signed prekey has already been checked with
+   * {@link #checkSignedPreKey(PreKeyBundle, boolean)}.
+   */
+  static SessionState initializeSession(IdentityKeyPair ourIdentityKey, int registrationId, PreKeyBundle preKey)
+      throws InvalidKeyException
+  {
+    SessionState          sessionState         = new SessionState();
+    ECKeyPair             ourBaseKey           = Curve.generateKeyPair();
+    ECPublicKey           theirSignedPreKey    = preKey.getSignedPreKey();
+    Optional<ECPublicKey> theirOneTimePreKey   = Optional.fromNullable(preKey.getPreKey());
+    Optional<Integer>     theirOneTimePreKeyId = theirOneTimePreKey.isPresent() ? Optional.of(preKey.getPreKeyId()) :
+                                                                                  Optional.<Integer>absent();
+
+    AliceSignalProtocolParameters.Builder parameters = AliceSignalProtocolParameters.newBuilder();
+
+    parameters.setOurBaseKey(ourBaseKey)
+              .setOurIdentityKey(ourIdentityKey)
+              .setTheirIdentityKey(preKey.getIdentityKey())
+              .setTheirSignedPreKey(theirSignedPreKey)
+              .setTheirRatchetKey(theirSignedPreKey)
+              .setTheirOneTimePreKey(theirOneTimePreKey);
+
+    RatchetingSession.initializeSession(sessionState, parameters.create());
+
+    sessionState.setUnacknowledgedPreKeyMessage(theirOneTimePreKeyId, preKey.getSignedPreKeyId(), ourBaseKey.getPublicKey());
+    sessionState.setLocalRegistrationId(registrationId);
+    sessionState.setRemoteRegistrationId(preKey.getRegistrationId());
+    sessionState.setAliceBaseKey(ourBaseKey.getPublicKey().serialize());
+
+    return sessionState;
+  }
+
+  /**
+   * Make a new session state the record's current one, archiving any existing session.
+   */
+  static void setSessionState(SessionRecord sessionRecord, SessionState sessionState) {
+    if (!sessionRecord.isFresh()) sessionRecord.promoteState(sessionState);
+    else                          sessionRecord.setState(sessionState);
+  }
+
+  /**
+   * @param verified Whether the bundle's signed prekey signature verified.
+   * @throws InvalidKeyException if the bundle has no signed prekey, or its signature is bad.
+   */
+  static void checkSignedPreKey(PreKeyBundle preKey, boolean verified) throws InvalidKeyException {
+    if (preKey.getSignedPreKey() != null && !verified) {
+      throw new InvalidKeyException("Invalid signature on device key!");
+    }
+
+    if (preKey.getSignedPreKey() == null) {
+      throw new InvalidKeyException("No signed prekey!");
+    }
+  }
+
+  /**
+   * @param signatureVerificationCache The signature cache to use, or null to verify the signature.
+   */
+  static boolean verifySignedPreKey(PreKeyBundle preKey, SignatureVerificationCache signatureVerificationCache)
+      throws InvalidKeyException
+  {
+    ECPublicKey identityKey  = preKey.getIdentityKey().getPublicKey();
+    byte[]      signedPreKey = preKey.getSignedPreKey().serialize();
+
+    if (signatureVerificationCache != null) {
+      return signatureVerificationCache.verifySignature(identityKey, signedPreKey, preKey.getSignedPreKeySignature());
+    } else {
+      return Curve.verifySignature(identityKey, signedPreKey, preKey.getSignedPreKeySignature());
+    }
+  }
+}
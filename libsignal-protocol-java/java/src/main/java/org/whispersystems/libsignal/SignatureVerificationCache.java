@@ -0,0 +1,137 @@
+package org.whispersystems.libsignal;
+
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.util.ByteUtil;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which signatures have been verified, so that a signed prekey which is seen again,
+ * as when setting up sessions with many devices of the same account or after a session reset,
+ * doesn't need its signature verified again.
+ * <p>
+ * Each verified signature is remembered by a SHA-256 hash of its signing key, message, and
+ * signature.  Only successful verifications are remembered, so a bad signature is always
+ * checked in full.  At most a fixed number of signatures are kept, and the least recently used
+ * is forgotten beyond that.
+ * <p>
+ * A cache can be shared by any number of {@link SessionBuilder}s, and is thread safe.
+ */
+public class SignatureVerificationCache {
+
+  private final Map<Digest, Boolean> verified;
+
+  private final AtomicLong hits   = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param maxEntries The number of verified signatures kept.
+   */
+  public SignatureVerificationCache(final int maxEntries) {
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("Bad size: " + maxEntries);
+    }
+
+    this.verified = new LinkedHashMap<Digest, Boolean>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Digest, Boolean> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Verify a signature, with the same semantics as
+   * {@link Curve#verifySignature(ECPublicKey, byte[], byte[])}, unless it has already been
+   * verified.
+   */
+  public boolean verifySignature(ECPublicKey signingKey, byte[] message, byte[] signature)
+      throws InvalidKeyException
+  {
+    if (signature == null) {
+      return Curve.verifySignature(signingKey, message, signature);
+    }
+
+    Digest digest = new Digest(signingKey.serialize(), message, signature);
+
+    synchronized (verified) {
+      if (verified.get(digest) != null) {
+        hits.incrementAndGet();
+        return true;
+      }
+    }
+
+    misses.incrementAndGet();
+
+    if (!Curve.verifySignature(signingKey, message, signature)) {
+      return false;
+    }
+
+    synchronized (verified) {
+      verified.put(digest, Boolean.TRUE);
+    }
+
+    return true;
+  }
+
+  /**
+   * Forget every verified signature.
+   */
+  public void clear() {
+    synchronized (verified) {
+      verified.clear();
+    }
+  }
+
+  /**
+   * @return the number of signatures found to have already been verified.
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of signatures which had to be verified.
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  private static class Digest {
+    private final byte[] hash;
+
+    private Digest(byte[]... elements) {
+      try {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+        for (byte[] element : elements) {
+          digest.update(ByteUtil.intToByteArray(element.length));
+          digest.update(element);
+        }
+
+        this.hash = digest.digest();
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (other == null)              return false;
+      if (!(other instanceof Digest)) return false;
+
+      return Arrays.equals(this.hash, ((Digest)other).hash);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(hash);
+    }
+  }
+}
@@ -0,0 +1,220 @@
+package org.whispersystems.libsignal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how far ahead of a receiving chain a message's counter may be, and so how many
+ * skipped message keys a single message can force a receiver to derive.
+ * <p>
+ * Each gap is checked against a fixed limit, configured separately for sessions and for sender
+ * keys.  Optionally, each peer also has a budget of skipped keys: a token bucket which holds up
+ * to a burst of keys and refills at a steady rate.  A message whose gap exceeds the limit or the
+ * peer's remaining budget is rejected before any keys are derived for it.  Messages which don't
+ * skip ahead are never limited.  A session message is charged once, however many session states
+ * it's tried against, and its charge is refunded if it fails to authenticate.
+ * <p>
+ * A limiter can be shared by any number of {@link SessionCipher}s and
+ * {@link org.whispersystems.libsignal.groups.GroupCipher}s, and is thread safe.
+ */
+public class SkipAheadLimiter {
+
+  /**
+   * The gap limit used when none is configured.
+   */
+  public static final int DEFAULT_MAX_SKIP = 2000;
+
+  private static final SkipAheadLimiter DEFAULT = new SkipAheadLimiter(DEFAULT_MAX_SKIP, DEFAULT_MAX_SKIP);
+
+  private final int                                maxSessionSkip;
+  private final int                                maxSenderKeySkip;
+  private final long                               burst;
+  private final double                             refillPerNano;
+  private final Map<SignalProtocolAddress, Bucket> buckets;
+
+  private final AtomicLong skippedKeys    = new AtomicLong();
+  private final AtomicLong rejectedGaps   = new AtomicLong();
+  private final AtomicLong rejectedBudget = new AtomicLong();
+
+  /**
+   * Limit gaps without a per-peer budget.
+   *
+   * @param maxSessionSkip The largest gap accepted on a session's receiving chain.
+   * @param maxSenderKeySkip The largest gap accepted on a sender key chain.
+   */
+  public SkipAheadLimiter(int maxSessionSkip, int maxSenderKeySkip) {
+    this.maxSessionSkip   = maxSessionSkip;
+    this.maxSenderKeySkip = maxSenderKeySkip;
+    this.burst            = 0;
+    this.refillPerNano    = 0;
+    this.buckets          = null;
+  }
+
+  /**
+   * Limit gaps, and give each peer a budget of skipped keys.
+   *
+   * @param maxSessionSkip The largest gap accepted on a session's receiving chain.
+   * @param maxSenderKeySkip The largest gap accepted on a sender key chain.
+   * @param burst The most skipped keys a peer can have derived at once.  This must be at least as
+   *              large as both gap limits.
+   * @param refillPerSecond The rate at which a peer's budget is restored.
+   * @param maxPeers The number of peers whose budgets are tracked.  The least recently limited
+   *                 peer's budget is forgotten beyond this, and starts out full again.
+   */
+  public SkipAheadLimiter(int maxSessionSkip, int maxSenderKeySkip,
+                          int burst, int refillPerSecond, final int maxPeers)
+  {
+    if (burst < Math.max(maxSessionSkip, maxSenderKeySkip) || refillPerSecond < 0 || maxPeers <= 0) {
+      throw new IllegalArgumentException("Bad budget: " + burst + ", " + refillPerSecond + ", " + maxPeers);
+    }
+
+    this.maxSessionSkip   = maxSessionSkip;
+    this.maxSenderKeySkip = maxSenderKeySkip;
+    this.burst            = burst;
+    this.refillPerNano    = (double)refillPerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.buckets          = new LinkedHashMap<SignalProtocolAddress, Bucket>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<SignalProtocolAddress, Bucket> eldest) {
+        return size() > maxPeers;
+      }
+    };
+  }
+
+  /**
+   * @return the limiter used by ciphers which aren't given one, which allows gaps of up to
+   *         {@link #DEFAULT_MAX_SKIP} with no per-peer budget.
+   */
+  public static SkipAheadLimiter getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Check a gap on a session's receiving chain, charging it to the peer's budget.
+   *
+   * @param skip The number of message keys that would be skipped.
+   * @throws InvalidMessageException if the gap isn't allowed.
+   */
+  public void checkSessionSkip(SignalProtocolAddress peer, int skip) throws InvalidMessageException {
+    check(peer, skip, maxSessionSkip);
+  }
+
+  /**
+   * Check a gap on a sender key chain, charging it to the sender's budget.
+   *
+   * @param skip The number of message keys that would be skipped.
+   * @throws InvalidMessageException if the gap isn't allowed.
+   */
+  public void checkSenderKeySkip(SignalProtocolAddress sender, int skip) throws InvalidMessageException {
+    check(sender, skip, maxSenderKeySkip);
+  }
+
+  /**
+   * @return the number of skipped keys allowed so far, not counting any that were refunded.
+   */
+  public long getSkippedKeys() {
+    return skippedKeys.get();
+  }
+
+  /**
+   * @return the number of messages rejected for exceeding a gap limit.
+   */
+  public long getRejectedGaps() {
+    return rejectedGaps.get();
+  }
+
+  /**
+   * @return the number of messages rejected for exceeding their peer's budget.
+   */
+  public long getRejectedBudget() {
+    return rejectedBudget.get();
+  }
+
+  /**
+   * Check a gap on a session's receiving chain against the gap limit only.  The gap is charged
+   * separately, with {@link #charge(SignalProtocolAddress, int)}, so that it can be refunded if
+   * the message turns out not to be authentic.
+   */
+  void checkSessionGap(int skip) throws InvalidMessageException {
+    checkGap(skip, maxSessionSkip);
+  }
+
+  /**
+   * Charge skipped keys to a peer's budget.
+   *
+   * @throws InvalidMessageException if the peer's budget is exhausted.
+   */
+  void charge(SignalProtocolAddress peer, int keys) throws InvalidMessageException {
+    if (keys <= 0) return;
+
+    if (buckets != null && !acquire(peer, keys, System.nanoTime())) {
+      rejectedBudget.incrementAndGet();
+      throw new InvalidMessageException("Skip-ahead budget exhausted for: " + peer);
+    }
+
+    skippedKeys.addAndGet(keys);
+  }
+
+  /**
+   * Return skipped keys charged for a message which was then rejected.
+   */
+  void refund(SignalProtocolAddress peer, int keys) {
+    if (keys <= 0) return;
+
+    if (buckets != null) {
+      synchronized (buckets) {
+        Bucket bucket = buckets.get(peer);
+
+        if (bucket != null) {
+          bucket.tokens = Math.min(burst, bucket.tokens + keys);
+        }
+      }
+    }
+
+    skippedKeys.addAndGet(-keys);
+  }
+
+  private void check(SignalProtocolAddress peer, int skip, int maxSkip) throws InvalidMessageException {
+    checkGap(skip, maxSkip);
+    charge(peer, skip);
+  }
+
+  private void checkGap(int skip, int maxSkip) throws InvalidMessageException {
+    if (skip > maxSkip) {
+      rejectedGaps.incrementAndGet();
+      throw new InvalidMessageException("Over " + maxSkip + " messages into the future!");
+    }
+  }
+
+  private boolean acquire(SignalProtocolAddress peer, int keys, long now) {
+    synchronized (buckets) {
+      Bucket bucket = buckets.get(peer);
+
+      if (bucket == null) {
+        bucket = new Bucket(burst, now);
+        buckets.put(peer, bucket);
+      }
+
+      bucket.tokens  = Math.min(burst, bucket.tokens + (now - bucket.updated) * refillPerNano);
+      bucket.updated = now;
+
+      if (bucket.tokens < keys) {
+        return false;
+      }
+
+      bucket.tokens -= keys;
+      return true;
+    }
+  }
+
+  private static class Bucket {
+    private double tokens;
+    private long   updated;
+
+    private Bucket(double tokens, long updated) {
+      this.tokens  = tokens;
+      this.updated = updated;
+    }
+  }
+}
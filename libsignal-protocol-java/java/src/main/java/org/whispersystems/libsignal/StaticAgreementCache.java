@@ -0,0 +1,173 @@
+package org.whispersystems.libsignal;
+
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the agreement between a remote identity key and one of our signed prekeys, which
+ * is the only agreement in an incoming key exchange that doesn't involve an ephemeral key.
+ * <p>
+ * A client which sends a burst of PreKeySignalMessages, for instance after reinstalling or from
+ * several devices at once, will usually send them all with the same identity key and to the same
+ * signed prekey.  With a cache, only the first of them pays for this agreement.
+ * <p>
+ * At most a fixed number of agreements are kept, and the least recently used is forgotten
+ * beyond that.  Forgotten agreements are overwritten with zeros.  An agreement is also
+ * forgotten if the signed prekey it was made with is no longer the one stored under its id, and
+ * {@link #removeSignedPreKey(int)} should be called when a signed prekey is removed.  A
+ * {@link org.whispersystems.libsignal.state.PreKeyPoolManager} given the cache does this as it
+ * retires signed prekeys.
+ * <p>
+ * A cache can be shared by any number of {@link SessionBuilder}s and {@link SessionCipher}s,
+ * and is thread safe.
+ */
+public class StaticAgreementCache {
+
+  private final Map<Key, Agreement> entries;
+
+  private final AtomicLong hits   = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param maxEntries The number of agreements kept.
+   */
+  public StaticAgreementCache(final int maxEntries) {
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("Bad size: " + maxEntries);
+    }
+
+    this.entries = new LinkedHashMap<Key, Agreement>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Agreement> eldest) {
+        if (size() > maxEntries) {
+          eldest.getValue().clear();
+          return true;
+        }
+
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Calculate the agreement between a remote identity key and one of our signed prekeys, or
+   * return it from the cache.
+   *
+   * @return a copy of the agreement, which the caller is free to clear.
+   */
+  public byte[] calculateAgreement(IdentityKey theirIdentityKey, int signedPreKeyId, ECKeyPair ourSignedPreKey)
+      throws InvalidKeyException
+  {
+    Key    key       = new Key(theirIdentityKey.serialize(), signedPreKeyId);
+    byte[] publicKey = ourSignedPreKey.getPublicKey().serialize();
+
+    synchronized (entries) {
+      Agreement cached = entries.get(key);
+
+      if (cached != null && Arrays.equals(cached.signedPreKey, publicKey)) {
+        hits.incrementAndGet();
+        return cached.agreement.clone();
+      }
+    }
+
+    misses.incrementAndGet();
+
+    byte[] agreement = Curve.calculateAgreement(theirIdentityKey.getPublicKey(), ourSignedPreKey.getPrivateKey());
+
+    synchronized (entries) {
+      Agreement previous = entries.put(key, new Agreement(publicKey, agreement.clone()));
+      if (previous != null) previous.clear();
+    }
+
+    return agreement;
+  }
+
+  /**
+   * Forget every agreement made with a signed prekey.
+   */
+  public void removeSignedPreKey(int signedPreKeyId) {
+    synchronized (entries) {
+      Iterator<Map.Entry<Key, Agreement>> iterator = entries.entrySet().iterator();
+
+      while (iterator.hasNext()) {
+        Map.Entry<Key, Agreement> entry = iterator.next();
+
+        if (entry.getKey().signedPreKeyId == signedPreKeyId) {
+          entry.getValue().clear();
+          iterator.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Forget every agreement.
+   */
+  public void clear() {
+    synchronized (entries) {
+      for (Agreement cached : entries.values()) {
+        cached.clear();
+      }
+
+      entries.clear();
+    }
+  }
+
+  /**
+   * @return the number of agreements returned from the cache.
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of agreements which had to be calculated.
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  private static class Key {
+    private final byte[] identityKey;
+    private final int    signedPreKeyId;
+
+    private Key(byte[] identityKey, int signedPreKeyId) {
+      this.identityKey    = identityKey;
+      this.signedPreKeyId = signedPreKeyId;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (other == null)           return false;
+      if (!(other instanceof Key)) return false;
+
+      Key that = (Key)other;
+      return this.signedPreKeyId == that.signedPreKeyId && Arrays.equals(this.identityKey, that.identityKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(identityKey) ^ signedPreKeyId;
+    }
+  }
+
+  private static class Agreement {
+    private final byte[] signedPreKey;
+    private final byte[] agreement;
+
+    private Agreement(byte[] signedPreKey, byte[] agreement) {
+      this.signedPreKey = signedPreKey;
+      this.agreement    = agreement;
+    }
+
+    private void clear() {
+      Arrays.fill(agreement, (byte)0);
+    }
+  }
+}
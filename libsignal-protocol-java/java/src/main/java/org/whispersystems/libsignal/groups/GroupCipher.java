@@ -22,6 +22,8 @@ import org.whispersystems.libsignal.InvalidKeyIdException;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.LegacyMessageException;
 import org.whispersystems.libsignal.NoSessionException;
+import org.whispersystems.libsignal.SkipAheadLimiter;
+import org.whispersystems.libsignal.ecc.ECPrivateKey;
 import org.whispersystems.libsignal.groups.ratchet.SenderChainKey;
 import org.whispersystems.libsignal.groups.ratchet.SenderMessageKey;
 import org.whispersystems.libsignal.groups.state.SenderKeyRecord;
@@ -29,13 +31,21 @@ import org.whispersystems.libsignal.groups.state.SenderKeyState;
 import org.whispersystems.libsignal.groups.state.SenderKeyStore;
 import org.whispersystems.libsignal.protocol.SenderKeyMessage;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -53,12 +63,24 @@ public class GroupCipher {
 
   static final Object LOCK = new Object();
 
-  private final SenderKeyStore senderKeyStore;
-  private final SenderKeyName senderKeyId;
+  private final SenderKeyStore   senderKeyStore;
+  private final SenderKeyName    senderKeyId;
+  private final SkipAheadLimiter skipAheadLimiter;
 
   public GroupCipher(SenderKeyStore senderKeyStore, SenderKeyName senderKeyId) {
-    this.senderKeyStore = senderKeyStore;
-    this.senderKeyId    = senderKeyId;
+    this(senderKeyStore, senderKeyId, SkipAheadLimiter.getDefault());
+  }
+
+  /**
+   * @param skipAheadLimiter Checks each gap in the received iterations, once the message's
+   *                         signature has been verified and before any skipped keys are derived.
+   */
+  public GroupCipher(SenderKeyStore senderKeyStore, SenderKeyName senderKeyId,
+                     SkipAheadLimiter skipAheadLimiter)
+  {
+    this.senderKeyStore   = senderKeyStore;
+    this.senderKeyId      = senderKeyId;
+    this.skipAheadLimiter = skipAheadLimiter;
   }
 
   /**
@@ -92,6 +114,115 @@ public class GroupCipher {
     }
   }
 
+  /**
+   * @return the largest number of bytes {@link #encrypt(ByteBuffer, ByteBuffer)} can write for
+   *         a plaintext of the given length.
+   */
+  public static int getMaxCiphertextSize(int plaintextLength) {
+    return SenderKeyMessage.getMaxSerializedSize((plaintextLength / 16 + 1) * 16);
+  }
+
+  /**
+   * Encrypt a message directly into a buffer.  The serialized {@link SenderKeyMessage} is written
+   * at the output's position, and both buffers are advanced.
+   *
+   * @param paddedPlaintext The plaintext message bytes, optionally padded.
+   * @param output A buffer with at least {@link #getMaxCiphertextSize(int)} bytes remaining.
+   * @return The number of bytes written.
+   * @throws BufferOverflowException if the output is too small, in which case nothing is written
+   *                                 and the sender key is left unchanged.
+   * @throws NoSessionException
+   */
+  public int encrypt(ByteBuffer paddedPlaintext, ByteBuffer output) throws NoSessionException {
+    if (output.remaining() < getMaxCiphertextSize(paddedPlaintext.remaining())) {
+      throw new BufferOverflowException();
+    }
+
+    synchronized (LOCK) {
+      try {
+        SenderKeyRecord  record         = senderKeyStore.loadSenderKey(senderKeyId);
+        SenderKeyState   senderKeyState = record.getSenderKeyState();
+        SenderMessageKey senderKey      = senderKeyState.getSenderChainKey().getSenderMessageKey();
+        Cipher           cipher         = getCipher(Cipher.ENCRYPT_MODE, senderKey.getIv(), senderKey.getCipherKey());
+        int              start          = output.position();
+
+        SenderKeyMessage.write(output, senderKeyState.getKeyId(), senderKey.getIteration(),
+                               cipher, paddedPlaintext, senderKeyState.getSigningKeyPrivate());
+
+        senderKeyState.setSenderChainKey(senderKeyState.getSenderChainKey().getNext());
+
+        senderKeyStore.storeSenderKey(senderKeyId, record);
+
+        return output.position() - start;
+      } catch (InvalidKeyIdException e) {
+        throw new NoSessionException(e);
+      }
+    }
+  }
+
+  /**
+   * Encrypt a batch of messages.
+   * <p>
+   * The sender key is loaded and stored once for the whole batch, and the messages use
+   * consecutive message keys, exactly as if each had been encrypted in turn with
+   * {@link #encrypt(byte[])}.
+   *
+   * @param paddedPlaintexts The plaintext messages, optionally padded.
+   * @return Ciphertexts, in the same order as the plaintexts, as an unmodifiable list.
+   * @throws NoSessionException
+   */
+  public List<byte[]> encrypt(List<byte[]> paddedPlaintexts) throws NoSessionException {
+    return encrypt(paddedPlaintexts, null);
+  }
+
+  /**
+   * Encrypt a batch of messages, encrypting and signing them in parallel.
+   *
+   * @param paddedPlaintexts The plaintext messages, optionally padded.
+   * @param pool The pool to encrypt and sign on, or null to do so on the calling thread.
+   * @return Ciphertexts, in the same order as the plaintexts, as an unmodifiable list.
+   * @throws NoSessionException
+   */
+  public List<byte[]> encrypt(List<byte[]> paddedPlaintexts, ForkJoinPool pool) throws NoSessionException {
+    if (paddedPlaintexts.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    SenderMessageKey[] senderKeys = new SenderMessageKey[paddedPlaintexts.size()];
+    int                keyId;
+    ECPrivateKey       signingKey;
+
+    synchronized (LOCK) {
+      try {
+        SenderKeyRecord record         = senderKeyStore.loadSenderKey(senderKeyId);
+        SenderKeyState  senderKeyState = record.getSenderKeyState();
+        SenderChainKey  senderChainKey = senderKeyState.getSenderChainKey();
+
+        for (int i=0;i<senderKeys.length;i++) {
+          senderKeys[i]  = senderChainKey.getSenderMessageKey();
+          senderChainKey = senderChainKey.getNext();
+        }
+
+        senderKeyState.setSenderChainKey(senderChainKey);
+
+        keyId      = senderKeyState.getKeyId();
+        signingKey = senderKeyState.getSigningKeyPrivate();
+
+        senderKeyStore.storeSenderKey(senderKeyId, record);
+      } catch (InvalidKeyIdException e) {
+        throw new NoSessionException(e);
+      }
+    }
+
+    byte[][]    results = new byte[senderKeys.length][];
+    EncryptTask task    = new EncryptTask(keyId, signingKey, senderKeys, paddedPlaintexts, results, 0, results.length);
+
+    if (pool != null) pool.invoke(task);
+    else              task.encrypt(0, results.length);
+
+    return Collections.unmodifiableList(Arrays.asList(results));
+  }
+
   /**
    * Decrypt a SenderKey group message.
    *
@@ -154,6 +285,60 @@ public class GroupCipher {
     }
   }
 
+  /**
+   * Decrypt a SenderKey group message directly into a buffer.  The message is parsed in place,
+   * and the plaintext is written at the output's position.  The input is advanced to its limit,
+   * and the output past the plaintext.
+   *
+   * @param senderKeyMessage The received ciphertext.
+   * @param plaintext A buffer with at least as many bytes remaining as the message's ciphertext.
+   * @return The number of plaintext bytes written.
+   * @throws LegacyMessageException
+   * @throws InvalidMessageException
+   * @throws DuplicateMessageException
+   */
+  public int decrypt(ByteBuffer senderKeyMessage, ByteBuffer plaintext)
+      throws LegacyMessageException, InvalidMessageException, DuplicateMessageException,
+             NoSessionException
+  {
+    synchronized (LOCK) {
+      try {
+        SenderKeyRecord record = senderKeyStore.loadSenderKey(senderKeyId);
+
+        if (record.isEmpty()) {
+          throw new NoSessionException("No sender key for: " + senderKeyId);
+        }
+
+        SenderKeyMessage message        = new SenderKeyMessage(senderKeyMessage);
+        SenderKeyState   senderKeyState = record.getSenderKeyState(message.getKeyId());
+        ByteBuffer       ciphertext     = message.getCipherTextBuffer();
+
+        if (plaintext.remaining() < ciphertext.remaining()) {
+          throw new BufferOverflowException();
+        }
+
+        message.verifySignature(senderKeyState.getSigningKeyPublic());
+
+        SenderMessageKey senderKey = getSenderKey(senderKeyState, message.getIteration());
+        Cipher           cipher    = getCipher(Cipher.DECRYPT_MODE, senderKey.getIv(), senderKey.getCipherKey());
+        int              start     = plaintext.position();
+
+        try {
+          cipher.doFinal(ciphertext, plaintext);
+        } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+          plaintext.position(start);
+          throw new InvalidMessageException(e);
+        }
+
+        senderKeyStore.storeSenderKey(senderKeyId, record);
+
+        return plaintext.position() - start;
+      } catch (org.whispersystems.libsignal.InvalidKeyException | InvalidKeyIdException e) {
+        throw new InvalidMessageException(e);
+      }
+    }
+  }
+
   private SenderMessageKey getSenderKey(SenderKeyState senderKeyState, int iteration)
       throws DuplicateMessageException, InvalidMessageException
   {
@@ -168,14 +353,9 @@ public class GroupCipher {
       }
     }
 
-    if (iteration - senderChainKey.getIteration() > 2000) {
-      throw new InvalidMessageException("Over 2000 messages into the future!");
-    }
+    skipAheadLimiter.checkSenderKeySkip(senderKeyId.getSender(), iteration - senderChainKey.getIteration());
 
-    while (senderChainKey.getIteration() < iteration) {
-      senderKeyState.addSenderMessageKey(senderChainKey.getSenderMessageKey());
-      senderChainKey = senderChainKey.getNext();
-    }
+    senderChainKey = senderKeyState.skipSenderMessageKeys(senderChainKey, iteration);
 
     senderKeyState.setSenderChainKey(senderChainKey.getNext());
     return senderChainKey.getSenderMessageKey();
@@ -215,6 +395,63 @@ public class GroupCipher {
     }
   }
 
+  private Cipher getCipher(int mode, byte[] iv, byte[] key) {
+    try {
+      Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      cipher.init(mode, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+      return cipher;
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException | java.security.InvalidKeyException |
+             InvalidAlgorithmParameterException e)
+    {
+      throw new AssertionError(e);
+    }
+  }
+
+  private class EncryptTask extends RecursiveAction {
+
+    private static final int BATCH_SIZE = 8;
+
+    private final int                keyId;
+    private final ECPrivateKey       signingKey;
+    private final SenderMessageKey[] senderKeys;
+    private final List<byte[]>       paddedPlaintexts;
+    private final byte[][]           results;
+    private final int                from;
+    private final int                to;
+
+    private EncryptTask(int keyId, ECPrivateKey signingKey, SenderMessageKey[] senderKeys,
+                        List<byte[]> paddedPlaintexts, byte[][] results, int from, int to)
+    {
+      this.keyId            = keyId;
+      this.signingKey       = signingKey;
+      this.senderKeys       = senderKeys;
+      this.paddedPlaintexts = paddedPlaintexts;
+      this.results          = results;
+      this.from             = from;
+      this.to               = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= BATCH_SIZE) {
+        encrypt(from, to);
+      } else {
+        int middle = (from + to) >>> 1;
+        invokeAll(new EncryptTask(keyId, signingKey, senderKeys, paddedPlaintexts, results, from, middle),
+                  new EncryptTask(keyId, signingKey, senderKeys, paddedPlaintexts, results, middle, to));
+      }
+    }
+
+    private void encrypt(int from, int to) {
+      for (int i=from;i<to;i++) {
+        SenderMessageKey senderKey  = senderKeys[i];
+        byte[]           ciphertext = getCipherText(senderKey.getIv(), senderKey.getCipherKey(), paddedPlaintexts.get(i));
+
+        results[i] = new SenderKeyMessage(keyId, senderKey.getIteration(), ciphertext, signingKey).serialize();
+      }
+    }
+  }
+
   private static class NullDecryptionCallback implements DecryptionCallback {
     @Override
     public void handlePlaintext(byte[] plaintext) {}
@@ -96,4 +96,25 @@ public class GroupSessionBuilder {
       }
     }
   }
+
+  /**
+   * Replace the group session for sending messages with a new one, as when group membership
+   * changes.
+   *
+   * @param senderKeyName The (groupId, senderId, deviceId) tuple.  In this case, 'senderId' should be the caller.
+   * @return A SenderKeyDistributionMessage for the new session, to be individually distributed to each member of the group.
+   */
+  public SenderKeyDistributionMessage rotate(SenderKeyName senderKeyName) {
+    synchronized (GroupCipher.LOCK) {
+      SenderKeyRecord senderKeyRecord = new SenderKeyRecord();
+
+      senderKeyRecord.setSenderKeyState(KeyHelper.generateSenderKeyId(),
+                                        0,
+                                        KeyHelper.generateSenderKey(),
+                                        KeyHelper.generateSenderSigningKey());
+      senderKeyStore.storeSenderKey(senderKeyName, senderKeyRecord);
+
+      return create(senderKeyName);
+    }
+  }
 }
@@ -0,0 +1,170 @@
+package org.whispersystems.libsignal.groups;
+
+import org.whispersystems.libsignal.NoSessionException;
+import org.whispersystems.libsignal.SessionCipher;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.groups.state.SenderKeyStore;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.SenderKeyDistributionMessage;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Distributes a group sender key to every member device of a group.
+ * <p>
+ * The {@link SenderKeyDistributionMessage} is built once, and then encrypted to each member
+ * device's pairwise session on an executor.  Only the session load and store for each device
+ * happen under {@link SessionCipher#SESSION_LOCK}; the encryption itself runs in parallel.
+ * Distribution proceeds in the background, and its progress and per-device results are
+ * available from the returned {@link Distribution}.
+ */
+public class SenderKeyDistributor {
+
+  private final SignalProtocolStore store;
+  private final GroupSessionBuilder groupSessionBuilder;
+  private final Executor            executor;
+
+  public SenderKeyDistributor(SignalProtocolStore store, SenderKeyStore senderKeyStore, Executor executor) {
+    this.store               = store;
+    this.groupSessionBuilder = new GroupSessionBuilder(senderKeyStore);
+    this.executor            = executor;
+  }
+
+  /**
+   * Distribute the current sender key for a group, creating it if it doesn't exist yet.
+   *
+   * @param senderKeyName The (groupId, senderId, deviceId) tuple, where 'senderId' is the caller.
+   * @param recipients The member devices to distribute the sender key to.
+   */
+  public Distribution distribute(SenderKeyName senderKeyName, Collection<SignalProtocolAddress> recipients) {
+    return distribute(groupSessionBuilder.create(senderKeyName), recipients);
+  }
+
+  /**
+   * Replace the sender key for a group with a new one, and distribute it.
+   *
+   * @param senderKeyName The (groupId, senderId, deviceId) tuple, where 'senderId' is the caller.
+   * @param recipients The member devices to distribute the new sender key to.
+   */
+  public Distribution rotate(SenderKeyName senderKeyName, Collection<SignalProtocolAddress> recipients) {
+    return distribute(groupSessionBuilder.rotate(senderKeyName), recipients);
+  }
+
+  private Distribution distribute(SenderKeyDistributionMessage message, Collection<SignalProtocolAddress> recipients) {
+    final Distribution distribution = new Distribution(message, recipients.size());
+    final byte[]       serialized   = message.serialize();
+
+    for (final SignalProtocolAddress recipient : recipients) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            synchronized (SessionCipher.SESSION_LOCK) {
+              if (!store.containsSession(recipient)) {
+                throw new NoSessionException("No session for: " + recipient);
+              }
+            }
+
+            distribution.succeeded(recipient, new SessionCipher(store, recipient).encrypt(serialized));
+          } catch (NoSessionException | RuntimeException e) {
+            distribution.failed(recipient, e);
+          }
+        }
+      });
+    }
+
+    return distribution;
+  }
+
+  /**
+   * The progress and results of distributing a sender key.
+   */
+  public static class Distribution {
+
+    private final SenderKeyDistributionMessage                  message;
+    private final int                                           total;
+    private final AtomicInteger                                 completed   = new AtomicInteger();
+    private final Map<SignalProtocolAddress, CiphertextMessage> ciphertexts = new ConcurrentHashMap<>();
+    private final Map<SignalProtocolAddress, Exception>         failures    = new ConcurrentHashMap<>();
+    private final CountDownLatch                                latch;
+
+    private Distribution(SenderKeyDistributionMessage message, int total) {
+      this.message = message;
+      this.total   = total;
+      this.latch   = new CountDownLatch(total);
+    }
+
+    public SenderKeyDistributionMessage getDistributionMessage() {
+      return message;
+    }
+
+    public int getTotalCount() {
+      return total;
+    }
+
+    /**
+     * @return the number of devices that have been processed so far, successfully or not.
+     */
+    public int getCompletedCount() {
+      return completed.get();
+    }
+
+    public boolean isDone() {
+      return latch.getCount() == 0;
+    }
+
+    /**
+     * Wait until every device has been processed.
+     */
+    public void await() throws InterruptedException {
+      latch.await();
+    }
+
+    /**
+     * Wait until every device has been processed, or the timeout elapses.
+     *
+     * @return true if every device has been processed.
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+      return latch.await(timeout, unit);
+    }
+
+    /**
+     * @return the encrypted distribution message for each device processed successfully so far.
+     */
+    public Map<SignalProtocolAddress, CiphertextMessage> getCiphertexts() {
+      return Collections.unmodifiableMap(ciphertexts);
+    }
+
+    /**
+     * @return the reason each failed device couldn't be processed, such as a
+     *         {@link NoSessionException} for a device without a session.
+     */
+    public Map<SignalProtocolAddress, Exception> getFailures() {
+      return Collections.unmodifiableMap(failures);
+    }
+
+    private void succeeded(SignalProtocolAddress recipient, CiphertextMessage ciphertext) {
+      ciphertexts.put(recipient, ciphertext);
+      complete();
+    }
+
+    private void failed(SignalProtocolAddress recipient, Exception exception) {
+      failures.put(recipient, exception);
+      complete();
+    }
+
+    private void complete() {
+      completed.incrementAndGet();
+      latch.countDown();
+    }
+  }
+}
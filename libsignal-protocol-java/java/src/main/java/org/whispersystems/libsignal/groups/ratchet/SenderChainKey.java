@@ -63,11 +63,25 @@ public class SenderChainKey {
 
   private byte[] getDerivative(byte[] seed, byte[] key) {
     try {
-      Mac mac = Mac.getInstance("HmacSHA256");
-      mac.init(new SecretKeySpec(key, "HmacSHA256"));
+      return getDerivative(Mac.getInstance("HmacSHA256"), seed, key);
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  static byte[] getNextChainKey(Mac mac, byte[] key) {
+    return getDerivative(mac, CHAIN_KEY_SEED, key);
+  }
+
+  static byte[] getMessageKeySeed(Mac mac, byte[] key) {
+    return getDerivative(mac, MESSAGE_KEY_SEED, key);
+  }
 
+  private static byte[] getDerivative(Mac mac, byte[] seed, byte[] key) {
+    try {
+      mac.init(new SecretKeySpec(key, "HmacSHA256"));
       return mac.doFinal(seed);
-    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+    } catch (InvalidKeyException e) {
       throw new AssertionError(e);
     }
   }
@@ -0,0 +1,446 @@
+package org.whispersystems.libsignal.groups.ratchet;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.crypto.Mac;
+
+/**
+ * The message keys a receiver has skipped over in a SenderKey chain, kept so that messages
+ * which arrive out of order can still be decrypted.
+ * <p>
+ * Rather than deriving and storing a message key for every skipped iteration, a gap is recorded
+ * as a range with a chain key checkpoint every {@link #CHECKPOINT_INTERVAL} iterations.  A
+ * message key is only derived, from the nearest checkpoint below it, when a message for that
+ * iteration actually arrives.  Fast-forwarding across a gap therefore costs one HMAC per
+ * iteration, rather than a full message key derivation per iteration.
+ * <p>
+ * Every chain key can derive all of the message keys after it, so before a key is used, every
+ * checkpoint below it is moved up past it, and the still held keys it passes over are derived
+ * and kept individually.  No chain key which could re-derive a used or discarded message key is
+ * retained.  Keys that arrive in order only move checkpoints along, while a key that arrives
+ * ahead of older held keys pays for deriving those keys (two HMACs each).
+ * <p>
+ * Keys that were already materialized (for instance when read back from storage) are held
+ * individually.  {@link #materialize()} converts every lazily held key to that form, so a state
+ * which is serialized after every message derives its skipped keys once (a further two HMACs per
+ * iteration) rather than on every serialization.  In either form, the window holds at most
+ * {@link #MAX_MESSAGE_KEYS} keys, and the oldest are discarded first.
+ * <p>
+ * Copies share their keys with the original until either of them is modified, so that copying
+ * a state in and out of a store doesn't copy its skipped keys.
+ */
+public class SkippedSenderMessageKeys {
+
+  public  static final int MAX_MESSAGE_KEYS    = 2000;
+  private static final int CHECKPOINT_INTERVAL = 32;
+
+  private LinkedHashMap<Integer, byte[]> materialized;
+  private TreeMap<Integer, Range>        ranges;
+  private int                            size;
+  private boolean                        shared;
+
+  public SkippedSenderMessageKeys() {
+    this.materialized = new LinkedHashMap<>();
+    this.ranges       = new TreeMap<>();
+  }
+
+  public SkippedSenderMessageKeys(SkippedSenderMessageKeys copy) {
+    this.materialized = copy.materialized;
+    this.ranges       = copy.ranges;
+    this.size         = copy.size;
+    this.shared       = true;
+
+    copy.shared = true;
+  }
+
+  /**
+   * @return the number of skipped message keys held.
+   */
+  public int size() {
+    return size;
+  }
+
+  public boolean contains(int iteration) {
+    if (materialized.containsKey(iteration)) {
+      return true;
+    }
+
+    Range range = getRange(iteration);
+    return range != null && range.contains(iteration);
+  }
+
+  /**
+   * Add an already derived message key.  Any lazily held keys are materialized first, so that
+   * keys stay in the order they were skipped.
+   *
+   * @param iteration The iteration of the message key.
+   * @param seed The message key seed.
+   */
+  public void add(int iteration, byte[] seed) {
+    unshare();
+    fold();
+
+    if (materialized.put(iteration, seed) == null) {
+      size++;
+    }
+
+    trim();
+  }
+
+  /**
+   * Fast-forward a chain key, recording every iteration passed over as skipped.
+   *
+   * @param chainKey The current chain key.
+   * @param iteration The iteration to fast-forward to.
+   * @return the chain key at that iteration.
+   */
+  public SenderChainKey skipTo(SenderChainKey chainKey, int iteration) {
+    if (iteration <= chainKey.getIteration()) {
+      return chainKey;
+    }
+
+    unshare();
+
+    Mac      mac         = getMac();
+    int      base        = chainKey.getIteration();
+    int      count       = iteration - base;
+    byte[][] checkpoints = new byte[(count + CHECKPOINT_INTERVAL - 1) / CHECKPOINT_INTERVAL][];
+    byte[]   key         = chainKey.getSeed();
+
+    for (int i=0;i<count;i++) {
+      if (i % CHECKPOINT_INTERVAL == 0) {
+        checkpoints[i / CHECKPOINT_INTERVAL] = key;
+      }
+
+      key = SenderChainKey.getNextChainKey(mac, key);
+    }
+
+    ranges.put(base, new Range(base, iteration, checkpoints));
+    size += count;
+
+    trim();
+
+    return new SenderChainKey(iteration, key);
+  }
+
+  /**
+   * Remove and return the message key for an iteration.
+   *
+   * @return the message key, or null if it isn't held.
+   */
+  public SenderMessageKey remove(int iteration) {
+    if (!contains(iteration)) {
+      return null;
+    }
+
+    unshare();
+
+    byte[] seed = materialized.remove(iteration);
+
+    if (seed != null) {
+      size--;
+      return new SenderMessageKey(iteration, seed);
+    }
+
+    Range range = getRange(iteration);
+    Mac   mac   = getMac();
+
+    for (Range older : ranges.headMap(range.base).values()) {
+      older.materialize(mac, materialized);
+    }
+
+    ranges.headMap(range.base).clear();
+
+    seed = range.take(mac, iteration);
+    size--;
+
+    if (range.isEmpty()) {
+      ranges.remove(range.base);
+    }
+
+    return new SenderMessageKey(iteration, seed);
+  }
+
+  /**
+   * Derive every lazily held message key, and hold it individually from then on.
+   *
+   * @return every held message key seed, by iteration, in the order they were skipped.
+   */
+  public LinkedHashMap<Integer, byte[]> materialize() {
+    if (!ranges.isEmpty()) {
+      unshare();
+      fold();
+    }
+
+    return new LinkedHashMap<>(materialized);
+  }
+
+  /**
+   * Take a private copy of keys shared with another copy, before modifying them.
+   */
+  private void unshare() {
+    if (shared) {
+      LinkedHashMap<Integer, byte[]> materialized = new LinkedHashMap<>(this.materialized);
+      TreeMap<Integer, Range>        ranges       = new TreeMap<>();
+
+      for (Range range : this.ranges.values()) {
+        ranges.put(range.base, new Range(range));
+      }
+
+      this.materialized = materialized;
+      this.ranges       = ranges;
+      this.shared       = false;
+    }
+  }
+
+  private void fold() {
+    if (!ranges.isEmpty()) {
+      Mac mac = getMac();
+
+      for (Range range : ranges.values()) {
+        range.materialize(mac, materialized);
+      }
+
+      ranges.clear();
+    }
+  }
+
+  /**
+   * @return the iteration of the oldest chain key checkpoint held, or -1 if there are none.
+   *         Message keys for iterations below it can't be re-derived from this state.
+   */
+  int getOldestCheckpoint() {
+    for (Range range : ranges.values()) {
+      int oldest = range.getOldestCheckpoint();
+      if (oldest != -1) return oldest;
+    }
+
+    return -1;
+  }
+
+  private Range getRange(int iteration) {
+    Map.Entry<Integer, Range> entry = ranges.floorEntry(iteration);
+    return entry != null ? entry.getValue() : null;
+  }
+
+  private void trim() {
+    Mac mac = null;
+
+    while (size > MAX_MESSAGE_KEYS) {
+      if (!materialized.isEmpty()) {
+        Iterator<Integer> oldest = materialized.keySet().iterator();
+        oldest.next();
+        oldest.remove();
+        size--;
+      } else {
+        Range range = ranges.firstEntry().getValue();
+
+        if (mac == null) mac = getMac();
+        size -= range.discard(mac, size - MAX_MESSAGE_KEYS);
+
+        if (range.isEmpty()) {
+          ranges.remove(range.base);
+        }
+      }
+    }
+  }
+
+  private static Mac getMac() {
+    try {
+      return Mac.getInstance("HmacSHA256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * A run of skipped iterations, held as chain key checkpoints.  Within each block of
+   * {@link #CHECKPOINT_INTERVAL} iterations, every iteration from the checkpoint's position on is
+   * still held and underived, while every iteration before it has either been consumed or is held
+   * individually in {@link #seeds}.
+   */
+  private static class Range {
+
+    private final int                  base;
+    private final int                  end;
+    private final byte[][]             checkpoints;
+    private final int[]                positions;
+    private final Map<Integer, byte[]> seeds;
+    private final BitSet               consumed;
+
+    private int remaining;
+
+    private Range(int base, int end, byte[][] checkpoints) {
+      this.base        = base;
+      this.end         = end;
+      this.checkpoints = checkpoints;
+      this.positions   = new int[checkpoints.length];
+      this.seeds       = new HashMap<>();
+      this.consumed    = new BitSet(end - base);
+      this.remaining   = end - base;
+
+      for (int i=0;i<positions.length;i++) {
+        positions[i] = i * CHECKPOINT_INTERVAL;
+      }
+    }
+
+    private Range(Range copy) {
+      this.base        = copy.base;
+      this.end         = copy.end;
+      this.checkpoints = copy.checkpoints.clone();
+      this.positions   = copy.positions.clone();
+      this.seeds       = new HashMap<>(copy.seeds);
+      this.consumed    = (BitSet)copy.consumed.clone();
+      this.remaining   = copy.remaining;
+    }
+
+    private boolean contains(int iteration) {
+      return iteration >= base && iteration < end && !consumed.get(iteration - base);
+    }
+
+    private boolean isEmpty() {
+      return remaining == 0;
+    }
+
+    private int getOldestOffset() {
+      return consumed.nextClearBit(0);
+    }
+
+    /**
+     * Consume the message key for an iteration.  Every checkpoint below it is moved past it, and
+     * the still held keys they pass over are derived and kept individually.
+     *
+     * @return the message key seed.
+     */
+    private byte[] take(Mac mac, int iteration) {
+      int offset = iteration - base;
+      int block  = offset / CHECKPOINT_INTERVAL;
+
+      for (int i=0;i<=block;i++) {
+        byte[] key      = checkpoints[i];
+        int    position = positions[i];
+        int    limit    = Math.min(offset, getBlockEnd(i));
+
+        if (key == null || position >= limit) {
+          continue;
+        }
+
+        for (;position<limit;position++) {
+          seeds.put(position, SenderChainKey.getMessageKeySeed(mac, key));
+          key = SenderChainKey.getNextChainKey(mac, key);
+        }
+
+        if (position >= getBlockEnd(i)) {
+          checkpoints[i] = null;
+        } else {
+          checkpoints[i] = key;
+        }
+
+        positions[i] = position;
+      }
+
+      byte[] seed = seeds.remove(offset);
+
+      if (seed == null) {
+        seed = SenderChainKey.getMessageKeySeed(mac, checkpoints[block]);
+        advance(mac, block, offset, checkpoints[block], 1);
+      }
+
+      consumed.set(offset);
+      remaining--;
+
+      return seed;
+    }
+
+    /**
+     * Discard the oldest message keys in the range without deriving them.
+     *
+     * @return the number of keys discarded, at most count.
+     */
+    private int discard(Mac mac, int count) {
+      int discarded = 0;
+
+      while (discarded < count && remaining > 0) {
+        int offset = getOldestOffset();
+
+        if (seeds.remove(offset) != null) {
+          consumed.set(offset);
+          remaining--;
+          discarded++;
+          continue;
+        }
+
+        int block   = offset / CHECKPOINT_INTERVAL;
+        int skipped = Math.min(count - discarded, getBlockEnd(block) - offset);
+
+        advance(mac, block, offset, checkpoints[block], skipped);
+
+        consumed.set(offset, offset + skipped);
+        remaining -= skipped;
+        discarded += skipped;
+      }
+
+      return discarded;
+    }
+
+    /**
+     * Move a block's checkpoint from the chain key at an offset to the chain key a number of
+     * iterations later, or drop it if that reaches the end of the block.
+     */
+    private void advance(Mac mac, int block, int offset, byte[] key, int iterations) {
+      if (offset + iterations >= getBlockEnd(block)) {
+        checkpoints[block] = null;
+        positions[block]   = getBlockEnd(block);
+        return;
+      }
+
+      for (int i=0;i<iterations;i++) {
+        key = SenderChainKey.getNextChainKey(mac, key);
+      }
+
+      checkpoints[block] = key;
+      positions[block]   = offset + iterations;
+    }
+
+    private int getOldestCheckpoint() {
+      for (int block=0;block<checkpoints.length;block++) {
+        if (checkpoints[block] != null) return base + positions[block];
+      }
+
+      return -1;
+    }
+
+    private int getBlockEnd(int block) {
+      return Math.min((block + 1) * CHECKPOINT_INTERVAL, end - base);
+    }
+
+    private void materialize(Mac mac, Map<Integer, byte[]> results) {
+      for (int block=0;block<checkpoints.length;block++) {
+        byte[] key      = checkpoints[block];
+        int    position = positions[block];
+
+        for (int offset=block * CHECKPOINT_INTERVAL;offset<getBlockEnd(block);offset++) {
+          if (consumed.get(offset)) {
+            continue;
+          }
+
+          if (offset < position) {
+            results.put(base + offset, seeds.get(offset));
+          } else {
+            for (;position<offset;position++) {
+              key = SenderChainKey.getNextChainKey(mac, key);
+            }
+
+            results.put(base + offset, SenderChainKey.getMessageKeySeed(mac, key));
+          }
+        }
+      }
+    }
+  }
+}
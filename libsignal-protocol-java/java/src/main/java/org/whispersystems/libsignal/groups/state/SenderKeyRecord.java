@@ -20,10 +20,16 @@ import org.whispersystems.libsignal.InvalidKeyIdException;
 import org.whispersystems.libsignal.ecc.ECKeyPair;
 import org.whispersystems.libsignal.ecc.ECPublicKey;
 import org.whispersystems.libsignal.state.StorageProtos;
+import org.whispersystems.libsignal.util.ProtobufUtil;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import static org.whispersystems.libsignal.state.StorageProtos.SenderKeyRecordStructure;
 
@@ -37,16 +43,43 @@ public class SenderKeyRecord {
 
   private static final int MAX_STATES = 5;
 
-  private LinkedList<SenderKeyState> senderKeyStates = new LinkedList<>();
+  private final LinkedList<SenderKeyState>   senderKeyStates = new LinkedList<>();
+  private final Map<Integer, SenderKeyState> statesByKeyId   = new HashMap<>();
 
   public SenderKeyRecord() {}
 
+  public SenderKeyRecord(SenderKeyRecord copy) {
+    for (SenderKeyState state : copy.senderKeyStates) {
+      this.senderKeyStates.add(new SenderKeyState(state));
+    }
+
+    reindex();
+  }
+
   public SenderKeyRecord(byte[] serialized) throws IOException {
-    SenderKeyRecordStructure senderKeyRecordStructure = SenderKeyRecordStructure.parseFrom(serialized);
+    this(SenderKeyRecordStructure.parseFrom(serialized));
+  }
 
+  private SenderKeyRecord(SenderKeyRecordStructure senderKeyRecordStructure) {
     for (StorageProtos.SenderKeyStateStructure structure : senderKeyRecordStructure.getSenderKeyStatesList()) {
       this.senderKeyStates.add(new SenderKeyState(structure));
     }
+
+    reindex();
+  }
+
+  /**
+   * Parse a serialized SenderKeyRecord from the remaining bytes of a buffer.
+   */
+  public static SenderKeyRecord parse(ByteBuffer serialized) throws IOException {
+    return new SenderKeyRecord(SenderKeyRecordStructure.parseFrom(ProtobufUtil.newCodedInput(serialized)));
+  }
+
+  /**
+   * Parse a serialized SenderKeyRecord, reading the stream until it is exhausted.
+   */
+  public static SenderKeyRecord parse(InputStream serialized) throws IOException {
+    return new SenderKeyRecord(SenderKeyRecordStructure.parseFrom(serialized));
   }
 
   public boolean isEmpty() {
@@ -62,10 +95,10 @@ public class SenderKeyRecord {
   }
 
   public SenderKeyState getSenderKeyState(int keyId) throws InvalidKeyIdException {
-    for (SenderKeyState state : senderKeyStates) {
-      if (state.getKeyId() == keyId) {
-        return state;
-      }
+    SenderKeyState state = statesByKeyId.get(keyId);
+
+    if (state != null) {
+      return state;
     }
 
     throw new InvalidKeyIdException("No keys for: " + keyId);
@@ -77,20 +110,61 @@ public class SenderKeyRecord {
     if (senderKeyStates.size() > MAX_STATES) {
       senderKeyStates.removeLast();
     }
+
+    reindex();
   }
 
   public void setSenderKeyState(int id, int iteration, byte[] chainKey, ECKeyPair signatureKey) {
     senderKeyStates.clear();
     senderKeyStates.add(new SenderKeyState(id, iteration, chainKey, signatureKey));
+
+    reindex();
   }
 
   public byte[] serialize() {
+    return getStructure().toByteArray();
+  }
+
+  /**
+   * Write the serialized SenderKeyRecord to a stream.
+   */
+  public void writeTo(OutputStream output) throws IOException {
+    getStructure().writeTo(output);
+  }
+
+  /**
+   * Write the serialized SenderKeyRecord at the buffer's position, advancing it.
+   *
+   * @throws java.nio.BufferOverflowException if fewer than {@link #serializedSize()} bytes remain.
+   */
+  public void writeTo(ByteBuffer output) {
+    ProtobufUtil.writeTo(getStructure(), output);
+  }
+
+  /**
+   * @return the length of the serialized SenderKeyRecord, in bytes.
+   */
+  public int serializedSize() {
+    return getStructure().getSerializedSize();
+  }
+
+  private void reindex() {
+    statesByKeyId.clear();
+
+    for (SenderKeyState state : senderKeyStates) {
+      if (!statesByKeyId.containsKey(state.getKeyId())) {
+        statesByKeyId.put(state.getKeyId(), state);
+      }
+    }
+  }
+
+  private SenderKeyRecordStructure getStructure() {
     SenderKeyRecordStructure.Builder recordStructure = SenderKeyRecordStructure.newBuilder();
 
     for (SenderKeyState senderKeyState : senderKeyStates) {
       recordStructure.addSenderKeyStates(senderKeyState.getStructure());
     }
 
-    return recordStructure.build().toByteArray();
+    return recordStructure.build();
   }
 }
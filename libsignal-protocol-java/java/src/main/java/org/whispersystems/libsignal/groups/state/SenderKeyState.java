@@ -25,24 +25,35 @@ import org.whispersystems.libsignal.ecc.ECPrivateKey;
 import org.whispersystems.libsignal.ecc.ECPublicKey;
 import org.whispersystems.libsignal.groups.ratchet.SenderChainKey;
 import org.whispersystems.libsignal.groups.ratchet.SenderMessageKey;
+import org.whispersystems.libsignal.groups.ratchet.SkippedSenderMessageKeys;
 import org.whispersystems.libsignal.util.guava.Optional;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Map;
 
 import static org.whispersystems.libsignal.state.StorageProtos.SenderKeyStateStructure;
 
 /**
  * Represents the state of an individual SenderKey ratchet.
+ * <p>
+ * The state is held in mutable fields, with skipped message keys indexed by iteration, and is
+ * only converted to its protobuf structure when it is serialized.  The structure is cached
+ * until the state next changes.  Building it derives any skipped message keys still held
+ * lazily, once; see {@link SkippedSenderMessageKeys}.
  *
  * @author Moxie Marlinspike
  */
 public class SenderKeyState {
 
-  private static final int MAX_MESSAGE_KEYS = 2000;
+  private final int                      keyId;
+  private final ByteString               signingKeyPublicBytes;
+  private final ByteString               signingKeyPrivateBytes;
+  private final SkippedSenderMessageKeys messageKeys;
 
-  private SenderKeyStateStructure senderKeyStateStructure;
+  private int                     chainIteration;
+  private byte[]                  chainSeed;
+  private ECPublicKey             signingKeyPublic;
+  private ECPrivateKey            signingKeyPrivate;
+  private SenderKeyStateStructure structure;
 
   public SenderKeyState(int id, int iteration, byte[] chainKey, ECPublicKey signatureKey) {
     this(id, iteration, chainKey, signatureKey, Optional.<ECPrivateKey>absent());
@@ -56,118 +67,145 @@ public class SenderKeyState {
                         ECPublicKey signatureKeyPublic,
                         Optional<ECPrivateKey> signatureKeyPrivate)
   {
-    SenderKeyStateStructure.SenderChainKey senderChainKeyStructure =
-        SenderKeyStateStructure.SenderChainKey.newBuilder()
-                                              .setIteration(iteration)
-                                              .setSeed(ByteString.copyFrom(chainKey))
-                                              .build();
-
-    SenderKeyStateStructure.SenderSigningKey.Builder signingKeyStructure =
-        SenderKeyStateStructure.SenderSigningKey.newBuilder()
-                                                .setPublic(ByteString.copyFrom(signatureKeyPublic.serialize()));
+    this.keyId                 = id;
+    this.chainIteration        = iteration;
+    this.chainSeed             = chainKey;
+    this.signingKeyPublic      = signatureKeyPublic;
+    this.signingKeyPublicBytes = ByteString.copyFrom(signatureKeyPublic.serialize());
+    this.messageKeys           = new SkippedSenderMessageKeys();
 
     if (signatureKeyPrivate.isPresent()) {
-      signingKeyStructure.setPrivate(ByteString.copyFrom(signatureKeyPrivate.get().serialize()));
+      this.signingKeyPrivate      = signatureKeyPrivate.get();
+      this.signingKeyPrivateBytes = ByteString.copyFrom(signatureKeyPrivate.get().serialize());
+    } else {
+      this.signingKeyPrivateBytes = null;
     }
-
-    this.senderKeyStateStructure = SenderKeyStateStructure.newBuilder()
-                                                          .setSenderKeyId(id)
-                                                          .setSenderChainKey(senderChainKeyStructure)
-                                                          .setSenderSigningKey(signingKeyStructure)
-                                                          .build();
   }
 
   public SenderKeyState(SenderKeyStateStructure senderKeyStateStructure) {
-    this.senderKeyStateStructure = senderKeyStateStructure;
+    this.keyId                  = senderKeyStateStructure.getSenderKeyId();
+    this.chainIteration         = senderKeyStateStructure.getSenderChainKey().getIteration();
+    this.chainSeed              = senderKeyStateStructure.getSenderChainKey().getSeed().toByteArray();
+    this.signingKeyPublicBytes  = senderKeyStateStructure.getSenderSigningKey().getPublic();
+    this.signingKeyPrivateBytes = senderKeyStateStructure.getSenderSigningKey().hasPrivate() ?
+                                  senderKeyStateStructure.getSenderSigningKey().getPrivate() : null;
+    this.messageKeys            = new SkippedSenderMessageKeys();
+    this.structure              = senderKeyStateStructure;
+
+    for (SenderKeyStateStructure.SenderMessageKey senderMessageKey : senderKeyStateStructure.getSenderMessageKeysList()) {
+      messageKeys.add(senderMessageKey.getIteration(), senderMessageKey.getSeed().toByteArray());
+    }
+  }
+
+  public SenderKeyState(SenderKeyState copy) {
+    this.keyId                  = copy.keyId;
+    this.chainIteration         = copy.chainIteration;
+    this.chainSeed              = copy.chainSeed;
+    this.signingKeyPublic       = copy.signingKeyPublic;
+    this.signingKeyPublicBytes  = copy.signingKeyPublicBytes;
+    this.signingKeyPrivate      = copy.signingKeyPrivate;
+    this.signingKeyPrivateBytes = copy.signingKeyPrivateBytes;
+    this.messageKeys            = new SkippedSenderMessageKeys(copy.messageKeys);
+    this.structure              = copy.structure;
   }
 
   public int getKeyId() {
-    return senderKeyStateStructure.getSenderKeyId();
+    return keyId;
   }
 
   public SenderChainKey getSenderChainKey() {
-    return new SenderChainKey(senderKeyStateStructure.getSenderChainKey().getIteration(),
-                              senderKeyStateStructure.getSenderChainKey().getSeed().toByteArray());
+    return new SenderChainKey(chainIteration, chainSeed);
   }
 
   public void setSenderChainKey(SenderChainKey chainKey) {
-    SenderKeyStateStructure.SenderChainKey senderChainKeyStructure =
-        SenderKeyStateStructure.SenderChainKey.newBuilder()
-                                              .setIteration(chainKey.getIteration())
-                                              .setSeed(ByteString.copyFrom(chainKey.getSeed()))
-                                              .build();
-
-    this.senderKeyStateStructure = senderKeyStateStructure.toBuilder()
-                                                          .setSenderChainKey(senderChainKeyStructure)
-                                                          .build();
+    this.chainIteration = chainKey.getIteration();
+    this.chainSeed      = chainKey.getSeed();
+    this.structure      = null;
   }
 
   public ECPublicKey getSigningKeyPublic() throws InvalidKeyException {
-    return Curve.decodePoint(senderKeyStateStructure.getSenderSigningKey()
-                                                    .getPublic()
-                                                    .toByteArray(), 0);
+    if (signingKeyPublic == null) {
+      signingKeyPublic = Curve.decodePoint(signingKeyPublicBytes.toByteArray(), 0);
+    }
+
+    return signingKeyPublic;
   }
 
   public ECPrivateKey getSigningKeyPrivate() {
-    return Curve.decodePrivatePoint(senderKeyStateStructure.getSenderSigningKey()
-                                                           .getPrivate().toByteArray());
+    if (signingKeyPrivate == null) {
+      byte[] serialized = signingKeyPrivateBytes != null ? signingKeyPrivateBytes.toByteArray() : new byte[0];
+      signingKeyPrivate = Curve.decodePrivatePoint(serialized);
+    }
+
+    return signingKeyPrivate;
   }
 
   public boolean hasSenderMessageKey(int iteration) {
-    for (SenderKeyStateStructure.SenderMessageKey senderMessageKey : senderKeyStateStructure.getSenderMessageKeysList()) {
-      if (senderMessageKey.getIteration() == iteration) return true;
-    }
-
-    return false;
+    return messageKeys.contains(iteration);
   }
 
   public void addSenderMessageKey(SenderMessageKey senderMessageKey) {
-    SenderKeyStateStructure.SenderMessageKey senderMessageKeyStructure =
-        SenderKeyStateStructure.SenderMessageKey.newBuilder()
-                                                .setIteration(senderMessageKey.getIteration())
-                                                .setSeed(ByteString.copyFrom(senderMessageKey.getSeed()))
-                                                .build();
+    messageKeys.add(senderMessageKey.getIteration(), senderMessageKey.getSeed());
+    this.structure = null;
+  }
 
-    SenderKeyStateStructure.Builder builder = this.senderKeyStateStructure.toBuilder();
+  /**
+   * Fast-forward the chain to an iteration, keeping the message keys passed over so that they
+   * can be derived if their messages arrive later.
+   *
+   * @param chainKey The chain key to fast-forward from.
+   * @param iteration The iteration to fast-forward to.
+   * @return the chain key at that iteration.
+   */
+  public SenderChainKey skipSenderMessageKeys(SenderChainKey chainKey, int iteration) {
+    this.structure = null;
+    return messageKeys.skipTo(chainKey, iteration);
+  }
 
-    builder.addSenderMessageKeys(senderMessageKeyStructure);
+  public SenderMessageKey removeSenderMessageKey(int iteration) {
+    SenderMessageKey senderMessageKey = messageKeys.remove(iteration);
 
-    if (builder.getSenderMessageKeysCount() > MAX_MESSAGE_KEYS) {
-      builder.removeSenderMessageKeys(0);
+    if (senderMessageKey != null) {
+      this.structure = null;
     }
 
-    this.senderKeyStateStructure = builder.build();
+    return senderMessageKey;
   }
 
-  public SenderMessageKey removeSenderMessageKey(int iteration) {
-    List<SenderKeyStateStructure.SenderMessageKey>     keys     = new LinkedList<>(senderKeyStateStructure.getSenderMessageKeysList());
-    Iterator<SenderKeyStateStructure.SenderMessageKey> iterator = keys.iterator();
-
-    SenderKeyStateStructure.SenderMessageKey result = null;
+  /**
+   * @return the number of skipped message keys held.
+   */
+  public int getSenderMessageKeyCount() {
+    return messageKeys.size();
+  }
 
-    while (iterator.hasNext()) {
-      SenderKeyStateStructure.SenderMessageKey senderMessageKey = iterator.next();
+  public SenderKeyStateStructure getStructure() {
+    if (structure == null) {
+      SenderKeyStateStructure.SenderSigningKey.Builder signingKeyStructure =
+          SenderKeyStateStructure.SenderSigningKey.newBuilder()
+                                                  .setPublic(signingKeyPublicBytes);
 
-      if (senderMessageKey.getIteration() == iteration) {
-        result = senderMessageKey;
-        iterator.remove();
-        break;
+      if (signingKeyPrivateBytes != null) {
+        signingKeyStructure.setPrivate(signingKeyPrivateBytes);
       }
-    }
 
-    this.senderKeyStateStructure = this.senderKeyStateStructure.toBuilder()
-                                                               .clearSenderMessageKeys()
-                                                               .addAllSenderMessageKeys(keys)
-                                                               .build();
+      SenderKeyStateStructure.Builder builder =
+          SenderKeyStateStructure.newBuilder()
+                                 .setSenderKeyId(keyId)
+                                 .setSenderChainKey(SenderKeyStateStructure.SenderChainKey.newBuilder()
+                                                                                          .setIteration(chainIteration)
+                                                                                          .setSeed(ByteString.copyFrom(chainSeed)))
+                                 .setSenderSigningKey(signingKeyStructure);
+
+      for (Map.Entry<Integer, byte[]> messageKey : messageKeys.materialize().entrySet()) {
+        builder.addSenderMessageKeys(SenderKeyStateStructure.SenderMessageKey.newBuilder()
+                                                                             .setIteration(messageKey.getKey())
+                                                                             .setSeed(ByteString.copyFrom(messageKey.getValue())));
+      }
 
-    if (result != null) {
-      return new SenderMessageKey(result.getIteration(), result.getSeed().toByteArray());
-    } else {
-      return null;
+      structure = builder.build();
     }
-  }
 
-  public SenderKeyStateStructure getStructure() {
-    return senderKeyStateStructure;
+    return structure;
   }
 }
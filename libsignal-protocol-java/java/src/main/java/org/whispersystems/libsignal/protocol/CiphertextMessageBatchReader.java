@@ -0,0 +1,186 @@
+package org.whispersystems.libsignal.protocol;
+
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a batch written by {@link CiphertextMessageBatchWriter}, one envelope at a time.
+ * <p>
+ * When reading from a buffer, each envelope's body is a view into the batch rather than a copy,
+ * so the batch must not be modified while its envelopes are in use.  When reading from a stream,
+ * each body is read into a buffer of its own.
+ */
+public class CiphertextMessageBatchReader implements Closeable {
+
+  /**
+   * The largest body accepted from a stream, unless another limit is given.
+   */
+  public static final int DEFAULT_MAX_BODY_LENGTH = 16 * 1024 * 1024;
+
+  private final InputStream in;
+  private final ByteBuffer  buffer;
+  private final int         maxBodyLength;
+
+  /**
+   * Read the batch in a buffer's remaining bytes.  The buffer's position is left unchanged.
+   */
+  public CiphertextMessageBatchReader(ByteBuffer batch) throws InvalidMessageException {
+    this.in            = null;
+    this.buffer        = batch.slice();
+    this.maxBodyLength = Integer.MAX_VALUE;
+
+    if (!buffer.hasRemaining()) {
+      throw new InvalidMessageException("Empty batch");
+    }
+
+    checkFormatVersion(buffer.get() & 0xFF);
+  }
+
+  public CiphertextMessageBatchReader(InputStream in) throws IOException, InvalidMessageException {
+    this(in, DEFAULT_MAX_BODY_LENGTH);
+  }
+
+  /**
+   * Read a batch from a stream.  The stream is closed when the reader is.
+   *
+   * @param maxBodyLength Envelopes with longer bodies are rejected, rather than allocated for.
+   */
+  public CiphertextMessageBatchReader(InputStream in, int maxBodyLength)
+      throws IOException, InvalidMessageException
+  {
+    this.in            = in;
+    this.buffer        = null;
+    this.maxBodyLength = maxBodyLength;
+
+    checkFormatVersion(in.read());
+  }
+
+  /**
+   * @return the next envelope in the batch, or null if there are no more.
+   */
+  public CiphertextMessageEnvelope read() throws IOException, InvalidMessageException {
+    if (buffer != null) return readFromBuffer();
+    else                return readFromStream();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (in != null) in.close();
+  }
+
+  private CiphertextMessageEnvelope readFromBuffer() throws InvalidMessageException {
+    if (!buffer.hasRemaining()) {
+      return null;
+    }
+
+    int        type     = buffer.get() & 0xFF;
+    int        deviceId = MessageCodec.readVarint(buffer);
+    ByteBuffer name     = readLengthDelimited(buffer);
+    ByteBuffer body     = readLengthDelimited(buffer);
+
+    return new CiphertextMessageEnvelope(type, new SignalProtocolAddress(decodeName(name), deviceId), body);
+  }
+
+  private CiphertextMessageEnvelope readFromStream() throws IOException, InvalidMessageException {
+    int type = in.read();
+
+    if (type == -1) {
+      return null;
+    }
+
+    int    deviceId   = readVarint(in);
+    byte[] name       = readFully(in, readLength(in, maxBodyLength));
+    int    bodyLength = readLength(in, maxBodyLength);
+    byte[] body       = readFully(in, bodyLength);
+
+    return new CiphertextMessageEnvelope(type, new SignalProtocolAddress(decodeName(ByteBuffer.wrap(name)), deviceId),
+                                         ByteBuffer.wrap(body));
+  }
+
+  private static ByteBuffer readLengthDelimited(ByteBuffer input) throws InvalidMessageException {
+    int length = MessageCodec.readVarint(input);
+
+    if (length < 0 || length > input.remaining()) {
+      throw new InvalidMessageException("Truncated batch");
+    }
+
+    ByteBuffer value = input.slice();
+    value.limit(length);
+    input.position(input.position() + length);
+
+    return value;
+  }
+
+  private static int readVarint(InputStream in) throws IOException, InvalidMessageException {
+    int result = 0;
+
+    for (int shift=0;shift<35;shift+=7) {
+      int b = in.read();
+
+      if (b == -1) {
+        throw new InvalidMessageException("Truncated batch");
+      }
+
+      result |= (b & 0x7F) << shift;
+
+      if ((b & 0x80) == 0) return result;
+    }
+
+    throw new InvalidMessageException("Malformed varint");
+  }
+
+  private static int readLength(InputStream in, int maxLength) throws IOException, InvalidMessageException {
+    int length = readVarint(in);
+
+    if (length < 0 || length > maxLength) {
+      throw new InvalidMessageException("Bad length: " + (length & 0xFFFFFFFFL));
+    }
+
+    return length;
+  }
+
+  private static byte[] readFully(InputStream in, int length) throws IOException, InvalidMessageException {
+    byte[] result = new byte[length];
+    int    offset = 0;
+
+    while (offset < length) {
+      int read = in.read(result, offset, length - offset);
+
+      if (read == -1) {
+        throw new InvalidMessageException("Truncated batch");
+      }
+
+      offset += read;
+    }
+
+    return result;
+  }
+
+  private static String decodeName(ByteBuffer name) {
+    try {
+      if (name.hasArray()) {
+        return new String(name.array(), name.arrayOffset() + name.position(), name.remaining(), "UTF-8");
+      } else {
+        return new String(MessageCodec.toByteArray(name), "UTF-8");
+      }
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void checkFormatVersion(int version) throws InvalidMessageException {
+    if (version == -1) {
+      throw new InvalidMessageException("Empty batch");
+    }
+
+    if (version != CiphertextMessageBatchWriter.FORMAT_VERSION) {
+      throw new InvalidMessageException("Unknown batch format: " + version);
+    }
+  }
+}
@@ -0,0 +1,193 @@
+package org.whispersystems.libsignal.protocol;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a batch of {@link CiphertextMessageEnvelope}s, either to a stream or into a buffer,
+ * to be read back with {@link CiphertextMessageBatchReader}.
+ * <p>
+ * A batch is a format version byte followed by any number of envelopes, and ends where its
+ * stream or buffer ends.  Each envelope is laid out as:
+ * <pre>
+ *   type              1 byte
+ *   device id         varint
+ *   name length       varint
+ *   name              UTF-8
+ *   body length       varint
+ *   body              the serialized message
+ * </pre>
+ * Varints are unsigned little-endian base 128, as in the protobuf wire format.
+ */
+public class CiphertextMessageBatchWriter implements Closeable, Flushable {
+
+  static final int FORMAT_VERSION = 1;
+
+  private static final int CHUNK_SIZE = 8192;
+
+  private final OutputStream out;
+  private final ByteBuffer   buffer;
+
+  private byte[] chunk;
+  private int    count;
+
+  /**
+   * Begin a batch on a stream.  The stream is closed when the writer is.
+   */
+  public CiphertextMessageBatchWriter(OutputStream out) throws IOException {
+    this.out    = out;
+    this.buffer = null;
+
+    out.write(FORMAT_VERSION);
+  }
+
+  /**
+   * Begin a batch at a buffer's position.  Envelopes are written at successive positions, and
+   * the batch ends at the buffer's final position.
+   *
+   * @throws BufferOverflowException if the buffer is full.
+   */
+  public CiphertextMessageBatchWriter(ByteBuffer output) {
+    this.out    = null;
+    this.buffer = output;
+
+    output.put((byte)FORMAT_VERSION);
+  }
+
+  /**
+   * @return the number of bytes an envelope takes up in a batch.
+   */
+  public static int getSerializedSize(SignalProtocolAddress destination, int bodyLength) {
+    return getHeaderSize(destination, getName(destination).length, bodyLength) + bodyLength;
+  }
+
+  public void write(SignalProtocolAddress destination, CiphertextMessage message) throws IOException {
+    byte[] body = message.serialize();
+    write(message.getType(), destination, body, 0, body.length);
+  }
+
+  public void write(CiphertextMessageEnvelope envelope) throws IOException {
+    write(envelope.getType(), envelope.getDestination(), envelope.getBody());
+  }
+
+  /**
+   * Write an envelope whose body is in a buffer's remaining bytes.  The body's position is left
+   * unchanged.
+   *
+   * @throws BufferOverflowException if the batch is being written into a buffer and the
+   *                                 envelope doesn't fit, in which case nothing is written.
+   */
+  public void write(int type, SignalProtocolAddress destination, ByteBuffer body) throws IOException {
+    if (body.hasArray()) {
+      write(type, destination, body.array(), body.arrayOffset() + body.position(), body.remaining());
+      return;
+    }
+
+    ByteBuffer header = getHeader(type, destination, body.remaining());
+
+    if (buffer != null) {
+      checkRemaining(header.remaining() + body.remaining());
+      buffer.put(header);
+      buffer.put(body.duplicate());
+    } else {
+      ByteBuffer source = body.duplicate();
+
+      out.write(header.array(), 0, header.limit());
+
+      if (chunk == null) {
+        chunk = new byte[CHUNK_SIZE];
+      }
+
+      while (source.hasRemaining()) {
+        int length = Math.min(chunk.length, source.remaining());
+        source.get(chunk, 0, length);
+        out.write(chunk, 0, length);
+      }
+    }
+
+    count++;
+  }
+
+  /**
+   * @throws BufferOverflowException if the batch is being written into a buffer and the
+   *                                 envelope doesn't fit, in which case nothing is written.
+   */
+  public void write(int type, SignalProtocolAddress destination, byte[] body, int offset, int length)
+      throws IOException
+  {
+    ByteBuffer header = getHeader(type, destination, length);
+
+    if (buffer != null) {
+      checkRemaining(header.remaining() + length);
+      buffer.put(header);
+      buffer.put(body, offset, length);
+    } else {
+      out.write(header.array(), 0, header.limit());
+      out.write(body, offset, length);
+    }
+
+    count++;
+  }
+
+  /**
+   * @return the number of envelopes written so far.
+   */
+  public int getCount() {
+    return count;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (out != null) out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (out != null) out.close();
+  }
+
+  private void checkRemaining(int length) {
+    if (buffer.remaining() < length) {
+      throw new BufferOverflowException();
+    }
+  }
+
+  private static ByteBuffer getHeader(int type, SignalProtocolAddress destination, int bodyLength) {
+    if (type < 0 || type > 0xFF) {
+      throw new IllegalArgumentException("Bad message type: " + type);
+    }
+
+    byte[]     name   = getName(destination);
+    ByteBuffer header = ByteBuffer.allocate(getHeaderSize(destination, name.length, bodyLength));
+
+    header.put((byte)type);
+    MessageCodec.writeVarint(header, destination.getDeviceId());
+    MessageCodec.writeVarint(header, name.length);
+    header.put(name);
+    MessageCodec.writeVarint(header, bodyLength);
+    header.flip();
+
+    return header;
+  }
+
+  private static int getHeaderSize(SignalProtocolAddress destination, int nameLength, int bodyLength) {
+    return 1 + MessageCodec.getVarintSize(destination.getDeviceId()) +
+           MessageCodec.getVarintSize(nameLength) + nameLength +
+           MessageCodec.getVarintSize(bodyLength);
+  }
+
+  private static byte[] getName(SignalProtocolAddress destination) {
+    try {
+      return destination.getName().getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package org.whispersystems.libsignal.protocol;
+
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.libsignal.InvalidVersionException;
+import org.whispersystems.libsignal.LegacyMessageException;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A serialized {@link CiphertextMessage}, along with its type and the address it is destined
+ * for, as carried in a batch by {@link CiphertextMessageBatchWriter} and
+ * {@link CiphertextMessageBatchReader}.
+ */
+public class CiphertextMessageEnvelope {
+
+  private final int                   type;
+  private final SignalProtocolAddress destination;
+  private final ByteBuffer            body;
+
+  /**
+   * @param type The message type, as returned by {@link CiphertextMessage#getType()}.
+   * @param body The serialized message, in the buffer's remaining bytes.  It is referenced
+   *             rather than copied.
+   */
+  public CiphertextMessageEnvelope(int type, SignalProtocolAddress destination, ByteBuffer body) {
+    this.type        = type;
+    this.destination = destination;
+    this.body        = body.slice().asReadOnlyBuffer();
+  }
+
+  public CiphertextMessageEnvelope(SignalProtocolAddress destination, CiphertextMessage message) {
+    this(message.getType(), destination, ByteBuffer.wrap(message.serialize()));
+  }
+
+  public int getType() {
+    return type;
+  }
+
+  public SignalProtocolAddress getDestination() {
+    return destination;
+  }
+
+  /**
+   * @return a read-only view of the serialized message, which can be passed straight to
+   *         {@link org.whispersystems.libsignal.SessionCipher#decrypt(ByteBuffer, ByteBuffer)},
+   *         {@link org.whispersystems.libsignal.groups.GroupCipher#decrypt(ByteBuffer, ByteBuffer)}
+   *         or {@link CiphertextMessageHeader#parse(int, ByteBuffer)}.  Each call returns a new
+   *         view, so consuming one doesn't affect the envelope.
+   */
+  public ByteBuffer getBody() {
+    return body.duplicate();
+  }
+
+  public int getBodyLength() {
+    return body.remaining();
+  }
+
+  /**
+   * Parse the body according to the envelope's type.
+   */
+  public CiphertextMessage getMessage() throws InvalidMessageException, LegacyMessageException {
+    switch (type) {
+      case CiphertextMessage.WHISPER_TYPE:
+        return new SignalMessage(getBody());
+      case CiphertextMessage.SENDERKEY_TYPE:
+        return new SenderKeyMessage(getBody());
+      case CiphertextMessage.SENDERKEY_DISTRIBUTION_TYPE:
+        return new SenderKeyDistributionMessage(MessageCodec.toByteArray(body));
+      case CiphertextMessage.PREKEY_TYPE:
+        try {
+          return new PreKeySignalMessage(getBody());
+        } catch (InvalidVersionException e) {
+          throw new InvalidMessageException(e);
+        }
+      default:
+        throw new InvalidMessageException("Unknown message type: " + type);
+    }
+  }
+}
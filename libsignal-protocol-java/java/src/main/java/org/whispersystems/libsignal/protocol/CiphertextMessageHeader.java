@@ -0,0 +1,439 @@
+package org.whispersystems.libsignal.protocol;
+
+import org.whispersystems.libsignal.InvalidKeyException;
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.libsignal.InvalidVersionException;
+import org.whispersystems.libsignal.LegacyMessageException;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.util.ByteUtil;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the routing fields of a serialized {@link CiphertextMessage} in place, without parsing
+ * the whole message, copying its ciphertext, or decoding its keys.
+ * <p>
+ * A header is reusable: each call to {@link #parse(int, byte[], int, int)} or
+ * {@link #parse(int, ByteBuffer)} replaces its contents, and parsing allocates nothing.  Keys
+ * are exposed as offsets into the serialized message, and can be compared or copied without
+ * being decoded.  The full message is only built when {@link #getMessage()} is called.
+ * <p>
+ * The serialized message is referenced rather than copied, so it must not be modified while the
+ * header is in use.  Headers are not thread safe.
+ */
+public class CiphertextMessageHeader {
+
+  /**
+   * The length of a serialized key.
+   */
+  public static final int KEY_LENGTH = MessageCodec.KEY_LENGTH;
+
+  private static final int SIGNATURE_LENGTH = 64;
+
+  private byte[]     array;
+  private ByteBuffer buffer;
+  private int        offset;
+  private int        length;
+
+  private final MessageCodec.Reader reader = new MessageCodec.Reader() {
+    @Override
+    byte get(int index) {
+      return CiphertextMessageHeader.this.get(index);
+    }
+  };
+
+  private int     type;
+  private int     version;
+  private int     counter;
+  private int     previousCounter;
+  private int     keyId;
+  private int     preKeyId;
+  private boolean hasPreKeyId;
+  private int     signedPreKeyId;
+  private int     registrationId;
+  private int     ratchetKeyOffset;
+  private int     baseKeyOffset;
+  private int     identityKeyOffset;
+  private int     messageOffset;
+  private int     messageLength;
+  private int     bodyOffset;
+  private int     bodyLength;
+
+  private CiphertextMessage message;
+
+  public void parse(int type, byte[] serialized) throws InvalidMessageException, LegacyMessageException {
+    parse(type, serialized, 0, serialized.length);
+  }
+
+  /**
+   * Read the header of a serialized message.
+   *
+   * @param type The message type, as returned by {@link CiphertextMessage#getType()}.
+   */
+  public void parse(int type, byte[] serialized, int offset, int length)
+      throws InvalidMessageException, LegacyMessageException
+  {
+    this.array  = serialized;
+    this.buffer = null;
+    parse(type, offset, length);
+  }
+
+  /**
+   * Read the header of the message in a buffer's remaining bytes.  The buffer's position is
+   * left unchanged.
+   *
+   * @param type The message type, as returned by {@link CiphertextMessage#getType()}.
+   */
+  public void parse(int type, ByteBuffer serialized) throws InvalidMessageException, LegacyMessageException {
+    this.array  = null;
+    this.buffer = serialized;
+    parse(type, serialized.position(), serialized.remaining());
+  }
+
+  public int getType() {
+    return type;
+  }
+
+  public int getMessageVersion() {
+    return version;
+  }
+
+  /**
+   * @return the counter of a {@link SignalMessage} or {@link PreKeySignalMessage}, or the
+   *         iteration of a {@link SenderKeyMessage}.
+   */
+  public int getCounter() {
+    return counter;
+  }
+
+  public int getPreviousCounter() {
+    return previousCounter;
+  }
+
+  /**
+   * @return the sender key ID of a {@link SenderKeyMessage}.
+   */
+  public int getKeyId() {
+    return keyId;
+  }
+
+  public boolean hasPreKeyId() {
+    return hasPreKeyId;
+  }
+
+  public int getPreKeyId() {
+    return preKeyId;
+  }
+
+  public int getSignedPreKeyId() {
+    return signedPreKeyId;
+  }
+
+  public int getRegistrationId() {
+    return registrationId;
+  }
+
+  /**
+   * @return the offset of the serialized sender ratchet key within the parsed array or buffer,
+   *         or -1 for a {@link SenderKeyMessage}.
+   */
+  public int getRatchetKeyOffset() {
+    return ratchetKeyOffset;
+  }
+
+  /**
+   * @return the offset of the serialized base key within the parsed array or buffer, or -1 if
+   *         the message isn't a {@link PreKeySignalMessage}.
+   */
+  public int getBaseKeyOffset() {
+    return baseKeyOffset;
+  }
+
+  /**
+   * Copy the serialized sender ratchet key, without decoding it.
+   */
+  public void copyRatchetKey(byte[] destination, int destinationOffset) {
+    copy(ratchetKeyOffset, destination, destinationOffset, MessageCodec.KEY_LENGTH);
+  }
+
+  /**
+   * Copy the serialized base key, without decoding it.
+   */
+  public void copyBaseKey(byte[] destination, int destinationOffset) {
+    copy(baseKeyOffset, destination, destinationOffset, MessageCodec.KEY_LENGTH);
+  }
+
+  /**
+   * @return true if the sender ratchet key is the given serialized key.
+   */
+  public boolean ratchetKeyEquals(byte[] serializedKey) {
+    return keyEquals(ratchetKeyOffset, serializedKey);
+  }
+
+  /**
+   * @return true if the base key is the given serialized key.
+   */
+  public boolean baseKeyEquals(byte[] serializedKey) {
+    return keyEquals(baseKeyOffset, serializedKey);
+  }
+
+  public ECPublicKey getRatchetKey() throws InvalidKeyException {
+    return decodeKey(ratchetKeyOffset);
+  }
+
+  public ECPublicKey getBaseKey() throws InvalidKeyException {
+    return decodeKey(baseKeyOffset);
+  }
+
+  /**
+   * @return the length of the message's ciphertext.
+   */
+  public int getBodyLength() {
+    return bodyLength;
+  }
+
+  /**
+   * Build the full message.  The message is built once, and reused until the header is parsed
+   * again.
+   */
+  public CiphertextMessage getMessage() throws InvalidMessageException, LegacyMessageException {
+    if (message == null) {
+      switch (type) {
+        case CiphertextMessage.WHISPER_TYPE:
+          message = new SignalMessage(slice(offset, length));
+          break;
+        case CiphertextMessage.SENDERKEY_TYPE:
+          message = new SenderKeyMessage(slice(offset, length));
+          break;
+        case CiphertextMessage.PREKEY_TYPE:
+          try {
+            message = new PreKeySignalMessage(MessageCodec.toByteArray(slice(offset, length)));
+          } catch (InvalidVersionException e) {
+            throw new InvalidMessageException(e);
+          }
+          break;
+      }
+    }
+
+    return message;
+  }
+
+  private void parse(int type, int offset, int length) throws InvalidMessageException, LegacyMessageException {
+    this.offset            = offset;
+    this.length            = length;
+    this.type              = type;
+    this.counter           = 0;
+    this.previousCounter   = 0;
+    this.keyId             = 0;
+    this.preKeyId          = 0;
+    this.hasPreKeyId       = false;
+    this.signedPreKeyId    = -1;
+    this.registrationId    = 0;
+    this.ratchetKeyOffset  = -1;
+    this.baseKeyOffset     = -1;
+    this.identityKeyOffset = -1;
+    this.messageOffset     = -1;
+    this.bodyOffset        = -1;
+    this.message           = null;
+
+    switch (type) {
+      case CiphertextMessage.WHISPER_TYPE:
+        this.version = parseSignalMessage(offset, length);
+        break;
+      case CiphertextMessage.PREKEY_TYPE:
+        parsePreKeySignalMessage();
+        break;
+      case CiphertextMessage.SENDERKEY_TYPE:
+        parseSenderKeyMessage();
+        break;
+      default:
+        throw new InvalidMessageException("Unsupported message type: " + type);
+    }
+  }
+
+  private int parseSignalMessage(int start, int length)
+      throws InvalidMessageException, LegacyMessageException
+  {
+    if (length < 1 + SignalMessage.MAC_LENGTH) {
+      throw new InvalidMessageException("Message too short: " + length);
+    }
+
+    int version = ByteUtil.highBitsToInt(get(start));
+
+    if (version <= CiphertextMessage.UNSUPPORTED_VERSION) {
+      throw new LegacyMessageException("Legacy message: " + version);
+    }
+
+    if (version > CiphertextMessage.CURRENT_VERSION) {
+      throw new InvalidMessageException("Unknown version: " + version);
+    }
+
+    boolean hasCounter = false;
+
+    reader.position = start + 1;
+    reader.limit    = start + length - SignalMessage.MAC_LENGTH;
+
+    while (reader.position < reader.limit) {
+      int tag = reader.readVarint();
+
+      switch (tag) {
+        case (1 << 3) | MessageCodec.WIRETYPE_LENGTH_DELIMITED: ratchetKeyOffset = readKey();               break;
+        case (2 << 3) | MessageCodec.WIRETYPE_VARINT:           counter          = reader.readVarint();
+                                                                hasCounter       = true;                    break;
+        case (3 << 3) | MessageCodec.WIRETYPE_VARINT:           previousCounter  = reader.readVarint();     break;
+        case (4 << 3) | MessageCodec.WIRETYPE_LENGTH_DELIMITED: bodyLength       = reader.readLength();
+                                                                bodyOffset       = reader.skip(bodyLength); break;
+        default:                                                reader.skipField(tag);
+      }
+    }
+
+    if (ratchetKeyOffset == -1 || !hasCounter || bodyOffset == -1) {
+      throw new InvalidMessageException("Incomplete message.");
+    }
+
+    return version;
+  }
+
+  private void parsePreKeySignalMessage() throws InvalidMessageException, LegacyMessageException {
+    if (length < 1) {
+      throw new InvalidMessageException("Message too short: " + length);
+    }
+
+    version = ByteUtil.highBitsToInt(get(offset));
+
+    if (version > CiphertextMessage.CURRENT_VERSION) {
+      throw new InvalidMessageException("Unknown version: " + version);
+    }
+
+    if (version < CiphertextMessage.CURRENT_VERSION) {
+      throw new LegacyMessageException("Legacy version: " + version);
+    }
+
+    boolean hasSignedPreKeyId = false;
+
+    reader.position = offset + 1;
+    reader.limit    = offset + length;
+
+    while (reader.position < reader.limit) {
+      int tag = reader.readVarint();
+
+      switch (tag) {
+        case (1 << 3) | MessageCodec.WIRETYPE_VARINT:           preKeyId          = reader.readVarint();
+                                                                hasPreKeyId       = true;                       break;
+        case (2 << 3) | MessageCodec.WIRETYPE_LENGTH_DELIMITED: baseKeyOffset     = readKey();                  break;
+        case (3 << 3) | MessageCodec.WIRETYPE_LENGTH_DELIMITED: identityKeyOffset = readKey();                  break;
+        case (4 << 3) | MessageCodec.WIRETYPE_LENGTH_DELIMITED: messageLength     = reader.readLength();
+                                                                messageOffset     = reader.skip(messageLength); break;
+        case (5 << 3) | MessageCodec.WIRETYPE_VARINT:           registrationId    = reader.readVarint();        break;
+        case (6 << 3) | MessageCodec.WIRETYPE_VARINT:           signedPreKeyId    = reader.readVarint();
+                                                                hasSignedPreKeyId = true;                       break;
+        default:                                                reader.skipField(tag);
+      }
+    }
+
+    if (!hasSignedPreKeyId || baseKeyOffset == -1 || identityKeyOffset == -1 || messageOffset == -1) {
+      throw new InvalidMessageException("Incomplete message.");
+    }
+
+    parseSignalMessage(messageOffset, messageLength);
+  }
+
+  private void parseSenderKeyMessage() throws InvalidMessageException, LegacyMessageException {
+    if (length < 1 + SIGNATURE_LENGTH) {
+      throw new InvalidMessageException("Message too short: " + length);
+    }
+
+    version = ByteUtil.highBitsToInt(get(offset));
+
+    if (version < 3) {
+      throw new LegacyMessageException("Legacy message: " + version);
+    }
+
+    if (version > CiphertextMessage.CURRENT_VERSION) {
+      throw new InvalidMessageException("Unknown version: " + version);
+    }
+
+    boolean hasKeyId     = false;
+    boolean hasIteration = false;
+
+    reader.position = offset + 1;
+    reader.limit    = offset + length - SIGNATURE_LENGTH;
+
+    while (reader.position < reader.limit) {
+      int tag = reader.readVarint();
+
+      switch (tag) {
+        case (1 << 3) | MessageCodec.WIRETYPE_VARINT:           keyId        = reader.readVarint();
+                                                                hasKeyId     = true;                    break;
+        case (2 << 3) | MessageCodec.WIRETYPE_VARINT:           counter      = reader.readVarint();
+                                                                hasIteration = true;                    break;
+        case (3 << 3) | MessageCodec.WIRETYPE_LENGTH_DELIMITED: bodyLength   = reader.readLength();
+                                                                bodyOffset   = reader.skip(bodyLength); break;
+        default:                                                reader.skipField(tag);
+      }
+    }
+
+    if (!hasKeyId || !hasIteration || bodyOffset == -1) {
+      throw new InvalidMessageException("Incomplete message.");
+    }
+  }
+
+  private byte get(int index) {
+    return array != null ? array[index] : buffer.get(index);
+  }
+
+  private int readKey() throws InvalidMessageException {
+    int length = reader.readLength();
+
+    if (length != MessageCodec.KEY_LENGTH) {
+      throw new InvalidMessageException("Bad key length: " + length);
+    }
+
+    return reader.skip(length);
+  }
+
+  private void copy(int from, byte[] destination, int destinationOffset, int length) {
+    if (from == -1) {
+      throw new IllegalStateException("No such key");
+    }
+
+    for (int i=0;i<length;i++) {
+      destination[destinationOffset + i] = get(from + i);
+    }
+  }
+
+  private boolean keyEquals(int from, byte[] serializedKey) {
+    if (from == -1 || serializedKey.length != MessageCodec.KEY_LENGTH) {
+      return false;
+    }
+
+    for (int i=0;i<serializedKey.length;i++) {
+      if (get(from + i) != serializedKey[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private ECPublicKey decodeKey(int from) throws InvalidKeyException {
+    if (from == -1) {
+      throw new IllegalStateException("No such key");
+    }
+
+    byte[] key = new byte[MessageCodec.KEY_LENGTH];
+    copy(from, key, 0, key.length);
+
+    return Curve.decodePoint(key, 0);
+  }
+
+  private ByteBuffer slice(int from, int length) {
+    ByteBuffer view = array != null ? ByteBuffer.wrap(array) : buffer.duplicate();
+
+    view.limit(from + length);
+    view.position(from);
+
+    return view.slice();
+  }
+}
@@ -0,0 +1,240 @@
+package org.whispersystems.libsignal.protocol;
+
+import org.whispersystems.libsignal.InvalidMessageException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes the protobuf wire format of the message types directly against
+ * {@link ByteBuffer}s, so that message bodies can be framed and parsed in place.
+ * <p>
+ * Only what the message types need is supported: fields numbered below 16 (single byte tags),
+ * uint32 varints, and length-delimited byte strings.  Other fields are skipped when reading.
+ */
+class MessageCodec {
+
+  static final int WIRETYPE_VARINT           = 0;
+  static final int WIRETYPE_FIXED64          = 1;
+  static final int WIRETYPE_LENGTH_DELIMITED = 2;
+  static final int WIRETYPE_START_GROUP      = 3;
+  static final int WIRETYPE_END_GROUP        = 4;
+  static final int WIRETYPE_FIXED32          = 5;
+
+  /**
+   * The serialized length of a public key.
+   */
+  static final int KEY_LENGTH = 33;
+
+  /**
+   * The largest serialized size of a uint32 field.
+   */
+  static final int MAX_UINT32_FIELD_SIZE = 1 + 5;
+
+  /**
+   * The deepest nesting of groups that will be skipped, matching protobuf-java's default
+   * recursion limit.
+   */
+  static final int MAX_GROUP_DEPTH = 64;
+
+  static int getVarintSize(int value) {
+    if ((value & (0xffffffff <<  7)) == 0) return 1;
+    if ((value & (0xffffffff << 14)) == 0) return 2;
+    if ((value & (0xffffffff << 21)) == 0) return 3;
+    if ((value & (0xffffffff << 28)) == 0) return 4;
+    return 5;
+  }
+
+  static int getUInt32FieldSize(int value) {
+    return 1 + getVarintSize(value);
+  }
+
+  static int getBytesFieldSize(int length) {
+    return 1 + getVarintSize(length) + length;
+  }
+
+  static void writeVarint(ByteBuffer output, int value) {
+    while ((value & ~0x7F) != 0) {
+      output.put((byte)((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+
+    output.put((byte)value);
+  }
+
+  static void writeUInt32Field(ByteBuffer output, int fieldNumber, int value) {
+    output.put((byte)((fieldNumber << 3) | WIRETYPE_VARINT));
+    writeVarint(output, value);
+  }
+
+  static void writeBytesField(ByteBuffer output, int fieldNumber, byte[] value) {
+    writeBytesFieldHeader(output, fieldNumber, value.length);
+    output.put(value);
+  }
+
+  static void writeBytesFieldHeader(ByteBuffer output, int fieldNumber, int length) {
+    output.put((byte)((fieldNumber << 3) | WIRETYPE_LENGTH_DELIMITED));
+    writeVarint(output, length);
+  }
+
+  static int readVarint(ByteBuffer input) throws InvalidMessageException {
+    int result = 0;
+
+    for (int shift=0;shift<64;shift+=7) {
+      if (!input.hasRemaining()) {
+        throw new InvalidMessageException("Truncated varint");
+      }
+
+      byte b = input.get();
+
+      if (shift < 32) result |= (b & 0x7F) << shift;
+      if (b >= 0)     return result;
+    }
+
+    throw new InvalidMessageException("Malformed varint");
+  }
+
+  /**
+   * Read a length-delimited field's value.
+   *
+   * @return a view of the value, sharing the input's content.  The input is advanced past it.
+   */
+  static ByteBuffer readBytes(ByteBuffer input) throws InvalidMessageException {
+    int length = readVarint(input);
+
+    if (length < 0 || length > input.remaining()) {
+      throw new InvalidMessageException("Truncated field: " + length);
+    }
+
+    ByteBuffer value = input.slice();
+    value.limit(length);
+    input.position(input.position() + length);
+
+    return value;
+  }
+
+  static byte[] toByteArray(ByteBuffer value) {
+    byte[] result = new byte[value.remaining()];
+    value.duplicate().get(result);
+
+    return result;
+  }
+
+  /**
+   * Skip an unknown field, or reject it if it's malformed.  Groups nested more than
+   * {@link #MAX_GROUP_DEPTH} deep are rejected rather than skipped.
+   */
+  static void skipField(ByteBuffer input, int tag) throws InvalidMessageException {
+    Reader reader = new BufferReader(input);
+    reader.skipField(tag);
+
+    input.position(reader.position);
+  }
+
+  /**
+   * Reads fields by absolute index, from a position up to a limit, leaving it to subclasses to
+   * supply the bytes.  A reader can be reused across messages, so parsers that hold one
+   * allocate nothing per message.
+   */
+  abstract static class Reader {
+
+    int position;
+    int limit;
+
+    abstract byte get(int index);
+
+    int readVarint() throws InvalidMessageException {
+      int result = 0;
+
+      for (int shift=0;shift<64;shift+=7) {
+        if (position >= limit) {
+          throw new InvalidMessageException("Truncated varint");
+        }
+
+        byte b = get(position++);
+
+        if (shift < 32) result |= (b & 0x7F) << shift;
+        if (b >= 0)     return result;
+      }
+
+      throw new InvalidMessageException("Malformed varint");
+    }
+
+    int readLength() throws InvalidMessageException {
+      int length = readVarint();
+
+      if (length < 0 || length > limit - position) {
+        throw new InvalidMessageException("Truncated field: " + length);
+      }
+
+      return length;
+    }
+
+    /**
+     * @return the position of the skipped bytes.
+     */
+    int skip(int length) throws InvalidMessageException {
+      if (length > limit - position) {
+        throw new InvalidMessageException("Truncated field");
+      }
+
+      int start = position;
+      position += length;
+
+      return start;
+    }
+
+    /**
+     * @see MessageCodec#skipField(ByteBuffer, int)
+     */
+    void skipField(int tag) throws InvalidMessageException {
+      skipField(tag, 0);
+    }
+
+    private void skipField(int tag, int depth) throws InvalidMessageException {
+      if (tag >>> 3 == 0) {
+        throw new InvalidMessageException("Invalid tag: " + tag);
+      }
+
+      switch (tag & 0x7) {
+        case WIRETYPE_VARINT:           readVarint();              break;
+        case WIRETYPE_LENGTH_DELIMITED: skip(readLength());        break;
+        case WIRETYPE_FIXED64:          skip(8);                   break;
+        case WIRETYPE_FIXED32:          skip(4);                   break;
+        case WIRETYPE_START_GROUP:      skipGroup(tag, depth + 1); break;
+        default: throw new InvalidMessageException("Unsupported wire type: " + (tag & 0x7));
+      }
+    }
+
+    private void skipGroup(int startTag, int depth) throws InvalidMessageException {
+      if (depth > MAX_GROUP_DEPTH) {
+        throw new InvalidMessageException("Groups nested too deeply");
+      }
+
+      int tag;
+
+      while (((tag = readVarint()) & 0x7) != WIRETYPE_END_GROUP) {
+        skipField(tag, depth);
+      }
+
+      if (tag >>> 3 != startTag >>> 3) {
+        throw new InvalidMessageException("Mismatched end group: " + tag);
+      }
+    }
+  }
+
+  private static class BufferReader extends Reader {
+
+    private final ByteBuffer buffer;
+
+    BufferReader(ByteBuffer buffer) {
+      this.buffer   = buffer;
+      this.position = buffer.position();
+      this.limit    = buffer.limit();
+    }
+
+    @Override
+    byte get(int index) {
+      return buffer.get(index);
+    }
+  }
+}
@@ -16,9 +16,6 @@
  */
 package org.whispersystems.libsignal.protocol;
 
-import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
-
 import org.whispersystems.libsignal.IdentityKey;
 import org.whispersystems.libsignal.InvalidKeyException;
 import org.whispersystems.libsignal.InvalidMessageException;
@@ -29,6 +26,7 @@ import org.whispersystems.libsignal.ecc.ECPublicKey;
 import org.whispersystems.libsignal.util.ByteUtil;
 import org.whispersystems.libsignal.util.guava.Optional;
 
+import java.nio.ByteBuffer;
 
 public class PreKeySignalMessage implements CiphertextMessage {
 
@@ -39,42 +37,79 @@ public class PreKeySignalMessage implements CiphertextMessage {
   private final ECPublicKey       baseKey;
   private final IdentityKey       identityKey;
   private final SignalMessage     message;
-  private final byte[]            serialized;
+  private final ByteBuffer        serializedBuffer;
+
+  private byte[] serialized;
 
   public PreKeySignalMessage(byte[] serialized)
       throws InvalidMessageException, InvalidVersionException
   {
-    try {
-      this.version = ByteUtil.highBitsToInt(serialized[0]);
+    this(ByteBuffer.wrap(serialized));
+    this.serialized = serialized;
+  }
 
-      if (this.version > CiphertextMessage.CURRENT_VERSION) {
-        throw new InvalidVersionException("Unknown version: " + this.version);
-      }
+  /**
+   * Parse a PreKeySignalMessage from the remaining bytes of a buffer, advancing its position to
+   * its limit.  The message keeps a view of the buffer rather than copying it, so the buffer's
+   * content must not change while the message is in use.
+   */
+  public PreKeySignalMessage(ByteBuffer serialized)
+      throws InvalidMessageException, InvalidVersionException
+  {
+    ByteBuffer buffer = serialized.slice().asReadOnlyBuffer();
+    serialized.position(serialized.limit());
 
-      if (this.version < CiphertextMessage.CURRENT_VERSION) {
-        throw new LegacyMessageException("Legacy version: " + this.version);
-      }
+    if (!buffer.hasRemaining()) {
+      throw new InvalidMessageException("Empty message");
+    }
+
+    this.version = ByteUtil.highBitsToInt(buffer.get(0));
+
+    if (this.version > CiphertextMessage.CURRENT_VERSION) {
+      throw new InvalidVersionException("Unknown version: " + this.version);
+    }
 
-      SignalProtos.PreKeySignalMessage preKeyWhisperMessage
-          = SignalProtos.PreKeySignalMessage.parseFrom(ByteString.copyFrom(serialized, 1,
-                                                                           serialized.length-1));
+    if (this.version < CiphertextMessage.CURRENT_VERSION) {
+      throw new InvalidMessageException(new LegacyMessageException("Legacy version: " + this.version));
+    }
 
-      if (!preKeyWhisperMessage.hasSignedPreKeyId()  ||
-          !preKeyWhisperMessage.hasBaseKey()         ||
-          !preKeyWhisperMessage.hasIdentityKey()     ||
-          !preKeyWhisperMessage.hasMessage())
-      {
-        throw new InvalidMessageException("Incomplete message.");
+    ByteBuffer message        = buffer.duplicate();
+    ByteBuffer baseKey        = null;
+    ByteBuffer identityKey    = null;
+    ByteBuffer signalMessage  = null;
+    Integer    preKeyId       = null;
+    Integer    signedPreKeyId = null;
+    int        registrationId = 0;
+
+    message.position(1);
+
+    while (message.hasRemaining()) {
+      int tag = MessageCodec.readVarint(message);
+
+      switch (tag) {
+        case (1 << 3) | MessageCodec.WIRETYPE_VARINT:           preKeyId       = MessageCodec.readVarint(message); break;
+        case (2 << 3) | MessageCodec.WIRETYPE_LENGTH_DELIMITED: baseKey        = MessageCodec.readBytes(message);  break;
+        case (3 << 3) | MessageCodec.WIRETYPE_LENGTH_DELIMITED: identityKey    = MessageCodec.readBytes(message);  break;
+        case (4 << 3) | MessageCodec.WIRETYPE_LENGTH_DELIMITED: signalMessage  = MessageCodec.readBytes(message);  break;
+        case (5 << 3) | MessageCodec.WIRETYPE_VARINT:           registrationId = MessageCodec.readVarint(message); break;
+        case (6 << 3) | MessageCodec.WIRETYPE_VARINT:           signedPreKeyId = MessageCodec.readVarint(message); break;
+        default:                                                MessageCodec.skipField(message, tag);
       }
+    }
+
+    if (signedPreKeyId == null || baseKey == null || identityKey == null || signalMessage == null) {
+      throw new InvalidMessageException("Incomplete message.");
+    }
 
-      this.serialized     = serialized;
-      this.registrationId = preKeyWhisperMessage.getRegistrationId();
-      this.preKeyId       = preKeyWhisperMessage.hasPreKeyId() ? Optional.of(preKeyWhisperMessage.getPreKeyId()) : Optional.<Integer>absent();
-      this.signedPreKeyId = preKeyWhisperMessage.hasSignedPreKeyId() ? preKeyWhisperMessage.getSignedPreKeyId() : -1;
-      this.baseKey        = Curve.decodePoint(preKeyWhisperMessage.getBaseKey().toByteArray(), 0);
-      this.identityKey    = new IdentityKey(Curve.decodePoint(preKeyWhisperMessage.getIdentityKey().toByteArray(), 0));
-      this.message        = new SignalMessage(preKeyWhisperMessage.getMessage().toByteArray());
-    } catch (InvalidProtocolBufferException | InvalidKeyException | LegacyMessageException e) {
+    try {
+      this.serializedBuffer = buffer;
+      this.registrationId   = registrationId;
+      this.preKeyId         = Optional.fromNullable(preKeyId);
+      this.signedPreKeyId   = signedPreKeyId;
+      this.baseKey          = Curve.decodePoint(MessageCodec.toByteArray(baseKey), 0);
+      this.identityKey      = new IdentityKey(Curve.decodePoint(MessageCodec.toByteArray(identityKey), 0));
+      this.message          = new SignalMessage(signalMessage);
+    } catch (InvalidKeyException | LegacyMessageException e) {
       throw new InvalidMessageException(e);
     }
   }
@@ -91,22 +126,68 @@ public class PreKeySignalMessage implements CiphertextMessage {
     this.identityKey    = identityKey;
     this.message        = message;
 
-    SignalProtos.PreKeySignalMessage.Builder builder =
-        SignalProtos.PreKeySignalMessage.newBuilder()
-                                        .setSignedPreKeyId(signedPreKeyId)
-                                        .setBaseKey(ByteString.copyFrom(baseKey.serialize()))
-                                        .setIdentityKey(ByteString.copyFrom(identityKey.serialize()))
-                                        .setMessage(ByteString.copyFrom(message.serialize()))
-                                        .setRegistrationId(registrationId);
+    byte[]     messageBytes = message.serialize();
+    ByteBuffer buffer       = ByteBuffer.allocate(getSerializedSize(registrationId, preKeyId, signedPreKeyId,
+                                                                    messageBytes.length));
+
+    writeHeader(buffer, messageVersion, preKeyId, baseKey, identityKey, messageBytes.length);
+    buffer.put(messageBytes);
+    writeTrailer(buffer, registrationId, signedPreKeyId);
+
+    this.serialized       = buffer.array();
+    this.serializedBuffer = ByteBuffer.wrap(serialized).asReadOnlyBuffer();
+  }
+
+  /**
+   * @return the serialized size of a PreKeySignalMessage with these values, wrapping a
+   *         SignalMessage of the given serialized length.
+   */
+  public static int getSerializedSize(int registrationId, Optional<Integer> preKeyId,
+                                      int signedPreKeyId, int messageLength)
+  {
+    return 1 + (preKeyId.isPresent() ? MessageCodec.getUInt32FieldSize(preKeyId.get()) : 0) +
+           2 * MessageCodec.getBytesFieldSize(MessageCodec.KEY_LENGTH) +
+           MessageCodec.getBytesFieldSize(messageLength) +
+           MessageCodec.getUInt32FieldSize(registrationId) +
+           MessageCodec.getUInt32FieldSize(signedPreKeyId);
+  }
+
+  /**
+   * @return the largest serialized size of a PreKeySignalMessage wrapping a SignalMessage of the
+   *         given serialized length.
+   */
+  public static int getMaxSerializedSize(int messageLength) {
+    return 1 + MessageCodec.MAX_UINT32_FIELD_SIZE +
+           2 * MessageCodec.getBytesFieldSize(MessageCodec.KEY_LENGTH) +
+           MessageCodec.getBytesFieldSize(messageLength) +
+           2 * MessageCodec.MAX_UINT32_FIELD_SIZE;
+  }
+
+  /**
+   * Write the part of a serialized PreKeySignalMessage which precedes the wrapped SignalMessage.
+   * The caller writes the SignalMessage, of exactly <tt>messageLength</tt> bytes, directly after
+   * it, followed by {@link #writeTrailer(ByteBuffer, int, int)}.
+   */
+  public static void writeHeader(ByteBuffer output, int messageVersion, Optional<Integer> preKeyId,
+                                 ECPublicKey baseKey, IdentityKey identityKey, int messageLength)
+  {
+    output.put(ByteUtil.intsToByteHighAndLow(messageVersion, CURRENT_VERSION));
 
     if (preKeyId.isPresent()) {
-      builder.setPreKeyId(preKeyId.get());
+      MessageCodec.writeUInt32Field(output, 1, preKeyId.get());
     }
 
-    byte[] versionBytes = {ByteUtil.intsToByteHighAndLow(this.version, CURRENT_VERSION)};
-    byte[] messageBytes = builder.build().toByteArray();
+    MessageCodec.writeBytesField(output, 2, baseKey.serialize());
+    MessageCodec.writeBytesField(output, 3, identityKey.serialize());
+    MessageCodec.writeBytesFieldHeader(output, 4, messageLength);
+  }
 
-    this.serialized = ByteUtil.combine(versionBytes, messageBytes);
+  /**
+   * Write the part of a serialized PreKeySignalMessage which follows the wrapped SignalMessage.
+   */
+  public static void writeTrailer(ByteBuffer output, int registrationId, int signedPreKeyId) {
+    MessageCodec.writeUInt32Field(output, 5, registrationId);
+    MessageCodec.writeUInt32Field(output, 6, signedPreKeyId);
   }
 
   public int getMessageVersion() {
@@ -139,9 +220,20 @@ public class PreKeySignalMessage implements CiphertextMessage {
 
   @Override
   public byte[] serialize() {
+    if (serialized == null) {
+      serialized = MessageCodec.toByteArray(serializedBuffer);
+    }
+
     return serialized;
   }
 
+  /**
+   * @return a read-only view of the serialized message.
+   */
+  public ByteBuffer serializeToBuffer() {
+    return serializedBuffer.duplicate();
+  }
+
   @Override
   public int getType() {
     return CiphertextMessage.PREKEY_TYPE;
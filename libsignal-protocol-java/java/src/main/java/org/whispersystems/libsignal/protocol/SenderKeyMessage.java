@@ -1,8 +1,5 @@
 package org.whispersystems.libsignal.protocol;
 
-import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
-
 import org.whispersystems.libsignal.InvalidKeyException;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.LegacyMessageException;
@@ -11,7 +8,14 @@ import org.whispersystems.libsignal.ecc.ECPrivateKey;
 import org.whispersystems.libsignal.ecc.ECPublicKey;
 import org.whispersystems.libsignal.util.ByteUtil;
 
-import java.text.ParseException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
 
 public class SenderKeyMessage implements CiphertextMessage {
 
@@ -20,58 +24,145 @@ public class SenderKeyMessage implements CiphertextMessage {
   private final int         messageVersion;
   private final int         keyId;
   private final int         iteration;
-  private final byte[]      ciphertext;
-  private final byte[]      serialized;
+  private final ByteBuffer  serializedBuffer;
+  private final ByteBuffer  ciphertextBuffer;
+
+  private byte[] ciphertext;
+  private byte[] serialized;
 
   public SenderKeyMessage(byte[] serialized) throws InvalidMessageException, LegacyMessageException {
-    try {
-      byte[][] messageParts = ByteUtil.split(serialized, 1, serialized.length - 1 - SIGNATURE_LENGTH, SIGNATURE_LENGTH);
-      byte     version      = messageParts[0][0];
-      byte[]   message      = messageParts[1];
-      byte[]   signature    = messageParts[2];
+    this(ByteBuffer.wrap(serialized));
+    this.serialized = serialized;
+  }
 
-      if (ByteUtil.highBitsToInt(version) < 3) {
-        throw new LegacyMessageException("Legacy message: " + ByteUtil.highBitsToInt(version));
-      }
+  /**
+   * Parse a SenderKeyMessage from the remaining bytes of a buffer, advancing its position to its
+   * limit.  The message keeps a view of the buffer rather than copying it, so the buffer's
+   * content must not change while the message is in use.
+   */
+  public SenderKeyMessage(ByteBuffer serialized) throws InvalidMessageException, LegacyMessageException {
+    ByteBuffer buffer = serialized.slice().asReadOnlyBuffer();
+    serialized.position(serialized.limit());
+
+    if (buffer.remaining() < 1 + SIGNATURE_LENGTH) {
+      throw new InvalidMessageException("Message too short: " + buffer.remaining());
+    }
 
-      if (ByteUtil.highBitsToInt(version) > CURRENT_VERSION) {
-        throw new InvalidMessageException("Unknown version: " + ByteUtil.highBitsToInt(version));
-      }
+    int version = ByteUtil.highBitsToInt(buffer.get(0));
+
+    if (version < 3) {
+      throw new LegacyMessageException("Legacy message: " + version);
+    }
+
+    if (version > CURRENT_VERSION) {
+      throw new InvalidMessageException("Unknown version: " + version);
+    }
 
-      SignalProtos.SenderKeyMessage senderKeyMessage = SignalProtos.SenderKeyMessage.parseFrom(message);
+    ByteBuffer message    = buffer.duplicate();
+    ByteBuffer ciphertext = null;
+    Integer    keyId      = null;
+    Integer    iteration  = null;
 
-      if (!senderKeyMessage.hasId() ||
-          !senderKeyMessage.hasIteration() ||
-          !senderKeyMessage.hasCiphertext())
-      {
-        throw new InvalidMessageException("Incomplete message.");
+    message.position(1);
+    message.limit(buffer.limit() - SIGNATURE_LENGTH);
+
+    while (message.hasRemaining()) {
+      int tag = MessageCodec.readVarint(message);
+
+      switch (tag) {
+        case (1 << 3) | MessageCodec.WIRETYPE_VARINT:           keyId      = MessageCodec.readVarint(message); break;
+        case (2 << 3) | MessageCodec.WIRETYPE_VARINT:           iteration  = MessageCodec.readVarint(message); break;
+        case (3 << 3) | MessageCodec.WIRETYPE_LENGTH_DELIMITED: ciphertext = MessageCodec.readBytes(message);  break;
+        default:                                                MessageCodec.skipField(message, tag);
       }
+    }
 
-      this.serialized     = serialized;
-      this.messageVersion = ByteUtil.highBitsToInt(version);
-      this.keyId          = senderKeyMessage.getId();
-      this.iteration      = senderKeyMessage.getIteration();
-      this.ciphertext     = senderKeyMessage.getCiphertext().toByteArray();
-    } catch (InvalidProtocolBufferException | ParseException e) {
-      throw new InvalidMessageException(e);
+    if (keyId == null || iteration == null || ciphertext == null) {
+      throw new InvalidMessageException("Incomplete message.");
     }
+
+    this.serializedBuffer = buffer;
+    this.messageVersion   = version;
+    this.keyId            = keyId;
+    this.iteration        = iteration;
+    this.ciphertextBuffer = ciphertext;
   }
 
   public SenderKeyMessage(int keyId, int iteration, byte[] ciphertext, ECPrivateKey signatureKey) {
-    byte[] version = {ByteUtil.intsToByteHighAndLow(CURRENT_VERSION, CURRENT_VERSION)};
-    byte[] message = SignalProtos.SenderKeyMessage.newBuilder()
-                                                  .setId(keyId)
-                                                  .setIteration(iteration)
-                                                  .setCiphertext(ByteString.copyFrom(ciphertext))
-                                                  .build().toByteArray();
+    ByteBuffer buffer = ByteBuffer.allocate(getSerializedSize(keyId, iteration, ciphertext.length));
 
-    byte[] signature = getSignature(signatureKey, ByteUtil.combine(version, message));
+    writeHeader(buffer, keyId, iteration, ciphertext.length);
+    buffer.put(ciphertext);
+    buffer.put(getSignature(signatureKey, Arrays.copyOf(buffer.array(), buffer.position())));
 
-    this.serialized       = ByteUtil.combine(version, message, signature);
+    this.serialized       = buffer.array();
+    this.serializedBuffer = ByteBuffer.wrap(serialized).asReadOnlyBuffer();
     this.messageVersion   = CURRENT_VERSION;
     this.keyId            = keyId;
     this.iteration        = iteration;
     this.ciphertext       = ciphertext;
+    this.ciphertextBuffer = ByteBuffer.wrap(ciphertext).asReadOnlyBuffer();
+  }
+
+  /**
+   * @return the serialized size of a SenderKeyMessage with these values.
+   */
+  public static int getSerializedSize(int keyId, int iteration, int ciphertextLength) {
+    return 1 + MessageCodec.getUInt32FieldSize(keyId) + MessageCodec.getUInt32FieldSize(iteration) +
+           MessageCodec.getBytesFieldSize(ciphertextLength) + SIGNATURE_LENGTH;
+  }
+
+  /**
+   * @return the largest serialized size of a SenderKeyMessage with a ciphertext of the given length.
+   */
+  public static int getMaxSerializedSize(int ciphertextLength) {
+    return 1 + 2 * MessageCodec.MAX_UINT32_FIELD_SIZE +
+           MessageCodec.getBytesFieldSize(ciphertextLength) + SIGNATURE_LENGTH;
+  }
+
+  /**
+   * Encrypt a plaintext and write it as a serialized SenderKeyMessage at the output's position,
+   * advancing it past the message.  The ciphertext is written in place.  Signing needs the
+   * signed bytes in an array, so they are copied once.
+   *
+   * @param cipher A cipher initialized for encryption with the sender message key.
+   * @param plaintext The plaintext, which is consumed.
+   * @throws BufferOverflowException if the output has fewer than
+   *                                 {@link #getMaxSerializedSize(int)} bytes remaining, in which
+   *                                 case nothing is written.
+   */
+  public static void write(ByteBuffer output, int keyId, int iteration, Cipher cipher,
+                           ByteBuffer plaintext, ECPrivateKey signatureKey)
+  {
+    int ciphertextLength = cipher.getOutputSize(plaintext.remaining());
+    int start            = output.position();
+
+    if (output.remaining() < getMaxSerializedSize(ciphertextLength)) {
+      throw new BufferOverflowException();
+    }
+
+    try {
+      writeHeader(output, keyId, iteration, ciphertextLength);
+
+      if (cipher.doFinal(plaintext, output) != ciphertextLength) {
+        throw new AssertionError("Unexpected ciphertext length");
+      }
+
+      ByteBuffer message = output.duplicate();
+      message.flip();
+      message.position(start);
+
+      output.put(getSignature(signatureKey, MessageCodec.toByteArray(message)));
+    } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void writeHeader(ByteBuffer output, int keyId, int iteration, int ciphertextLength) {
+    output.put(ByteUtil.intsToByteHighAndLow(CURRENT_VERSION, CURRENT_VERSION));
+    MessageCodec.writeUInt32Field(output, 1, keyId);
+    MessageCodec.writeUInt32Field(output, 2, iteration);
+    MessageCodec.writeBytesFieldHeader(output, 3, ciphertextLength);
   }
 
   public int getKeyId() {
@@ -83,25 +174,44 @@ public class SenderKeyMessage implements CiphertextMessage {
   }
 
   public byte[] getCipherText() {
+    if (ciphertext == null) {
+      ciphertext = MessageCodec.toByteArray(ciphertextBuffer);
+    }
+
     return ciphertext;
   }
 
+  /**
+   * @return a read-only view of the ciphertext.
+   */
+  public ByteBuffer getCipherTextBuffer() {
+    return ciphertextBuffer.duplicate();
+  }
+
+  /**
+   * Verify the message's signature.  The signed bytes are copied out of the message once, as
+   * signature verification needs them in an array of their own, and the message itself is
+   * never serialized.
+   */
   public void verifySignature(ECPublicKey signatureKey)
       throws InvalidMessageException
   {
     try {
-      byte[][] parts    = ByteUtil.split(serialized, serialized.length - SIGNATURE_LENGTH, SIGNATURE_LENGTH);
+      ByteBuffer message   = serializedBuffer.duplicate();
+      byte[]     signed    = new byte[message.remaining() - SIGNATURE_LENGTH];
+      byte[]     signature = new byte[SIGNATURE_LENGTH];
+
+      message.get(signed).get(signature);
 
-      if (!Curve.verifySignature(signatureKey, parts[0], parts[1])) {
+      if (!Curve.verifySignature(signatureKey, signed, signature)) {
         throw new InvalidMessageException("Invalid signature!");
       }
-
     } catch (InvalidKeyException e) {
       throw new InvalidMessageException(e);
     }
   }
 
-  private byte[] getSignature(ECPrivateKey signatureKey, byte[] serialized) {
+  private static byte[] getSignature(ECPrivateKey signatureKey, byte[] serialized) {
     try {
       return Curve.calculateSignature(signatureKey, serialized);
     } catch (InvalidKeyException e) {
@@ -111,6 +221,10 @@ public class SenderKeyMessage implements CiphertextMessage {
 
   @Override
   public byte[] serialize() {
+    if (serialized == null) {
+      serialized = MessageCodec.toByteArray(serializedBuffer);
+    }
+
     return serialized;
   }
 
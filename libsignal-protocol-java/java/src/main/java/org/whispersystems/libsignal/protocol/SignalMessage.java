@@ -16,9 +16,6 @@
  */
 package org.whispersystems.libsignal.protocol;
 
-import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
-
 import org.whispersystems.libsignal.IdentityKey;
 import org.whispersystems.libsignal.InvalidKeyException;
 import org.whispersystems.libsignal.InvalidMessageException;
@@ -27,57 +24,96 @@ import org.whispersystems.libsignal.ecc.Curve;
 import org.whispersystems.libsignal.ecc.ECPublicKey;
 import org.whispersystems.libsignal.util.ByteUtil;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.text.ParseException;
 
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 
 public class SignalMessage implements CiphertextMessage {
 
-  private static final int MAC_LENGTH = 8;
+  static final int MAC_LENGTH = 8;
 
   private final int         messageVersion;
   private final ECPublicKey senderRatchetKey;
   private final int         counter;
   private final int         previousCounter;
-  private final byte[]      ciphertext;
-  private final byte[]      serialized;
+  private final ByteBuffer  serializedBuffer;
+  private final ByteBuffer  ciphertextBuffer;
+
+  private byte[] ciphertext;
+  private byte[] serialized;
 
   public SignalMessage(byte[] serialized) throws InvalidMessageException, LegacyMessageException {
-    try {
-      byte[][] messageParts = ByteUtil.split(serialized, 1, serialized.length - 1 - MAC_LENGTH, MAC_LENGTH);
-      byte     version      = messageParts[0][0];
-      byte[]   message      = messageParts[1];
-      byte[]   mac          = messageParts[2];
+    this(ByteBuffer.wrap(serialized));
+    this.serialized = serialized;
+  }
 
-      if (ByteUtil.highBitsToInt(version) <= CiphertextMessage.UNSUPPORTED_VERSION) {
-        throw new LegacyMessageException("Legacy message: " + ByteUtil.highBitsToInt(version));
-      }
+  /**
+   * Parse a SignalMessage from the remaining bytes of a buffer, advancing its position to its
+   * limit.  The message keeps a view of the buffer rather than copying it, so the buffer's
+   * content must not change while the message is in use.
+   */
+  public SignalMessage(ByteBuffer serialized) throws InvalidMessageException, LegacyMessageException {
+    ByteBuffer buffer = serialized.slice().asReadOnlyBuffer();
+    serialized.position(serialized.limit());
 
-      if (ByteUtil.highBitsToInt(version) > CURRENT_VERSION) {
-        throw new InvalidMessageException("Unknown version: " + ByteUtil.highBitsToInt(version));
-      }
+    if (buffer.remaining() < 1 + MAC_LENGTH) {
+      throw new InvalidMessageException("Message too short: " + buffer.remaining());
+    }
 
-      SignalProtos.SignalMessage whisperMessage = SignalProtos.SignalMessage.parseFrom(message);
+    int version = ByteUtil.highBitsToInt(buffer.get(0));
 
-      if (!whisperMessage.hasCiphertext() ||
-          !whisperMessage.hasCounter() ||
-          !whisperMessage.hasRatchetKey())
-      {
-        throw new InvalidMessageException("Incomplete message.");
+    if (version <= CiphertextMessage.UNSUPPORTED_VERSION) {
+      throw new LegacyMessageException("Legacy message: " + version);
+    }
+
+    if (version > CURRENT_VERSION) {
+      throw new InvalidMessageException("Unknown version: " + version);
+    }
+
+    ByteBuffer message          = buffer.duplicate();
+    ByteBuffer ratchetKey       = null;
+    ByteBuffer ciphertext       = null;
+    Integer    counter          = null;
+    int        previousCounter  = 0;
+
+    message.position(1);
+    message.limit(buffer.limit() - MAC_LENGTH);
+
+    while (message.hasRemaining()) {
+      int tag = MessageCodec.readVarint(message);
+
+      switch (tag) {
+        case (1 << 3) | MessageCodec.WIRETYPE_LENGTH_DELIMITED: ratchetKey      = MessageCodec.readBytes(message);  break;
+        case (2 << 3) | MessageCodec.WIRETYPE_VARINT:           counter         = MessageCodec.readVarint(message); break;
+        case (3 << 3) | MessageCodec.WIRETYPE_VARINT:           previousCounter = MessageCodec.readVarint(message); break;
+        case (4 << 3) | MessageCodec.WIRETYPE_LENGTH_DELIMITED: ciphertext      = MessageCodec.readBytes(message);  break;
+        default:                                                MessageCodec.skipField(message, tag);
       }
+    }
 
-      this.serialized       = serialized;
-      this.senderRatchetKey = Curve.decodePoint(whisperMessage.getRatchetKey().toByteArray(), 0);
-      this.messageVersion   = ByteUtil.highBitsToInt(version);
-      this.counter          = whisperMessage.getCounter();
-      this.previousCounter  = whisperMessage.getPreviousCounter();
-      this.ciphertext       = whisperMessage.getCiphertext().toByteArray();
-    } catch (InvalidProtocolBufferException | InvalidKeyException | ParseException e) {
+    if (ciphertext == null || counter == null || ratchetKey == null) {
+      throw new InvalidMessageException("Incomplete message.");
+    }
+
+    try {
+      this.senderRatchetKey = Curve.decodePoint(MessageCodec.toByteArray(ratchetKey), 0);
+    } catch (InvalidKeyException e) {
       throw new InvalidMessageException(e);
     }
+
+    this.serializedBuffer = buffer;
+    this.messageVersion   = version;
+    this.counter          = counter;
+    this.previousCounter  = previousCounter;
+    this.ciphertextBuffer = ciphertext;
   }
 
   public SignalMessage(int messageVersion, SecretKeySpec macKey, ECPublicKey senderRatchetKey,
@@ -85,25 +121,98 @@ public class SignalMessage implements CiphertextMessage {
                        IdentityKey senderIdentityKey,
                        IdentityKey receiverIdentityKey)
   {
-    byte[] version = {ByteUtil.intsToByteHighAndLow(messageVersion, CURRENT_VERSION)};
-    byte[] message = SignalProtos.SignalMessage.newBuilder()
-                                               .setRatchetKey(ByteString.copyFrom(senderRatchetKey.serialize()))
-                                               .setCounter(counter)
-                                               .setPreviousCounter(previousCounter)
-                                               .setCiphertext(ByteString.copyFrom(ciphertext))
-                                               .build().toByteArray();
-
-    byte[] mac     = getMac(messageVersion, senderIdentityKey, receiverIdentityKey, macKey,
-                            ByteUtil.combine(version, message));
-
-    this.serialized       = ByteUtil.combine(version, message, mac);
+    ByteBuffer buffer = ByteBuffer.allocate(getSerializedSize(senderRatchetKey, counter, previousCounter,
+                                                              ciphertext.length));
+
+    writeHeader(buffer, messageVersion, senderRatchetKey, counter, previousCounter, ciphertext.length);
+    buffer.put(ciphertext);
+    buffer.put(getMac(messageVersion, senderIdentityKey, receiverIdentityKey, macKey,
+                      ByteBuffer.wrap(buffer.array(), 0, buffer.position())));
+
+    this.serialized       = buffer.array();
+    this.serializedBuffer = ByteBuffer.wrap(serialized).asReadOnlyBuffer();
     this.senderRatchetKey = senderRatchetKey;
     this.counter          = counter;
     this.previousCounter  = previousCounter;
     this.ciphertext       = ciphertext;
+    this.ciphertextBuffer = ByteBuffer.wrap(ciphertext).asReadOnlyBuffer();
     this.messageVersion   = messageVersion;
   }
 
+  /**
+   * @return the largest serialized size of a SignalMessage with a ciphertext of the given length.
+   */
+  public static int getMaxSerializedSize(int ciphertextLength) {
+    return 1 + MessageCodec.getBytesFieldSize(MessageCodec.KEY_LENGTH) +
+           2 * MessageCodec.MAX_UINT32_FIELD_SIZE +
+           MessageCodec.getBytesFieldSize(ciphertextLength) + MAC_LENGTH;
+  }
+
+  /**
+   * @return the serialized size of a SignalMessage with these values.
+   */
+  public static int getSerializedSize(ECPublicKey senderRatchetKey, int counter, int previousCounter,
+                                      int ciphertextLength)
+  {
+    return 1 + MessageCodec.getBytesFieldSize(senderRatchetKey.serialize().length) +
+           MessageCodec.getUInt32FieldSize(counter) +
+           MessageCodec.getUInt32FieldSize(previousCounter) +
+           MessageCodec.getBytesFieldSize(ciphertextLength) + MAC_LENGTH;
+  }
+
+  /**
+   * Encrypt a plaintext and write it as a serialized SignalMessage at the output's position,
+   * advancing it past the message.  The ciphertext is written in place, and the MAC computed
+   * over the output, without intermediate copies.
+   *
+   * @param cipher A cipher initialized for encryption with the message keys.
+   * @param plaintext The plaintext, which is consumed.
+   * @throws BufferOverflowException if the output has fewer than
+   *                                 {@link #getSerializedSize(ECPublicKey, int, int, int)} bytes
+   *                                 remaining, in which case nothing is written.
+   */
+  public static void write(ByteBuffer output, int messageVersion, SecretKeySpec macKey,
+                           ECPublicKey senderRatchetKey, int counter, int previousCounter,
+                           Cipher cipher, ByteBuffer plaintext,
+                           IdentityKey senderIdentityKey, IdentityKey receiverIdentityKey)
+  {
+    int ciphertextLength = cipher.getOutputSize(plaintext.remaining());
+    int start            = output.position();
+
+    if (output.remaining() < getSerializedSize(senderRatchetKey, counter, previousCounter, ciphertextLength)) {
+      throw new BufferOverflowException();
+    }
+
+    try {
+      writeHeader(output, messageVersion, senderRatchetKey, counter, previousCounter, ciphertextLength);
+
+      if (cipher.doFinal(plaintext, output) != ciphertextLength) {
+        throw new AssertionError("Unexpected ciphertext length");
+      }
+
+      ByteBuffer message = output.duplicate();
+      message.flip();
+      message.position(start);
+
+      output.put(getMac(messageVersion, senderIdentityKey, receiverIdentityKey, macKey, message));
+    } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Write everything that precedes the ciphertext in a serialized SignalMessage.
+   */
+  static void writeHeader(ByteBuffer output, int messageVersion, ECPublicKey senderRatchetKey,
+                          int counter, int previousCounter, int ciphertextLength)
+  {
+    output.put(ByteUtil.intsToByteHighAndLow(messageVersion, CURRENT_VERSION));
+    MessageCodec.writeBytesField(output, 1, senderRatchetKey.serialize());
+    MessageCodec.writeUInt32Field(output, 2, counter);
+    MessageCodec.writeUInt32Field(output, 3, previousCounter);
+    MessageCodec.writeBytesFieldHeader(output, 4, ciphertextLength);
+  }
+
   public ECPublicKey getSenderRatchetKey()  {
     return senderRatchetKey;
   }
@@ -117,26 +226,57 @@ public class SignalMessage implements CiphertextMessage {
   }
 
   public byte[] getBody() {
+    if (ciphertext == null) {
+      ciphertext = MessageCodec.toByteArray(ciphertextBuffer);
+    }
+
     return ciphertext;
   }
 
+  /**
+   * @return a read-only view of the ciphertext.
+   */
+  public ByteBuffer getBodyBuffer() {
+    return ciphertextBuffer.duplicate();
+  }
+
   public void verifyMac(int messageVersion, IdentityKey senderIdentityKey,
                         IdentityKey receiverIdentityKey, SecretKeySpec macKey)
       throws InvalidMessageException
   {
-    byte[][] parts    = ByteUtil.split(serialized, serialized.length - MAC_LENGTH, MAC_LENGTH);
-    byte[]   ourMac   = getMac(messageVersion, senderIdentityKey, receiverIdentityKey, macKey, parts[0]);
-    byte[]   theirMac = parts[1];
+    ByteBuffer message  = serializedBuffer.duplicate();
+    byte[]     theirMac = new byte[MAC_LENGTH];
+
+    message.position(message.limit() - MAC_LENGTH);
+    message.get(theirMac);
+    message.position(0);
+    message.limit(message.limit() - MAC_LENGTH);
+
+    byte[] ourMac = getMac(messageVersion, senderIdentityKey, receiverIdentityKey, macKey, message);
 
     if (!MessageDigest.isEqual(ourMac, theirMac)) {
       throw new InvalidMessageException("Bad Mac!");
     }
   }
 
-  private byte[] getMac(int messageVersion,
-                        IdentityKey senderIdentityKey,
-                        IdentityKey receiverIdentityKey,
-                        SecretKeySpec macKey, byte[] serialized)
+  private static byte[] getMac(int messageVersion,
+                               IdentityKey senderIdentityKey,
+                               IdentityKey receiverIdentityKey,
+                               SecretKeySpec macKey, ByteBuffer serialized)
+  {
+    Mac mac = getMac(messageVersion, senderIdentityKey, receiverIdentityKey, macKey);
+    mac.update(serialized);
+
+    byte[] fullMac = mac.doFinal();
+    return ByteUtil.trim(fullMac, MAC_LENGTH);
+  }
+
+  /**
+   * @return a MAC initialized with the message keys, which has been updated with everything
+   *         that precedes the serialized message.
+   */
+  static Mac getMac(int messageVersion, IdentityKey senderIdentityKey,
+                    IdentityKey receiverIdentityKey, SecretKeySpec macKey)
   {
     try {
       Mac mac = Mac.getInstance("HmacSHA256");
@@ -147,8 +287,7 @@ public class SignalMessage implements CiphertextMessage {
         mac.update(receiverIdentityKey.getPublicKey().serialize());
       }
 
-      byte[] fullMac = mac.doFinal(serialized);
-      return ByteUtil.trim(fullMac, MAC_LENGTH);
+      return mac;
     } catch (NoSuchAlgorithmException | java.security.InvalidKeyException e) {
       throw new AssertionError(e);
     }
@@ -156,9 +295,20 @@ public class SignalMessage implements CiphertextMessage {
 
   @Override
   public byte[] serialize() {
+    if (serialized == null) {
+      serialized = MessageCodec.toByteArray(serializedBuffer);
+    }
+
     return serialized;
   }
 
+  /**
+   * @return a read-only view of the serialized message.
+   */
+  public ByteBuffer serializeToBuffer() {
+    return serializedBuffer.duplicate();
+  }
+
   @Override
   public int getType() {
     return CiphertextMessage.WHISPER_TYPE;
@@ -0,0 +1,194 @@
+package org.whispersystems.libsignal.protocol;
+
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.util.ByteUtil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts a plaintext of known length into a serialized {@link SignalMessage}, a chunk at a
+ * time, so that memory use stays constant however large the message is.
+ * <p>
+ * The message header is written to the underlying stream immediately.  Plaintext written to this
+ * stream is encrypted and passed through as ciphertext, and is added to the MAC as it goes.
+ * Once exactly the declared number of plaintext bytes has been written, {@link #finish()} or
+ * {@link #close()} writes the final cipher block and the MAC.  The result is byte-for-byte a
+ * standard serialized SignalMessage.
+ */
+public class SignalMessageOutputStream extends OutputStream implements WritableByteChannel {
+
+  private static final int CHUNK_SIZE = 8192;
+
+  private final OutputStream out;
+  private final Cipher       cipher;
+  private final Mac          mac;
+  private final byte[]       buffer;
+
+  private long    remaining;
+  private boolean finished;
+  private boolean closed;
+
+  /**
+   * @param out The stream the serialized message is written to.
+   * @param cipher A cipher initialized for encryption with the message keys.
+   * @param plaintextLength The exact number of plaintext bytes that will be written.
+   */
+  public SignalMessageOutputStream(OutputStream out, int messageVersion, SecretKeySpec macKey,
+                                   ECPublicKey senderRatchetKey, int counter, int previousCounter,
+                                   Cipher cipher, int plaintextLength,
+                                   IdentityKey senderIdentityKey, IdentityKey receiverIdentityKey)
+      throws IOException
+  {
+    this.out       = out;
+    this.cipher    = cipher;
+    this.mac       = SignalMessage.getMac(messageVersion, senderIdentityKey, receiverIdentityKey, macKey);
+    this.buffer    = new byte[cipher.getOutputSize(CHUNK_SIZE)];
+    this.remaining = plaintextLength;
+
+    ByteBuffer header = ByteBuffer.allocate(getMaxHeaderSize());
+
+    SignalMessage.writeHeader(header, messageVersion, senderRatchetKey, counter, previousCounter,
+                              cipher.getOutputSize(plaintextLength));
+    emit(header.array(), header.position());
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte)b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    checkWritable(len);
+
+    try {
+      for (int i=0;i<len;i+=CHUNK_SIZE) {
+        emit(buffer, cipher.update(b, off + i, Math.min(CHUNK_SIZE, len - i), buffer, 0));
+      }
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+
+    remaining -= len;
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    int        length = src.remaining();
+    ByteBuffer output = ByteBuffer.wrap(buffer);
+
+    checkWritable(length);
+
+    try {
+      while (src.hasRemaining()) {
+        ByteBuffer chunk = src.slice();
+        chunk.limit(Math.min(CHUNK_SIZE, chunk.remaining()));
+
+        output.clear();
+        cipher.update(chunk, output);
+        src.position(src.position() + chunk.limit());
+
+        emit(buffer, output.position());
+      }
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+
+    remaining -= length;
+    return length;
+  }
+
+  /**
+   * Write the final cipher block and the MAC, without closing the underlying stream.
+   *
+   * @throws IOException if fewer plaintext bytes were written than were declared.
+   */
+  public void finish() throws IOException {
+    if (finished) return;
+
+    if (closed) {
+      throw new ClosedChannelException();
+    }
+
+    if (remaining != 0) {
+      throw new IOException("Message is " + remaining + " bytes short of its declared length");
+    }
+
+    try {
+      emit(buffer, cipher.doFinal(buffer, 0));
+      out.write(ByteUtil.trim(mac.doFinal(), SignalMessage.MAC_LENGTH));
+      writeTrailer(out);
+
+      finished = true;
+    } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !closed && !finished;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) return;
+
+    try {
+      finish();
+    } finally {
+      closed = true;
+      out.close();
+    }
+  }
+
+  /**
+   * @return the type of the message being written, as returned by
+   *         {@link CiphertextMessage#getType()}.
+   */
+  public int getType() {
+    return CiphertextMessage.WHISPER_TYPE;
+  }
+
+  /**
+   * Called after the MAC is written, so that subclasses can complete an enclosing message.
+   */
+  protected void writeTrailer(OutputStream out) throws IOException {}
+
+  private void checkWritable(int length) throws IOException {
+    if (!isOpen()) {
+      throw new ClosedChannelException();
+    }
+
+    if (length > remaining) {
+      throw new IOException("Message would exceed its declared length by " + (length - remaining) + " bytes");
+    }
+  }
+
+  private void emit(byte[] data, int length) throws IOException {
+    mac.update(data, 0, length);
+    out.write(data, 0, length);
+  }
+
+  private static int getMaxHeaderSize() {
+    return 1 + MessageCodec.getBytesFieldSize(MessageCodec.KEY_LENGTH) +
+           2 * MessageCodec.MAX_UINT32_FIELD_SIZE + 1 + 5;
+  }
+}
@@ -0,0 +1,202 @@
+package org.whispersystems.libsignal.protocol;
+
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.InvalidKeyException;
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.libsignal.LegacyMessageException;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.util.ByteUtil;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.security.MessageDigest;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A serialized {@link SignalMessage} which is read from a channel a chunk at a time, rather than
+ * loaded into memory, so that memory use stays constant however large the message is.
+ * <p>
+ * Only the header is parsed up front.  The message is then authenticated and decrypted in a
+ * single pass over the channel, so the plaintext is always the decryption of exactly the bytes
+ * that were authenticated, even if the channel is modified while it is being read.  The plaintext
+ * is held back in a {@link VerifiedPlaintext} until the MAC has been checked.
+ * <p>
+ * The ciphertext must be the last field of the message, as it is in every message serialized by
+ * this library.
+ */
+public class StreamingSignalMessage {
+
+  private static final int CHUNK_SIZE      = 8192;
+  private static final int MAX_HEADER_SIZE = 256;
+
+  private final SeekableByteChannel channel;
+  private final int                 messageVersion;
+  private final ECPublicKey         senderRatchetKey;
+  private final int                 counter;
+  private final int                 previousCounter;
+  private final long                start;
+  private final long                ciphertextOffset;
+  private final long                ciphertextLength;
+
+  /**
+   * Parse the header of a message which runs from the channel's position to its end.
+   */
+  public StreamingSignalMessage(SeekableByteChannel channel)
+      throws IOException, InvalidMessageException, LegacyMessageException
+  {
+    this.channel = channel;
+    this.start   = channel.position();
+
+    long macOffset = channel.size() - SignalMessage.MAC_LENGTH;
+
+    if (macOffset - start < 1) {
+      throw new InvalidMessageException("Message too short: " + (channel.size() - start));
+    }
+
+    ByteBuffer header = ByteBuffer.allocate((int)Math.min(MAX_HEADER_SIZE, macOffset - start));
+    read(start, header);
+    header.flip();
+
+    int version = ByteUtil.highBitsToInt(header.get());
+
+    if (version <= CiphertextMessage.UNSUPPORTED_VERSION) {
+      throw new LegacyMessageException("Legacy message: " + version);
+    }
+
+    if (version > CiphertextMessage.CURRENT_VERSION) {
+      throw new InvalidMessageException("Unknown version: " + version);
+    }
+
+    ByteBuffer ratchetKey      = null;
+    Integer    counter         = null;
+    int        previousCounter = 0;
+    int        tag;
+
+    while ((tag = MessageCodec.readVarint(header)) != ((4 << 3) | MessageCodec.WIRETYPE_LENGTH_DELIMITED)) {
+      switch (tag) {
+        case (1 << 3) | MessageCodec.WIRETYPE_LENGTH_DELIMITED: ratchetKey      = MessageCodec.readBytes(header);  break;
+        case (2 << 3) | MessageCodec.WIRETYPE_VARINT:           counter         = MessageCodec.readVarint(header); break;
+        case (3 << 3) | MessageCodec.WIRETYPE_VARINT:           previousCounter = MessageCodec.readVarint(header); break;
+        default:                                                MessageCodec.skipField(header, tag);
+      }
+    }
+
+    int length = MessageCodec.readVarint(header);
+
+    if (counter == null || ratchetKey == null) {
+      throw new InvalidMessageException("Incomplete message.");
+    }
+
+    if (start + header.position() + (length & 0xFFFFFFFFL) != macOffset) {
+      throw new InvalidMessageException("Ciphertext is not the last field");
+    }
+
+    try {
+      this.senderRatchetKey = Curve.decodePoint(MessageCodec.toByteArray(ratchetKey), 0);
+    } catch (InvalidKeyException e) {
+      throw new InvalidMessageException(e);
+    }
+
+    this.messageVersion   = version;
+    this.counter          = counter;
+    this.previousCounter  = previousCounter;
+    this.ciphertextOffset = start + header.position();
+    this.ciphertextLength = macOffset - ciphertextOffset;
+  }
+
+  public int getMessageVersion() {
+    return messageVersion;
+  }
+
+  public ECPublicKey getSenderRatchetKey() {
+    return senderRatchetKey;
+  }
+
+  public int getCounter() {
+    return counter;
+  }
+
+  public int getPreviousCounter() {
+    return previousCounter;
+  }
+
+  public long getCiphertextLength() {
+    return ciphertextLength;
+  }
+
+  /**
+   * Authenticate and decrypt the message in one pass over the channel.  Each chunk is read once,
+   * and is fed to both the MAC and the cipher.  The plaintext is only returned if the MAC matches,
+   * and is discarded otherwise.
+   *
+   * @param cipher A cipher initialized for decryption with the message keys.
+   * @return the plaintext, which the caller must close.
+   * @throws InvalidMessageException if the MAC doesn't match, or the ciphertext is malformed.
+   */
+  public VerifiedPlaintext decrypt(IdentityKey senderIdentityKey, IdentityKey receiverIdentityKey,
+                                   SecretKeySpec macKey, Cipher cipher)
+      throws InvalidMessageException, IOException
+  {
+    Mac               mac       = SignalMessage.getMac(messageVersion, senderIdentityKey, receiverIdentityKey, macKey);
+    ByteBuffer        chunk     = ByteBuffer.allocate(CHUNK_SIZE);
+    ByteBuffer        theirMac  = ByteBuffer.allocate(SignalMessage.MAC_LENGTH);
+    byte[]            output    = new byte[cipher.getOutputSize(CHUNK_SIZE)];
+    long              macOffset = ciphertextOffset + ciphertextLength;
+    VerifiedPlaintext plaintext = new VerifiedPlaintext(ciphertextLength);
+    boolean           verified  = false;
+
+    try {
+      for (long position=start;position<macOffset;position+=chunk.limit()) {
+        chunk.clear();
+        chunk.limit((int)Math.min(CHUNK_SIZE, macOffset - position));
+        read(position, chunk);
+
+        mac.update(chunk.array(), 0, chunk.limit());
+
+        int headerLength = (int)Math.max(0, Math.min(chunk.limit(), ciphertextOffset - position));
+        int length       = cipher.update(chunk.array(), headerLength, chunk.limit() - headerLength, output, 0);
+
+        plaintext.write(output, 0, length);
+      }
+
+      read(macOffset, theirMac);
+
+      byte[] ourMac = ByteUtil.trim(mac.doFinal(), SignalMessage.MAC_LENGTH);
+
+      if (!MessageDigest.isEqual(ourMac, theirMac.array())) {
+        throw new InvalidMessageException("Bad Mac!");
+      }
+
+      plaintext.write(output, 0, cipher.doFinal(output, 0));
+      plaintext.finish();
+
+      verified = true;
+      return plaintext;
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    } catch (IllegalBlockSizeException | BadPaddingException e) {
+      throw new InvalidMessageException(e);
+    } finally {
+      if (!verified) plaintext.close();
+    }
+  }
+
+  private void read(long position, ByteBuffer buffer) throws IOException {
+    channel.position(position);
+
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) == -1) {
+        throw new EOFException();
+      }
+    }
+  }
+}
@@ -0,0 +1,170 @@
+package org.whispersystems.libsignal.protocol;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The plaintext of a {@link StreamingSignalMessage}, held back until the whole message has been
+ * authenticated, so that it can be released in one piece or not at all.
+ * <p>
+ * Plaintexts of up to {@link #MAX_MEMORY_SIZE} bytes are held in memory.  Larger ones are spilled
+ * to a temporary file, encrypted under a random key that only this object knows, so that memory
+ * use stays constant and no plaintext is written to disk.  The plaintext must be closed once it
+ * is no longer needed, to delete the file.
+ */
+public class VerifiedPlaintext implements Closeable {
+
+  /**
+   * The largest plaintext that is held in memory rather than spilled to a temporary file.
+   */
+  public static final int MAX_MEMORY_SIZE = 1024 * 1024;
+
+  private static final int CHUNK_SIZE = 8192;
+
+  private final byte[]          memory;
+  private final File            file;
+  private final SecretKeySpec   key;
+  private final IvParameterSpec iv;
+
+  private OutputStream spill;
+  private long         size;
+  private boolean      closed;
+
+  /**
+   * @param maxSize The most plaintext bytes that will be written.
+   */
+  VerifiedPlaintext(long maxSize) throws IOException {
+    if (maxSize <= MAX_MEMORY_SIZE) {
+      this.memory = new byte[(int)maxSize];
+      this.file   = null;
+      this.key    = null;
+      this.iv     = null;
+    } else {
+      byte[] keyBytes = new byte[32];
+      byte[] ivBytes  = new byte[16];
+
+      SecureRandom random = new SecureRandom();
+      random.nextBytes(keyBytes);
+      random.nextBytes(ivBytes);
+
+      this.memory = null;
+      this.key    = new SecretKeySpec(keyBytes, "AES");
+      this.iv     = new IvParameterSpec(ivBytes);
+      this.file   = File.createTempFile("plaintext", ".tmp");
+
+      try {
+        this.spill = new CipherOutputStream(new FileOutputStream(file), getCipher(Cipher.ENCRYPT_MODE));
+      } catch (IOException e) {
+        file.delete();
+        throw e;
+      }
+    }
+  }
+
+  void write(byte[] buffer, int offset, int length) throws IOException {
+    if (memory != null) System.arraycopy(buffer, offset, memory, (int)size, length);
+    else                spill.write(buffer, offset, length);
+
+    size += length;
+  }
+
+  void finish() throws IOException {
+    if (spill != null) {
+      spill.close();
+      spill = null;
+    }
+  }
+
+  /**
+   * @return the number of plaintext bytes.
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Write the plaintext to a stream.
+   *
+   * @return the number of plaintext bytes written.
+   */
+  public long writeTo(OutputStream out) throws IOException {
+    if (closed) {
+      throw new IllegalStateException("Plaintext has been closed!");
+    }
+
+    if (memory != null) {
+      out.write(memory, 0, (int)size);
+      return size;
+    }
+
+    InputStream in = new CipherInputStream(new FileInputStream(file), getCipher(Cipher.DECRYPT_MODE));
+
+    try {
+      byte[] buffer = new byte[CHUNK_SIZE];
+      int    read;
+
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+
+    return size;
+  }
+
+  /**
+   * Discard the plaintext, zeroing it if it is held in memory, and deleting it if not.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+
+    if (memory != null) {
+      Arrays.fill(memory, (byte)0);
+      return;
+    }
+
+    try {
+      finish();
+    } finally {
+      if (!file.delete()) {
+        file.deleteOnExit();
+      }
+    }
+  }
+
+  private Cipher getCipher(int mode) {
+    try {
+      Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+      cipher.init(mode, key, iv);
+
+      return cipher;
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException |
+             InvalidAlgorithmParameterException e)
+    {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -16,9 +16,12 @@ public class BobSignalProtocolParameters {
   private final IdentityKey         theirIdentityKey;
   private final ECPublicKey         theirBaseKey;
 
+  private final Optional<byte[]>    staticAgreement;
+
   BobSignalProtocolParameters(IdentityKeyPair ourIdentityKey, ECKeyPair ourSignedPreKey,
                               ECKeyPair ourRatchetKey, Optional<ECKeyPair> ourOneTimePreKey,
-                              IdentityKey theirIdentityKey, ECPublicKey theirBaseKey)
+                              IdentityKey theirIdentityKey, ECPublicKey theirBaseKey,
+                              Optional<byte[]> staticAgreement)
   {
     this.ourIdentityKey   = ourIdentityKey;
     this.ourSignedPreKey  = ourSignedPreKey;
@@ -26,9 +29,11 @@ public class BobSignalProtocolParameters {
     this.ourOneTimePreKey = ourOneTimePreKey;
     this.theirIdentityKey = theirIdentityKey;
     this.theirBaseKey     = theirBaseKey;
+    this.staticAgreement  = staticAgreement;
 
     if (ourIdentityKey == null || ourSignedPreKey == null || ourRatchetKey == null ||
-        ourOneTimePreKey == null || theirIdentityKey == null || theirBaseKey == null)
+        ourOneTimePreKey == null || theirIdentityKey == null || theirBaseKey == null ||
+        staticAgreement == null)
     {
       throw new IllegalArgumentException("Null value!");
     }
@@ -54,6 +59,14 @@ public class BobSignalProtocolParameters {
     return theirBaseKey;
   }
 
+  /**
+   * @return the agreement between their identity key and our signed prekey, if it has already
+   *         been calculated.
+   */
+  public Optional<byte[]> getStaticAgreement() {
+    return staticAgreement;
+  }
+
   public static Builder newBuilder() {
     return new Builder();
   }
@@ -71,6 +84,8 @@ public class BobSignalProtocolParameters {
     private IdentityKey         theirIdentityKey;
     private ECPublicKey         theirBaseKey;
 
+    private Optional<byte[]>    staticAgreement = Optional.absent();
+
     public Builder setOurIdentityKey(IdentityKeyPair ourIdentityKey) {
       this.ourIdentityKey = ourIdentityKey;
       return this;
@@ -101,9 +116,15 @@ public class BobSignalProtocolParameters {
       return this;
     }
 
+    public Builder setStaticAgreement(Optional<byte[]> staticAgreement) {
+      this.staticAgreement = staticAgreement;
+      return this;
+    }
+
     public BobSignalProtocolParameters create() {
       return new BobSignalProtocolParameters(ourIdentityKey, ourSignedPreKey, ourRatchetKey,
-                                             ourOneTimePreKey, theirIdentityKey, theirBaseKey);
+                                             ourOneTimePreKey, theirIdentityKey, theirBaseKey,
+                                             staticAgreement);
     }
   }
 }
@@ -111,8 +111,13 @@ public class RatchetingSession {
 
       secrets.write(getDiscontinuityBytes());
 
-      secrets.write(Curve.calculateAgreement(parameters.getTheirIdentityKey().getPublicKey(),
-                                             parameters.getOurSignedPreKey().getPrivateKey()));
+      if (parameters.getStaticAgreement().isPresent()) {
+        secrets.write(parameters.getStaticAgreement().get());
+      } else {
+        secrets.write(Curve.calculateAgreement(parameters.getTheirIdentityKey().getPublicKey(),
+                                               parameters.getOurSignedPreKey().getPrivateKey()));
+      }
+
       secrets.write(Curve.calculateAgreement(parameters.getTheirBaseKey(),
                                              parameters.getOurIdentityKey().getPrivateKey()));
       secrets.write(Curve.calculateAgreement(parameters.getTheirBaseKey(),
@@ -0,0 +1,29 @@
+package org.whispersystems.libsignal.state;
+
+import org.whispersystems.libsignal.IdentityKey;
+
+import java.util.Map;
+
+/**
+ * An {@link IdentityKeyStore} which can check and save the identities of many remote clients
+ * at once, as when setting up sessions in bulk.
+ */
+public interface BulkIdentityKeyStore extends IdentityKeyStore {
+
+  /**
+   * Verify a batch of remote client identity keys, with the same semantics as
+   * {@link IdentityKeyStore#isTrustedIdentity(String, IdentityKey)}.
+   *
+   * @param identities The identity keys to verify, keyed by the name of the remote client.
+   * @return whether each identity key is trusted, keyed by the name of the remote client.
+   */
+  public Map<String, Boolean> isTrustedIdentities(Map<String, IdentityKey> identities);
+
+  /**
+   * Store a batch of remote client identity keys as trusted.
+   *
+   * @param identities The identity keys, keyed by the name of the remote client.
+   */
+  public void saveIdentities(Map<String, IdentityKey> identities);
+
+}
@@ -0,0 +1,30 @@
+package org.whispersystems.libsignal.state;
+
+import java.util.List;
+
+/**
+ * A {@link PreKeyStore} which can store and remove many {@link PreKeyRecord}s at once,
+ * as when replenishing the pool of one-time PreKeys.
+ */
+public interface BulkPreKeyStore extends PreKeyStore {
+
+  /**
+   * Store a batch of local PreKeyRecords, each under its own ID.
+   *
+   * @param records the PreKeyRecords.
+   */
+  public void storePreKeys(List<PreKeyRecord> records);
+
+  /**
+   * Delete a batch of PreKeyRecords from local storage.  IDs with no record are ignored.
+   *
+   * @param preKeyIds The IDs of the PreKeyRecords to remove.
+   */
+  public void removePreKeys(List<Integer> preKeyIds);
+
+  /**
+   * @return the number of PreKeyRecords in local storage.
+   */
+  public int countPreKeys();
+
+}
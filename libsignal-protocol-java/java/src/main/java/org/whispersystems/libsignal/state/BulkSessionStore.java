@@ -0,0 +1,31 @@
+package org.whispersystems.libsignal.state;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A {@link SessionStore} which can load and store the sessions of many remote clients at once,
+ * as when setting up sessions in bulk.
+ */
+public interface BulkSessionStore extends SessionStore {
+
+  /**
+   * Load a batch of sessions, with the same semantics as
+   * {@link SessionStore#loadSession(SignalProtocolAddress)}.
+   *
+   * @param addresses The names and device IDs of the remote clients.
+   * @return a copy of the SessionRecord for each address, or a new SessionRecord for each
+   *         address without one, keyed by address.
+   */
+  public Map<SignalProtocolAddress, SessionRecord> loadSessions(Collection<SignalProtocolAddress> addresses);
+
+  /**
+   * Commit a batch of sessions to storage.
+   *
+   * @param sessions The SessionRecords, keyed by the address of their remote client.
+   */
+  public void storeSessions(Map<SignalProtocolAddress, SessionRecord> sessions);
+
+}
@@ -0,0 +1,170 @@
+package org.whispersystems.libsignal.state;
+
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.IdentityKeyPair;
+
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An {@link IdentityKeyStore} which caches the identity keys of remote clients in front of
+ * another, typically persistent, store.
+ * <p>
+ * A remote identity key which matches the cached key for that client is trusted without
+ * consulting the backing store, and saving an identity key which matches the cached key is
+ * suppressed.  Keys are compared in constant time.  Anything else is passed through to the
+ * backing store.
+ * <p>
+ * The cache is only filled by {@link #saveIdentity(String, IdentityKey)} and
+ * {@link #saveIdentities(Map)}, never by trust checks, since a trusted key isn't necessarily
+ * the stored one.  After a restart, trust checks for a client go to the backing store until its
+ * identity key is next saved through the cache.
+ * <p>
+ * Saves are serialized, and a name's cached key is dropped before the backing store is written,
+ * so the cache never answers for a key the backing store has already replaced.
+ * <p>
+ * All writes to the backing store must go through this cache, or the cache must be
+ * {@link #invalidate(String) invalidated}, since the cache can't see changes made around it.
+ */
+public class CachingIdentityKeyStore implements BulkIdentityKeyStore {
+
+  private static final int DEFAULT_MAX_ENTRIES = 10000;
+
+  private final IdentityKeyStore    identityKeyStore;
+  private final Map<String, byte[]> cache;
+  private final Object              saveLock = new Object();
+
+  public CachingIdentityKeyStore(IdentityKeyStore identityKeyStore) {
+    this(identityKeyStore, DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * @param identityKeyStore The backing store.
+   * @param maxEntries The maximum number of remote identity keys to cache, after which the least
+   *                   recently used are evicted.
+   */
+  public CachingIdentityKeyStore(IdentityKeyStore identityKeyStore, final int maxEntries) {
+    this.identityKeyStore = identityKeyStore;
+    this.cache            = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  @Override
+  public IdentityKeyPair getIdentityKeyPair() {
+    return identityKeyStore.getIdentityKeyPair();
+  }
+
+  @Override
+  public int getLocalRegistrationId() {
+    return identityKeyStore.getLocalRegistrationId();
+  }
+
+  @Override
+  public void saveIdentity(String name, IdentityKey identityKey) {
+    byte[] serialized = identityKey.serialize();
+
+    synchronized (saveLock) {
+      if (isCached(name, serialized)) {
+        return;
+      }
+
+      invalidate(name);
+      identityKeyStore.saveIdentity(name, identityKey);
+      cache(name, serialized);
+    }
+  }
+
+  @Override
+  public boolean isTrustedIdentity(String name, IdentityKey identityKey) {
+    if (isCached(name, identityKey.serialize())) {
+      return true;
+    }
+
+    return identityKeyStore.isTrustedIdentity(name, identityKey);
+  }
+
+  @Override
+  public Map<String, Boolean> isTrustedIdentities(Map<String, IdentityKey> identities) {
+    Map<String, Boolean>     results = new HashMap<>(identities.size());
+    Map<String, IdentityKey> misses  = new HashMap<>();
+
+    for (Map.Entry<String, IdentityKey> identity : identities.entrySet()) {
+      if (isCached(identity.getKey(), identity.getValue().serialize())) {
+        results.put(identity.getKey(), true);
+      } else {
+        misses.put(identity.getKey(), identity.getValue());
+      }
+    }
+
+    if (misses.isEmpty()) {
+      return results;
+    }
+
+    if (identityKeyStore instanceof BulkIdentityKeyStore) {
+      results.putAll(((BulkIdentityKeyStore)identityKeyStore).isTrustedIdentities(misses));
+    } else {
+      for (Map.Entry<String, IdentityKey> miss : misses.entrySet()) {
+        results.put(miss.getKey(), identityKeyStore.isTrustedIdentity(miss.getKey(), miss.getValue()));
+      }
+    }
+
+    return results;
+  }
+
+  @Override
+  public void saveIdentities(Map<String, IdentityKey> identities) {
+    synchronized (saveLock) {
+      Map<String, IdentityKey> changed = new HashMap<>();
+
+      for (Map.Entry<String, IdentityKey> identity : identities.entrySet()) {
+        if (!isCached(identity.getKey(), identity.getValue().serialize())) {
+          changed.put(identity.getKey(), identity.getValue());
+          invalidate(identity.getKey());
+        }
+      }
+
+      if (changed.isEmpty()) {
+        return;
+      }
+
+      if (identityKeyStore instanceof BulkIdentityKeyStore) {
+        ((BulkIdentityKeyStore)identityKeyStore).saveIdentities(changed);
+      } else {
+        for (Map.Entry<String, IdentityKey> identity : changed.entrySet()) {
+          identityKeyStore.saveIdentity(identity.getKey(), identity.getValue());
+        }
+      }
+
+      for (Map.Entry<String, IdentityKey> identity : changed.entrySet()) {
+        cache(identity.getKey(), identity.getValue().serialize());
+      }
+    }
+  }
+
+  /**
+   * Drop the cached identity key of a remote client, after it has been changed in the
+   * backing store directly.
+   */
+  public synchronized void invalidate(String name) {
+    cache.remove(name);
+  }
+
+  public synchronized void invalidateAll() {
+    cache.clear();
+  }
+
+  private synchronized boolean isCached(String name, byte[] serialized) {
+    byte[] cached = cache.get(name);
+    return cached != null && MessageDigest.isEqual(cached, serialized);
+  }
+
+  private synchronized void cache(String name, byte[] serialized) {
+    cache.put(name, serialized);
+  }
+}
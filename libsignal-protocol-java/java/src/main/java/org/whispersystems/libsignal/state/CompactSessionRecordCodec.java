@@ -0,0 +1,495 @@
+package org.whispersystems.libsignal.state;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import org.whispersystems.libsignal.ecc.Curve;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.whispersystems.libsignal.state.StorageProtos.RecordStructure;
+import static org.whispersystems.libsignal.state.StorageProtos.SessionStructure;
+import static org.whispersystems.libsignal.state.StorageProtos.SessionStructure.Chain;
+import static org.whispersystems.libsignal.state.StorageProtos.SessionStructure.PendingKeyExchange;
+import static org.whispersystems.libsignal.state.StorageProtos.SessionStructure.PendingPreKey;
+
+/**
+ * A compact binary encoding of {@link SessionRecord}s.
+ * <p>
+ * The encoding holds exactly the fields of the RecordStructure protobuf, so records convert
+ * losslessly in both directions, but is smaller:
+ * <ul>
+ *   <li>Field tags are replaced by a fixed presence bitmap at the start of each structure.</li>
+ *   <li>Identity keys are written once per record, and referenced by index from each state.</li>
+ *   <li>The type byte of Curve25519 public keys is folded into the length prefix.</li>
+ *   <li>Skipped message keys are packed as delta-encoded indexes followed by raw key material.</li>
+ * </ul>
+ * Encoded records start with a format version byte, which can't begin a RecordStructure, so
+ * the decoders in both this class and {@link ProtobufSessionRecordCodec} accept either format.
+ */
+public class CompactSessionRecordCodec implements SessionRecordCodec {
+
+  static final byte FORMAT_VERSION = (byte)0xC1;
+
+  private static final int CIPHER_KEY_LENGTH = 32;
+  private static final int MAC_KEY_LENGTH    = 32;
+  private static final int IV_LENGTH         = 16;
+
+  private static final int SESSION_VERSION      = 1;
+  private static final int LOCAL_IDENTITY       = 1 << 1;
+  private static final int REMOTE_IDENTITY      = 1 << 2;
+  private static final int ROOT_KEY             = 1 << 3;
+  private static final int PREVIOUS_COUNTER     = 1 << 4;
+  private static final int SENDER_CHAIN         = 1 << 5;
+  private static final int RECEIVER_CHAINS      = 1 << 6;
+  private static final int PENDING_KEY_EXCHANGE = 1 << 7;
+  private static final int PENDING_PRE_KEY      = 1 << 8;
+  private static final int REMOTE_REGISTRATION  = 1 << 9;
+  private static final int LOCAL_REGISTRATION   = 1 << 10;
+  private static final int HAS_NEEDS_REFRESH    = 1 << 11;
+  private static final int NEEDS_REFRESH        = 1 << 12;
+  private static final int ALICE_BASE_KEY       = 1 << 13;
+
+  private static final int SENDER_RATCHET_KEY         = 1;
+  private static final int SENDER_RATCHET_KEY_PRIVATE = 1 << 1;
+  private static final int CHAIN_KEY                  = 1 << 2;
+  private static final int CHAIN_KEY_INDEX            = 1 << 3;
+  private static final int CHAIN_KEY_KEY              = 1 << 4;
+  private static final int MESSAGE_KEYS               = 1 << 5;
+  private static final int MESSAGE_KEYS_PACKED        = 1 << 6;
+
+  private static final int MESSAGE_KEY_INDEX  = 1;
+  private static final int MESSAGE_KEY_CIPHER = 1 << 1;
+  private static final int MESSAGE_KEY_MAC    = 1 << 2;
+  private static final int MESSAGE_KEY_IV     = 1 << 3;
+
+  private static final int CURRENT_SESSION = 1;
+
+  @Override
+  public byte[] encode(SessionRecord record) {
+    return encodeStructure(record.getStructure());
+  }
+
+  @Override
+  public SessionRecord decode(byte[] encoded) throws IOException {
+    if (isCompact(encoded)) return new SessionRecord(decodeStructure(encoded));
+    else                    return new SessionRecord(encoded);
+  }
+
+  /**
+   * Convert a record serialized with {@link SessionRecord#serialize()} to the compact format.
+   */
+  public static byte[] fromProtobuf(byte[] serialized) throws IOException {
+    return encodeStructure(RecordStructure.parseFrom(serialized));
+  }
+
+  /**
+   * Convert a compact record back to the format produced by {@link SessionRecord#serialize()}.
+   */
+  public static byte[] toProtobuf(byte[] encoded) throws IOException {
+    return decodeStructure(encoded).toByteArray();
+  }
+
+  static boolean isCompact(byte[] encoded) {
+    return encoded.length > 0 && encoded[0] == FORMAT_VERSION;
+  }
+
+  static byte[] encodeStructure(RecordStructure record) {
+    try {
+      ByteArrayOutputStream    baos       = new ByteArrayOutputStream();
+      CodedOutputStream        output     = CodedOutputStream.newInstance(baos);
+      List<ByteString>         identities = new ArrayList<>();
+      Map<ByteString, Integer> indexes    = new HashMap<>();
+      List<SessionStructure>   sessions   = new ArrayList<>();
+
+      if (record.hasCurrentSession()) sessions.add(record.getCurrentSession());
+      sessions.addAll(record.getPreviousSessionsList());
+
+      for (SessionStructure session : sessions) {
+        if (session.hasLocalIdentityPublic())  addIdentity(identities, indexes, session.getLocalIdentityPublic());
+        if (session.hasRemoteIdentityPublic()) addIdentity(identities, indexes, session.getRemoteIdentityPublic());
+      }
+
+      output.writeRawByte(FORMAT_VERSION);
+      output.writeRawByte(record.hasCurrentSession() ? CURRENT_SESSION : 0);
+      output.writeUInt32NoTag(record.getPreviousSessionsCount());
+      output.writeUInt32NoTag(identities.size());
+
+      for (ByteString identity : identities) {
+        writeBytes(output, identity);
+      }
+
+      for (SessionStructure session : sessions) {
+        writeSession(output, session, indexes);
+      }
+
+      output.flush();
+      return baos.toByteArray();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  static RecordStructure decodeStructure(byte[] encoded) throws IOException {
+    CodedInputStream input = CodedInputStream.newInstance(encoded);
+
+    if (input.readRawByte() != FORMAT_VERSION) {
+      throw new IOException("Unknown compact record format version!");
+    }
+
+    int flags         = input.readRawByte();
+    int previousCount = input.readUInt32();
+    int identityCount = input.readUInt32();
+    int remaining     = encoded.length - input.getTotalBytesRead();
+
+    // Every identity and every session takes at least one byte, so counts larger than
+    // the remaining input can only come from a corrupt record.
+    if (previousCount < 0 || identityCount < 0 || previousCount > remaining || identityCount > remaining) {
+      throw new IOException("Bad compact record counts: " + previousCount + ", " + identityCount);
+    }
+
+    List<ByteString> identities = new ArrayList<>(identityCount);
+
+    for (int i=0;i<identityCount;i++) {
+      identities.add(readBytes(input));
+    }
+
+    RecordStructure.Builder record = RecordStructure.newBuilder();
+
+    if ((flags & CURRENT_SESSION) != 0) {
+      record.setCurrentSession(readSession(input, identities));
+    }
+
+    for (int i=0;i<previousCount;i++) {
+      record.addPreviousSessions(readSession(input, identities));
+    }
+
+    if (!input.isAtEnd()) {
+      throw new IOException("Trailing bytes in compact record!");
+    }
+
+    return record.build();
+  }
+
+  private static void addIdentity(List<ByteString> identities, Map<ByteString, Integer> indexes, ByteString identity) {
+    if (!indexes.containsKey(identity)) {
+      indexes.put(identity, identities.size());
+      identities.add(identity);
+    }
+  }
+
+  private static void writeSession(CodedOutputStream output, SessionStructure session, Map<ByteString, Integer> identities)
+      throws IOException
+  {
+    int presence = 0;
+
+    if (session.hasSessionVersion())          presence |= SESSION_VERSION;
+    if (session.hasLocalIdentityPublic())     presence |= LOCAL_IDENTITY;
+    if (session.hasRemoteIdentityPublic())    presence |= REMOTE_IDENTITY;
+    if (session.hasRootKey())                 presence |= ROOT_KEY;
+    if (session.hasPreviousCounter())         presence |= PREVIOUS_COUNTER;
+    if (session.hasSenderChain())             presence |= SENDER_CHAIN;
+    if (session.getReceiverChainsCount() > 0) presence |= RECEIVER_CHAINS;
+    if (session.hasPendingKeyExchange())      presence |= PENDING_KEY_EXCHANGE;
+    if (session.hasPendingPreKey())           presence |= PENDING_PRE_KEY;
+    if (session.hasRemoteRegistrationId())    presence |= REMOTE_REGISTRATION;
+    if (session.hasLocalRegistrationId())     presence |= LOCAL_REGISTRATION;
+    if (session.hasNeedsRefresh())            presence |= HAS_NEEDS_REFRESH;
+    if (session.getNeedsRefresh())            presence |= NEEDS_REFRESH;
+    if (session.hasAliceBaseKey())            presence |= ALICE_BASE_KEY;
+
+    output.writeRawByte(presence & 0xFF);
+    output.writeRawByte(presence >>> 8);
+
+    if (session.hasSessionVersion())       output.writeUInt32NoTag(session.getSessionVersion());
+    if (session.hasLocalIdentityPublic())  output.writeUInt32NoTag(identities.get(session.getLocalIdentityPublic()));
+    if (session.hasRemoteIdentityPublic()) output.writeUInt32NoTag(identities.get(session.getRemoteIdentityPublic()));
+    if (session.hasRootKey())              writeBytes(output, session.getRootKey());
+    if (session.hasPreviousCounter())      output.writeUInt32NoTag(session.getPreviousCounter());
+    if (session.hasSenderChain())          writeChain(output, session.getSenderChain());
+
+    if (session.getReceiverChainsCount() > 0) {
+      output.writeUInt32NoTag(session.getReceiverChainsCount());
+
+      for (Chain chain : session.getReceiverChainsList()) {
+        writeChain(output, chain);
+      }
+    }
+
+    if (session.hasPendingKeyExchange())   writePendingKeyExchange(output, session.getPendingKeyExchange());
+    if (session.hasPendingPreKey())        writePendingPreKey(output, session.getPendingPreKey());
+    if (session.hasRemoteRegistrationId()) output.writeUInt32NoTag(session.getRemoteRegistrationId());
+    if (session.hasLocalRegistrationId())  output.writeUInt32NoTag(session.getLocalRegistrationId());
+    if (session.hasAliceBaseKey())         writeBytes(output, session.getAliceBaseKey());
+  }
+
+  private static SessionStructure readSession(CodedInputStream input, List<ByteString> identities)
+      throws IOException
+  {
+    SessionStructure.Builder session  = SessionStructure.newBuilder();
+    int                      presence = readRawLittleEndian16(input);
+
+    if ((presence & SESSION_VERSION) != 0)  session.setSessionVersion(input.readUInt32());
+    if ((presence & LOCAL_IDENTITY) != 0)   session.setLocalIdentityPublic(readIdentity(input, identities));
+    if ((presence & REMOTE_IDENTITY) != 0)  session.setRemoteIdentityPublic(readIdentity(input, identities));
+    if ((presence & ROOT_KEY) != 0)         session.setRootKey(readBytes(input));
+    if ((presence & PREVIOUS_COUNTER) != 0) session.setPreviousCounter(input.readUInt32());
+    if ((presence & SENDER_CHAIN) != 0)     session.setSenderChain(readChain(input));
+
+    if ((presence & RECEIVER_CHAINS) != 0) {
+      int count = input.readUInt32();
+
+      for (int i=0;i<count;i++) {
+        session.addReceiverChains(readChain(input));
+      }
+    }
+
+    if ((presence & PENDING_KEY_EXCHANGE) != 0) session.setPendingKeyExchange(readPendingKeyExchange(input));
+    if ((presence & PENDING_PRE_KEY) != 0)      session.setPendingPreKey(readPendingPreKey(input));
+    if ((presence & REMOTE_REGISTRATION) != 0)  session.setRemoteRegistrationId(input.readUInt32());
+    if ((presence & LOCAL_REGISTRATION) != 0)   session.setLocalRegistrationId(input.readUInt32());
+    if ((presence & HAS_NEEDS_REFRESH) != 0)    session.setNeedsRefresh((presence & NEEDS_REFRESH) != 0);
+    if ((presence & ALICE_BASE_KEY) != 0)       session.setAliceBaseKey(readBytes(input));
+
+    return session.build();
+  }
+
+  private static void writeChain(CodedOutputStream output, Chain chain) throws IOException {
+    boolean packed   = isPackable(chain.getMessageKeysList());
+    int     presence = 0;
+
+    if (chain.hasSenderRatchetKey())        presence |= SENDER_RATCHET_KEY;
+    if (chain.hasSenderRatchetKeyPrivate()) presence |= SENDER_RATCHET_KEY_PRIVATE;
+    if (chain.hasChainKey())                presence |= CHAIN_KEY;
+    if (chain.getChainKey().hasIndex())     presence |= CHAIN_KEY_INDEX;
+    if (chain.getChainKey().hasKey())       presence |= CHAIN_KEY_KEY;
+    if (chain.getMessageKeysCount() > 0)    presence |= MESSAGE_KEYS;
+    if (packed)                             presence |= MESSAGE_KEYS_PACKED;
+
+    output.writeRawByte(presence);
+
+    if (chain.hasSenderRatchetKey())        writeBytes(output, chain.getSenderRatchetKey());
+    if (chain.hasSenderRatchetKeyPrivate()) writeBytes(output, chain.getSenderRatchetKeyPrivate());
+    if (chain.getChainKey().hasIndex())     output.writeUInt32NoTag(chain.getChainKey().getIndex());
+    if (chain.getChainKey().hasKey())       writeBytes(output, chain.getChainKey().getKey());
+
+    if (chain.getMessageKeysCount() > 0) {
+      output.writeUInt32NoTag(chain.getMessageKeysCount());
+
+      int previousIndex = 0;
+
+      for (Chain.MessageKey messageKey : chain.getMessageKeysList()) {
+        if (packed) {
+          output.writeSInt32NoTag(messageKey.getIndex() - previousIndex);
+          output.writeRawBytes(messageKey.getCipherKey());
+          output.writeRawBytes(messageKey.getMacKey());
+          output.writeRawBytes(messageKey.getIv());
+
+          previousIndex = messageKey.getIndex();
+        } else {
+          writeMessageKey(output, messageKey);
+        }
+      }
+    }
+  }
+
+  private static Chain readChain(CodedInputStream input) throws IOException {
+    Chain.Builder chain    = Chain.newBuilder();
+    int           presence = input.readRawByte() & 0xFF;
+
+    if ((presence & SENDER_RATCHET_KEY) != 0)         chain.setSenderRatchetKey(readBytes(input));
+    if ((presence & SENDER_RATCHET_KEY_PRIVATE) != 0) chain.setSenderRatchetKeyPrivate(readBytes(input));
+
+    if ((presence & CHAIN_KEY) != 0) {
+      Chain.ChainKey.Builder chainKey = Chain.ChainKey.newBuilder();
+
+      if ((presence & CHAIN_KEY_INDEX) != 0) chainKey.setIndex(input.readUInt32());
+      if ((presence & CHAIN_KEY_KEY) != 0)   chainKey.setKey(readBytes(input));
+
+      chain.setChainKey(chainKey);
+    }
+
+    if ((presence & MESSAGE_KEYS) != 0) {
+      boolean packed        = (presence & MESSAGE_KEYS_PACKED) != 0;
+      int     count         = input.readUInt32();
+      int     previousIndex = 0;
+
+      for (int i=0;i<count;i++) {
+        if (packed) {
+          int index = previousIndex + input.readSInt32();
+
+          chain.addMessageKeys(Chain.MessageKey.newBuilder()
+                                               .setIndex(index)
+                                               .setCipherKey(ByteString.copyFrom(input.readRawBytes(CIPHER_KEY_LENGTH)))
+                                               .setMacKey(ByteString.copyFrom(input.readRawBytes(MAC_KEY_LENGTH)))
+                                               .setIv(ByteString.copyFrom(input.readRawBytes(IV_LENGTH))));
+
+          previousIndex = index;
+        } else {
+          chain.addMessageKeys(readMessageKey(input));
+        }
+      }
+    }
+
+    return chain.build();
+  }
+
+  private static boolean isPackable(List<Chain.MessageKey> messageKeys) {
+    for (Chain.MessageKey messageKey : messageKeys) {
+        if (!messageKey.hasIndex()                                ||
+          messageKey.getCipherKey().size() != CIPHER_KEY_LENGTH ||
+          messageKey.getMacKey().size()    != MAC_KEY_LENGTH    ||
+          messageKey.getIv().size()        != IV_LENGTH)
+      {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static void writeMessageKey(CodedOutputStream output, Chain.MessageKey messageKey) throws IOException {
+    int presence = 0;
+
+    if (messageKey.hasIndex())     presence |= MESSAGE_KEY_INDEX;
+    if (messageKey.hasCipherKey()) presence |= MESSAGE_KEY_CIPHER;
+    if (messageKey.hasMacKey())    presence |= MESSAGE_KEY_MAC;
+    if (messageKey.hasIv())        presence |= MESSAGE_KEY_IV;
+
+    output.writeRawByte(presence);
+
+    if (messageKey.hasIndex())     output.writeUInt32NoTag(messageKey.getIndex());
+    if (messageKey.hasCipherKey()) writeBytes(output, messageKey.getCipherKey());
+    if (messageKey.hasMacKey())    writeBytes(output, messageKey.getMacKey());
+    if (messageKey.hasIv())        writeBytes(output, messageKey.getIv());
+  }
+
+  private static Chain.MessageKey readMessageKey(CodedInputStream input) throws IOException {
+    Chain.MessageKey.Builder messageKey = Chain.MessageKey.newBuilder();
+    int                      presence   = input.readRawByte() & 0xFF;
+
+    if ((presence & MESSAGE_KEY_INDEX) != 0)  messageKey.setIndex(input.readUInt32());
+    if ((presence & MESSAGE_KEY_CIPHER) != 0) messageKey.setCipherKey(readBytes(input));
+    if ((presence & MESSAGE_KEY_MAC) != 0)    messageKey.setMacKey(readBytes(input));
+    if ((presence & MESSAGE_KEY_IV) != 0)     messageKey.setIv(readBytes(input));
+
+    return messageKey.build();
+  }
+
+  private static void writePendingKeyExchange(CodedOutputStream output, PendingKeyExchange exchange)
+      throws IOException
+  {
+    int presence = 0;
+
+    if (exchange.hasSequence())                presence |= 1;
+    if (exchange.hasLocalBaseKey())            presence |= 1 << 1;
+    if (exchange.hasLocalBaseKeyPrivate())     presence |= 1 << 2;
+    if (exchange.hasLocalRatchetKey())         presence |= 1 << 3;
+    if (exchange.hasLocalRatchetKeyPrivate())  presence |= 1 << 4;
+    if (exchange.hasLocalIdentityKey())        presence |= 1 << 5;
+    if (exchange.hasLocalIdentityKeyPrivate()) presence |= 1 << 6;
+
+    output.writeRawByte(presence);
+
+    if (exchange.hasSequence())                output.writeUInt32NoTag(exchange.getSequence());
+    if (exchange.hasLocalBaseKey())            writeBytes(output, exchange.getLocalBaseKey());
+    if (exchange.hasLocalBaseKeyPrivate())     writeBytes(output, exchange.getLocalBaseKeyPrivate());
+    if (exchange.hasLocalRatchetKey())         writeBytes(output, exchange.getLocalRatchetKey());
+    if (exchange.hasLocalRatchetKeyPrivate())  writeBytes(output, exchange.getLocalRatchetKeyPrivate());
+    if (exchange.hasLocalIdentityKey())        writeBytes(output, exchange.getLocalIdentityKey());
+    if (exchange.hasLocalIdentityKeyPrivate()) writeBytes(output, exchange.getLocalIdentityKeyPrivate());
+  }
+
+  private static PendingKeyExchange readPendingKeyExchange(CodedInputStream input) throws IOException {
+    PendingKeyExchange.Builder exchange = PendingKeyExchange.newBuilder();
+    int                        presence = input.readRawByte() & 0xFF;
+
+    if ((presence & 1) != 0)        exchange.setSequence(input.readUInt32());
+    if ((presence & (1 << 1)) != 0) exchange.setLocalBaseKey(readBytes(input));
+    if ((presence & (1 << 2)) != 0) exchange.setLocalBaseKeyPrivate(readBytes(input));
+    if ((presence & (1 << 3)) != 0) exchange.setLocalRatchetKey(readBytes(input));
+    if ((presence & (1 << 4)) != 0) exchange.setLocalRatchetKeyPrivate(readBytes(input));
+    if ((presence & (1 << 5)) != 0) exchange.setLocalIdentityKey(readBytes(input));
+    if ((presence & (1 << 6)) != 0) exchange.setLocalIdentityKeyPrivate(readBytes(input));
+
+    return exchange.build();
+  }
+
+  private static void writePendingPreKey(CodedOutputStream output, PendingPreKey pendingPreKey)
+      throws IOException
+  {
+    int presence = 0;
+
+    if (pendingPreKey.hasPreKeyId())       presence |= 1;
+    if (pendingPreKey.hasSignedPreKeyId()) presence |= 1 << 1;
+    if (pendingPreKey.hasBaseKey())        presence |= 1 << 2;
+
+    output.writeRawByte(presence);
+
+    if (pendingPreKey.hasPreKeyId())       output.writeUInt32NoTag(pendingPreKey.getPreKeyId());
+    if (pendingPreKey.hasSignedPreKeyId()) output.writeInt32NoTag(pendingPreKey.getSignedPreKeyId());
+    if (pendingPreKey.hasBaseKey())        writeBytes(output, pendingPreKey.getBaseKey());
+  }
+
+  private static PendingPreKey readPendingPreKey(CodedInputStream input) throws IOException {
+    PendingPreKey.Builder pendingPreKey = PendingPreKey.newBuilder();
+    int                   presence      = input.readRawByte() & 0xFF;
+
+    if ((presence & 1) != 0)        pendingPreKey.setPreKeyId(input.readUInt32());
+    if ((presence & (1 << 1)) != 0) pendingPreKey.setSignedPreKeyId(input.readInt32());
+    if ((presence & (1 << 2)) != 0) pendingPreKey.setBaseKey(readBytes(input));
+
+    return pendingPreKey.build();
+  }
+
+  private static ByteString readIdentity(CodedInputStream input, List<ByteString> identities)
+      throws IOException
+  {
+    int index = input.readUInt32();
+
+    if (index < 0 || index >= identities.size()) {
+      throw new IOException("Bad identity index: " + index);
+    }
+
+    return identities.get(index);
+  }
+
+  /**
+   * Bytes are length prefixed, with the low bit of the prefix recording whether a
+   * {@link Curve#DJB_TYPE} byte was stripped from the front of a 33 byte public key.
+   */
+  private static void writeBytes(CodedOutputStream output, ByteString bytes) throws IOException {
+    if (bytes.size() == 33 && bytes.byteAt(0) == Curve.DJB_TYPE) {
+      output.writeUInt32NoTag((32 << 1) | 1);
+      output.writeRawBytes(bytes.substring(1));
+    } else {
+      output.writeUInt32NoTag(bytes.size() << 1);
+      output.writeRawBytes(bytes);
+    }
+  }
+
+  private static ByteString readBytes(CodedInputStream input) throws IOException {
+    int    prefix = input.readUInt32();
+    byte[] bytes  = input.readRawBytes(prefix >>> 1);
+
+    if ((prefix & 1) != 0) {
+      byte[] key = new byte[bytes.length + 1];
+      key[0] = Curve.DJB_TYPE;
+      System.arraycopy(bytes, 0, key, 1, bytes.length);
+
+      return ByteString.copyFrom(key);
+    }
+
+    return ByteString.copyFrom(bytes);
+  }
+
+  private static int readRawLittleEndian16(CodedInputStream input) throws IOException {
+    return (input.readRawByte() & 0xFF) | ((input.readRawByte() & 0xFF) << 8);
+  }
+}
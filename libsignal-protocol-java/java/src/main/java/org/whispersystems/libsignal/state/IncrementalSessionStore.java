@@ -0,0 +1,27 @@
+package org.whispersystems.libsignal.state;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+
+/**
+ * A {@link SessionStore} which can persist the changes made by an encrypt or decrypt
+ * operation, rather than the entire updated {@link SessionRecord}.
+ * <p>
+ * {@link org.whispersystems.libsignal.SessionCipher} hands the store a {@link SessionChangeSet}
+ * whenever an operation's changes can be expressed that way, and falls back to
+ * {@link #storeSession(SignalProtocolAddress, SessionRecord)} otherwise.  A store might append
+ * change sets to a log, and periodically materialize full records by replaying them.
+ */
+public interface IncrementalSessionStore extends SessionStore {
+
+  /**
+   * Persist a set of changes to the stored session for an address.
+   *
+   * @param address The remote client.
+   * @param changes The changes, made against the record version {@link SessionChangeSet#getBaseVersion()}.
+   * @return true if the changes were stored, or false if the stored record is no longer the
+   *         version the changes were made against.  Stores which don't track versions should
+   *         always return true.
+   */
+  public boolean storeSessionChanges(SignalProtocolAddress address, SessionChangeSet changes);
+
+}
@@ -0,0 +1,344 @@
+package org.whispersystems.libsignal.state;
+
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.InvalidKeyException;
+import org.whispersystems.libsignal.InvalidKeyIdException;
+import org.whispersystems.libsignal.StaticAgreementCache;
+import org.whispersystems.libsignal.logging.Log;
+import org.whispersystems.libsignal.util.KeyHelper;
+import org.whispersystems.libsignal.util.Medium;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Manages the lifecycle of the local one-time and signed PreKeys.
+ * <p>
+ * The manager is itself a {@link PreKeyStore}, wrapping the real store, so that it sees each
+ * one-time PreKey as it is consumed.  Pass it to {@link org.whispersystems.libsignal.SessionCipher}
+ * in place of the wrapped store.  When the number of remaining one-time PreKeys falls below the
+ * low watermark, the pool is refilled to the high watermark on a background executor, so the
+ * receive path never waits on key generation.
+ * <p>
+ * {@link #maintain(long)} should be called periodically, for instance through
+ * {@link #scheduleMaintenance(ScheduledExecutorService, long, TimeUnit)}.  It tops up the pool,
+ * and rotates the signed PreKey once it is older than the rotation interval.  Replaced signed
+ * PreKeys are kept for a grace period, so that messages built from them can still be received.
+ * <p>
+ * Newly generated keys are collected until they're taken with {@link #getUploadBatch()} and
+ * confirmed with {@link #markUploaded(UploadBatch)}.
+ */
+public class PreKeyPoolManager implements PreKeyStore {
+
+  private static final String TAG = PreKeyPoolManager.class.getSimpleName();
+
+  private final IdentityKeyPair      identityKeyPair;
+  private final BulkPreKeyStore      preKeyStore;
+  private final SignedPreKeyStore    signedPreKeyStore;
+  private final Executor             executor;
+  private final ForkJoinPool         generationPool;
+  private final int                  lowWatermark;
+  private final int                  highWatermark;
+  private final long                 rotationIntervalMillis;
+  private final long                 gracePeriodMillis;
+  private final StaticAgreementCache staticAgreementCache;
+
+  private final Map<Integer, PreKeyRecord> pendingPreKeys       = new LinkedHashMap<>();
+  private final Map<Integer, Long>         retiredSignedPreKeys = new LinkedHashMap<>();
+  private final Object                     replenishLock        = new Object();
+
+  private int                nextPreKeyId;
+  private int                nextSignedPreKeyId;
+  private SignedPreKeyRecord currentSignedPreKey;
+  private SignedPreKeyRecord pendingSignedPreKey;
+  private boolean            replenishing;
+
+  /**
+   * @param identityKeyPair The local identity key pair, used to sign signed PreKeys.
+   * @param preKeyStore The store that holds one-time PreKeys.
+   * @param signedPreKeyStore The store that holds signed PreKeys.  The newest stored signed
+   *                          PreKey is taken to be the current one.
+   * @param executor The executor background replenishment runs on.
+   * @param generationPool The pool PreKeys are generated on.
+   * @param nextPreKeyId The ID to give the next generated one-time PreKey.  Callers should
+   *                     persist {@link #getNextPreKeyId()} across restarts.
+   * @param lowWatermark The pool is refilled when fewer one-time PreKeys than this remain.
+   * @param highWatermark The number of one-time PreKeys the pool is refilled to.
+   * @param rotationIntervalMillis How long a signed PreKey is used before being replaced.
+   * @param gracePeriodMillis How long a replaced signed PreKey is kept before being removed.
+   */
+  public PreKeyPoolManager(IdentityKeyPair identityKeyPair,
+                           BulkPreKeyStore preKeyStore, SignedPreKeyStore signedPreKeyStore,
+                           Executor executor, ForkJoinPool generationPool, int nextPreKeyId,
+                           int lowWatermark, int highWatermark,
+                           long rotationIntervalMillis, long gracePeriodMillis)
+  {
+    this(identityKeyPair, preKeyStore, signedPreKeyStore, executor, generationPool, nextPreKeyId,
+         lowWatermark, highWatermark, rotationIntervalMillis, gracePeriodMillis, null);
+  }
+
+  /**
+   * @param staticAgreementCache The agreement cache used to receive with these PreKeys, or null.
+   *                             Agreements made with a signed PreKey are forgotten when the
+   *                             signed PreKey is removed.
+   */
+  public PreKeyPoolManager(IdentityKeyPair identityKeyPair,
+                           BulkPreKeyStore preKeyStore, SignedPreKeyStore signedPreKeyStore,
+                           Executor executor, ForkJoinPool generationPool, int nextPreKeyId,
+                           int lowWatermark, int highWatermark,
+                           long rotationIntervalMillis, long gracePeriodMillis,
+                           StaticAgreementCache staticAgreementCache)
+  {
+    if (lowWatermark < 0 || highWatermark <= lowWatermark || highWatermark >= Medium.MAX_VALUE - 1) {
+      throw new IllegalArgumentException("Bad watermarks: " + lowWatermark + ", " + highWatermark);
+    }
+
+    this.identityKeyPair        = identityKeyPair;
+    this.preKeyStore            = preKeyStore;
+    this.signedPreKeyStore      = signedPreKeyStore;
+    this.executor               = executor;
+    this.generationPool         = generationPool;
+    this.nextPreKeyId           = nextPreKeyId;
+    this.lowWatermark           = lowWatermark;
+    this.highWatermark          = highWatermark;
+    this.rotationIntervalMillis = rotationIntervalMillis;
+    this.gracePeriodMillis      = gracePeriodMillis;
+    this.staticAgreementCache   = staticAgreementCache;
+
+    List<SignedPreKeyRecord> signedPreKeys = signedPreKeyStore.loadSignedPreKeys();
+
+    for (SignedPreKeyRecord record : signedPreKeys) {
+      if (currentSignedPreKey == null || record.getTimestamp() > currentSignedPreKey.getTimestamp()) {
+        currentSignedPreKey = record;
+      }
+    }
+
+    for (SignedPreKeyRecord record : signedPreKeys) {
+      if (record.getId() != currentSignedPreKey.getId()) {
+        retiredSignedPreKeys.put(record.getId(), currentSignedPreKey.getTimestamp());
+      }
+    }
+
+    if (currentSignedPreKey == null) this.nextSignedPreKeyId = 1;
+    else                             this.nextSignedPreKeyId = (currentSignedPreKey.getId() % (Medium.MAX_VALUE - 1)) + 1;
+  }
+
+  @Override
+  public PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
+    return preKeyStore.loadPreKey(preKeyId);
+  }
+
+  @Override
+  public void storePreKey(int preKeyId, PreKeyRecord record) {
+    preKeyStore.storePreKey(preKeyId, record);
+  }
+
+  @Override
+  public boolean containsPreKey(int preKeyId) {
+    return preKeyStore.containsPreKey(preKeyId);
+  }
+
+  /**
+   * Remove a consumed one-time PreKey, and schedule replenishment if the pool is running low.
+   */
+  @Override
+  public void removePreKey(int preKeyId) {
+    preKeyStore.removePreKey(preKeyId);
+
+    synchronized (this) {
+      pendingPreKeys.remove(preKeyId);
+    }
+
+    if (getRemainingPreKeys() < lowWatermark) {
+      scheduleReplenish();
+    }
+  }
+
+  /**
+   * @return the number of one-time PreKeys remaining, not counting the last resort PreKey.
+   */
+  public int getRemainingPreKeys() {
+    int count = preKeyStore.countPreKeys();
+
+    if (preKeyStore.containsPreKey(Medium.MAX_VALUE)) {
+      count--;
+    }
+
+    return count;
+  }
+
+  public synchronized int getNextPreKeyId() {
+    return nextPreKeyId;
+  }
+
+  public synchronized SignedPreKeyRecord getCurrentSignedPreKey() {
+    return currentSignedPreKey;
+  }
+
+  /**
+   * Top up the one-time PreKey pool if it is below the low watermark, rotate the signed PreKey if
+   * it is due, and remove replaced signed PreKeys whose grace period has expired.
+   *
+   * @param now The current time, in milliseconds since the epoch.
+   */
+  public void maintain(long now) {
+    if (getRemainingPreKeys() < lowWatermark) {
+      replenish();
+    }
+
+    try {
+      rotateSignedPreKey(now);
+    } catch (InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Run {@link #maintain(long)} at a fixed rate.
+   */
+  public ScheduledFuture<?> scheduleMaintenance(ScheduledExecutorService scheduler, long period, TimeUnit unit) {
+    return scheduler.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        maintain(System.currentTimeMillis());
+      }
+    }, 0, period, unit);
+  }
+
+  /**
+   * @return the keys generated since the last confirmed upload.
+   */
+  public synchronized UploadBatch getUploadBatch() {
+    return new UploadBatch(new ArrayList<>(pendingPreKeys.values()), pendingSignedPreKey);
+  }
+
+  /**
+   * Confirm that a batch returned by {@link #getUploadBatch()} has been uploaded.
+   */
+  public synchronized void markUploaded(UploadBatch batch) {
+    for (PreKeyRecord record : batch.getPreKeys()) {
+      pendingPreKeys.remove(record.getId());
+    }
+
+    if (batch.getSignedPreKey() != null && batch.getSignedPreKey() == pendingSignedPreKey) {
+      pendingSignedPreKey = null;
+    }
+  }
+
+  private void scheduleReplenish() {
+    synchronized (this) {
+      if (replenishing) return;
+      replenishing = true;
+    }
+
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          replenish();
+        } finally {
+          synchronized (PreKeyPoolManager.this) {
+            replenishing = false;
+          }
+        }
+      }
+    });
+  }
+
+  private void replenish() {
+    synchronized (replenishLock) {
+      int count = highWatermark - getRemainingPreKeys();
+      int start;
+
+      if (count <= 0) {
+        return;
+      }
+
+      synchronized (this) {
+        start        = nextPreKeyId;
+        nextPreKeyId = ((nextPreKeyId - 1 + count) % (Medium.MAX_VALUE - 1)) + 1;
+      }
+
+      List<PreKeyRecord> records = KeyHelper.generatePreKeys(start, count, generationPool);
+      preKeyStore.storePreKeys(records);
+
+      synchronized (this) {
+        for (PreKeyRecord record : records) {
+          pendingPreKeys.put(record.getId(), record);
+        }
+      }
+
+      Log.i(TAG, "Generated " + count + " one-time prekeys.");
+    }
+  }
+
+  private synchronized void rotateSignedPreKey(long now) throws InvalidKeyException {
+    if (currentSignedPreKey == null || now - currentSignedPreKey.getTimestamp() >= rotationIntervalMillis) {
+      SignedPreKeyRecord record = KeyHelper.generateSignedPreKey(identityKeyPair, nextSignedPreKeyId);
+      record = new SignedPreKeyRecord(record.getId(), now, record.getKeyPair(), record.getSignature());
+
+      signedPreKeyStore.storeSignedPreKey(record.getId(), record);
+
+      if (currentSignedPreKey != null) {
+        retiredSignedPreKeys.put(currentSignedPreKey.getId(), now);
+      }
+
+      currentSignedPreKey = record;
+      pendingSignedPreKey = record;
+      nextSignedPreKeyId  = (nextSignedPreKeyId % (Medium.MAX_VALUE - 1)) + 1;
+
+      Log.i(TAG, "Rotated signed prekey to " + record.getId());
+    }
+
+    List<Integer> expired = new LinkedList<>();
+
+    for (Map.Entry<Integer, Long> retired : retiredSignedPreKeys.entrySet()) {
+      if (now - retired.getValue() >= gracePeriodMillis) {
+        expired.add(retired.getKey());
+      }
+    }
+
+    for (int signedPreKeyId : expired) {
+      signedPreKeyStore.removeSignedPreKey(signedPreKeyId);
+      retiredSignedPreKeys.remove(signedPreKeyId);
+
+      if (staticAgreementCache != null) {
+        staticAgreementCache.removeSignedPreKey(signedPreKeyId);
+      }
+    }
+  }
+
+  public static class UploadBatch {
+    private final List<PreKeyRecord> preKeys;
+    private final SignedPreKeyRecord signedPreKey;
+
+    private UploadBatch(List<PreKeyRecord> preKeys, SignedPreKeyRecord signedPreKey) {
+      this.preKeys      = Collections.unmodifiableList(preKeys);
+      this.signedPreKey = signedPreKey;
+    }
+
+    public List<PreKeyRecord> getPreKeys() {
+      return preKeys;
+    }
+
+    /**
+     * @return a newly rotated signed PreKey, or null if the signed PreKey hasn't changed.
+     */
+    public SignedPreKeyRecord getSignedPreKey() {
+      return signedPreKey;
+    }
+
+    public boolean isEmpty() {
+      return preKeys.isEmpty() && signedPreKey == null;
+    }
+  }
+}
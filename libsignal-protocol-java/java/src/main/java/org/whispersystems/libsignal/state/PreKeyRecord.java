@@ -7,8 +7,12 @@ import org.whispersystems.libsignal.ecc.Curve;
 import org.whispersystems.libsignal.ecc.ECKeyPair;
 import org.whispersystems.libsignal.ecc.ECPrivateKey;
 import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.util.ProtobufUtil;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import static org.whispersystems.libsignal.state.StorageProtos.PreKeyRecordStructure;
 
@@ -27,7 +31,25 @@ public class PreKeyRecord {
   }
 
   public PreKeyRecord(byte[] serialized) throws IOException {
-    this.structure = PreKeyRecordStructure.parseFrom(serialized);
+    this(PreKeyRecordStructure.parseFrom(serialized));
+  }
+
+  private PreKeyRecord(PreKeyRecordStructure structure) {
+    this.structure = structure;
+  }
+
+  /**
+   * Parse a serialized PreKeyRecord from the remaining bytes of a buffer.
+   */
+  public static PreKeyRecord parse(ByteBuffer serialized) throws IOException {
+    return new PreKeyRecord(PreKeyRecordStructure.parseFrom(ProtobufUtil.newCodedInput(serialized)));
+  }
+
+  /**
+   * Parse a serialized PreKeyRecord, reading the stream until it is exhausted.
+   */
+  public static PreKeyRecord parse(InputStream serialized) throws IOException {
+    return new PreKeyRecord(PreKeyRecordStructure.parseFrom(serialized));
   }
 
   public int getId() {
@@ -48,4 +70,27 @@ public class PreKeyRecord {
   public byte[] serialize() {
     return this.structure.toByteArray();
   }
+
+  /**
+   * Write the serialized PreKeyRecord to a stream.
+   */
+  public void writeTo(OutputStream output) throws IOException {
+    this.structure.writeTo(output);
+  }
+
+  /**
+   * Write the serialized PreKeyRecord at the buffer's position, advancing it.
+   *
+   * @throws java.nio.BufferOverflowException if fewer than {@link #serializedSize()} bytes remain.
+   */
+  public void writeTo(ByteBuffer output) {
+    ProtobufUtil.writeTo(this.structure, output);
+  }
+
+  /**
+   * @return the length of the serialized PreKeyRecord, in bytes.
+   */
+  public int serializedSize() {
+    return this.structure.getSerializedSize();
+  }
 }
@@ -0,0 +1,25 @@
+package org.whispersystems.libsignal.state;
+
+import java.io.IOException;
+
+/**
+ * The default codec, which stores records as the RecordStructure protobuf produced by
+ * {@link SessionRecord#serialize()}.  It also decodes records written by
+ * {@link CompactSessionRecordCodec}, so that a store can be migrated back.
+ */
+public class ProtobufSessionRecordCodec implements SessionRecordCodec {
+
+  @Override
+  public byte[] encode(SessionRecord record) {
+    return record.serialize();
+  }
+
+  @Override
+  public SessionRecord decode(byte[] encoded) throws IOException {
+    if (CompactSessionRecordCodec.isCompact(encoded)) {
+      return new SessionRecord(CompactSessionRecordCodec.decodeStructure(encoded));
+    } else {
+      return new SessionRecord(encoded);
+    }
+  }
+}
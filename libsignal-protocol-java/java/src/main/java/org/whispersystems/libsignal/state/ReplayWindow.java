@@ -0,0 +1,268 @@
+package org.whispersystems.libsignal.state;
+
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * Remembers which messages have been received from one remote client, so that replays can be
+ * rejected before any keys are derived or agreed.
+ * <p>
+ * Each receiving chain, identified by the sender's ratchet key, has a sliding window over the
+ * most recent {@link #WINDOW_SIZE} counters.  A counter inside the window is known exactly to
+ * have been received or not.  Older counters aren't tracked, and are left to the session's own
+ * checks.
+ * <p>
+ * PreKeySignalMessages are also tracked by their base key and counter, in a Bloom filter
+ * which rotates between two generations.  These remain rejectable after the session they set
+ * up has been archived or replaced.  Being probabilistic, the filter will very rarely mistake a
+ * new PreKeySignalMessage for a replay.
+ * <p>
+ * Messages must only be marked as received once they have been authenticated.
+ *
+ * @see ReplayWindowStore
+ */
+public class ReplayWindow {
+
+  /**
+   * The number of counters tracked below the highest counter received on each chain.
+   */
+  public static final int WINDOW_SIZE = 64;
+
+  private static final byte FORMAT_VERSION      = 1;
+  private static final int  MAX_CHAINS          = 8;
+  private static final int  BLOOM_BITS          = 1024;
+  private static final int  BLOOM_HASHES        = 7;
+  private static final int  GENERATION_CAPACITY = 16;
+
+  private final LinkedList<Chain> chains = new LinkedList<>();
+
+  private long   seed;
+  private long[] currentGeneration;
+  private long[] previousGeneration;
+  private int    currentCount;
+
+  public ReplayWindow() {}
+
+  public ReplayWindow(byte[] serialized) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(serialized));
+
+    if (in.readByte() != FORMAT_VERSION) {
+      throw new IOException("Unknown replay window format");
+    }
+
+    int chainCount = in.readUnsignedByte();
+
+    for (int i=0;i<chainCount;i++) {
+      byte[] ratchetKey = new byte[in.readUnsignedByte()];
+      in.readFully(ratchetKey);
+
+      chains.add(new Chain(ratchetKey, in.readInt(), in.readLong()));
+    }
+
+    if (in.readBoolean()) {
+      seed               = in.readLong();
+      currentCount       = in.readUnsignedByte();
+      currentGeneration  = readBits(in);
+      previousGeneration = readBits(in);
+    }
+  }
+
+  /**
+   * @return true if the message with this counter on the chain with this ratchet key is known
+   *         to have been received.
+   */
+  public boolean isReplay(ECPublicKey senderRatchetKey, int counter) {
+    Chain chain = getChain(senderRatchetKey.serialize());
+    return chain != null && chain.contains(counter);
+  }
+
+  /**
+   * @return true if a PreKeySignalMessage with this base key and counter has probably been
+   *         received.
+   */
+  public boolean isPreKeyReplay(ECPublicKey baseKey, int counter) {
+    if (currentGeneration == null) {
+      return false;
+    }
+
+    long[] indexes = getBloomIndexes(baseKey.serialize(), counter);
+
+    return containsAll(currentGeneration, indexes) || containsAll(previousGeneration, indexes);
+  }
+
+  public void markReceived(ECPublicKey senderRatchetKey, int counter) {
+    byte[] ratchetKey = senderRatchetKey.serialize();
+    Chain  chain      = getChain(ratchetKey);
+
+    if (chain == null) {
+      chain = new Chain(ratchetKey, counter, 0);
+
+      if (chains.size() >= MAX_CHAINS) {
+        chains.removeLast();
+      }
+    } else {
+      chains.remove(chain);
+    }
+
+    chains.addFirst(chain);
+
+    chain.add(counter);
+  }
+
+  public void markPreKeyReceived(ECPublicKey baseKey, int counter) {
+    if (currentGeneration == null) {
+      seed               = new SecureRandom().nextLong();
+      currentGeneration  = new long[BLOOM_BITS / 64];
+      previousGeneration = new long[BLOOM_BITS / 64];
+    }
+
+    if (currentCount >= GENERATION_CAPACITY) {
+      previousGeneration = currentGeneration;
+      currentGeneration  = new long[BLOOM_BITS / 64];
+      currentCount       = 0;
+    }
+
+    for (long index : getBloomIndexes(baseKey.serialize(), counter)) {
+      currentGeneration[(int)(index >>> 6)] |= 1L << index;
+    }
+
+    currentCount++;
+  }
+
+  public byte[] serialize() {
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      DataOutputStream      out  = new DataOutputStream(baos);
+
+      out.writeByte(FORMAT_VERSION);
+      out.writeByte(chains.size());
+
+      for (Chain chain : chains) {
+        out.writeByte(chain.ratchetKey.length);
+        out.write(chain.ratchetKey);
+        out.writeInt(chain.highest);
+        out.writeLong(chain.bitmap);
+      }
+
+      out.writeBoolean(currentGeneration != null);
+
+      if (currentGeneration != null) {
+        out.writeLong(seed);
+        out.writeByte(currentCount);
+        writeBits(out, currentGeneration);
+        writeBits(out, previousGeneration);
+      }
+
+      out.flush();
+      return baos.toByteArray();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private Chain getChain(byte[] ratchetKey) {
+    for (Chain chain : chains) {
+      if (Arrays.equals(chain.ratchetKey, ratchetKey)) {
+        return chain;
+      }
+    }
+
+    return null;
+  }
+
+  private long[] getBloomIndexes(byte[] baseKey, int counter) {
+    long hash = seed;
+
+    for (byte b : baseKey) {
+      hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+    }
+
+    hash = (hash ^ counter) * 0x100000001b3L;
+
+    long   first   = mix(hash);
+    long   second  = mix(hash ^ 0x9E3779B97F4A7C15L) | 1;
+    long[] indexes = new long[BLOOM_HASHES];
+
+    for (int i=0;i<BLOOM_HASHES;i++) {
+      indexes[i] = ((first + i * second) >>> 1) % BLOOM_BITS;
+    }
+
+    return indexes;
+  }
+
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+
+    return hash;
+  }
+
+  private static boolean containsAll(long[] bits, long[] indexes) {
+    for (long index : indexes) {
+      if ((bits[(int)(index >>> 6)] & (1L << index)) == 0) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static long[] readBits(DataInputStream in) throws IOException {
+    long[] bits = new long[BLOOM_BITS / 64];
+
+    for (int i=0;i<bits.length;i++) {
+      bits[i] = in.readLong();
+    }
+
+    return bits;
+  }
+
+  private static void writeBits(DataOutputStream out, long[] bits) throws IOException {
+    for (long word : bits) {
+      out.writeLong(word);
+    }
+  }
+
+  private static class Chain {
+    private final byte[] ratchetKey;
+
+    private int  highest;
+    private long bitmap;
+
+    private Chain(byte[] ratchetKey, int highest, long bitmap) {
+      this.ratchetKey = ratchetKey;
+      this.highest    = highest;
+      this.bitmap     = bitmap;
+    }
+
+    private boolean contains(int counter) {
+      long offset = (long)highest - counter;
+      return offset >= 0 && offset < WINDOW_SIZE && (bitmap & (1L << offset)) != 0;
+    }
+
+    private void add(int counter) {
+      long offset = (long)highest - counter;
+
+      if (offset < 0) {
+        bitmap  = -offset >= WINDOW_SIZE ? 0 : bitmap << -offset;
+        highest = counter;
+        offset  = 0;
+      }
+
+      if (offset < WINDOW_SIZE) {
+        bitmap |= 1L << offset;
+      }
+    }
+  }
+}
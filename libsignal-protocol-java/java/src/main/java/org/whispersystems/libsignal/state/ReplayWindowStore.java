@@ -0,0 +1,22 @@
+package org.whispersystems.libsignal.state;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+
+/**
+ * A {@link SessionStore} which also keeps a {@link ReplayWindow} for each remote client, so that
+ * {@link org.whispersystems.libsignal.SessionCipher} can reject replayed messages before loading
+ * or ratcheting their session.
+ * <p>
+ * The window is stored separately from the session, after the session has been stored.  If the
+ * window is lost, replays are still caught by the session's own, slower, checks.
+ */
+public interface ReplayWindowStore extends SessionStore {
+
+  /**
+   * @return the window for an address, or a new, empty window if there isn't one.
+   */
+  public ReplayWindow loadReplayWindow(SignalProtocolAddress address);
+
+  public void storeReplayWindow(SignalProtocolAddress address, ReplayWindow window);
+
+}
@@ -0,0 +1,236 @@
+package org.whispersystems.libsignal.state;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import org.whispersystems.libsignal.InvalidKeyException;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.kdf.HKDF;
+import org.whispersystems.libsignal.ratchet.ChainKey;
+import org.whispersystems.libsignal.ratchet.MessageKeys;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The changes made to a {@link SessionRecord} by a single encrypt or decrypt operation.
+ * <p>
+ * Most operations only advance a chain key and add or remove a few skipped message keys.
+ * An {@link IncrementalSessionStore} can persist just these changes, rather than rewriting
+ * the entire record, and later replay them with {@link #apply(SessionRecord)}.
+ * <p>
+ * Changes which can't be expressed this way (such as a DH ratchet step, or the creation of a
+ * new session) mark the change set as requiring a full record, and the full record is stored
+ * instead.
+ */
+public class SessionChangeSet {
+
+  private static final int SENDER_CHAIN_ADVANCED      = 1;
+  private static final int RECEIVER_CHAIN_KEY_UPDATED = 2;
+  private static final int MESSAGE_KEYS_ADDED         = 3;
+  private static final int MESSAGE_KEYS_REMOVED       = 4;
+  private static final int PRE_KEY_ACKNOWLEDGED       = 5;
+  private static final int STATE_PROMOTED             = 6;
+
+  private final long         baseVersion;
+  private final List<Change> changes            = new LinkedList<>();
+  private       boolean      fullRecordRequired = false;
+
+  /**
+   * @param baseVersion The version of the record the changes are made against, as returned
+   *                    by {@link SessionRecord#getVersion()}.
+   */
+  public SessionChangeSet(long baseVersion) {
+    this.baseVersion = baseVersion;
+  }
+
+  public SessionChangeSet(byte[] serialized) throws IOException {
+    try {
+      CodedInputStream input = CodedInputStream.newInstance(serialized);
+
+      this.baseVersion = input.readFixed64();
+
+      while (!input.isAtEnd()) {
+        int         type       = input.readUInt32();
+        ECPublicKey ratchetKey = null;
+
+        if (type == RECEIVER_CHAIN_KEY_UPDATED || type == MESSAGE_KEYS_ADDED || type == MESSAGE_KEYS_REMOVED) {
+          ratchetKey = Curve.decodePoint(input.readBytes().toByteArray(), 0);
+        }
+
+        switch (type) {
+          case SENDER_CHAIN_ADVANCED:
+          case RECEIVER_CHAIN_KEY_UPDATED:
+            changes.add(new Change(type, ratchetKey, input.readUInt32(), input.readBytes().toByteArray(), null, null));
+            break;
+          case MESSAGE_KEYS_ADDED:
+            changes.add(new Change(type, ratchetKey, input.readUInt32(), input.readBytes().toByteArray(),
+                                   input.readBytes().toByteArray(), input.readBytes().toByteArray()));
+            break;
+          case MESSAGE_KEYS_REMOVED:
+          case STATE_PROMOTED:
+            changes.add(new Change(type, ratchetKey, input.readUInt32(), null, null, null));
+            break;
+          case PRE_KEY_ACKNOWLEDGED:
+            changes.add(new Change(type, null, 0, null, null, null));
+            break;
+          default:
+            throw new IOException("Unknown change type: " + type);
+        }
+      }
+    } catch (InvalidKeyException e) {
+      throw new IOException(e);
+    }
+  }
+
+  public long getBaseVersion() {
+    return baseVersion;
+  }
+
+  public int size() {
+    return changes.size();
+  }
+
+  public boolean isEmpty() {
+    return changes.isEmpty();
+  }
+
+  /**
+   * @return true if the operation made changes that can't be expressed as a change set, and the
+   *         full record must be stored instead.
+   */
+  public boolean isFullRecordRequired() {
+    return fullRecordRequired;
+  }
+
+  public void setFullRecordRequired() {
+    this.fullRecordRequired = true;
+  }
+
+  public void senderChainAdvanced(ChainKey chainKey) {
+    changes.add(new Change(SENDER_CHAIN_ADVANCED, null, chainKey.getIndex(), chainKey.getKey(), null, null));
+  }
+
+  public void receiverChainKeyUpdated(ECPublicKey senderEphemeral, ChainKey chainKey) {
+    changes.add(new Change(RECEIVER_CHAIN_KEY_UPDATED, senderEphemeral, chainKey.getIndex(), chainKey.getKey(), null, null));
+  }
+
+  public void messageKeysAdded(ECPublicKey senderEphemeral, MessageKeys messageKeys) {
+    changes.add(new Change(MESSAGE_KEYS_ADDED, senderEphemeral, messageKeys.getCounter(),
+                           messageKeys.getCipherKey().getEncoded(), messageKeys.getMacKey().getEncoded(),
+                           messageKeys.getIv().getIV()));
+  }
+
+  public void messageKeysRemoved(ECPublicKey senderEphemeral, int counter) {
+    changes.add(new Change(MESSAGE_KEYS_REMOVED, senderEphemeral, counter, null, null, null));
+  }
+
+  public void preKeyAcknowledged() {
+    changes.add(new Change(PRE_KEY_ACKNOWLEDGED, null, 0, null, null, null));
+  }
+
+  /**
+   * Record that the archived state at the specified index was promoted to be the current state.
+   * Changes recorded afterwards apply to the promoted state.
+   */
+  public void statePromoted(int index) {
+    changes.add(new Change(STATE_PROMOTED, null, index, null, null, null));
+  }
+
+  public void addAll(SessionChangeSet other) {
+    changes.addAll(other.changes);
+
+    if (other.fullRecordRequired) {
+      fullRecordRequired = true;
+    }
+  }
+
+  /**
+   * Replay the changes against a record.
+   *
+   * @param record The record, as it was at {@link #getBaseVersion()}.
+   */
+  public void apply(SessionRecord record) {
+    for (Change change : changes) {
+      SessionState state = record.getSessionState();
+
+      switch (change.type) {
+        case SENDER_CHAIN_ADVANCED:
+          state.setSenderChainKey(new ChainKey(HKDF.createFor(state.getSessionVersion()), change.key, change.index));
+          break;
+        case RECEIVER_CHAIN_KEY_UPDATED:
+          state.setReceiverChainKey(change.ratchetKey,
+                                    new ChainKey(HKDF.createFor(state.getSessionVersion()), change.key, change.index));
+          break;
+        case MESSAGE_KEYS_ADDED:
+          state.setMessageKeys(change.ratchetKey, new MessageKeys(new SecretKeySpec(change.key, "AES"),
+                                                                  new SecretKeySpec(change.macKey, "HmacSHA256"),
+                                                                  new IvParameterSpec(change.iv),
+                                                                  change.index));
+          break;
+        case MESSAGE_KEYS_REMOVED:
+          state.removeMessageKeys(change.ratchetKey, change.index);
+          break;
+        case PRE_KEY_ACKNOWLEDGED:
+          state.clearUnacknowledgedPreKeyMessage();
+          break;
+        case STATE_PROMOTED:
+          record.promoteState(record.getPreviousSessionStates().remove(change.index));
+          break;
+      }
+    }
+  }
+
+  public byte[] serialize() {
+    try {
+      ByteArrayOutputStream baos   = new ByteArrayOutputStream();
+      CodedOutputStream     output = CodedOutputStream.newInstance(baos);
+
+      output.writeFixed64NoTag(baseVersion);
+
+      for (Change change : changes) {
+        output.writeUInt32NoTag(change.type);
+
+        if (change.ratchetKey != null)           writeBytes(output, change.ratchetKey.serialize());
+        if (change.type != PRE_KEY_ACKNOWLEDGED) output.writeUInt32NoTag(change.index);
+        if (change.key != null)                  writeBytes(output, change.key);
+        if (change.macKey != null)               writeBytes(output, change.macKey);
+        if (change.iv != null)                   writeBytes(output, change.iv);
+      }
+
+      output.flush();
+      return baos.toByteArray();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void writeBytes(CodedOutputStream output, byte[] bytes) throws IOException {
+    output.writeUInt32NoTag(bytes.length);
+    output.writeRawBytes(bytes);
+  }
+
+  private static class Change {
+    private final int         type;
+    private final ECPublicKey ratchetKey;
+    private final int         index;
+    private final byte[]      key;
+    private final byte[]      macKey;
+    private final byte[]      iv;
+
+    private Change(int type, ECPublicKey ratchetKey, int index, byte[] key, byte[] macKey, byte[] iv) {
+      this.type       = type;
+      this.ratchetKey = ratchetKey;
+      this.index      = index;
+      this.key        = key;
+      this.macKey     = macKey;
+      this.iv         = iv;
+    }
+  }
+}
@@ -1,6 +1,11 @@
 package org.whispersystems.libsignal.state;
 
+import org.whispersystems.libsignal.util.ProtobufUtil;
+
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
@@ -15,11 +20,13 @@ import static org.whispersystems.libsignal.state.StorageProtos.SessionStructure;
  */
 public class SessionRecord {
 
-  private static final int ARCHIVED_STATES_MAX_LENGTH = 40;
+  public  static final long NO_VERSION                 = 0;
+  private static final int  ARCHIVED_STATES_MAX_LENGTH = 40;
 
   private SessionState             sessionState   = new SessionState();
   private LinkedList<SessionState> previousStates = new LinkedList<>();
   private boolean                  fresh          = false;
+  private long                     version        = NO_VERSION;
 
   public SessionRecord() {
     this.fresh = true;
@@ -31,7 +38,10 @@ public class SessionRecord {
   }
 
   public SessionRecord(byte[] serialized) throws IOException {
-    RecordStructure record = RecordStructure.parseFrom(serialized);
+    this(RecordStructure.parseFrom(serialized));
+  }
+
+  SessionRecord(RecordStructure record) {
     this.sessionState = new SessionState(record.getCurrentSession());
     this.fresh        = false;
 
@@ -40,6 +50,24 @@ public class SessionRecord {
     }
   }
 
+  /**
+   * Parse a serialized SessionRecord from the remaining bytes of a buffer, without first copying
+   * them into an intermediate array.
+   *
+   * @param serialized A buffer positioned at the start of the record, limited to its end.
+   * @return the parsed SessionRecord.
+   */
+  public static SessionRecord parse(ByteBuffer serialized) throws IOException {
+    return new SessionRecord(RecordStructure.parseFrom(ProtobufUtil.newCodedInput(serialized)));
+  }
+
+  /**
+   * Parse a serialized SessionRecord, reading the stream until it is exhausted.
+   */
+  public static SessionRecord parse(InputStream serialized) throws IOException {
+    return new SessionRecord(RecordStructure.parseFrom(serialized));
+  }
+
   public boolean hasSessionState(int version, byte[] aliceBaseKey) {
     if (sessionState.getSessionVersion() == version &&
         Arrays.equals(aliceBaseKey, sessionState.getAliceBaseKey()))
@@ -74,6 +102,18 @@ public class SessionRecord {
     return fresh;
   }
 
+  /**
+   * @return the version stamp assigned by the {@link VersionedSessionStore} this record was
+   *         loaded from, or {@link #NO_VERSION} if it has never been stored.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  public void setVersion(long version) {
+    this.version = version;
+  }
+
   /**
    * Move the current {@link SessionState} into the list of "previous" session states,
    * and replace the current {@link org.whispersystems.libsignal.state.SessionState}
@@ -100,18 +140,79 @@ public class SessionRecord {
    * @return a serialized version of the current SessionRecord.
    */
   public byte[] serialize() {
+    return getStructure().toByteArray();
+  }
+
+  /**
+   * Write the serialized SessionRecord to a stream.
+   */
+  public void writeTo(OutputStream output) throws IOException {
+    getStructure().writeTo(output);
+  }
+
+  /**
+   * Write the serialized SessionRecord at the buffer's position, advancing it.
+   *
+   * @throws java.nio.BufferOverflowException if fewer than {@link #serializedSize()} bytes remain.
+   */
+  public void writeTo(ByteBuffer output) {
+    snapshot().writeTo(output);
+  }
+
+  /**
+   * @return the length of the serialized SessionRecord, in bytes.
+   */
+  public int serializedSize() {
+    return snapshot().serializedSize();
+  }
+
+  /**
+   * Capture the serialized form of the record.  Building it walks every session state, so a
+   * caller which needs both the size and the bytes should take one snapshot and use it for both,
+   * rather than calling {@link #serializedSize()} and then {@link #writeTo(ByteBuffer)}.
+   *
+   * @return a snapshot which doesn't reflect later changes to the record.
+   */
+  public Snapshot snapshot() {
+    return new Snapshot(getStructure());
+  }
+
+  RecordStructure getStructure() {
     List<SessionStructure> previousStructures = new LinkedList<>();
 
     for (SessionState previousState : previousStates) {
       previousStructures.add(previousState.getStructure());
     }
 
-    RecordStructure record = RecordStructure.newBuilder()
-                                            .setCurrentSession(sessionState.getStructure())
-                                            .addAllPreviousSessions(previousStructures)
-                                            .build();
+    return RecordStructure.newBuilder()
+                          .setCurrentSession(sessionState.getStructure())
+                          .addAllPreviousSessions(previousStructures)
+                          .build();
+  }
+
+  public static class Snapshot {
+
+    private final RecordStructure structure;
+
+    private Snapshot(RecordStructure structure) {
+      this.structure = structure;
+    }
+
+    /**
+     * @return the length of the serialized SessionRecord, in bytes.
+     */
+    public int serializedSize() {
+      return structure.getSerializedSize();
+    }
 
-    return record.toByteArray();
+    /**
+     * Write the serialized SessionRecord at the buffer's position, advancing it.
+     *
+     * @throws java.nio.BufferOverflowException if fewer than {@link #serializedSize()} bytes remain.
+     */
+    public void writeTo(ByteBuffer output) {
+      ProtobufUtil.writeTo(structure, output);
+    }
   }
 
 }
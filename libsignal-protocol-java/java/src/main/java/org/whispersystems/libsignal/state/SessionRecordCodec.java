@@ -0,0 +1,22 @@
+package org.whispersystems.libsignal.state;
+
+import java.io.IOException;
+
+/**
+ * The on-disk encoding used by a {@link SessionStore} for {@link SessionRecord}s.
+ *
+ * @see ProtobufSessionRecordCodec
+ * @see CompactSessionRecordCodec
+ */
+public interface SessionRecordCodec {
+
+  public byte[] encode(SessionRecord record);
+
+  /**
+   * @param encoded A record produced by this codec's {@link #encode(SessionRecord)}.  Codecs
+   *                may also accept records in other formats, to allow stores to migrate.
+   * @return the decoded record.
+   */
+  public SessionRecord decode(byte[] encoded) throws IOException;
+
+}
@@ -316,16 +316,9 @@ public class SessionState {
   }
 
   public void setMessageKeys(ECPublicKey senderEphemeral, MessageKeys messageKeys) {
-    Pair<Chain,Integer> chainAndIndex       = getReceiverChain(senderEphemeral);
-    Chain               chain               = chainAndIndex.first();
-    Chain.MessageKey    messageKeyStructure = Chain.MessageKey.newBuilder()
-                                                              .setCipherKey(ByteString.copyFrom(messageKeys.getCipherKey().getEncoded()))
-                                                              .setMacKey(ByteString.copyFrom(messageKeys.getMacKey().getEncoded()))
-                                                              .setIndex(messageKeys.getCounter())
-                                                              .setIv(ByteString.copyFrom(messageKeys.getIv().getIV()))
-                                                              .build();
-
-    Chain.Builder updatedChain = chain.toBuilder().addMessageKeys(messageKeyStructure);
+    Pair<Chain,Integer> chainAndIndex = getReceiverChain(senderEphemeral);
+    Chain               chain         = chainAndIndex.first();
+    Chain.Builder       updatedChain  = chain.toBuilder().addMessageKeys(toStructure(messageKeys));
 
     if (updatedChain.getMessageKeysCount() > MAX_MESSAGE_KEYS) {
       updatedChain.removeMessageKeys(0);
@@ -337,6 +330,67 @@ public class SessionState {
                                                  .build();
   }
 
+  /**
+   * Store the message keys for several skipped messages on one receiver chain, rebuilding the
+   * session once rather than once per message.
+   */
+  public void setMessageKeys(ECPublicKey senderEphemeral, List<MessageKeys> messageKeys) {
+    if (messageKeys.isEmpty()) return;
+
+    Pair<Chain,Integer>    chainAndIndex = getReceiverChain(senderEphemeral);
+    Chain                  chain         = chainAndIndex.first();
+    List<Chain.MessageKey> structures    = new LinkedList<>(chain.getMessageKeysList());
+
+    for (MessageKeys keys : messageKeys) {
+      structures.add(toStructure(keys));
+    }
+
+    if (structures.size() > MAX_MESSAGE_KEYS) {
+      structures = structures.subList(structures.size() - MAX_MESSAGE_KEYS, structures.size());
+    }
+
+    Chain updatedChain = chain.toBuilder()
+                              .clearMessageKeys()
+                              .addAllMessageKeys(structures)
+                              .build();
+
+    this.sessionStructure = this.sessionStructure.toBuilder()
+                                                 .setReceiverChains(chainAndIndex.second(), updatedChain)
+                                                 .build();
+  }
+
+  private static Chain.MessageKey toStructure(MessageKeys messageKeys) {
+    return Chain.MessageKey.newBuilder()
+                           .setCipherKey(ByteString.copyFrom(messageKeys.getCipherKey().getEncoded()))
+                           .setMacKey(ByteString.copyFrom(messageKeys.getMacKey().getEncoded()))
+                           .setIndex(messageKeys.getCounter())
+                           .setIv(ByteString.copyFrom(messageKeys.getIv().getIV()))
+                           .build();
+  }
+
+  /**
+   * Discard all skipped message keys held for out-of-order messages on every receiver chain.
+   * Messages that depended on them can no longer be decrypted.
+   *
+   * @return the number of message keys that were discarded.
+   */
+  public int clearMessageKeys() {
+    SessionStructure.Builder builder = this.sessionStructure.toBuilder();
+    int                      cleared = 0;
+
+    for (int i=0;i<builder.getReceiverChainsCount();i++) {
+      Chain chain = builder.getReceiverChains(i);
+
+      if (chain.getMessageKeysCount() > 0) {
+        cleared += chain.getMessageKeysCount();
+        builder.setReceiverChains(i, chain.toBuilder().clearMessageKeys().build());
+      }
+    }
+
+    this.sessionStructure = builder.build();
+    return cleared;
+  }
+
   public void setReceiverChainKey(ECPublicKey senderEphemeral, ChainKey chainKey) {
     Pair<Chain,Integer> chainAndIndex = getReceiverChain(senderEphemeral);
     Chain               chain         = chainAndIndex.first();
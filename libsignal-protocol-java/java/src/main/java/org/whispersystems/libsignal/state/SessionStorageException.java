@@ -0,0 +1,16 @@
+package org.whispersystems.libsignal.state;
+
+/**
+ * Thrown by a {@link SessionStore} when its backing storage fails, for example when a session
+ * can't be read back from disk.  The {@link SessionStore} interface doesn't declare checked
+ * exceptions, so storage failures are surfaced as this unchecked exception instead.
+ */
+public class SessionStorageException extends RuntimeException {
+  public SessionStorageException(String s) {
+    super(s);
+  }
+
+  public SessionStorageException(Exception nested) {
+    super(nested);
+  }
+}
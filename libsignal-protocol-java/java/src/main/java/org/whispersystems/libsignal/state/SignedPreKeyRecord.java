@@ -7,8 +7,12 @@ import org.whispersystems.libsignal.ecc.Curve;
 import org.whispersystems.libsignal.ecc.ECKeyPair;
 import org.whispersystems.libsignal.ecc.ECPrivateKey;
 import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.util.ProtobufUtil;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import static org.whispersystems.libsignal.state.StorageProtos.SignedPreKeyRecordStructure;
 
@@ -29,7 +33,25 @@ public class SignedPreKeyRecord {
   }
 
   public SignedPreKeyRecord(byte[] serialized) throws IOException {
-    this.structure = SignedPreKeyRecordStructure.parseFrom(serialized);
+    this(SignedPreKeyRecordStructure.parseFrom(serialized));
+  }
+
+  private SignedPreKeyRecord(SignedPreKeyRecordStructure structure) {
+    this.structure = structure;
+  }
+
+  /**
+   * Parse a serialized SignedPreKeyRecord from the remaining bytes of a buffer.
+   */
+  public static SignedPreKeyRecord parse(ByteBuffer serialized) throws IOException {
+    return new SignedPreKeyRecord(SignedPreKeyRecordStructure.parseFrom(ProtobufUtil.newCodedInput(serialized)));
+  }
+
+  /**
+   * Parse a serialized SignedPreKeyRecord, reading the stream until it is exhausted.
+   */
+  public static SignedPreKeyRecord parse(InputStream serialized) throws IOException {
+    return new SignedPreKeyRecord(SignedPreKeyRecordStructure.parseFrom(serialized));
   }
 
   public int getId() {
@@ -58,4 +80,27 @@ public class SignedPreKeyRecord {
   public byte[] serialize() {
     return this.structure.toByteArray();
   }
+
+  /**
+   * Write the serialized SignedPreKeyRecord to a stream.
+   */
+  public void writeTo(OutputStream output) throws IOException {
+    this.structure.writeTo(output);
+  }
+
+  /**
+   * Write the serialized SignedPreKeyRecord at the buffer's position, advancing it.
+   *
+   * @throws java.nio.BufferOverflowException if fewer than {@link #serializedSize()} bytes remain.
+   */
+  public void writeTo(ByteBuffer output) {
+    ProtobufUtil.writeTo(this.structure, output);
+  }
+
+  /**
+   * @return the length of the serialized SignedPreKeyRecord, in bytes.
+   */
+  public int serializedSize() {
+    return this.structure.getSerializedSize();
+  }
 }
@@ -0,0 +1,30 @@
+package org.whispersystems.libsignal.state;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+
+/**
+ * An optional extension to {@link SessionStore} for stores that are shared between
+ * multiple nodes, and which can detect concurrent modification of a session.
+ * <p>
+ * Every {@link SessionRecord} returned by {@link #loadSession(SignalProtocolAddress)} carries
+ * the version stamp of the durable record it was loaded from (see {@link SessionRecord#getVersion()}).
+ * A record that does not exist yet has version {@link SessionRecord#NO_VERSION}.
+ */
+public interface VersionedSessionStore extends SessionStore {
+
+  /**
+   * Commit to storage the {@link SessionRecord} for a given recipientId + deviceId tuple, but
+   * only if the durable record has not been modified since it was loaded.
+   * <p>
+   * On success, implementations must assign the record a new version stamp, both durably and
+   * on the passed record instance.
+   *
+   * @param address the address of the remote client.
+   * @param record the current SessionRecord for the remote client.
+   * @param expectedVersion the version stamp the durable record is expected to have.
+   * @return true if the record was stored, false if the durable version no longer matches.
+   */
+  public boolean storeSessionIfVersion(SignalProtocolAddress address, SessionRecord record,
+                                       long expectedVersion);
+
+}
@@ -0,0 +1,305 @@
+package org.whispersystems.libsignal.state.impl;
+
+import org.whispersystems.libsignal.groups.SenderKeyName;
+import org.whispersystems.libsignal.groups.state.SenderKeyRecord;
+import org.whispersystems.libsignal.groups.state.SenderKeyStore;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A {@link SenderKeyStore} for large, busy groups.
+ * <p>
+ * Recently used SenderKeyRecords are kept as live objects in an LRU cache, so the common case of
+ * loading and storing the same sender's record for every message doesn't parse or serialize
+ * anything.  Records that fall out of the cache are kept serialized until they are next used.
+ * The store is split into independently locked segments by {@link SenderKeyName}, and records
+ * are also indexed by group ID, so that all of a group's records can be deleted at once when
+ * the group is torn down.  Stores take a shared lock on their group, and deletes an exclusive
+ * one, so a record is never stored outside of the index while its group is being deleted.
+ * <p>
+ * As the {@link SenderKeyStore} contract requires, records are copied in and out of the store.
+ * Copying a live record is much cheaper than parsing one, as the copy shares its skipped message
+ * keys with the original until one of them is modified.  Records are copied out while their
+ * segment is locked, so that a cached record is never modified while it is being copied.
+ */
+public class CachingSenderKeyStore implements SenderKeyStore {
+
+  private static final int SEGMENTS     = 16;
+  private static final int LOCK_STRIPES = 64;
+
+  private final Segment[]                                     segments   = new Segment[SEGMENTS];
+  private final ReentrantReadWriteLock[]                      groupLocks = new ReentrantReadWriteLock[LOCK_STRIPES];
+  private final ConcurrentHashMap<String, Set<SenderKeyName>> groups     = new ConcurrentHashMap<>();
+
+  /**
+   * @param maxLiveRecords The maximum number of records kept as live objects.  Beyond this,
+   *                       the least recently used records are kept serialized.
+   */
+  public CachingSenderKeyStore(int maxLiveRecords) {
+    for (int i=0;i<SEGMENTS;i++) {
+      segments[i] = new Segment(Math.max(1, maxLiveRecords / SEGMENTS));
+    }
+
+    for (int i=0;i<LOCK_STRIPES;i++) {
+      groupLocks[i] = new ReentrantReadWriteLock();
+    }
+  }
+
+  @Override
+  public void storeSenderKey(SenderKeyName senderKeyName, SenderKeyRecord record) {
+    SenderKeyRecord copy = new SenderKeyRecord(record);
+    Lock            lock = getGroupLock(senderKeyName.getGroupId()).readLock();
+
+    lock.lock();
+
+    try {
+      Set<SenderKeyName> group = groups.get(senderKeyName.getGroupId());
+
+      if (group == null) {
+        Set<SenderKeyName> created = Collections.newSetFromMap(new ConcurrentHashMap<SenderKeyName, Boolean>());
+
+        group = groups.putIfAbsent(senderKeyName.getGroupId(), created);
+        if (group == null) group = created;
+      }
+
+      group.add(senderKeyName);
+      getSegment(senderKeyName).store(senderKeyName, copy);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public SenderKeyRecord loadSenderKey(SenderKeyName senderKeyName) {
+    SenderKeyRecord record = getSegment(senderKeyName).load(senderKeyName);
+
+    if (record == null) return new SenderKeyRecord();
+    else                return record;
+  }
+
+  public boolean containsSenderKey(SenderKeyName senderKeyName) {
+    return getSegment(senderKeyName).contains(senderKeyName);
+  }
+
+  public void deleteSenderKey(SenderKeyName senderKeyName) {
+    Lock lock = getGroupLock(senderKeyName.getGroupId()).writeLock();
+
+    lock.lock();
+
+    try {
+      Set<SenderKeyName> group = groups.get(senderKeyName.getGroupId());
+
+      if (group != null) {
+        group.remove(senderKeyName);
+      }
+
+      getSegment(senderKeyName).delete(senderKeyName);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the names of all stored records for a group.
+   */
+  public List<SenderKeyName> getSenderKeys(String groupId) {
+    Set<SenderKeyName> group = groups.get(groupId);
+
+    if (group == null) return new LinkedList<>();
+    else               return new LinkedList<>(group);
+  }
+
+  /**
+   * Delete every stored record for a group.
+   */
+  public void deleteGroup(String groupId) {
+    Lock lock = getGroupLock(groupId).writeLock();
+
+    lock.lock();
+
+    try {
+      Set<SenderKeyName> group = groups.remove(groupId);
+
+      if (group != null) {
+        for (SenderKeyName senderKeyName : group) {
+          getSegment(senderKeyName).delete(senderKeyName);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getGroupCount() {
+    return groups.size();
+  }
+
+  /**
+   * @return the number of records kept as live objects.
+   */
+  public int getLiveRecordCount() {
+    int count = 0;
+
+    for (Segment segment : segments) {
+      count += segment.getLiveCount();
+    }
+
+    return count;
+  }
+
+  /**
+   * @return the number of records kept serialized.
+   */
+  public int getSerializedRecordCount() {
+    int count = 0;
+
+    for (Segment segment : segments) {
+      count += segment.getSerializedCount();
+    }
+
+    return count;
+  }
+
+  /**
+   * @return the number of bytes held by serialized records.
+   */
+  public long getSerializedBytes() {
+    long bytes = 0;
+
+    for (Segment segment : segments) {
+      bytes += segment.getSerializedBytes();
+    }
+
+    return bytes;
+  }
+
+  /**
+   * @return the total serialized size of the live records.  This walks the cache, and is meant
+   *         for occasional monitoring rather than the message path.
+   */
+  public long getLiveBytes() {
+    long bytes = 0;
+
+    for (Segment segment : segments) {
+      bytes += segment.getLiveBytes();
+    }
+
+    return bytes;
+  }
+
+  private ReentrantReadWriteLock getGroupLock(String groupId) {
+    return groupLocks[(groupId.hashCode() & 0x7FFFFFFF) % LOCK_STRIPES];
+  }
+
+  private Segment getSegment(SenderKeyName senderKeyName) {
+    int hash = senderKeyName.hashCode();
+    return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+  }
+
+  private static class Segment {
+
+    private final Map<SenderKeyName, byte[]>                    serialized = new HashMap<>();
+    private final LinkedHashMap<SenderKeyName, SenderKeyRecord> live;
+
+    private long serializedBytes;
+
+    private Segment(final int maxLiveRecords) {
+      this.live = new LinkedHashMap<SenderKeyName, SenderKeyRecord>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SenderKeyName, SenderKeyRecord> eldest) {
+          if (size() > maxLiveRecords) {
+            byte[] record = eldest.getValue().serialize();
+
+            serialized.put(eldest.getKey(), record);
+            serializedBytes += record.length;
+            return true;
+          }
+
+          return false;
+        }
+      };
+    }
+
+    private synchronized void store(SenderKeyName senderKeyName, SenderKeyRecord record) {
+      removeSerialized(senderKeyName);
+      live.put(senderKeyName, record);
+    }
+
+    /**
+     * @return a copy of the record, or null if there is none.
+     */
+    private synchronized SenderKeyRecord load(SenderKeyName senderKeyName) {
+      SenderKeyRecord record = live.get(senderKeyName);
+
+      if (record != null) {
+        return new SenderKeyRecord(record);
+      }
+
+      byte[] serializedRecord = removeSerialized(senderKeyName);
+
+      if (serializedRecord == null) {
+        return null;
+      }
+
+      try {
+        record = new SenderKeyRecord(serializedRecord);
+        live.put(senderKeyName, record);
+
+        return new SenderKeyRecord(record);
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private synchronized boolean contains(SenderKeyName senderKeyName) {
+      return live.containsKey(senderKeyName) || serialized.containsKey(senderKeyName);
+    }
+
+    private synchronized void delete(SenderKeyName senderKeyName) {
+      live.remove(senderKeyName);
+      removeSerialized(senderKeyName);
+    }
+
+    private synchronized int getLiveCount() {
+      return live.size();
+    }
+
+    private synchronized int getSerializedCount() {
+      return serialized.size();
+    }
+
+    private synchronized long getSerializedBytes() {
+      return serializedBytes;
+    }
+
+    private synchronized long getLiveBytes() {
+      long bytes = 0;
+
+      for (SenderKeyRecord record : live.values()) {
+        bytes += record.serializedSize();
+      }
+
+      return bytes;
+    }
+
+    private byte[] removeSerialized(SenderKeyName senderKeyName) {
+      byte[] record = serialized.remove(senderKeyName);
+
+      if (record != null) {
+        serializedBytes -= record.length;
+      }
+
+      return record;
+    }
+  }
+}
@@ -4,14 +4,14 @@ import org.whispersystems.libsignal.IdentityKey;
 import org.whispersystems.libsignal.IdentityKeyPair;
 import org.whispersystems.libsignal.ecc.Curve;
 import org.whispersystems.libsignal.ecc.ECKeyPair;
-import org.whispersystems.libsignal.state.IdentityKeyStore;
+import org.whispersystems.libsignal.state.BulkIdentityKeyStore;
 
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.HashMap;
 import java.util.Map;
 
-public class InMemoryIdentityKeyStore implements IdentityKeyStore {
+public class InMemoryIdentityKeyStore implements BulkIdentityKeyStore {
 
   private final Map<String, IdentityKey> trustedKeys = new HashMap<>();
 
@@ -34,13 +34,29 @@ public class InMemoryIdentityKeyStore implements IdentityKeyStore {
   }
 
   @Override
-  public void saveIdentity(String name, IdentityKey identityKey) {
+  public synchronized void saveIdentity(String name, IdentityKey identityKey) {
     trustedKeys.put(name, identityKey);
   }
 
   @Override
-  public boolean isTrustedIdentity(String name, IdentityKey identityKey) {
+  public synchronized boolean isTrustedIdentity(String name, IdentityKey identityKey) {
     IdentityKey trusted = trustedKeys.get(name);
     return (trusted == null || trusted.equals(identityKey));
   }
+
+  @Override
+  public synchronized Map<String, Boolean> isTrustedIdentities(Map<String, IdentityKey> identities) {
+    Map<String, Boolean> results = new HashMap<>(identities.size());
+
+    for (Map.Entry<String, IdentityKey> identity : identities.entrySet()) {
+      results.put(identity.getKey(), isTrustedIdentity(identity.getKey(), identity.getValue()));
+    }
+
+    return results;
+  }
+
+  @Override
+  public synchronized void saveIdentities(Map<String, IdentityKey> identities) {
+    trustedKeys.putAll(identities);
+  }
 }
@@ -1,19 +1,20 @@
 package org.whispersystems.libsignal.state.impl;
 
 import org.whispersystems.libsignal.InvalidKeyIdException;
+import org.whispersystems.libsignal.state.BulkPreKeyStore;
 import org.whispersystems.libsignal.state.PreKeyRecord;
-import org.whispersystems.libsignal.state.PreKeyStore;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
-public class InMemoryPreKeyStore implements PreKeyStore {
+public class InMemoryPreKeyStore implements BulkPreKeyStore {
 
   private final Map<Integer, byte[]> store = new HashMap<>();
 
   @Override
-  public PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
+  public synchronized PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
     try {
       if (!store.containsKey(preKeyId)) {
         throw new InvalidKeyIdException("No such prekeyrecord!");
@@ -26,17 +27,34 @@ public class InMemoryPreKeyStore implements PreKeyStore {
   }
 
   @Override
-  public void storePreKey(int preKeyId, PreKeyRecord record) {
+  public synchronized void storePreKey(int preKeyId, PreKeyRecord record) {
     store.put(preKeyId, record.serialize());
   }
 
   @Override
-  public boolean containsPreKey(int preKeyId) {
+  public synchronized boolean containsPreKey(int preKeyId) {
     return store.containsKey(preKeyId);
   }
 
   @Override
-  public void removePreKey(int preKeyId) {
+  public synchronized void removePreKey(int preKeyId) {
     store.remove(preKeyId);
   }
+
+  @Override
+  public synchronized void storePreKeys(List<PreKeyRecord> records) {
+    for (PreKeyRecord record : records) {
+      store.put(record.getId(), record.serialize());
+    }
+  }
+
+  @Override
+  public synchronized void removePreKeys(List<Integer> preKeyIds) {
+    store.keySet().removeAll(preKeyIds);
+  }
+
+  @Override
+  public synchronized int countPreKeys() {
+    return store.size();
+  }
 }
@@ -1,34 +1,71 @@
 package org.whispersystems.libsignal.state.impl;
 
 import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.BulkSessionStore;
+import org.whispersystems.libsignal.state.IncrementalSessionStore;
+import org.whispersystems.libsignal.state.ProtobufSessionRecordCodec;
+import org.whispersystems.libsignal.state.ReplayWindow;
+import org.whispersystems.libsignal.state.ReplayWindowStore;
+import org.whispersystems.libsignal.state.SessionChangeSet;
 import org.whispersystems.libsignal.state.SessionRecord;
-import org.whispersystems.libsignal.state.SessionStore;
+import org.whispersystems.libsignal.state.SessionRecordCodec;
+import org.whispersystems.libsignal.state.VersionedSessionStore;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-public class InMemorySessionStore implements SessionStore {
+public class InMemorySessionStore
+    implements VersionedSessionStore, IncrementalSessionStore, ReplayWindowStore, BulkSessionStore
+{
 
-  private Map<SignalProtocolAddress, byte[]> sessions = new HashMap<>();
+  private static final int MAX_LOGGED_CHANGES = 16;
 
-  public InMemorySessionStore() {}
+
+  private final SessionRecordCodec codec;
+
+  private Map<SignalProtocolAddress, byte[]>       sessions      = new HashMap<>();
+  private Map<SignalProtocolAddress, List<byte[]>> changeLogs    = new HashMap<>();
+  private Map<SignalProtocolAddress, Long>         versions      = new HashMap<>();
+  private Map<SignalProtocolAddress, byte[]>       replayWindows = new HashMap<>();
+  private long                                     lastVersion   = SessionRecord.NO_VERSION;
+
+  public InMemorySessionStore() {
+    this(new ProtobufSessionRecordCodec());
+  }
+
+  public InMemorySessionStore(SessionRecordCodec codec) {
+    this.codec = codec;
+  }
 
   @Override
   public synchronized SessionRecord loadSession(SignalProtocolAddress remoteAddress) {
-    try {
-      if (containsSession(remoteAddress)) {
-        return new SessionRecord(sessions.get(remoteAddress));
-      } else {
-        return new SessionRecord();
-      }
-    } catch (IOException e) {
-      throw new AssertionError(e);
+    if (containsSession(remoteAddress)) {
+      SessionRecord record = materialize(remoteAddress);
+      record.setVersion(versions.get(remoteAddress));
+      return record;
+    } else {
+      return new SessionRecord();
     }
   }
 
+  @Override
+  public synchronized Map<SignalProtocolAddress, SessionRecord> loadSessions(Collection<SignalProtocolAddress> addresses) {
+    Map<SignalProtocolAddress, SessionRecord> results = new HashMap<>(addresses.size());
+
+    for (SignalProtocolAddress address : addresses) {
+      results.put(address, loadSession(address));
+    }
+
+    return results;
+  }
+
   @Override
   public synchronized List<Integer> getDeviceSessions(String name) {
     List<Integer> deviceIds = new LinkedList<>();
@@ -42,9 +79,141 @@ public class InMemorySessionStore implements SessionStore {
     return deviceIds;
   }
 
+  /**
+   * @return the names of all remote clients with at least one stored session.
+   */
+  public synchronized Set<String> getNames() {
+    Set<String> names = new HashSet<>();
+
+    for (SignalProtocolAddress key : sessions.keySet()) {
+      names.add(key.getName());
+    }
+
+    return names;
+  }
+
   @Override
   public synchronized void storeSession(SignalProtocolAddress address, SessionRecord record) {
-    sessions.put(address, record.serialize());
+    storeSession(address, record, lastVersion + 1);
+  }
+
+  /**
+   * Store a session under a version stamp assigned by the caller, rather than by this store.
+   * Later stamps assigned by this store will always be greater than the given one.
+   * <p>
+   * A stamp that isn't greater than the session's current one would let a stale record pass a
+   * later version check, so it is bumped past every stamp this store has used.  The stamp
+   * actually given is set on the passed record.
+   *
+   * @param address the address of the remote client.
+   * @param record the current SessionRecord for the remote client.
+   * @param version the version stamp to give the record.
+   */
+  public synchronized void storeSession(SignalProtocolAddress address, SessionRecord record, long version) {
+    Long currentVersion = versions.get(address);
+
+    if (currentVersion != null && version <= currentVersion) {
+      version = lastVersion + 1;
+    }
+
+    sessions.put(address, codec.encode(record));
+    changeLogs.remove(address);
+    versions.put(address, version);
+    record.setVersion(version);
+
+    lastVersion = Math.max(lastVersion, version);
+  }
+
+  /**
+   * @return the greatest version stamp this store has given any session, or
+   *         {@link SessionRecord#NO_VERSION} if it has never stored one.
+   */
+  public synchronized long getMaxVersion() {
+    return lastVersion;
+  }
+
+  @Override
+  public synchronized void storeSessions(Map<SignalProtocolAddress, SessionRecord> sessions) {
+    for (Map.Entry<SignalProtocolAddress, SessionRecord> session : sessions.entrySet()) {
+      storeSession(session.getKey(), session.getValue());
+    }
+  }
+
+  @Override
+  public synchronized boolean storeSessionIfVersion(SignalProtocolAddress address,
+                                                    SessionRecord record,
+                                                    long expectedVersion)
+  {
+    return storeSessionIfVersion(address, record, expectedVersion, lastVersion + 1);
+  }
+
+  /**
+   * As {@link #storeSessionIfVersion(SignalProtocolAddress, SessionRecord, long)}, but on
+   * success the record is given a version stamp assigned by the caller.  As with
+   * {@link #storeSession(SignalProtocolAddress, SessionRecord, long)}, a stamp that isn't greater
+   * than the current one is bumped.
+   *
+   * @param newVersion the version stamp to give the record if it is stored.
+   */
+  public synchronized boolean storeSessionIfVersion(SignalProtocolAddress address,
+                                                    SessionRecord record,
+                                                    long expectedVersion,
+                                                    long newVersion)
+  {
+    Long currentVersion = versions.get(address);
+
+    if (currentVersion == null && expectedVersion != SessionRecord.NO_VERSION) return false;
+    if (currentVersion != null && currentVersion != expectedVersion)          return false;
+
+    storeSession(address, record, newVersion);
+    return true;
+  }
+
+  /**
+   * Change sets are appended to a per-session log, which is replayed when the session is loaded
+   * and folded back into the stored record once it grows past {@link #MAX_LOGGED_CHANGES}.
+   */
+  @Override
+  public synchronized boolean storeSessionChanges(SignalProtocolAddress address, SessionChangeSet changes) {
+    Long currentVersion = versions.get(address);
+
+    if (currentVersion == null || currentVersion != changes.getBaseVersion()) {
+      return false;
+    }
+
+    List<byte[]> changeLog = changeLogs.get(address);
+
+    if (changeLog == null) {
+      changeLog = new LinkedList<>();
+      changeLogs.put(address, changeLog);
+    }
+
+    changeLog.add(changes.serialize());
+    versions.put(address, ++lastVersion);
+
+    if (changeLog.size() >= MAX_LOGGED_CHANGES) {
+      sessions.put(address, codec.encode(materialize(address)));
+      changeLogs.remove(address);
+    }
+
+    return true;
+  }
+
+  @Override
+  public synchronized ReplayWindow loadReplayWindow(SignalProtocolAddress address) {
+    try {
+      byte[] serialized = replayWindows.get(address);
+
+      if (serialized == null) return new ReplayWindow();
+      else                    return new ReplayWindow(serialized);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public synchronized void storeReplayWindow(SignalProtocolAddress address, ReplayWindow window) {
+    replayWindows.put(address, window.serialize());
   }
 
   @Override
@@ -55,14 +224,41 @@ public class InMemorySessionStore implements SessionStore {
   @Override
   public synchronized void deleteSession(SignalProtocolAddress address) {
     sessions.remove(address);
+    changeLogs.remove(address);
+    versions.remove(address);
+    replayWindows.remove(address);
   }
 
   @Override
   public synchronized void deleteAllSessions(String name) {
-    for (SignalProtocolAddress key : sessions.keySet()) {
+    Iterator<SignalProtocolAddress> keys = sessions.keySet().iterator();
+
+    while (keys.hasNext()) {
+      SignalProtocolAddress key = keys.next();
+
       if (key.getName().equals(name)) {
-        sessions.remove(key);
+        keys.remove();
+        changeLogs.remove(key);
+        versions.remove(key);
+        replayWindows.remove(key);
       }
     }
   }
+
+  private SessionRecord materialize(SignalProtocolAddress address) {
+    try {
+      SessionRecord record    = codec.decode(sessions.get(address));
+      List<byte[]>  changeLog = changeLogs.get(address);
+
+      if (changeLog != null) {
+        for (byte[] changes : changeLog) {
+          new SessionChangeSet(changes).apply(record);
+        }
+      }
+
+      return record;
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
 }
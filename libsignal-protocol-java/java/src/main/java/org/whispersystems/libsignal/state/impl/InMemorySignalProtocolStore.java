@@ -5,13 +5,26 @@ import org.whispersystems.libsignal.IdentityKey;
 import org.whispersystems.libsignal.IdentityKeyPair;
 import org.whispersystems.libsignal.InvalidKeyIdException;
 import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.state.BulkIdentityKeyStore;
+import org.whispersystems.libsignal.state.BulkPreKeyStore;
+import org.whispersystems.libsignal.state.BulkSessionStore;
+import org.whispersystems.libsignal.state.IncrementalSessionStore;
 import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.ReplayWindow;
+import org.whispersystems.libsignal.state.ReplayWindowStore;
+import org.whispersystems.libsignal.state.SessionChangeSet;
 import org.whispersystems.libsignal.state.SessionRecord;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+import org.whispersystems.libsignal.state.VersionedSessionStore;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
-public class InMemorySignalProtocolStore implements SignalProtocolStore {
+public class InMemorySignalProtocolStore
+    implements SignalProtocolStore, VersionedSessionStore, IncrementalSessionStore, ReplayWindowStore,
+               BulkPreKeyStore, BulkIdentityKeyStore, BulkSessionStore
+{
 
   private final InMemoryPreKeyStore       preKeyStore       = new InMemoryPreKeyStore();
   private final InMemorySessionStore      sessionStore      = new InMemorySessionStore();
@@ -43,6 +56,16 @@ public class InMemorySignalProtocolStore implements SignalProtocolStore {
     return identityKeyStore.isTrustedIdentity(name, identityKey);
   }
 
+  @Override
+  public Map<String, Boolean> isTrustedIdentities(Map<String, IdentityKey> identities) {
+    return identityKeyStore.isTrustedIdentities(identities);
+  }
+
+  @Override
+  public void saveIdentities(Map<String, IdentityKey> identities) {
+    identityKeyStore.saveIdentities(identities);
+  }
+
   @Override
   public PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
     return preKeyStore.loadPreKey(preKeyId);
@@ -63,11 +86,31 @@ public class InMemorySignalProtocolStore implements SignalProtocolStore {
     preKeyStore.removePreKey(preKeyId);
   }
 
+  @Override
+  public void storePreKeys(List<PreKeyRecord> records) {
+    preKeyStore.storePreKeys(records);
+  }
+
+  @Override
+  public void removePreKeys(List<Integer> preKeyIds) {
+    preKeyStore.removePreKeys(preKeyIds);
+  }
+
+  @Override
+  public int countPreKeys() {
+    return preKeyStore.countPreKeys();
+  }
+
   @Override
   public SessionRecord loadSession(SignalProtocolAddress address) {
     return sessionStore.loadSession(address);
   }
 
+  @Override
+  public Map<SignalProtocolAddress, SessionRecord> loadSessions(Collection<SignalProtocolAddress> addresses) {
+    return sessionStore.loadSessions(addresses);
+  }
+
   @Override
   public List<Integer> getDeviceSessions(String name) {
     return sessionStore.getDeviceSessions(name);
@@ -78,6 +121,31 @@ public class InMemorySignalProtocolStore implements SignalProtocolStore {
     sessionStore.storeSession(address, record);
   }
 
+  @Override
+  public void storeSessions(Map<SignalProtocolAddress, SessionRecord> sessions) {
+    sessionStore.storeSessions(sessions);
+  }
+
+  @Override
+  public boolean storeSessionIfVersion(SignalProtocolAddress address, SessionRecord record, long expectedVersion) {
+    return sessionStore.storeSessionIfVersion(address, record, expectedVersion);
+  }
+
+  @Override
+  public boolean storeSessionChanges(SignalProtocolAddress address, SessionChangeSet changes) {
+    return sessionStore.storeSessionChanges(address, changes);
+  }
+
+  @Override
+  public ReplayWindow loadReplayWindow(SignalProtocolAddress address) {
+    return sessionStore.loadReplayWindow(address);
+  }
+
+  @Override
+  public void storeReplayWindow(SignalProtocolAddress address, ReplayWindow window) {
+    sessionStore.storeReplayWindow(address, window);
+  }
+
   @Override
   public boolean containsSession(SignalProtocolAddress address) {
     return sessionStore.containsSession(address);
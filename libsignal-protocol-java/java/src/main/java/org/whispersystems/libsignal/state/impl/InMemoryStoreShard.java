@@ -0,0 +1,153 @@
+package org.whispersystems.libsignal.state.impl;
+
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.groups.SenderKeyName;
+import org.whispersystems.libsignal.groups.state.SenderKeyRecord;
+import org.whispersystems.libsignal.state.ReplayWindow;
+import org.whispersystems.libsignal.state.SessionRecord;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class InMemoryStoreShard implements StoreShard {
+
+  private final InMemorySessionStore       sessionStore = new InMemorySessionStore();
+  private final Map<String, IdentityKey>   identities   = new HashMap<>();
+  private final Map<SenderKeyName, byte[]> senderKeys   = new HashMap<>();
+
+  @Override
+  public long getMaxVersion() {
+    return sessionStore.getMaxVersion();
+  }
+
+  @Override
+  public synchronized Set<String> getNames() {
+    Set<String> names = new HashSet<>(sessionStore.getNames());
+    names.addAll(identities.keySet());
+
+    for (SenderKeyName senderKeyName : senderKeys.keySet()) {
+      names.add(senderKeyName.getSender().getName());
+    }
+
+    return names;
+  }
+
+  @Override
+  public synchronized IdentityKey loadIdentity(String name) {
+    return identities.get(name);
+  }
+
+  @Override
+  public synchronized void saveIdentity(String name, IdentityKey identityKey) {
+    identities.put(name, identityKey);
+  }
+
+  @Override
+  public synchronized boolean isTrustedIdentity(String name, IdentityKey identityKey) {
+    IdentityKey trusted = identities.get(name);
+    return (trusted == null || trusted.equals(identityKey));
+  }
+
+  @Override
+  public synchronized void deleteIdentity(String name) {
+    identities.remove(name);
+  }
+
+  @Override
+  public synchronized List<SenderKeyName> getSenderKeys(String name) {
+    List<SenderKeyName> results = new LinkedList<>();
+
+    for (SenderKeyName senderKeyName : senderKeys.keySet()) {
+      if (senderKeyName.getSender().getName().equals(name)) {
+        results.add(senderKeyName);
+      }
+    }
+
+    return results;
+  }
+
+  @Override
+  public synchronized void storeSenderKey(SenderKeyName senderKeyName, SenderKeyRecord record) {
+    senderKeys.put(senderKeyName, record.serialize());
+  }
+
+  @Override
+  public synchronized SenderKeyRecord loadSenderKey(SenderKeyName senderKeyName) {
+    try {
+      byte[] serialized = senderKeys.get(senderKeyName);
+
+      if (serialized == null) return new SenderKeyRecord();
+      else                    return new SenderKeyRecord(serialized);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public synchronized void deleteSenderKey(SenderKeyName senderKeyName) {
+    senderKeys.remove(senderKeyName);
+  }
+
+  @Override
+  public SessionRecord loadSession(SignalProtocolAddress address) {
+    return sessionStore.loadSession(address);
+  }
+
+  @Override
+  public List<Integer> getDeviceSessions(String name) {
+    return sessionStore.getDeviceSessions(name);
+  }
+
+  @Override
+  public void storeSession(SignalProtocolAddress address, SessionRecord record) {
+    sessionStore.storeSession(address, record);
+  }
+
+  @Override
+  public boolean storeSessionIfVersion(SignalProtocolAddress address, SessionRecord record, long expectedVersion) {
+    return sessionStore.storeSessionIfVersion(address, record, expectedVersion);
+  }
+
+  @Override
+  public void storeSession(SignalProtocolAddress address, SessionRecord record, long version) {
+    sessionStore.storeSession(address, record, version);
+  }
+
+  @Override
+  public boolean storeSessionIfVersion(SignalProtocolAddress address, SessionRecord record,
+                                       long expectedVersion, long newVersion)
+  {
+    return sessionStore.storeSessionIfVersion(address, record, expectedVersion, newVersion);
+  }
+
+  @Override
+  public ReplayWindow loadReplayWindow(SignalProtocolAddress address) {
+    return sessionStore.loadReplayWindow(address);
+  }
+
+  @Override
+  public void storeReplayWindow(SignalProtocolAddress address, ReplayWindow window) {
+    sessionStore.storeReplayWindow(address, window);
+  }
+
+  @Override
+  public boolean containsSession(SignalProtocolAddress address) {
+    return sessionStore.containsSession(address);
+  }
+
+  @Override
+  public void deleteSession(SignalProtocolAddress address) {
+    sessionStore.deleteSession(address);
+  }
+
+  @Override
+  public void deleteAllSessions(String name) {
+    sessionStore.deleteAllSessions(name);
+  }
+}
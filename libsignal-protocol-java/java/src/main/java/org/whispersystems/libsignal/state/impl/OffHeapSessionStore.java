@@ -0,0 +1,376 @@
+package org.whispersystems.libsignal.state.impl;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.ReplayWindow;
+import org.whispersystems.libsignal.state.ReplayWindowStore;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionStore;
+import org.whispersystems.libsignal.util.SlabAllocator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A SessionStore which keeps serialized sessions outside of the Java heap.
+ * <p>
+ * Each session is written into a chunk handed out by a {@link SlabAllocator}, either from direct
+ * buffers or from a memory-mapped file.  Chunks are found through an open-addressing index of
+ * primitive arrays, so the store holds no per-session objects on the heap.  A chunk holds
+ * the session's address followed by the serialized record:
+ * <pre>
+ *   [name length (4)][name chars (2 * n)][device id (4)][record length (4)][record]
+ * </pre>
+ * Records are parsed directly from a view of the chunk when loaded, and chunks are returned
+ * to the allocator as soon as a session is deleted.
+ * <p>
+ * A session's {@link ReplayWindow} is kept in a second chunk beside the session's, found through
+ * the same slot of the index, and is freed along with the session:
+ * <pre>
+ *   [window length (4)][window]
+ * </pre>
+ */
+public class OffHeapSessionStore implements SessionStore, ReplayWindowStore {
+
+  private static final long  EMPTY         = -1;
+  private static final int   INITIAL_SLOTS  = 64;
+  private static final float MAX_LOAD      = 0.6f;
+
+  private final SlabAllocator allocator;
+
+  private long[] hashes  = new long[INITIAL_SLOTS];
+  private long[] handles = new long[INITIAL_SLOTS];
+  private long[] windows = new long[INITIAL_SLOTS];
+  private int    size    = 0;
+
+  /**
+   * Create a store backed by direct buffers.
+   *
+   * @param slabSize The size of each off-heap slab, a power of two.
+   */
+  public OffHeapSessionStore(int slabSize) {
+    this(SlabAllocator.createDirect(slabSize));
+  }
+
+  /**
+   * Create a store backed by memory-mapped regions of a file.  The file is scratch space only;
+   * sessions are not recovered from it after a restart.
+   *
+   * @param channel A read/write channel to the backing file.
+   * @param slabSize The size of each mapped slab, a power of two.
+   */
+  public OffHeapSessionStore(FileChannel channel, int slabSize) {
+    this(SlabAllocator.createMapped(channel, slabSize));
+  }
+
+  private OffHeapSessionStore(SlabAllocator allocator) {
+    this.allocator = allocator;
+    Arrays.fill(handles, EMPTY);
+    Arrays.fill(windows, EMPTY);
+  }
+
+  @Override
+  public synchronized SessionRecord loadSession(SignalProtocolAddress address) {
+    int slot = findSlot(address);
+
+    if (slot == -1) {
+      return new SessionRecord();
+    }
+
+    try {
+      long       handle = handles[slot];
+      ByteBuffer view   = allocator.getBuffer(handle).duplicate();
+      int        offset = getRecordOffset(view, allocator.getOffset(handle));
+
+      view.limit(offset + view.getInt(offset - 4));
+      view.position(offset);
+
+      return SessionRecord.parse(view);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public synchronized List<Integer> getDeviceSessions(String name) {
+    List<Integer> deviceIds = new LinkedList<>();
+
+    for (long handle : handles) {
+      if (handle != EMPTY) {
+        ByteBuffer buffer = allocator.getBuffer(handle);
+        int        offset = allocator.getOffset(handle);
+
+        if (nameEquals(buffer, offset, name)) {
+          deviceIds.add(buffer.getInt(offset + 4 + 2 * name.length()));
+        }
+      }
+    }
+
+    return deviceIds;
+  }
+
+  @Override
+  public synchronized void storeSession(SignalProtocolAddress address, SessionRecord record) {
+    try {
+      SessionRecord.Snapshot snapshot   = record.snapshot();
+      int                    recordSize = snapshot.serializedSize();
+      String                 name       = address.getName();
+      long                   chunkSize  = 4 + 2L * name.length() + 4 + 4 + recordSize;
+      int                    slot       = findSlot(address);
+      long                   handle;
+
+      if (chunkSize > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Session too large to store: " + chunkSize + " bytes");
+      }
+
+      if (slot != -1 && allocator.getCapacity(handles[slot]) >= chunkSize) {
+        handle = handles[slot];
+      } else {
+        handle = allocator.allocate((int)chunkSize);
+
+        if (slot != -1) {
+          allocator.free(handles[slot]);
+          handles[slot] = handle;
+        } else {
+          insert(hash(address), handle, EMPTY);
+        }
+      }
+
+      ByteBuffer buffer = allocator.getBuffer(handle);
+      int        offset = allocator.getOffset(handle);
+
+      buffer.putInt(offset, name.length());
+      offset += 4;
+
+      for (int i=0;i<name.length();i++) {
+        buffer.putChar(offset, name.charAt(i));
+        offset += 2;
+      }
+
+      buffer.putInt(offset, address.getDeviceId());
+      buffer.putInt(offset + 4, recordSize);
+
+      ByteBuffer view = buffer.duplicate();
+      view.position(offset + 8);
+      snapshot.writeTo(view);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public synchronized ReplayWindow loadReplayWindow(SignalProtocolAddress address) {
+    int slot = findSlot(address);
+
+    if (slot == -1 || windows[slot] == EMPTY) {
+      return new ReplayWindow();
+    }
+
+    try {
+      ByteBuffer view       = allocator.getBuffer(windows[slot]).duplicate();
+      byte[]     serialized = new byte[view.getInt(allocator.getOffset(windows[slot]))];
+
+      view.position(allocator.getOffset(windows[slot]) + 4);
+      view.get(serialized);
+
+      return new ReplayWindow(serialized);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * The window is only kept while there is a session for the address.
+   */
+  @Override
+  public synchronized void storeReplayWindow(SignalProtocolAddress address, ReplayWindow window) {
+    int slot = findSlot(address);
+
+    if (slot == -1) {
+      return;
+    }
+
+    try {
+      byte[] serialized = window.serialize();
+
+      if (windows[slot] == EMPTY || allocator.getCapacity(windows[slot]) < 4 + serialized.length) {
+        long handle = allocator.allocate(4 + serialized.length);
+
+        if (windows[slot] != EMPTY) {
+          allocator.free(windows[slot]);
+        }
+
+        windows[slot] = handle;
+      }
+
+      ByteBuffer view = allocator.getBuffer(windows[slot]).duplicate();
+
+      view.putInt(allocator.getOffset(windows[slot]), serialized.length);
+      view.position(allocator.getOffset(windows[slot]) + 4);
+      view.put(serialized);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public synchronized boolean containsSession(SignalProtocolAddress address) {
+    return findSlot(address) != -1;
+  }
+
+  @Override
+  public synchronized void deleteSession(SignalProtocolAddress address) {
+    int slot = findSlot(address);
+
+    if (slot != -1) {
+      allocator.free(handles[slot]);
+
+      if (windows[slot] != EMPTY) {
+        allocator.free(windows[slot]);
+      }
+
+      remove(slot);
+    }
+  }
+
+  @Override
+  public synchronized void deleteAllSessions(String name) {
+    for (Integer deviceId : getDeviceSessions(name)) {
+      deleteSession(new SignalProtocolAddress(name, deviceId));
+    }
+  }
+
+  public synchronized int getSessionCount() {
+    return size;
+  }
+
+  /**
+   * @return the number of off-heap bytes held in slabs, whether or not they are in use.
+   */
+  public synchronized long getReservedBytes() {
+    return allocator.getReservedBytes();
+  }
+
+  /**
+   * @return the number of off-heap bytes in chunks currently holding sessions.
+   */
+  public synchronized long getAllocatedBytes() {
+    return allocator.getAllocatedBytes();
+  }
+
+  private int findSlot(SignalProtocolAddress address) {
+    long hash = hash(address);
+    int  mask = handles.length - 1;
+
+    for (int slot=(int)hash & mask;handles[slot] != EMPTY;slot=(slot + 1) & mask) {
+      if (hashes[slot] == hash && addressEquals(handles[slot], address)) {
+        return slot;
+      }
+    }
+
+    return -1;
+  }
+
+  private void insert(long hash, long handle, long window) {
+    if (size + 1 > handles.length * MAX_LOAD) {
+      resize(handles.length * 2);
+    }
+
+    int mask = handles.length - 1;
+    int slot = (int)hash & mask;
+
+    while (handles[slot] != EMPTY) {
+      slot = (slot + 1) & mask;
+    }
+
+    hashes[slot]  = hash;
+    handles[slot] = handle;
+    windows[slot] = window;
+    size++;
+  }
+
+  private void remove(int slot) {
+    int mask = handles.length - 1;
+    int next = (slot + 1) & mask;
+
+    while (handles[next] != EMPTY) {
+      int home = (int)hashes[next] & mask;
+
+      if (((next - home) & mask) >= ((next - slot) & mask)) {
+        hashes[slot]  = hashes[next];
+        handles[slot] = handles[next];
+        windows[slot] = windows[next];
+        slot          = next;
+      }
+
+      next = (next + 1) & mask;
+    }
+
+    handles[slot] = EMPTY;
+    windows[slot] = EMPTY;
+    size--;
+  }
+
+  private void resize(int slots) {
+    long[] oldHashes  = hashes;
+    long[] oldHandles = handles;
+    long[] oldWindows = windows;
+
+    hashes  = new long[slots];
+    handles = new long[slots];
+    windows = new long[slots];
+    size    = 0;
+
+    Arrays.fill(handles, EMPTY);
+    Arrays.fill(windows, EMPTY);
+
+    for (int i=0;i<oldHandles.length;i++) {
+      if (oldHandles[i] != EMPTY) {
+        insert(oldHashes[i], oldHandles[i], oldWindows[i]);
+      }
+    }
+  }
+
+  private boolean addressEquals(long handle, SignalProtocolAddress address) {
+    ByteBuffer buffer = allocator.getBuffer(handle);
+    int        offset = allocator.getOffset(handle);
+    String     name   = address.getName();
+
+    return nameEquals(buffer, offset, name) &&
+           buffer.getInt(offset + 4 + 2 * name.length()) == address.getDeviceId();
+  }
+
+  private static boolean nameEquals(ByteBuffer buffer, int offset, String name) {
+    if (buffer.getInt(offset) != name.length()) {
+      return false;
+    }
+
+    for (int i=0;i<name.length();i++) {
+      if (buffer.getChar(offset + 4 + 2 * i) != name.charAt(i)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static int getRecordOffset(ByteBuffer buffer, int offset) {
+    return offset + 4 + 2 * buffer.getInt(offset) + 4 + 4;
+  }
+
+  private static long hash(SignalProtocolAddress address) {
+    String name = address.getName();
+    long   hash = 0xcbf29ce484222325L;
+
+    for (int i=0;i<name.length();i++) {
+      hash = (hash ^ name.charAt(i)) * 0x100000001b3L;
+    }
+
+    hash = (hash ^ address.getDeviceId()) * 0x100000001b3L;
+
+    return hash ^ (hash >>> 32);
+  }
+}
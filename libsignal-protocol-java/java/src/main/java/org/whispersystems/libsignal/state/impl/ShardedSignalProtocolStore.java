@@ -0,0 +1,491 @@
+package org.whispersystems.libsignal.state.impl;
+
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.InvalidKeyIdException;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.groups.SenderKeyName;
+import org.whispersystems.libsignal.groups.state.SenderKeyRecord;
+import org.whispersystems.libsignal.groups.state.SenderKeyStore;
+import org.whispersystems.libsignal.logging.Log;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.PreKeyStore;
+import org.whispersystems.libsignal.state.ReplayWindow;
+import org.whispersystems.libsignal.state.ReplayWindowStore;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+import org.whispersystems.libsignal.state.SignedPreKeyStore;
+import org.whispersystems.libsignal.state.VersionedSessionStore;
+import org.whispersystems.libsignal.util.ConsistentHashRing;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A {@link SignalProtocolStore} which partitions all per-recipient state across a number of
+ * {@link StoreShard}s, using consistent hashing on the recipient name.
+ * <p>
+ * Sessions and their replay windows, identity keys, and sender keys are routed to the shard
+ * which owns the remote client's name.  The local identity key pair and the local PreKey stores are not partitioned,
+ * and are shared by all shards.
+ * <p>
+ * Shards can be added and removed while the store is in use.  Rebalancing moves the serialized
+ * state of every recipient that changes owner from the old shard to the new one, one recipient
+ * at a time.  Only operations on the recipient currently being moved are blocked.
+ * <p>
+ * Session version stamps are assigned by the router from a single counter, rather than by each
+ * shard, and are carried along when a session is moved.  A stamp read from one shard therefore
+ * can never match an unrelated record on another.  The counter is seeded from each shard's
+ * greatest stamp as it is added, so that shards which persist their sessions are never handed a
+ * stamp they have already used.
+ */
+public class ShardedSignalProtocolStore
+    implements SignalProtocolStore, VersionedSessionStore, ReplayWindowStore, SenderKeyStore
+{
+
+  private static final String TAG          = ShardedSignalProtocolStore.class.getSimpleName();
+  private static final int    LOCK_STRIPES = 256;
+
+  private final IdentityKeyPair          identityKeyPair;
+  private final int                      localRegistrationId;
+  private final PreKeyStore              preKeyStore;
+  private final SignedPreKeyStore        signedPreKeyStore;
+  private final ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[LOCK_STRIPES];
+  private final Object                   rebalanceLock = new Object();
+  private final AtomicLong               versions      = new AtomicLong(SessionRecord.NO_VERSION);
+
+  private volatile ConsistentHashRing<StoreShard> ring;
+  private volatile Rebalance                      rebalance;
+
+  public ShardedSignalProtocolStore(IdentityKeyPair identityKeyPair, int localRegistrationId,
+                                    PreKeyStore preKeyStore, SignedPreKeyStore signedPreKeyStore,
+                                    int virtualNodes)
+  {
+    this.identityKeyPair     = identityKeyPair;
+    this.localRegistrationId = localRegistrationId;
+    this.preKeyStore         = preKeyStore;
+    this.signedPreKeyStore   = signedPreKeyStore;
+    this.ring                = new ConsistentHashRing<>(virtualNodes);
+
+    for (int i=0;i<locks.length;i++) {
+      locks[i] = new ReentrantReadWriteLock();
+    }
+  }
+
+  /**
+   * Add a shard, and move all recipients that it now owns onto it.
+   *
+   * @param shardId A unique, stable identifier for the shard.
+   * @param shard The shard.
+   */
+  public void addShard(String shardId, StoreShard shard) {
+    synchronized (rebalanceLock) {
+      if (ring.getNodes().containsKey(shardId)) {
+        throw new IllegalArgumentException("Shard already exists: " + shardId);
+      }
+
+      advanceVersions(shard.getMaxVersion());
+      rebalance(ring.withNode(shardId, shard));
+    }
+  }
+
+  /**
+   * Move all recipients off of a shard, and then remove it.
+   *
+   * @param shardId The identifier the shard was added with.
+   */
+  public void removeShard(String shardId) {
+    synchronized (rebalanceLock) {
+      if (!ring.getNodes().containsKey(shardId)) {
+        throw new IllegalArgumentException("No such shard: " + shardId);
+      }
+
+      if (ring.getNodes().size() == 1 && !ring.getNode(shardId).getNames().isEmpty()) {
+        throw new IllegalStateException("Can't remove the last shard while it holds state!");
+      }
+
+      rebalance(ring.withoutNode(shardId));
+    }
+  }
+
+  public Map<String, StoreShard> getShards() {
+    return ring.getNodes();
+  }
+
+  private void rebalance(ConsistentHashRing<StoreShard> target) {
+    ConsistentHashRing<StoreShard> source = ring;
+
+    if (source.isEmpty() || target.isEmpty()) {
+      ring = target;
+      return;
+    }
+
+    Rebalance pending = new Rebalance(source, target);
+    int       moved   = 0;
+
+    this.rebalance = pending;
+
+    for (Map.Entry<String, StoreShard> shard : source.getNodes().entrySet()) {
+      for (String name : shard.getValue().getNames()) {
+        if (shard.getKey().equals(source.getNodeId(name)) && pending.isAffected(name)) {
+          Lock lock = getLock(name).writeLock();
+          lock.lock();
+
+          try {
+            if (migrate(name, pending)) moved++;
+          } finally {
+            lock.unlock();
+          }
+        }
+      }
+    }
+
+    this.ring      = target;
+    this.rebalance = null;
+
+    Log.i(TAG, "Rebalanced onto " + target.getNodes().size() + " shards, moved " + moved + " recipients.");
+  }
+
+  private boolean migrate(String name, Rebalance pending) {
+    if (pending.isMoved(name)) {
+      return false;
+    }
+
+    try {
+      StoreShard source = pending.source.getNode(name);
+      StoreShard target = pending.target.getNode(name);
+
+      List<Integer>       deviceIds   = source.getDeviceSessions(name);
+      List<SenderKeyName> senderKeys  = source.getSenderKeys(name);
+      IdentityKey         identityKey = source.loadIdentity(name);
+
+      for (int deviceId : deviceIds) {
+        SignalProtocolAddress address = new SignalProtocolAddress(name, deviceId);
+        SessionRecord         record  = source.loadSession(address);
+        SessionRecord         moved   = new SessionRecord(record.serialize());
+
+        target.storeSession(address, moved, record.getVersion());
+        target.storeReplayWindow(address, source.loadReplayWindow(address));
+        advanceVersions(moved.getVersion());
+      }
+
+      for (SenderKeyName senderKeyName : senderKeys) {
+        byte[] serialized = source.loadSenderKey(senderKeyName).serialize();
+        target.storeSenderKey(senderKeyName, new SenderKeyRecord(serialized));
+      }
+
+      if (identityKey != null) {
+        target.saveIdentity(name, identityKey);
+      }
+
+      pending.setMoved(name);
+
+      source.deleteAllSessions(name);
+      source.deleteIdentity(name);
+
+      for (SenderKeyName senderKeyName : senderKeys) {
+        source.deleteSenderKey(senderKeyName);
+      }
+
+      return true;
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Resolve the shard which owns a recipient, and lock the recipient against being moved.
+   * The returned route must be released once the operation on the shard is complete.
+   */
+  private Route route(String name) {
+    ReentrantReadWriteLock lock = getLock(name);
+
+    while (true) {
+      lock.readLock().lock();
+
+      Rebalance                      pending = this.rebalance;
+      ConsistentHashRing<StoreShard> current = this.ring;
+
+      if (pending == null) {
+        return new Route(current.getNode(name), lock.readLock());
+      }
+
+      if (!pending.isAffected(name) || pending.isMoved(name)) {
+        return new Route(pending.target.getNode(name), lock.readLock());
+      }
+
+      lock.readLock().unlock();
+      lock.writeLock().lock();
+
+      try {
+        migrate(name, pending);
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * Move the version counter past a stamp that a shard already holds, if it isn't already.
+   */
+  private void advanceVersions(long version) {
+    long current = versions.get();
+
+    while (current < version && !versions.compareAndSet(current, version)) {
+      current = versions.get();
+    }
+  }
+
+  private ReentrantReadWriteLock getLock(String name) {
+    return locks[(name.hashCode() & 0x7FFFFFFF) % locks.length];
+  }
+
+  @Override
+  public IdentityKeyPair getIdentityKeyPair() {
+    return identityKeyPair;
+  }
+
+  @Override
+  public int getLocalRegistrationId() {
+    return localRegistrationId;
+  }
+
+  @Override
+  public void saveIdentity(String name, IdentityKey identityKey) {
+    Route route = route(name);
+
+    try {
+      route.shard.saveIdentity(name, identityKey);
+    } finally {
+      route.release();
+    }
+  }
+
+  @Override
+  public boolean isTrustedIdentity(String name, IdentityKey identityKey) {
+    Route route = route(name);
+
+    try {
+      return route.shard.isTrustedIdentity(name, identityKey);
+    } finally {
+      route.release();
+    }
+  }
+
+  @Override
+  public SessionRecord loadSession(SignalProtocolAddress address) {
+    Route route = route(address.getName());
+
+    try {
+      return route.shard.loadSession(address);
+    } finally {
+      route.release();
+    }
+  }
+
+  @Override
+  public List<Integer> getDeviceSessions(String name) {
+    Route route = route(name);
+
+    try {
+      return route.shard.getDeviceSessions(name);
+    } finally {
+      route.release();
+    }
+  }
+
+  @Override
+  public void storeSession(SignalProtocolAddress address, SessionRecord record) {
+    Route route = route(address.getName());
+
+    try {
+      route.shard.storeSession(address, record, versions.incrementAndGet());
+      advanceVersions(record.getVersion());
+    } finally {
+      route.release();
+    }
+  }
+
+  @Override
+  public boolean storeSessionIfVersion(SignalProtocolAddress address, SessionRecord record, long expectedVersion) {
+    Route route = route(address.getName());
+
+    try {
+      if (route.shard.storeSessionIfVersion(address, record, expectedVersion, versions.incrementAndGet())) {
+        advanceVersions(record.getVersion());
+        return true;
+      }
+
+      return false;
+    } finally {
+      route.release();
+    }
+  }
+
+  @Override
+  public ReplayWindow loadReplayWindow(SignalProtocolAddress address) {
+    Route route = route(address.getName());
+
+    try {
+      return route.shard.loadReplayWindow(address);
+    } finally {
+      route.release();
+    }
+  }
+
+  @Override
+  public void storeReplayWindow(SignalProtocolAddress address, ReplayWindow window) {
+    Route route = route(address.getName());
+
+    try {
+      route.shard.storeReplayWindow(address, window);
+    } finally {
+      route.release();
+    }
+  }
+
+  @Override
+  public boolean containsSession(SignalProtocolAddress address) {
+    Route route = route(address.getName());
+
+    try {
+      return route.shard.containsSession(address);
+    } finally {
+      route.release();
+    }
+  }
+
+  @Override
+  public void deleteSession(SignalProtocolAddress address) {
+    Route route = route(address.getName());
+
+    try {
+      route.shard.deleteSession(address);
+    } finally {
+      route.release();
+    }
+  }
+
+  @Override
+  public void deleteAllSessions(String name) {
+    Route route = route(name);
+
+    try {
+      route.shard.deleteAllSessions(name);
+    } finally {
+      route.release();
+    }
+  }
+
+  @Override
+  public void storeSenderKey(SenderKeyName senderKeyName, SenderKeyRecord record) {
+    Route route = route(senderKeyName.getSender().getName());
+
+    try {
+      route.shard.storeSenderKey(senderKeyName, record);
+    } finally {
+      route.release();
+    }
+  }
+
+  @Override
+  public SenderKeyRecord loadSenderKey(SenderKeyName senderKeyName) {
+    Route route = route(senderKeyName.getSender().getName());
+
+    try {
+      return route.shard.loadSenderKey(senderKeyName);
+    } finally {
+      route.release();
+    }
+  }
+
+  @Override
+  public PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
+    return preKeyStore.loadPreKey(preKeyId);
+  }
+
+  @Override
+  public void storePreKey(int preKeyId, PreKeyRecord record) {
+    preKeyStore.storePreKey(preKeyId, record);
+  }
+
+  @Override
+  public boolean containsPreKey(int preKeyId) {
+    return preKeyStore.containsPreKey(preKeyId);
+  }
+
+  @Override
+  public void removePreKey(int preKeyId) {
+    preKeyStore.removePreKey(preKeyId);
+  }
+
+  @Override
+  public SignedPreKeyRecord loadSignedPreKey(int signedPreKeyId) throws InvalidKeyIdException {
+    return signedPreKeyStore.loadSignedPreKey(signedPreKeyId);
+  }
+
+  @Override
+  public List<SignedPreKeyRecord> loadSignedPreKeys() {
+    return signedPreKeyStore.loadSignedPreKeys();
+  }
+
+  @Override
+  public void storeSignedPreKey(int signedPreKeyId, SignedPreKeyRecord record) {
+    signedPreKeyStore.storeSignedPreKey(signedPreKeyId, record);
+  }
+
+  @Override
+  public boolean containsSignedPreKey(int signedPreKeyId) {
+    return signedPreKeyStore.containsSignedPreKey(signedPreKeyId);
+  }
+
+  @Override
+  public void removeSignedPreKey(int signedPreKeyId) {
+    signedPreKeyStore.removeSignedPreKey(signedPreKeyId);
+  }
+
+  private static class Route {
+    private final StoreShard shard;
+    private final Lock       lock;
+
+    private Route(StoreShard shard, Lock lock) {
+      this.shard = shard;
+      this.lock  = lock;
+    }
+
+    private void release() {
+      lock.unlock();
+    }
+  }
+
+  private static class Rebalance {
+    private final ConsistentHashRing<StoreShard> source;
+    private final ConsistentHashRing<StoreShard> target;
+    private final Set<String>                    moved = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private Rebalance(ConsistentHashRing<StoreShard> source, ConsistentHashRing<StoreShard> target) {
+      this.source = source;
+      this.target = target;
+    }
+
+    private boolean isAffected(String name) {
+      return !source.getNodeId(name).equals(target.getNodeId(name));
+    }
+
+    private boolean isMoved(String name) {
+      return moved.contains(name);
+    }
+
+    private void setMoved(String name) {
+      moved.add(name);
+    }
+  }
+}
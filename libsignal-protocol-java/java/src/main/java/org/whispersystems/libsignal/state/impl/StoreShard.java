@@ -0,0 +1,92 @@
+package org.whispersystems.libsignal.state.impl;
+
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.groups.SenderKeyName;
+import org.whispersystems.libsignal.groups.state.SenderKeyStore;
+import org.whispersystems.libsignal.state.ReplayWindowStore;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.VersionedSessionStore;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A single node behind a {@link ShardedSignalProtocolStore}.
+ * <p>
+ * A shard holds all of the per-recipient state (sessions and their replay windows, identity keys,
+ * and sender keys) for the recipient names it owns.  In addition to the regular store operations, a shard
+ * must be able to enumerate and delete that state, so that it can be moved to another
+ * shard when the ring is rebalanced.
+ */
+public interface StoreShard extends VersionedSessionStore, ReplayWindowStore, SenderKeyStore {
+
+  /**
+   * Store a session under a version stamp assigned by the {@link ShardedSignalProtocolStore},
+   * rather than by the shard.  Version stamps are only unique across shards if every shard
+   * takes them from the router.
+   *
+   * @param address the address of the remote client.
+   * @param record the current SessionRecord for the remote client.
+   * @param version the version stamp to give the record.
+   */
+  public void storeSession(SignalProtocolAddress address, SessionRecord record, long version);
+
+  /**
+   * As {@link #storeSessionIfVersion(SignalProtocolAddress, SessionRecord, long)}, but on
+   * success the record is given a version stamp assigned by the {@link ShardedSignalProtocolStore}.
+   *
+   * @param newVersion the version stamp to give the record if it is stored.
+   */
+  public boolean storeSessionIfVersion(SignalProtocolAddress address, SessionRecord record,
+                                       long expectedVersion, long newVersion);
+
+  /**
+   * @return the greatest version stamp of any session this shard holds or has held, or
+   *         {@link SessionRecord#NO_VERSION} if it has never held one.  The router seeds its
+   *         counter from this, so that a persistent shard is never handed a stamp it already used.
+   */
+  public long getMaxVersion();
+
+  /**
+   * @return the names of all recipients that have any state on this shard.
+   */
+  public Set<String> getNames();
+
+  /**
+   * @param name The name of a remote client.
+   * @return the saved identity key for the remote client, or null if there is none.
+   */
+  public IdentityKey loadIdentity(String name);
+
+  /**
+   * @see org.whispersystems.libsignal.state.IdentityKeyStore#saveIdentity(String, IdentityKey)
+   */
+  public void saveIdentity(String name, IdentityKey identityKey);
+
+  /**
+   * @see org.whispersystems.libsignal.state.IdentityKeyStore#isTrustedIdentity(String, IdentityKey)
+   */
+  public boolean isTrustedIdentity(String name, IdentityKey identityKey);
+
+  /**
+   * Remove the saved identity key for a remote client.
+   *
+   * @param name The name of the remote client.
+   */
+  public void deleteIdentity(String name);
+
+  /**
+   * @param name The name of a remote client.
+   * @return all stored sender keys that were sent by the remote client.
+   */
+  public List<SenderKeyName> getSenderKeys(String name);
+
+  /**
+   * Remove a stored {@link org.whispersystems.libsignal.groups.state.SenderKeyRecord}.
+   *
+   * @param senderKeyName The (groupId + senderId + deviceId) tuple.
+   */
+  public void deleteSenderKey(SenderKeyName senderKeyName);
+
+}
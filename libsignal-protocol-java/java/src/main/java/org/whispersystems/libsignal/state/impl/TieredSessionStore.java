@@ -0,0 +1,602 @@
+package org.whispersystems.libsignal.state.impl;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.logging.Log;
+import org.whispersystems.libsignal.state.ProtobufSessionRecordCodec;
+import org.whispersystems.libsignal.state.ReplayWindow;
+import org.whispersystems.libsignal.state.ReplayWindowStore;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionRecordCodec;
+import org.whispersystems.libsignal.state.SessionState;
+import org.whispersystems.libsignal.state.SessionStorageException;
+import org.whispersystems.libsignal.state.SessionStore;
+import org.whispersystems.libsignal.util.Hex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A {@link SessionStore} with two tiers: recently used sessions are kept serialized in memory,
+ * while idle sessions are "hibernated" to a compressed on-disk tier.
+ * <p>
+ * Sessions are demoted to disk when the hot tier exceeds its capacity (least recently used
+ * first), or explicitly with {@link #hibernateIdleSessions(long)}.  A hibernated session is
+ * transparently promoted back into memory the next time it is loaded or stored.
+ * <p>
+ * On demotion, the store can optionally trim the number of archived session states it retains,
+ * and discard skipped message keys.  Skipped message keys don't carry a timestamp, so a session
+ * that has been idle long enough to hibernate is treated as having let them expire: messages
+ * that were never delivered before hibernation will no longer decrypt.
+ * <p>
+ * Each session's {@link ReplayWindow} is kept with it, and moves between the tiers along with
+ * the session.  On disk it is written uncompressed, beside the session's file.
+ * <p>
+ * If a session can't be read back from disk, {@link #loadSession(SignalProtocolAddress)} throws
+ * a {@link SessionStorageException}.  If a session can't be written to disk, it stays in memory,
+ * and the hot tier may temporarily hold more than its capacity.
+ */
+public class TieredSessionStore implements SessionStore, ReplayWindowStore {
+
+  private static final String TAG              = TieredSessionStore.class.getSimpleName();
+  private static final String SESSION_SUFFIX   = ".session";
+  private static final String REPLAY_SUFFIX    = ".replay";
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+  private static final Charset UTF_8            = Charset.forName("UTF-8");
+
+  private final File                                             directory;
+  private final int                                              maxHotSessions;
+  private final int                                              maxArchivedStates;
+  private final boolean                                          pruneMessageKeys;
+  private final SessionRecordCodec                               codec;
+  private final LinkedHashMap<SignalProtocolAddress, HotSession> hot  = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<SignalProtocolAddress, Long>                 cold = new HashMap<>();
+
+  private long hotBytes;
+  private long coldBytes;
+  private long hotHits;
+  private long coldHits;
+  private long misses;
+  private long promotionNanos;
+  private long maxPromotionNanos;
+  private long demotions;
+
+  /**
+   * Construct a TieredSessionStore.
+   *
+   * @param directory The directory hibernated sessions are written to.  Sessions already present
+   *                  in the directory are picked up as hibernated sessions.
+   * @param maxHotSessions The maximum number of sessions to keep in memory.
+   * @param maxArchivedStates The number of archived session states to retain when a session is
+   *                          hibernated, or -1 to retain them all.
+   * @param pruneMessageKeys Whether to discard skipped message keys when a session is hibernated.
+   */
+  public TieredSessionStore(File directory, int maxHotSessions, int maxArchivedStates, boolean pruneMessageKeys)
+      throws IOException
+  {
+    this(directory, maxHotSessions, maxArchivedStates, pruneMessageKeys, new ProtobufSessionRecordCodec());
+  }
+
+  /**
+   * Construct a TieredSessionStore which encodes sessions in both tiers with the specified codec.
+   * Hibernated sessions written with another codec are still readable, and are rewritten with
+   * this codec the next time they are stored.
+   */
+  public TieredSessionStore(File directory, int maxHotSessions, int maxArchivedStates, boolean pruneMessageKeys,
+                            SessionRecordCodec codec)
+      throws IOException
+  {
+    if (maxHotSessions < 1) {
+      throw new IllegalArgumentException("Hot tier must hold at least one session: " + maxHotSessions);
+    }
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create session directory: " + directory);
+    }
+
+    this.directory         = directory;
+    this.maxHotSessions    = maxHotSessions;
+    this.maxArchivedStates = maxArchivedStates;
+    this.pruneMessageKeys  = pruneMessageKeys;
+    this.codec             = codec;
+
+    File[] files = directory.listFiles();
+
+    if (files != null) {
+      for (File file : files) {
+        SignalProtocolAddress address = getAddress(file.getName());
+
+        if (address != null) {
+          cold.put(address, file.length());
+          coldBytes += file.length();
+        }
+      }
+    }
+  }
+
+  @Override
+  public synchronized SessionRecord loadSession(SignalProtocolAddress address) {
+    try {
+      HotSession session = getHotSession(address);
+
+      if (session == null) {
+        return new SessionRecord();
+      }
+
+      session.lastAccess = System.currentTimeMillis();
+      return codec.decode(session.serialized);
+    } catch (IOException e) {
+      throw new SessionStorageException(e);
+    }
+  }
+
+  @Override
+  public synchronized List<Integer> getDeviceSessions(String name) {
+    List<Integer> deviceIds = new LinkedList<>();
+
+    for (SignalProtocolAddress key : hot.keySet()) {
+      if (key.getName().equals(name)) deviceIds.add(key.getDeviceId());
+    }
+
+    for (SignalProtocolAddress key : cold.keySet()) {
+      if (key.getName().equals(name)) deviceIds.add(key.getDeviceId());
+    }
+
+    return deviceIds;
+  }
+
+  @Override
+  public synchronized void storeSession(SignalProtocolAddress address, SessionRecord record) {
+    HotSession session = new HotSession(codec.encode(record), System.currentTimeMillis());
+
+    if (cold.containsKey(address)) {
+      session.replayWindow = readReplayWindow(address);
+      deleteColdSession(address);
+    }
+
+    HotSession previous = hot.put(address, session);
+
+    if (previous != null) {
+      session.replayWindow = previous.replayWindow;
+      hotBytes -= previous.serialized.length;
+    }
+
+    hotBytes += session.serialized.length;
+
+    enforceCapacity();
+  }
+
+  @Override
+  public synchronized ReplayWindow loadReplayWindow(SignalProtocolAddress address) {
+    try {
+      HotSession session      = hot.get(address);
+      byte[]     replayWindow = session != null ? session.replayWindow : readReplayWindow(address);
+
+      if (replayWindow == null) return new ReplayWindow();
+      else                      return new ReplayWindow(replayWindow);
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to read replay window, starting a new one", e);
+      return new ReplayWindow();
+    }
+  }
+
+  /**
+   * The window is only kept while there is a session for the address.
+   */
+  @Override
+  public synchronized void storeReplayWindow(SignalProtocolAddress address, ReplayWindow window) {
+    HotSession session = hot.get(address);
+
+    if (session != null) {
+      session.replayWindow = window.serialize();
+    } else if (cold.containsKey(address)) {
+      try {
+        writeFile(getReplayFile(address), window.serialize(), false);
+      } catch (IOException e) {
+        Log.w(TAG, "Unable to store replay window", e);
+      }
+    }
+  }
+
+  @Override
+  public synchronized boolean containsSession(SignalProtocolAddress address) {
+    return hot.containsKey(address) || cold.containsKey(address);
+  }
+
+  @Override
+  public synchronized void deleteSession(SignalProtocolAddress address) {
+    HotSession session = hot.remove(address);
+
+    if (session != null) {
+      hotBytes -= session.serialized.length;
+    }
+
+    if (cold.containsKey(address)) {
+      deleteColdSession(address);
+    }
+  }
+
+  @Override
+  public synchronized void deleteAllSessions(String name) {
+    for (int deviceId : getDeviceSessions(name)) {
+      deleteSession(new SignalProtocolAddress(name, deviceId));
+    }
+  }
+
+  /**
+   * Move every in-memory session that has not been accessed recently to the on-disk tier.
+   *
+   * @param idleMillis How long a session must have gone unused to be hibernated.
+   * @return the number of sessions that were hibernated.
+   * @throws IOException if a session couldn't be written to disk.  That session, and any idle
+   *                     sessions that weren't reached yet, stay in memory.
+   */
+  public synchronized int hibernateIdleSessions(long idleMillis) throws IOException {
+    long                                                   cutoff   = System.currentTimeMillis() - idleMillis;
+    Iterator<Map.Entry<SignalProtocolAddress, HotSession>> iterator = hot.entrySet().iterator();
+    int                                                    count    = 0;
+
+    while (iterator.hasNext()) {
+      Map.Entry<SignalProtocolAddress, HotSession> entry = iterator.next();
+
+      if (entry.getValue().lastAccess <= cutoff) {
+        demote(entry.getKey(), entry.getValue());
+        iterator.remove();
+        count++;
+      }
+    }
+
+    return count;
+  }
+
+  public synchronized Stats getStats() {
+    long promotions = coldHits;
+
+    return new Stats(hot.size(), hotBytes, cold.size(), coldBytes, hotHits, coldHits, misses, demotions,
+                     promotions == 0 ? 0 : promotionNanos / promotions, maxPromotionNanos);
+  }
+
+  private HotSession getHotSession(SignalProtocolAddress address) throws IOException {
+    HotSession session = hot.get(address);
+
+    if (session != null) {
+      hotHits++;
+      return session;
+    }
+
+    if (!cold.containsKey(address)) {
+      misses++;
+      return null;
+    }
+
+    long   start      = System.nanoTime();
+    byte[] serialized = readColdSession(address);
+
+    session = new HotSession(serialized, System.currentTimeMillis());
+    session.replayWindow = readReplayWindow(address);
+
+    deleteColdSession(address);
+
+    hot.put(address, session);
+    hotBytes += serialized.length;
+
+    long elapsed = System.nanoTime() - start;
+
+    coldHits++;
+    promotionNanos   += elapsed;
+    maxPromotionNanos = Math.max(maxPromotionNanos, elapsed);
+
+    enforceCapacity();
+
+    return session;
+  }
+
+  private void enforceCapacity() {
+    Iterator<Map.Entry<SignalProtocolAddress, HotSession>> iterator = hot.entrySet().iterator();
+
+    while (hot.size() > maxHotSessions && iterator.hasNext()) {
+      Map.Entry<SignalProtocolAddress, HotSession> eldest = iterator.next();
+
+      try {
+        demote(eldest.getKey(), eldest.getValue());
+        iterator.remove();
+      } catch (IOException e) {
+        Log.w(TAG, "Unable to hibernate session, keeping it in memory", e);
+        return;
+      }
+    }
+  }
+
+  private void demote(SignalProtocolAddress address, HotSession session) throws IOException {
+    byte[] serialized = prune(session.serialized);
+    File   file       = getFile(address);
+
+    writeFile(file, serialized, true);
+
+    if (session.replayWindow != null) {
+      try {
+        writeFile(getReplayFile(address), session.replayWindow, false);
+      } catch (IOException e) {
+        Log.w(TAG, "Unable to hibernate replay window", e);
+      }
+    }
+
+    hotBytes  -= session.serialized.length;
+    coldBytes += file.length();
+    cold.put(address, file.length());
+    demotions++;
+  }
+
+  private byte[] prune(byte[] serialized) throws IOException {
+    if (maxArchivedStates < 0 && !pruneMessageKeys) {
+      return serialized;
+    }
+
+    SessionRecord      record         = codec.decode(serialized);
+    List<SessionState> previousStates = record.getPreviousSessionStates();
+
+    while (maxArchivedStates >= 0 && previousStates.size() > maxArchivedStates) {
+      previousStates.remove(previousStates.size() - 1);
+    }
+
+    if (pruneMessageKeys) {
+      int pruned = record.getSessionState().clearMessageKeys();
+
+      for (SessionState previousState : previousStates) {
+        pruned += previousState.clearMessageKeys();
+      }
+
+      if (pruned > 0) {
+        Log.i(TAG, "Discarded " + pruned + " skipped message keys on hibernation.");
+      }
+    }
+
+    return codec.encode(record);
+  }
+
+  private void writeFile(File file, byte[] data, boolean compress) throws IOException {
+    File temporary = new File(directory, file.getName() + TEMPORARY_SUFFIX);
+
+    try {
+      OutputStream out = new FileOutputStream(temporary);
+
+      if (compress) {
+        out = new DeflaterOutputStream(out);
+      }
+
+      try {
+        out.write(data);
+      } finally {
+        out.close();
+      }
+
+      if (!temporary.renameTo(file)) {
+        throw new IOException("Unable to rename " + temporary + " to " + file);
+      }
+    } catch (IOException e) {
+      if (temporary.isFile() && !temporary.delete()) {
+        Log.w(TAG, "Unable to delete partially written file: " + temporary);
+      }
+
+      throw e;
+    }
+  }
+
+  /**
+   * @return the hibernated replay window for an address, or null if there isn't one or it
+   *         can't be read.  A lost window only means replays fall back to the session's checks.
+   */
+  private byte[] readReplayWindow(SignalProtocolAddress address) {
+    File file = getReplayFile(address);
+
+    if (!file.isFile()) {
+      return null;
+    }
+
+    try {
+      InputStream in = new FileInputStream(file);
+
+      try {
+        return readFully(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to read replay window: " + file, e);
+      return null;
+    }
+  }
+
+  private byte[] readColdSession(SignalProtocolAddress address) throws IOException {
+    InputStream in = new InflaterInputStream(new FileInputStream(getFile(address)));
+
+    try {
+      return readFully(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out    = new ByteArrayOutputStream();
+    byte[]                buffer = new byte[4096];
+    int                   read;
+
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+
+    return out.toByteArray();
+  }
+
+  private void deleteColdSession(SignalProtocolAddress address) {
+    Long size = cold.remove(address);
+
+    if (size != null) {
+      coldBytes -= size;
+    }
+
+    File file         = getFile(address);
+    File replayWindow = getReplayFile(address);
+
+    if (file.exists() && !file.delete()) {
+      Log.w(TAG, "Unable to delete hibernated session: " + file);
+    }
+
+    if (replayWindow.exists() && !replayWindow.delete()) {
+      Log.w(TAG, "Unable to delete hibernated replay window: " + replayWindow);
+    }
+  }
+
+  private File getFile(SignalProtocolAddress address) {
+    return getFile(address, SESSION_SUFFIX);
+  }
+
+  private File getReplayFile(SignalProtocolAddress address) {
+    return getFile(address, REPLAY_SUFFIX);
+  }
+
+  private File getFile(SignalProtocolAddress address, String suffix) {
+    StringBuilder fileName = new StringBuilder();
+
+    for (byte b : address.getName().getBytes(UTF_8)) {
+      fileName.append(Character.forDigit((b >> 4) & 0xf, 16))
+              .append(Character.forDigit(b & 0xf, 16));
+    }
+
+    fileName.append('.').append(address.getDeviceId()).append(suffix);
+
+    return new File(directory, fileName.toString());
+  }
+
+  private static SignalProtocolAddress getAddress(String fileName) {
+    try {
+      if (!fileName.endsWith(SESSION_SUFFIX)) {
+        return null;
+      }
+
+      String   base  = fileName.substring(0, fileName.length() - SESSION_SUFFIX.length());
+      String[] parts = base.split("\\.");
+
+      if (parts.length != 2) {
+        return null;
+      }
+
+      return new SignalProtocolAddress(new String(Hex.fromStringCondensed(parts[0]), "UTF-8"),
+                                       Integer.parseInt(parts[1]));
+    } catch (IOException | NumberFormatException e) {
+      Log.w(TAG, e);
+      return null;
+    }
+  }
+
+  private static class HotSession {
+    private final byte[] serialized;
+    private       byte[] replayWindow;
+    private       long   lastAccess;
+
+    private HotSession(byte[] serialized, long lastAccess) {
+      this.serialized = serialized;
+      this.lastAccess = lastAccess;
+    }
+  }
+
+  public static class Stats {
+    private final int  hotSessions;
+    private final long hotBytes;
+    private final int  coldSessions;
+    private final long coldBytes;
+    private final long hotHits;
+    private final long coldHits;
+    private final long misses;
+    private final long demotions;
+    private final long averagePromotionNanos;
+    private final long maxPromotionNanos;
+
+    private Stats(int hotSessions, long hotBytes, int coldSessions, long coldBytes,
+                  long hotHits, long coldHits, long misses, long demotions,
+                  long averagePromotionNanos, long maxPromotionNanos)
+    {
+      this.hotSessions           = hotSessions;
+      this.hotBytes              = hotBytes;
+      this.coldSessions          = coldSessions;
+      this.coldBytes             = coldBytes;
+      this.hotHits               = hotHits;
+      this.coldHits              = coldHits;
+      this.misses                = misses;
+      this.demotions             = demotions;
+      this.averagePromotionNanos = averagePromotionNanos;
+      this.maxPromotionNanos     = maxPromotionNanos;
+    }
+
+    public int getHotSessions() {
+      return hotSessions;
+    }
+
+    /**
+     * @return the total serialized size of the sessions held in memory.
+     */
+    public long getHotBytes() {
+      return hotBytes;
+    }
+
+    public int getColdSessions() {
+      return coldSessions;
+    }
+
+    /**
+     * @return the total compressed size of the sessions hibernated to disk.
+     */
+    public long getColdBytes() {
+      return coldBytes;
+    }
+
+    public long getHotHits() {
+      return hotHits;
+    }
+
+    /**
+     * @return the number of loads that had to promote a hibernated session.
+     */
+    public long getColdHits() {
+      return coldHits;
+    }
+
+    public long getMisses() {
+      return misses;
+    }
+
+    public long getDemotions() {
+      return demotions;
+    }
+
+    /**
+     * @return the fraction of successful loads that were served from memory.
+     */
+    public double getHotHitRate() {
+      long hits = hotHits + coldHits;
+      return hits == 0 ? 0 : (double)hotHits / hits;
+    }
+
+    public long getAveragePromotionNanos() {
+      return averagePromotionNanos;
+    }
+
+    public long getMaxPromotionNanos() {
+      return maxPromotionNanos;
+    }
+  }
+}
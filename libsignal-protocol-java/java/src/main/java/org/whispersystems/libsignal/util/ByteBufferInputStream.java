@@ -0,0 +1,46 @@
+package org.whispersystems.libsignal.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream which reads the remaining bytes of a {@link ByteBuffer}, advancing its position.
+ */
+public class ByteBufferInputStream extends InputStream {
+
+  private final ByteBuffer buffer;
+
+  public ByteBufferInputStream(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  @Override
+  public int read() {
+    if (!buffer.hasRemaining()) return -1;
+    else                        return buffer.get() & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] output, int offset, int length) {
+    if (length == 0)             return 0;
+    if (!buffer.hasRemaining())  return -1;
+
+    int read = Math.min(length, buffer.remaining());
+    buffer.get(output, offset, read);
+
+    return read;
+  }
+
+  @Override
+  public long skip(long count) {
+    int skipped = (int)Math.min(Math.max(count, 0), buffer.remaining());
+    buffer.position(buffer.position() + skipped);
+
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return buffer.remaining();
+  }
+}
@@ -0,0 +1,26 @@
+package org.whispersystems.libsignal.util;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An OutputStream which writes into a {@link ByteBuffer}, advancing its position.
+ */
+public class ByteBufferOutputStream extends OutputStream {
+
+  private final ByteBuffer buffer;
+
+  public ByteBufferOutputStream(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  @Override
+  public void write(int value) {
+    buffer.put((byte)value);
+  }
+
+  @Override
+  public void write(byte[] input, int offset, int length) {
+    buffer.put(input, offset, length);
+  }
+}
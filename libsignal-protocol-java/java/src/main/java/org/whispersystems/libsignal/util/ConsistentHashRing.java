@@ -0,0 +1,102 @@
+package org.whispersystems.libsignal.util;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An immutable consistent hash ring, which maps keys onto a set of named nodes.
+ * <p>
+ * Each node is placed on the ring at a number of "virtual node" positions, so that keys are
+ * spread evenly and adding or removing a node only moves the keys that node gains or loses.
+ *
+ * @param <T> The node type.
+ */
+public class ConsistentHashRing<T> {
+
+  private final int                   virtualNodes;
+  private final Map<String, T>        nodes;
+  private final TreeMap<Long, String> ring;
+
+  public ConsistentHashRing(int virtualNodes) {
+    this(virtualNodes, new HashMap<String, T>());
+  }
+
+  private ConsistentHashRing(int virtualNodes, Map<String, T> nodes) {
+    if (virtualNodes <= 0) {
+      throw new IllegalArgumentException("Virtual node count must be positive: " + virtualNodes);
+    }
+
+    this.virtualNodes = virtualNodes;
+    this.nodes        = Collections.unmodifiableMap(nodes);
+    this.ring         = new TreeMap<>();
+
+    for (String nodeId : nodes.keySet()) {
+      for (int i=0;i<virtualNodes;i++) {
+        ring.put(hash(nodeId + "#" + i), nodeId);
+      }
+    }
+  }
+
+  /**
+   * @return a new ring containing all of this ring's nodes, plus the specified node.
+   */
+  public ConsistentHashRing<T> withNode(String nodeId, T node) {
+    Map<String, T> updated = new HashMap<>(nodes);
+    updated.put(nodeId, node);
+
+    return new ConsistentHashRing<>(virtualNodes, updated);
+  }
+
+  /**
+   * @return a new ring containing all of this ring's nodes, minus the specified node.
+   */
+  public ConsistentHashRing<T> withoutNode(String nodeId) {
+    Map<String, T> updated = new HashMap<>(nodes);
+    updated.remove(nodeId);
+
+    return new ConsistentHashRing<>(virtualNodes, updated);
+  }
+
+  public Map<String, T> getNodes() {
+    return nodes;
+  }
+
+  public boolean isEmpty() {
+    return nodes.isEmpty();
+  }
+
+  /**
+   * @param key The key to locate.
+   * @return the node which owns the key.
+   * @throws IllegalStateException if the ring has no nodes.
+   */
+  public T getNode(String key) {
+    return nodes.get(getNodeId(key));
+  }
+
+  public String getNodeId(String key) {
+    if (ring.isEmpty()) {
+      throw new IllegalStateException("No nodes in ring!");
+    }
+
+    SortedMap<Long, String> tail = ring.tailMap(hash(key));
+
+    if (tail.isEmpty()) return ring.firstEntry().getValue();
+    else                return tail.get(tail.firstKey());
+  }
+
+  private static long hash(String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes("UTF-8"));
+      return ByteUtil.byteArrayToLong(digest, 0);
+    } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
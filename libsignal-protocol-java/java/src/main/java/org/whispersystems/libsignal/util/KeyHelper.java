@@ -10,8 +10,11 @@ import org.whispersystems.libsignal.state.SignedPreKeyRecord;
 
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Helper class for generating keys of different types.
@@ -76,17 +79,35 @@ public class KeyHelper {
    * @return the list of generated PreKeyRecords.
    */
   public static List<PreKeyRecord> generatePreKeys(int start, int count) {
-    List<PreKeyRecord> results = new LinkedList<>();
-
-    start--;
+    List<PreKeyRecord> results = new ArrayList<>(count);
 
     for (int i=0;i<count;i++) {
-      results.add(new PreKeyRecord(((start + i) % (Medium.MAX_VALUE-1)) + 1, Curve.generateKeyPair()));
+      results.add(new PreKeyRecord(getPreKeyId(start, i), Curve.generateKeyPair()));
     }
 
     return results;
   }
 
+  /**
+   * Generate a list of PreKeys in parallel.  The result is identical in shape to
+   * {@link #generatePreKeys(int, int)}: the same IDs, in the same order.
+   *
+   * @param start The starting PreKey ID, inclusive.
+   * @param count The number of PreKeys to generate.
+   * @param pool The pool to generate keys on.
+   * @return the list of generated PreKeyRecords.
+   */
+  public static List<PreKeyRecord> generatePreKeys(int start, int count, ForkJoinPool pool) {
+    PreKeyRecord[] results = new PreKeyRecord[count];
+    pool.invoke(new GeneratePreKeysTask(start, results, 0, count));
+
+    return Arrays.asList(results);
+  }
+
+  private static int getPreKeyId(int start, int offset) {
+    return (int)(((start - 1L + offset) % (Medium.MAX_VALUE - 1)) + 1);
+  }
+
   /**
    * Generate the last resort PreKey.  Clients should do this only once, at install
    * time, and durably store it for the length of the install.
@@ -117,6 +138,36 @@ public class KeyHelper {
   }
 
 
+  private static class GeneratePreKeysTask extends RecursiveAction {
+
+    private static final int BATCH_SIZE = 32;
+
+    private final int            start;
+    private final PreKeyRecord[] results;
+    private final int            from;
+    private final int            to;
+
+    private GeneratePreKeysTask(int start, PreKeyRecord[] results, int from, int to) {
+      this.start   = start;
+      this.results = results;
+      this.from    = from;
+      this.to      = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= BATCH_SIZE) {
+        for (int i=from;i<to;i++) {
+          results[i] = new PreKeyRecord(getPreKeyId(start, i), Curve.generateKeyPair());
+        }
+      } else {
+        int middle = (from + to) >>> 1;
+        invokeAll(new GeneratePreKeysTask(start, results, from, middle),
+                  new GeneratePreKeysTask(start, results, middle, to));
+      }
+    }
+  }
+
   public static ECKeyPair generateSenderSigningKey() {
     return Curve.generateKeyPair();
   }
@@ -0,0 +1,64 @@
+package org.whispersystems.libsignal.util;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for moving protobuf messages in and out of {@link ByteBuffer}s without an
+ * intermediate byte array.
+ */
+public class ProtobufUtil {
+
+  /**
+   * Write a message at the buffer's position, advancing it past the message.
+   *
+   * @throws BufferOverflowException if the buffer does not have enough space remaining, in
+   *                                 which case its position is left unchanged.
+   */
+  public static void writeTo(MessageLite message, ByteBuffer buffer) {
+    int size = message.getSerializedSize();
+
+    if (buffer.remaining() < size) {
+      throw new BufferOverflowException();
+    }
+
+    try {
+      CodedOutputStream output;
+
+      if (buffer.hasArray()) {
+        output = CodedOutputStream.newInstance(buffer.array(), buffer.arrayOffset() + buffer.position(), size);
+      } else {
+        output = CodedOutputStream.newInstance(new ByteBufferOutputStream(buffer.duplicate()));
+      }
+
+      message.writeTo(output);
+      output.flush();
+
+      buffer.position(buffer.position() + size);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * @return a CodedInputStream over the buffer's remaining bytes.  The buffer's position is
+   *         advanced to its limit.
+   */
+  public static CodedInputStream newCodedInput(ByteBuffer buffer) {
+    CodedInputStream input;
+
+    if (buffer.hasArray()) {
+      input = CodedInputStream.newInstance(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    } else {
+      input = CodedInputStream.newInstance(new ByteBufferInputStream(buffer.duplicate()));
+    }
+
+    buffer.position(buffer.limit());
+    return input;
+  }
+}
@@ -0,0 +1,229 @@
+package org.whispersystems.libsignal.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A simple slab allocator which hands out chunks of large, off-heap buffers.
+ * <p>
+ * Slabs are either direct buffers, or regions of a memory-mapped file.  Each slab is carved into
+ * equally sized chunks of one size class (powers of two, from {@link #MIN_CHUNK_SIZE} up to a
+ * sixteenth of the slab size).  Requests larger than the biggest size class get a dedicated
+ * direct buffer of their own.
+ * <p>
+ * Allocations are identified by an opaque long handle.  Freed chunks are recycled within their
+ * size class; slab memory itself is never returned.  This class is not thread safe.
+ */
+public class SlabAllocator {
+
+  public  static final int MIN_CHUNK_SIZE = 128;
+  private static final int HUGE           = -1;
+
+  private final int         slabSize;
+  private final int[]       chunkSizes;
+  private final LongStack[] freeChunks;
+  private final FileChannel channel;
+
+  private final List<ByteBuffer> slabs        = new ArrayList<>();
+  private final LongStack        freeSlabs    = new LongStack();
+  private       int[]            slabClasses  = new int[16];
+  private       long             mappedLength = 0;
+  private       long             reservedBytes;
+  private       long             allocatedBytes;
+
+  private SlabAllocator(int slabSize, FileChannel channel) {
+    if (Integer.bitCount(slabSize) != 1 || slabSize < MIN_CHUNK_SIZE * 16) {
+      throw new IllegalArgumentException("Slab size must be a power of two >= " + (MIN_CHUNK_SIZE * 16));
+    }
+
+    int classes = Integer.numberOfTrailingZeros(slabSize / 16) - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE) + 1;
+
+    this.slabSize   = slabSize;
+    this.channel    = channel;
+    this.chunkSizes = new int[classes];
+    this.freeChunks = new LongStack[classes];
+
+    for (int i=0;i<classes;i++) {
+      chunkSizes[i] = MIN_CHUNK_SIZE << i;
+      freeChunks[i] = new LongStack();
+    }
+  }
+
+  /**
+   * @param slabSize The size of each slab, a power of two.
+   * @return an allocator backed by direct buffers.
+   */
+  public static SlabAllocator createDirect(int slabSize) {
+    return new SlabAllocator(slabSize, null);
+  }
+
+  /**
+   * @param channel A read/write channel to the file slabs will be mapped from.  The file is only
+   *                used as swappable backing memory; its contents are not meaningful across
+   *                restarts.
+   * @param slabSize The size of each slab, a power of two.
+   * @return an allocator backed by memory-mapped regions of the file.
+   */
+  public static SlabAllocator createMapped(FileChannel channel, int slabSize) {
+    return new SlabAllocator(slabSize, channel);
+  }
+
+  /**
+   * Allocate a chunk of at least the specified size.
+   *
+   * @return a handle to the chunk.
+   */
+  public long allocate(int size) throws IOException {
+    int sizeClass = getSizeClass(size);
+
+    if (sizeClass == HUGE) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+      reservedBytes  += size;
+      allocatedBytes += size;
+      return getHandle(addSlab(buffer, HUGE), 0);
+    }
+
+    if (freeChunks[sizeClass].isEmpty()) {
+      int chunkSize = chunkSizes[sizeClass];
+      int slabIndex = addSlab(newSlab(), sizeClass);
+
+      for (int offset=slabSize - chunkSize;offset>=0;offset-=chunkSize) {
+        freeChunks[sizeClass].push(getHandle(slabIndex, offset));
+      }
+
+      reservedBytes += slabSize;
+    }
+
+    allocatedBytes += chunkSizes[sizeClass];
+    return freeChunks[sizeClass].pop();
+  }
+
+  /**
+   * Return a chunk to the allocator.  The handle must not be used afterwards.
+   */
+  public void free(long handle) {
+    int slabIndex = getSlabIndex(handle);
+    int sizeClass = slabClasses[slabIndex];
+
+    if (sizeClass == HUGE) {
+      int capacity = slabs.get(slabIndex).capacity();
+
+      reservedBytes  -= capacity;
+      allocatedBytes -= capacity;
+
+      slabs.set(slabIndex, null);
+      freeSlabs.push(slabIndex);
+    } else {
+      allocatedBytes -= chunkSizes[sizeClass];
+      freeChunks[sizeClass].push(handle);
+    }
+  }
+
+  /**
+   * @return the usable size of the chunk.
+   */
+  public int getCapacity(long handle) {
+    int slabIndex = getSlabIndex(handle);
+    int sizeClass = slabClasses[slabIndex];
+
+    if (sizeClass == HUGE) return slabs.get(slabIndex).capacity();
+    else                   return chunkSizes[sizeClass];
+  }
+
+  /**
+   * @return the slab which holds the chunk.  Callers should only use absolute reads and writes
+   *         between {@link #getOffset(long)} and its capacity, or work on a duplicate.
+   */
+  public ByteBuffer getBuffer(long handle) {
+    return slabs.get(getSlabIndex(handle));
+  }
+
+  public int getOffset(long handle) {
+    return (int)handle;
+  }
+
+  /**
+   * @return the total size of all slabs that have been reserved.
+   */
+  public long getReservedBytes() {
+    return reservedBytes;
+  }
+
+  /**
+   * @return the total size of all chunks that are currently allocated.
+   */
+  public long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  private int getSizeClass(int size) {
+    for (int i=0;i<chunkSizes.length;i++) {
+      if (size <= chunkSizes[i]) return i;
+    }
+
+    return HUGE;
+  }
+
+  private ByteBuffer newSlab() throws IOException {
+    if (channel == null) {
+      return ByteBuffer.allocateDirect(slabSize);
+    }
+
+    ByteBuffer slab = channel.map(FileChannel.MapMode.READ_WRITE, mappedLength, slabSize);
+    mappedLength += slabSize;
+
+    return slab;
+  }
+
+  private int addSlab(ByteBuffer slab, int sizeClass) {
+    int slabIndex;
+
+    if (!freeSlabs.isEmpty()) {
+      slabIndex = (int)freeSlabs.pop();
+      slabs.set(slabIndex, slab);
+    } else {
+      slabIndex = slabs.size();
+      slabs.add(slab);
+    }
+
+    if (slabIndex >= slabClasses.length) {
+      slabClasses = Arrays.copyOf(slabClasses, slabClasses.length * 2);
+    }
+
+    slabClasses[slabIndex] = sizeClass;
+    return slabIndex;
+  }
+
+  private static long getHandle(int slabIndex, int offset) {
+    return ((long)slabIndex << 32) | (offset & 0xFFFFFFFFL);
+  }
+
+  private static int getSlabIndex(long handle) {
+    return (int)(handle >>> 32);
+  }
+
+  private static class LongStack {
+    private long[] values = new long[64];
+    private int    size   = 0;
+
+    public void push(long value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, values.length * 2);
+      }
+
+      values[size++] = value;
+    }
+
+    public long pop() {
+      return values[--size];
+    }
+
+    public boolean isEmpty() {
+      return size == 0;
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package org.whispersystems.libsignal;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class BulkSessionBuilderTest extends TestCase {
+
+  private static final SignalProtocolAddress ALICE_ADDRESS = new SignalProtocolAddress("+14151111111", 1);
+
+  public void testBulkSessions() throws Exception {
+    SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
+    ExecutorService     executor   = Executors.newFixedThreadPool(4);
+
+    Map<SignalProtocolAddress, PreKeyBundle> bundles       = new LinkedHashMap<>();
+    SignalProtocolStore[]                    bobStores     = new SignalProtocolStore[5];
+    SignedPreKeyRecord[]                     signedPreKeys = new SignedPreKeyRecord[5];
+
+    for (int i=0;i<bobStores.length;i++) {
+      bobStores[i]     = new TestInMemorySignalProtocolStore();
+      signedPreKeys[i] = generateSignedPreKey(bobStores[i]);
+
+      for (int deviceId=1;deviceId<=4;deviceId++) {
+        bundles.put(new SignalProtocolAddress("+1415222222" + i, deviceId),
+                    createBundle(bobStores[i], deviceId, signedPreKeys[i], signedPreKeys[i].getSignature()));
+      }
+    }
+
+    SignalProtocolAddress badSignature = new SignalProtocolAddress("+14152222220", 5);
+    SignalProtocolAddress noSignature  = new SignalProtocolAddress("+14152222220", 6);
+    SignalProtocolAddress untrusted    = new SignalProtocolAddress("+14153333333", 1);
+    SignalProtocolAddress conflicting  = new SignalProtocolAddress("+14152222221", 5);
+
+    byte[] signature = signedPreKeys[0].getSignature().clone();
+    signature[0] ^= 0x01;
+
+    bundles.put(badSignature, createBundle(bobStores[0], 5, signedPreKeys[0], signature));
+    bundles.put(noSignature, new PreKeyBundle(bobStores[0].getLocalRegistrationId(), 6, 0, null, 0, null, null,
+                                              bobStores[0].getIdentityKeyPair().getPublicKey()));
+
+    SignalProtocolStore untrustedStore = new TestInMemorySignalProtocolStore();
+    SignedPreKeyRecord  untrustedKey   = generateSignedPreKey(untrustedStore);
+
+    aliceStore.saveIdentity(untrusted.getName(), new TestInMemorySignalProtocolStore().getIdentityKeyPair().getPublicKey());
+    bundles.put(untrusted, createBundle(untrustedStore, 1, untrustedKey, untrustedKey.getSignature()));
+
+    SignalProtocolStore impostorStore = new TestInMemorySignalProtocolStore();
+    SignedPreKeyRecord  impostorKey   = generateSignedPreKey(impostorStore);
+    bundles.put(conflicting, createBundle(impostorStore, 5, impostorKey, impostorKey.getSignature()));
+
+    BulkSessionBuilder.Results results = new BulkSessionBuilder(aliceStore, executor).process(bundles);
+
+    assertEquals(20, results.getEstablished().size());
+    assertEquals(4, results.getFailures().size());
+
+    assertTrue(results.getFailures().get(badSignature) instanceof InvalidKeyException);
+    assertTrue(results.getFailures().get(noSignature) instanceof InvalidKeyException);
+    assertTrue(results.getFailures().get(untrusted) instanceof UntrustedIdentityException);
+    assertTrue(results.getFailures().get(conflicting) instanceof UntrustedIdentityException);
+
+    for (SignalProtocolAddress address : bundles.keySet()) {
+      assertEquals(results.getEstablished().contains(address), aliceStore.containsSession(address));
+    }
+
+    for (int i=0;i<bobStores.length;i++) {
+      String name = "+1415222222" + i;
+      assertTrue(aliceStore.isTrustedIdentity(name, bobStores[i].getIdentityKeyPair().getPublicKey()));
+      assertFalse(aliceStore.isTrustedIdentity(name, impostorStore.getIdentityKeyPair().getPublicKey()));
+    }
+
+    SignalProtocolAddress bobAddress      = new SignalProtocolAddress("+14152222223", 2);
+    String                originalMessage = "Man is condemned to be free";
+    CiphertextMessage     outgoingMessage = new SessionCipher(aliceStore, bobAddress).encrypt(originalMessage.getBytes());
+
+    assertEquals(CiphertextMessage.PREKEY_TYPE, outgoingMessage.getType());
+
+    byte[] plaintext = new SessionCipher(bobStores[3], ALICE_ADDRESS).decrypt(new PreKeySignalMessage(outgoingMessage.serialize()));
+    assertEquals(originalMessage, new String(plaintext));
+
+    results = new BulkSessionBuilder(aliceStore, executor).process(bundles);
+
+    assertEquals(20, results.getEstablished().size());
+    assertEquals(1, aliceStore.loadSession(bobAddress).getPreviousSessionStates().size());
+
+    executor.shutdown();
+  }
+
+  private SignedPreKeyRecord generateSignedPreKey(SignalProtocolStore store) throws InvalidKeyException {
+    ECKeyPair keyPair   = Curve.generateKeyPair();
+    byte[]    signature = Curve.calculateSignature(store.getIdentityKeyPair().getPrivateKey(),
+                                                   keyPair.getPublicKey().serialize());
+
+    SignedPreKeyRecord record = new SignedPreKeyRecord(22, System.currentTimeMillis(), keyPair, signature);
+    store.storeSignedPreKey(22, record);
+
+    return record;
+  }
+
+  private PreKeyBundle createBundle(SignalProtocolStore store, int deviceId, SignedPreKeyRecord signedPreKey, byte[] signature)
+      throws InvalidKeyException
+  {
+    return new PreKeyBundle(store.getLocalRegistrationId(), deviceId, 0, null,
+                            signedPreKey.getId(), signedPreKey.getKeyPair().getPublicKey(), signature,
+                            store.getIdentityKeyPair().getPublicKey());
+  }
+}
@@ -16,7 +16,10 @@ import org.whispersystems.libsignal.state.SignedPreKeyRecord;
 import org.whispersystems.libsignal.util.Pair;
 
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 public class SessionBuilderTest extends TestCase {
 
@@ -427,6 +430,146 @@ public class SessionBuilderTest extends TestCase {
   }
 
 
+  public void testStaticAgreementCache() throws Exception {
+    SignalProtocolStore  aliceStore          = new TestInMemorySignalProtocolStore();
+    SessionBuilder       aliceSessionBuilder = new SessionBuilder(aliceStore, BOB_ADDRESS);
+    SessionCipher        aliceSessionCipher  = new SessionCipher(aliceStore, BOB_ADDRESS);
+    SignalProtocolStore  bobStore            = new TestInMemorySignalProtocolStore();
+    StaticAgreementCache cache               = new StaticAgreementCache(4);
+    SessionCipher        bobSessionCipher    = new SessionCipher(bobStore, ALICE_ADDRESS, SkipAheadLimiter.getDefault(), cache);
+
+    for (int i=0;i<5;i++) {
+      if (i == 0 || i == 3) {
+        ECKeyPair bobSignedPreKeyPair      = Curve.generateKeyPair();
+        byte[]    bobSignedPreKeySignature = Curve.calculateSignature(bobStore.getIdentityKeyPair().getPrivateKey(),
+                                                                      bobSignedPreKeyPair.getPublicKey().serialize());
+
+        bobStore.storeSignedPreKey(22, new SignedPreKeyRecord(22, System.currentTimeMillis(), bobSignedPreKeyPair, bobSignedPreKeySignature));
+      }
+
+      if (i == 4) {
+        cache.removeSignedPreKey(22);
+      }
+
+      SignedPreKeyRecord bobSignedPreKey = bobStore.loadSignedPreKey(22);
+
+      aliceSessionBuilder.process(new PreKeyBundle(bobStore.getLocalRegistrationId(), 1,
+                                                   0, null,
+                                                   22, bobSignedPreKey.getKeyPair().getPublicKey(),
+                                                   bobSignedPreKey.getSignature(),
+                                                   bobStore.getIdentityKeyPair().getPublicKey()));
+
+      String            originalMessage = "L'enfer, c'est les autres " + i;
+      CiphertextMessage outgoingMessage = aliceSessionCipher.encrypt(originalMessage.getBytes());
+
+      assertEquals(CiphertextMessage.PREKEY_TYPE, outgoingMessage.getType());
+      assertEquals(originalMessage, new String(bobSessionCipher.decrypt(new PreKeySignalMessage(outgoingMessage.serialize()))));
+
+      CiphertextMessage bobOutgoingMessage = bobSessionCipher.encrypt(originalMessage.getBytes());
+      assertEquals(originalMessage, new String(aliceSessionCipher.decrypt(new SignalMessage(bobOutgoingMessage.serialize()))));
+    }
+
+    assertEquals(2, cache.getHits());
+    assertEquals(3, cache.getMisses());
+  }
+
+  public void testBulkPreKeyBundles() throws Exception {
+    SignalProtocolStore        aliceStore = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore        bobStore   = new TestInMemorySignalProtocolStore();
+    SignatureVerificationCache cache      = new SignatureVerificationCache(16);
+    SessionBuilder             builder    = new SessionBuilder(aliceStore, BOB_ADDRESS, null, cache);
+    ForkJoinPool               pool       = new ForkJoinPool(4);
+
+    ECKeyPair          bobSignedPreKeyPair      = Curve.generateKeyPair();
+    byte[]             bobSignedPreKeySignature = Curve.calculateSignature(bobStore.getIdentityKeyPair().getPrivateKey(),
+                                                                           bobSignedPreKeyPair.getPublicKey().serialize());
+    ECKeyPair          bobPreKeyPair            = Curve.generateKeyPair();
+    List<PreKeyBundle> bundles                  = new LinkedList<>();
+
+    bobStore.storePreKey(31337, new PreKeyRecord(31337, bobPreKeyPair));
+    bobStore.storeSignedPreKey(22, new SignedPreKeyRecord(22, System.currentTimeMillis(), bobSignedPreKeyPair, bobSignedPreKeySignature));
+
+    for (int deviceId=1;deviceId<=10;deviceId++) {
+      bundles.add(new PreKeyBundle(bobStore.getLocalRegistrationId(), deviceId,
+                                   31337, bobPreKeyPair.getPublicKey(),
+                                   22, bobSignedPreKeyPair.getPublicKey(), bobSignedPreKeySignature,
+                                   bobStore.getIdentityKeyPair().getPublicKey()));
+    }
+
+    byte[]    badSignature = bobSignedPreKeySignature.clone();
+    ECKeyPair badPreKey    = Curve.generateKeyPair();
+
+    badSignature[0] ^= 0x01;
+
+    try {
+      List<PreKeyBundle> badBundles = new LinkedList<>(bundles);
+      badBundles.add(new PreKeyBundle(bobStore.getLocalRegistrationId(), 11,
+                                      31337, bobPreKeyPair.getPublicKey(),
+                                      23, badPreKey.getPublicKey(), badSignature,
+                                      bobStore.getIdentityKeyPair().getPublicKey()));
+
+      builder.process(badBundles, pool);
+      throw new AssertionError("Should have rejected the bad signature!");
+    } catch (InvalidKeyException e) {
+      // good
+    }
+
+    for (int deviceId=1;deviceId<=11;deviceId++) {
+      assertFalse(aliceStore.containsSession(new SignalProtocolAddress(BOB_ADDRESS.getName(), deviceId)));
+    }
+
+    assertEquals(0, cache.getHits());
+    assertEquals(2, cache.getMisses());
+
+    try {
+      SignalProtocolStore impostorStore = new TestInMemorySignalProtocolStore();
+      ECKeyPair           impostorKey   = Curve.generateKeyPair();
+      List<PreKeyBundle>  mixedBundles  = new LinkedList<>(bundles);
+
+      mixedBundles.add(new PreKeyBundle(impostorStore.getLocalRegistrationId(), 12, 0, null,
+                                        24, impostorKey.getPublicKey(),
+                                        Curve.calculateSignature(impostorStore.getIdentityKeyPair().getPrivateKey(),
+                                                                 impostorKey.getPublicKey().serialize()),
+                                        impostorStore.getIdentityKeyPair().getPublicKey()));
+
+      builder.process(mixedBundles, pool);
+      throw new AssertionError("Should have rejected the mixed identities!");
+    } catch (UntrustedIdentityException e) {
+      // good
+    }
+
+    for (int deviceId=1;deviceId<=12;deviceId++) {
+      assertFalse(aliceStore.containsSession(new SignalProtocolAddress(BOB_ADDRESS.getName(), deviceId)));
+    }
+
+    assertTrue(aliceStore.isTrustedIdentity(BOB_ADDRESS.getName(), bobStore.getIdentityKeyPair().getPublicKey()));
+
+    assertEquals(1, cache.getHits());
+    assertEquals(3, cache.getMisses());
+
+    builder.process(bundles, pool);
+
+    assertEquals(2, cache.getHits());
+    assertEquals(3, cache.getMisses());
+
+    for (int deviceId=1;deviceId<=10;deviceId++) {
+      assertTrue(aliceStore.containsSession(new SignalProtocolAddress(BOB_ADDRESS.getName(), deviceId)));
+    }
+
+    builder.process(bundles.get(0));
+
+    assertEquals(3, cache.getHits());
+    assertEquals(3, cache.getMisses());
+
+    String            originalMessage = "Hell is other people";
+    CiphertextMessage outgoingMessage = new SessionCipher(aliceStore, BOB_ADDRESS).encrypt(originalMessage.getBytes());
+    byte[]            plaintext       = new SessionCipher(bobStore, ALICE_ADDRESS).decrypt(new PreKeySignalMessage(outgoingMessage.serialize()));
+
+    assertEquals(originalMessage, new String(plaintext));
+
+    pool.shutdown();
+  }
+
   private void runInteraction(SignalProtocolStore aliceStore, SignalProtocolStore bobStore)
       throws DuplicateMessageException, LegacyMessageException, InvalidMessageException, NoSessionException
   {
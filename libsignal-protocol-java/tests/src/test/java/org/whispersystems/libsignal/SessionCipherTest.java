@@ -6,15 +6,35 @@ import org.whispersystems.libsignal.ecc.Curve;
 import org.whispersystems.libsignal.ecc.ECKeyPair;
 import org.whispersystems.libsignal.ecc.ECPublicKey;
 import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
 import org.whispersystems.libsignal.protocol.SignalMessage;
+import org.whispersystems.libsignal.protocol.SignalMessageOutputStream;
+import org.whispersystems.libsignal.protocol.VerifiedPlaintext;
 import org.whispersystems.libsignal.ratchet.AliceSignalProtocolParameters;
 import org.whispersystems.libsignal.ratchet.BobSignalProtocolParameters;
 import org.whispersystems.libsignal.ratchet.RatchetingSession;
 import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.state.SessionChangeSet;
 import org.whispersystems.libsignal.state.SessionRecord;
 import org.whispersystems.libsignal.state.SessionState;
+import org.whispersystems.libsignal.state.SessionStore;
+import org.whispersystems.libsignal.state.impl.InMemoryPreKeyStore;
+import org.whispersystems.libsignal.state.impl.InMemorySignedPreKeyStore;
+import org.whispersystems.libsignal.state.impl.InMemoryStoreShard;
+import org.whispersystems.libsignal.state.impl.OffHeapSessionStore;
+import org.whispersystems.libsignal.state.impl.ShardedSignalProtocolStore;
+import org.whispersystems.libsignal.state.impl.TieredSessionStore;
+import org.whispersystems.libsignal.util.KeyHelper;
 import org.whispersystems.libsignal.util.guava.Optional;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -69,6 +89,493 @@ public class SessionCipherTest extends TestCase {
     }
   }
 
+  public void testSkipAheadLimiter() throws Exception {
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    initializeSessionsV3(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState());
+
+    SignalProtocolAddress address    = new SignalProtocolAddress("+14159999999", 1);
+    SignalProtocolStore   aliceStore = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore   bobStore   = new TestInMemorySignalProtocolStore();
+    SkipAheadLimiter      limiter    = new SkipAheadLimiter(10, 10, 15, 0, 100);
+
+    aliceStore.storeSession(address, aliceSessionRecord);
+    bobStore.storeSession(address, bobSessionRecord);
+
+    SessionCipher aliceCipher = new SessionCipher(aliceStore, address);
+    SessionCipher bobCipher   = new SessionCipher(bobStore, address, limiter);
+
+    List<byte[]> inflight = new ArrayList<>();
+
+    for (int i=0;i<30;i++) {
+      inflight.add(aliceCipher.encrypt(("message " + i).getBytes()).serialize());
+    }
+
+    try {
+      bobCipher.decrypt(new SignalMessage(inflight.get(11)));
+      throw new AssertionError("Should have rejected the gap!");
+    } catch (InvalidMessageException e) {
+      assertEquals(1, limiter.getRejectedGaps());
+    }
+
+    assertEquals("message 5", new String(bobCipher.decrypt(new SignalMessage(inflight.get(5)))));
+    assertEquals(5, limiter.getSkippedKeys());
+
+    byte[] forged = inflight.get(15).clone();
+    forged[forged.length - 1] ^= 0x01;
+
+    for (int i=0;i<3;i++) {
+      try {
+        bobCipher.decrypt(new SignalMessage(forged));
+        throw new AssertionError("Should have failed the MAC!");
+      } catch (InvalidMessageException e) {
+        assertEquals(5, limiter.getSkippedKeys());
+      }
+    }
+
+    assertEquals("message 15", new String(bobCipher.decrypt(new SignalMessage(inflight.get(15)))));
+    assertEquals(14, limiter.getSkippedKeys());
+
+    try {
+      bobCipher.decrypt(new SignalMessage(inflight.get(18)));
+      throw new AssertionError("Should have exhausted the budget!");
+    } catch (InvalidMessageException e) {
+      assertEquals(1, limiter.getRejectedBudget());
+    }
+
+    assertEquals("message 6", new String(bobCipher.decrypt(new SignalMessage(inflight.get(6)))));
+    assertEquals("message 2", new String(bobCipher.decrypt(new SignalMessage(inflight.get(2)))));
+    assertEquals(2, limiter.getRejectedGaps() + limiter.getRejectedBudget());
+  }
+
+  public void testReplayWindow() throws Exception {
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    initializeSessionsV3(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState());
+
+    final int[]           loads      = new int[1];
+    SignalProtocolAddress address    = new SignalProtocolAddress("+14159999999", 1);
+    SignalProtocolStore   aliceStore = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore   bobStore   = new TestInMemorySignalProtocolStore() {
+      @Override
+      public SessionRecord loadSession(SignalProtocolAddress address) {
+        loads[0]++;
+        return super.loadSession(address);
+      }
+    };
+
+    aliceStore.storeSession(address, aliceSessionRecord);
+    bobStore.storeSession(address, bobSessionRecord);
+
+    SessionCipher aliceCipher = new SessionCipher(aliceStore, address);
+    SessionCipher bobCipher   = new SessionCipher(bobStore, address);
+    byte[]        first       = aliceCipher.encrypt("first".getBytes()).serialize();
+    byte[]        second      = aliceCipher.encrypt("second".getBytes()).serialize();
+
+    assertEquals("second", new String(bobCipher.decrypt(new SignalMessage(second))));
+    assertEquals("first", new String(bobCipher.decrypt(new SignalMessage(first))));
+
+    loads[0] = 0;
+
+    try {
+      bobCipher.decrypt(new SignalMessage(first));
+      throw new AssertionError("Should have detected the replay!");
+    } catch (DuplicateMessageException e) {
+      assertEquals(0, loads[0]);
+    }
+
+    try {
+      bobCipher.decrypt(ByteBuffer.wrap(second), ByteBuffer.allocate(100));
+      throw new AssertionError("Should have detected the replay!");
+    } catch (DuplicateMessageException e) {
+      assertEquals(0, loads[0]);
+    }
+  }
+
+  public void testReplayWindowStores() throws Exception {
+    File directory = File.createTempFile("sessions", "");
+
+    assertTrue(directory.delete());
+    assertTrue(directory.mkdirs());
+
+    try {
+      ShardedSignalProtocolStore shardedStore = new ShardedSignalProtocolStore(KeyHelper.generateIdentityKeyPair(), 1,
+                                                                               new InMemoryPreKeyStore(),
+                                                                               new InMemorySignedPreKeyStore(),
+                                                                               16);
+
+      shardedStore.addShard("node-1", new InMemoryStoreShard());
+      shardedStore.addShard("node-2", new InMemoryStoreShard());
+
+      assertReplayRejected(shardedStore);
+      assertReplayRejected(new TieredSessionStore(directory, 1, -1, false));
+      assertReplayRejected(new OffHeapSessionStore(64 * 1024));
+    } finally {
+      for (File file : directory.listFiles()) {
+        file.delete();
+      }
+
+      directory.delete();
+    }
+  }
+
+  public void testConcurrentSessionModification() throws Exception {
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    initializeSessionsV3(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState());
+
+    final SignalProtocolAddress   bobAddress   = new SignalProtocolAddress("+14159999999", 1);
+    final SignalProtocolAddress   aliceAddress = new SignalProtocolAddress("+14158888888", 1);
+    final List<CiphertextMessage> inflight     = new LinkedList<>();
+
+    SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore() {
+      private boolean conflicted = false;
+
+      @Override
+      public boolean storeSessionIfVersion(SignalProtocolAddress address, SessionRecord record, long expectedVersion) {
+        conflict(address);
+        return super.storeSessionIfVersion(address, record, expectedVersion);
+      }
+
+      @Override
+      public boolean storeSessionChanges(SignalProtocolAddress address, SessionChangeSet changes) {
+        conflict(address);
+        return super.storeSessionChanges(address, changes);
+      }
+
+      private void conflict(SignalProtocolAddress address) {
+        if (!conflicted) {
+          conflicted = true;
+          inflight.add(new SessionCipher(this, address).encrypt("from another node".getBytes()));
+        }
+      }
+    };
+
+    SignalProtocolStore bobStore = new TestInMemorySignalProtocolStore();
+
+    aliceStore.storeSession(bobAddress, aliceSessionRecord);
+    bobStore.storeSession(aliceAddress, bobSessionRecord);
+
+    SessionCipher aliceCipher = new SessionCipher(aliceStore, bobAddress);
+    SessionCipher bobCipher   = new SessionCipher(bobStore, aliceAddress);
+
+    inflight.add(aliceCipher.encrypt("from this node".getBytes()));
+
+    assertEquals(2, inflight.size());
+
+    SignalMessage first  = new SignalMessage(inflight.get(0).serialize());
+    SignalMessage second = new SignalMessage(inflight.get(1).serialize());
+
+    assertEquals(0, first.getCounter());
+    assertEquals(1, second.getCounter());
+
+    assertEquals("from another node", new String(bobCipher.decrypt(first)));
+    assertEquals("from this node", new String(bobCipher.decrypt(second)));
+  }
+
+  public void testIncrementalSessionChanges() throws Exception {
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    initializeSessionsV3(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState());
+
+    final List<SessionChangeSet> changeSets = new LinkedList<>();
+    final SignalProtocolAddress  address    = new SignalProtocolAddress("+14159999999", 1);
+
+    SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore bobStore   = new TestInMemorySignalProtocolStore() {
+      @Override
+      public boolean storeSessionChanges(SignalProtocolAddress address, SessionChangeSet changes) {
+        changeSets.add(changes);
+        return super.storeSessionChanges(address, changes);
+      }
+    };
+
+    aliceStore.storeSession(address, aliceSessionRecord);
+    bobStore.storeSession(address, bobSessionRecord);
+
+    SessionCipher aliceCipher = new SessionCipher(aliceStore, address);
+    SessionCipher bobCipher   = new SessionCipher(bobStore, address);
+
+    List<CiphertextMessage> inflight = new LinkedList<>();
+
+    for (int i=0;i<5;i++) {
+      inflight.add(aliceCipher.encrypt("smert ze smert".getBytes()));
+    }
+
+    bobCipher.decrypt(new SignalMessage(inflight.get(0).serialize()));
+    changeSets.clear();
+
+    for (int i : new int[] {3, 1}) {
+      byte[] before = bobStore.loadSession(address).serialize();
+
+      bobCipher.decrypt(new SignalMessage(inflight.get(i).serialize()));
+
+      SessionRecord replayed = new SessionRecord(before);
+      new SessionChangeSet(changeSets.get(changeSets.size() - 1).serialize()).apply(replayed);
+
+      assertTrue(Arrays.equals(bobStore.loadSession(address).serialize(), replayed.serialize()));
+    }
+
+    assertEquals(2, changeSets.size());
+
+    bobCipher.encrypt("smert ze smert".getBytes());
+
+    assertEquals(3, changeSets.size());
+
+    for (int i=0;i<20;i++) {
+      CiphertextMessage reply = bobCipher.encrypt("smert ze smert".getBytes());
+      aliceCipher.decrypt(new SignalMessage(reply.serialize()));
+    }
+
+    assertEquals("smert ze smert", new String(bobCipher.decrypt(new SignalMessage(inflight.get(2).serialize()))));
+    assertEquals("smert ze smert", new String(bobCipher.decrypt(new SignalMessage(inflight.get(4).serialize()))));
+  }
+
+  public void testByteBufferEncryptDecrypt() throws Exception {
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    initializeSessionsV3(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState());
+
+    ECPublicKey baseKey = Curve.generateKeyPair().getPublicKey();
+
+    aliceSessionRecord.getSessionState().setLocalRegistrationId(1234);
+    aliceSessionRecord.getSessionState().setUnacknowledgedPreKeyMessage(Optional.of(31337), 23, baseKey);
+
+    SignalProtocolAddress address    = new SignalProtocolAddress("+14159999999", 1);
+    SignalProtocolStore   aliceStore = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore   bobStore   = new TestInMemorySignalProtocolStore();
+
+    aliceStore.storeSession(address, aliceSessionRecord);
+    bobStore.storeSession(address, bobSessionRecord);
+
+    SessionCipher aliceCipher = new SessionCipher(aliceStore, address);
+    SessionCipher bobCipher   = new SessionCipher(bobStore, address);
+    byte[]        message     = "the industrial revolution and its consequences".getBytes();
+
+    try {
+      aliceCipher.encrypt(ByteBuffer.wrap(message), ByteBuffer.allocate(message.length));
+      throw new AssertionError("Should have overflowed!");
+    } catch (BufferOverflowException e) {
+      // good
+    }
+
+    ByteBuffer output = ByteBuffer.allocateDirect(SessionCipher.getMaxCiphertextSize(message.length));
+
+    assertEquals(CiphertextMessage.PREKEY_TYPE, aliceCipher.encrypt(ByteBuffer.wrap(message), output));
+    output.flip();
+
+    byte[] serialized = new byte[output.remaining()];
+    output.get(serialized);
+
+    PreKeySignalMessage preKeyMessage = new PreKeySignalMessage(serialized);
+    SignalMessage       signalMessage = preKeyMessage.getWhisperMessage();
+
+    assertEquals(1234, preKeyMessage.getRegistrationId());
+    assertEquals(31337, (int)preKeyMessage.getPreKeyId().get());
+    assertEquals(23, preKeyMessage.getSignedPreKeyId());
+    assertEquals(baseKey, preKeyMessage.getBaseKey());
+    assertEquals(0, signalMessage.getCounter());
+
+    ByteBuffer input     = ByteBuffer.allocateDirect(signalMessage.serialize().length);
+    ByteBuffer plaintext = ByteBuffer.allocateDirect(message.length + 16);
+
+    input.put(signalMessage.serialize()).flip();
+
+    assertEquals(message.length, bobCipher.decrypt(input, plaintext));
+    assertFalse(input.hasRemaining());
+
+    plaintext.flip();
+    byte[] received = new byte[plaintext.remaining()];
+    plaintext.get(received);
+
+    assertTrue(Arrays.equals(message, received));
+
+    SignalMessage reply       = (SignalMessage)bobCipher.encrypt(message);
+    SignalMessage parsedReply = new SignalMessage(ByteBuffer.wrap(reply.serialize()));
+
+    assertEquals(reply.getCounter(), parsedReply.getCounter());
+    assertEquals(reply.getSenderRatchetKey(), parsedReply.getSenderRatchetKey());
+    assertTrue(Arrays.equals(reply.getBody(), parsedReply.getBody()));
+    assertTrue(Arrays.equals(reply.serialize(), parsedReply.serialize()));
+
+    plaintext.clear();
+    aliceCipher.decrypt(ByteBuffer.wrap(reply.serialize()), plaintext);
+
+    output.clear();
+    assertEquals(CiphertextMessage.WHISPER_TYPE, aliceCipher.encrypt(ByteBuffer.wrap(message), output));
+    output.flip();
+
+    serialized = new byte[output.remaining()];
+    output.get(serialized);
+
+    assertTrue(Arrays.equals(message, bobCipher.decrypt(new SignalMessage(serialized))));
+
+    try {
+      bobCipher.decrypt(ByteBuffer.wrap(serialized), ByteBuffer.allocate(message.length + 16));
+      throw new AssertionError("Should be a duplicate!");
+    } catch (DuplicateMessageException e) {
+      // good
+    }
+  }
+
+  public void testStreamingEncryptDecrypt() throws Exception {
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    initializeSessionsV3(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState());
+    aliceSessionRecord.getSessionState().setUnacknowledgedPreKeyMessage(Optional.<Integer>absent(), 23,
+                                                                        Curve.generateKeyPair().getPublicKey());
+
+    SignalProtocolAddress address    = new SignalProtocolAddress("+14159999999", 1);
+    SignalProtocolStore   aliceStore = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore   bobStore   = new TestInMemorySignalProtocolStore();
+
+    aliceStore.storeSession(address, aliceSessionRecord);
+    bobStore.storeSession(address, bobSessionRecord);
+
+    SessionCipher aliceCipher = new SessionCipher(aliceStore, address);
+    SessionCipher bobCipher   = new SessionCipher(bobStore, address);
+    byte[]        message     = new byte[100000];
+
+    new Random().nextBytes(message);
+
+    ByteArrayOutputStream     output = new ByteArrayOutputStream();
+    SignalMessageOutputStream stream = aliceCipher.encrypt(output, message.length);
+    ByteBuffer                direct = ByteBuffer.allocateDirect(20000);
+
+    direct.put(message, 1000, 20000).flip();
+
+    stream.write(message, 0, 1000);
+    stream.write(direct);
+    stream.write(message, 21000, message.length - 21000);
+    stream.close();
+
+    assertEquals(CiphertextMessage.PREKEY_TYPE, stream.getType());
+
+    PreKeySignalMessage preKeyMessage = new PreKeySignalMessage(output.toByteArray());
+
+    assertEquals(23, preKeyMessage.getSignedPreKeyId());
+    assertTrue(Arrays.equals(message, bobCipher.decrypt(preKeyMessage.getWhisperMessage())));
+
+    File file = File.createTempFile("message", ".bin");
+
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+      try (SignalMessageOutputStream reply = bobCipher.encrypt(new FileOutputStream(file), message.length)) {
+        assertEquals(CiphertextMessage.WHISPER_TYPE, reply.getType());
+        reply.write(message);
+      }
+
+      ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+
+      assertEquals(message.length, aliceCipher.decrypt(randomAccessFile.getChannel(), plaintext));
+      assertTrue(Arrays.equals(message, plaintext.toByteArray()));
+
+      try (SignalMessageOutputStream reply = bobCipher.encrypt(new FileOutputStream(file), message.length)) {
+        reply.write(message);
+      }
+
+      randomAccessFile.seek(50000);
+      int value = randomAccessFile.read();
+      randomAccessFile.seek(50000);
+      randomAccessFile.write(value ^ 0x01);
+
+      plaintext.reset();
+      randomAccessFile.getChannel().position(0);
+
+      try {
+        aliceCipher.decrypt(randomAccessFile.getChannel(), plaintext);
+        throw new AssertionError("Should have failed MAC!");
+      } catch (InvalidMessageException e) {
+        // good
+      }
+
+      assertEquals(0, plaintext.size());
+    } finally {
+      file.delete();
+    }
+
+    try {
+      SignalMessageOutputStream shortStream = bobCipher.encrypt(new ByteArrayOutputStream(), 10);
+      shortStream.write(new byte[5]);
+      shortStream.close();
+      throw new AssertionError("Should have failed!");
+    } catch (IOException e) {
+      // good
+    }
+  }
+
+  public void testStreamingDecryptIsSinglePass() throws Exception {
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    initializeSessionsV3(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState());
+
+    final int[]           conflicts  = new int[1];
+    SignalProtocolAddress address    = new SignalProtocolAddress("+14159999999", 1);
+    SignalProtocolStore   aliceStore = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore   bobStore   = new TestInMemorySignalProtocolStore() {
+      @Override
+      public boolean storeSessionIfVersion(SignalProtocolAddress address, SessionRecord record, long expectedVersion) {
+        return !conflict(address) && super.storeSessionIfVersion(address, record, expectedVersion);
+      }
+
+      @Override
+      public boolean storeSessionChanges(SignalProtocolAddress address, SessionChangeSet changes) {
+        return !conflict(address) && super.storeSessionChanges(address, changes);
+      }
+
+      private boolean conflict(SignalProtocolAddress address) {
+        if (conflicts[0]++ == 0) {
+          new SessionCipher(this, address).encrypt("from another node".getBytes());
+          return true;
+        }
+
+        return false;
+      }
+    };
+
+    aliceStore.storeSession(address, aliceSessionRecord);
+    bobStore.storeSession(address, bobSessionRecord);
+
+    SessionCipher aliceCipher = new SessionCipher(aliceStore, address);
+    SessionCipher bobCipher   = new SessionCipher(bobStore, address);
+    byte[]        message     = new byte[VerifiedPlaintext.MAX_MEMORY_SIZE + 100000];
+    File          file        = File.createTempFile("message", ".bin");
+
+    new Random().nextBytes(message);
+
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+      try (SignalMessageOutputStream stream = aliceCipher.encrypt(new FileOutputStream(file), message.length)) {
+        stream.write(message);
+      }
+
+      ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+
+      try {
+        bobCipher.decrypt(new FlakyChannel(randomAccessFile.getChannel(), 500000, true), plaintext);
+        throw new AssertionError("Should have failed!");
+      } catch (IOException e) {
+        // good
+      }
+
+      assertEquals(0, plaintext.size());
+
+      randomAccessFile.getChannel().position(0);
+
+      assertEquals(message.length, bobCipher.decrypt(new FlakyChannel(randomAccessFile.getChannel(), 500000, false),
+                                                     plaintext));
+      assertTrue(Arrays.equals(message, plaintext.toByteArray()));
+      assertTrue(conflicts[0] > 1);
+    } finally {
+      file.delete();
+    }
+  }
+
   private void runInteraction(SessionRecord aliceSessionRecord, SessionRecord bobSessionRecord)
       throws DuplicateMessageException, LegacyMessageException, InvalidMessageException, NoSuchAlgorithmException, NoSessionException {
     SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
@@ -139,6 +646,116 @@ public class SessionCipherTest extends TestCase {
     }
   }
 
+  /**
+   * Decrypt a message, then put back the session as it was before the message was received, so
+   * that only the store's replay window can catch the replay.
+   */
+  private void assertReplayRejected(SessionStore bobSessionStore) throws Exception {
+    SessionRecord aliceSessionRecord = new SessionRecord();
+    SessionRecord bobSessionRecord   = new SessionRecord();
+
+    initializeSessionsV3(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState());
+
+    SignalProtocolAddress address    = new SignalProtocolAddress("+14159999999", 1);
+    SignalProtocolStore   aliceStore = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore   bobStore   = new TestInMemorySignalProtocolStore();
+
+    aliceStore.storeSession(address, aliceSessionRecord);
+    bobSessionStore.storeSession(address, bobSessionRecord);
+
+    SessionCipher aliceCipher = new SessionCipher(aliceStore, address);
+    SessionCipher bobCipher   = new SessionCipher(bobSessionStore, bobStore, bobStore, bobStore, address);
+    byte[]        message     = aliceCipher.encrypt("message".getBytes()).serialize();
+
+    assertEquals("message", new String(bobCipher.decrypt(new SignalMessage(message))));
+
+    bobSessionStore.storeSession(address, bobSessionRecord);
+
+    try {
+      bobCipher.decrypt(new SignalMessage(message));
+      throw new AssertionError("Should have detected the replay!");
+    } catch (DuplicateMessageException e) {
+      // good
+    }
+  }
+
+  /**
+   * A channel which either fails, or returns a flipped byte, when a position is read for a
+   * second time.
+   */
+  private static class FlakyChannel implements SeekableByteChannel {
+
+    private final SeekableByteChannel channel;
+    private final long                position;
+    private final boolean             fail;
+
+    private boolean read;
+
+    private FlakyChannel(SeekableByteChannel channel, long position, boolean fail) {
+      this.channel  = channel;
+      this.position = position;
+      this.fail     = fail;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
+      long start = channel.position();
+      int  count = channel.read(buffer);
+
+      if (count > 0 && start <= position && position < start + count) {
+        if (fail) {
+          throw new IOException("Read failed");
+        }
+
+        if (read) {
+          int index = buffer.position() - count + (int)(position - start);
+          buffer.put(index, (byte)(buffer.get(index) ^ 0x01));
+        }
+
+        read = true;
+      }
+
+      return count;
+    }
+
+    @Override
+    public int write(ByteBuffer buffer) throws IOException {
+      return channel.write(buffer);
+    }
+
+    @Override
+    public long position() throws IOException {
+      return channel.position();
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+      channel.position(newPosition);
+      return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+      return channel.size();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) throws IOException {
+      channel.truncate(size);
+      return this;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
   private void initializeSessionsV3(SessionState aliceSessionState, SessionState bobSessionState)
       throws InvalidKeyException
   {
@@ -7,8 +7,10 @@ import org.whispersystems.libsignal.DuplicateMessageException;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.LegacyMessageException;
 import org.whispersystems.libsignal.NoSessionException;
+import org.whispersystems.libsignal.SkipAheadLimiter;
 import org.whispersystems.libsignal.protocol.SenderKeyDistributionMessage;
 
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
@@ -16,6 +18,7 @@ import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 public class GroupCipherTest extends TestCase {
 
@@ -68,6 +71,42 @@ public class GroupCipherTest extends TestCase {
     assertTrue(new String(plaintextFromAlice).equals("smert ze smert"));
   }
 
+  public void testByteBufferEncryptDecrypt() throws Exception {
+    InMemorySenderKeyStore aliceStore = new InMemorySenderKeyStore();
+    InMemorySenderKeyStore bobStore   = new InMemorySenderKeyStore();
+
+    GroupSessionBuilder aliceSessionBuilder = new GroupSessionBuilder(aliceStore);
+    GroupSessionBuilder bobSessionBuilder   = new GroupSessionBuilder(bobStore);
+
+    GroupCipher aliceGroupCipher = new GroupCipher(aliceStore, GROUP_SENDER);
+    GroupCipher bobGroupCipher   = new GroupCipher(bobStore, GROUP_SENDER);
+
+    SenderKeyDistributionMessage sentAliceDistributionMessage = aliceSessionBuilder.create(GROUP_SENDER);
+    bobSessionBuilder.process(GROUP_SENDER, new SenderKeyDistributionMessage(sentAliceDistributionMessage.serialize()));
+
+    byte[]     message   = "smert ze smert".getBytes();
+    ByteBuffer output    = ByteBuffer.allocateDirect(GroupCipher.getMaxCiphertextSize(message.length));
+    ByteBuffer plaintext = ByteBuffer.allocateDirect(message.length + 16);
+    int        written   = aliceGroupCipher.encrypt(ByteBuffer.wrap(message), output);
+
+    assertEquals(written, output.position());
+    output.flip();
+
+    byte[] ciphertext = new byte[output.remaining()];
+    output.get(ciphertext);
+
+    assertTrue(Arrays.equals(message, bobGroupCipher.decrypt(ciphertext)));
+
+    ciphertext = aliceGroupCipher.encrypt(message);
+    assertEquals(message.length, bobGroupCipher.decrypt(ByteBuffer.wrap(ciphertext), plaintext));
+
+    plaintext.flip();
+    byte[] received = new byte[plaintext.remaining()];
+    plaintext.get(received);
+
+    assertTrue(Arrays.equals(message, received));
+  }
+
   public void testLargeMessages() throws InvalidMessageException, LegacyMessageException, NoSessionException, DuplicateMessageException {
     InMemorySenderKeyStore aliceStore = new InMemorySenderKeyStore();
     InMemorySenderKeyStore bobStore   = new InMemorySenderKeyStore();
@@ -242,6 +281,36 @@ public class GroupCipherTest extends TestCase {
     }
   }
 
+  public void testSkipAheadLimiter() throws Exception {
+    InMemorySenderKeyStore aliceStore = new InMemorySenderKeyStore();
+    InMemorySenderKeyStore bobStore   = new InMemorySenderKeyStore();
+    SkipAheadLimiter       limiter    = new SkipAheadLimiter(2000, 100, 2000, 0, 10);
+
+    GroupCipher aliceGroupCipher = new GroupCipher(aliceStore, GROUP_SENDER);
+    GroupCipher bobGroupCipher   = new GroupCipher(bobStore, GROUP_SENDER, limiter);
+
+    new GroupSessionBuilder(bobStore).process(GROUP_SENDER, new GroupSessionBuilder(aliceStore).create(GROUP_SENDER));
+
+    List<byte[]> inflight = new ArrayList<>();
+
+    for (int i=0;i<102;i++) {
+      inflight.add(aliceGroupCipher.encrypt("up the punks".getBytes()));
+    }
+
+    try {
+      bobGroupCipher.decrypt(inflight.get(101));
+      throw new AssertionError("Should have rejected the gap!");
+    } catch (InvalidMessageException e) {
+      assertEquals(1, limiter.getRejectedGaps());
+    }
+
+    bobGroupCipher.decrypt(inflight.get(100));
+    bobGroupCipher.decrypt(inflight.get(101));
+    bobGroupCipher.decrypt(inflight.get(0));
+
+    assertEquals(100, limiter.getSkippedKeys());
+  }
+
   public void testMessageKeyLimit() throws Exception {
     InMemorySenderKeyStore aliceStore = new InMemorySenderKeyStore();
     InMemorySenderKeyStore bobStore   = new InMemorySenderKeyStore();
@@ -283,4 +352,49 @@ public class GroupCipherTest extends TestCase {
       throw new AssertionError(e);
     }
   }
+
+  public void testBatchEncrypt() throws Exception {
+    InMemorySenderKeyStore aliceStore     = new InMemorySenderKeyStore();
+    InMemorySenderKeyStore aliceCopyStore = new InMemorySenderKeyStore();
+    InMemorySenderKeyStore bobStore       = new InMemorySenderKeyStore();
+
+    SenderKeyDistributionMessage sentAliceDistributionMessage = new GroupSessionBuilder(aliceStore).create(GROUP_SENDER);
+
+    aliceCopyStore.storeSenderKey(GROUP_SENDER, aliceStore.loadSenderKey(GROUP_SENDER));
+    new GroupSessionBuilder(bobStore).process(GROUP_SENDER, new SenderKeyDistributionMessage(sentAliceDistributionMessage.serialize()));
+
+    List<byte[]> plaintexts = new ArrayList<>();
+
+    for (int i=0;i<50;i++) {
+      plaintexts.add(("up the punks " + i).getBytes());
+    }
+
+    ForkJoinPool pool       = new ForkJoinPool(4);
+    List<byte[]> sequential = new ArrayList<>();
+    GroupCipher  copyCipher = new GroupCipher(aliceCopyStore, GROUP_SENDER);
+
+    for (byte[] plaintext : plaintexts) {
+      sequential.add(copyCipher.encrypt(plaintext));
+    }
+
+    List<byte[]> batch       = new GroupCipher(aliceStore, GROUP_SENDER).encrypt(plaintexts.subList(0, 20));
+    List<byte[]> parallel    = new GroupCipher(aliceStore, GROUP_SENDER).encrypt(plaintexts.subList(20, 50), pool);
+    List<byte[]> ciphertexts = new ArrayList<>(batch);
+    GroupCipher  bobCipher   = new GroupCipher(bobStore, GROUP_SENDER);
+
+    ciphertexts.addAll(parallel);
+    pool.shutdown();
+
+    assertTrue(Arrays.equals(aliceCopyStore.loadSenderKey(GROUP_SENDER).serialize(),
+                             aliceStore.loadSenderKey(GROUP_SENDER).serialize()));
+    assertTrue(new GroupCipher(aliceStore, GROUP_SENDER).encrypt(new LinkedList<byte[]>()).isEmpty());
+
+    for (int i=0;i<ciphertexts.size();i++) {
+      byte[] expected = sequential.get(i);
+      byte[] actual   = ciphertexts.get(i);
+
+      assertTrue(Arrays.equals(Arrays.copyOf(expected, expected.length - 64), Arrays.copyOf(actual, actual.length - 64)));
+      assertTrue(Arrays.equals(plaintexts.get(i), bobCipher.decrypt(actual)));
+    }
+  }
 }
@@ -0,0 +1,99 @@
+package org.whispersystems.libsignal.groups;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.NoSessionException;
+import org.whispersystems.libsignal.SessionBuilder;
+import org.whispersystems.libsignal.SessionCipher;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.TestInMemorySignalProtocolStore;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
+import org.whispersystems.libsignal.protocol.SenderKeyDistributionMessage;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class SenderKeyDistributorTest extends TestCase {
+
+  private static final SignalProtocolAddress ALICE_ADDRESS = new SignalProtocolAddress("+14150001111", 1);
+  private static final SenderKeyName         GROUP_SENDER  = new SenderKeyName("nihilist history reading group", ALICE_ADDRESS);
+
+  public void testDistributeAndRotate() throws Exception {
+    ExecutorService             executor        = Executors.newFixedThreadPool(4);
+    SignalProtocolStore         aliceStore      = new TestInMemorySignalProtocolStore();
+    InMemorySenderKeyStore      aliceSenderKeys = new InMemorySenderKeyStore();
+    List<SignalProtocolAddress> recipients      = new LinkedList<>();
+    List<SignalProtocolStore>   recipientStores = new LinkedList<>();
+
+    for (int i=1;i<=8;i++) {
+      SignalProtocolAddress address = new SignalProtocolAddress("+1415000200" + i, 1);
+      SignalProtocolStore   store   = new TestInMemorySignalProtocolStore();
+
+      new SessionBuilder(aliceStore, address).process(createBundle(store));
+
+      recipients.add(address);
+      recipientStores.add(store);
+    }
+
+    SignalProtocolAddress stranger = new SignalProtocolAddress("+14150009999", 1);
+    recipients.add(stranger);
+
+    try {
+      SenderKeyDistributor              distributor  = new SenderKeyDistributor(aliceStore, aliceSenderKeys, executor);
+      SenderKeyDistributor.Distribution distribution = distributor.distribute(GROUP_SENDER, recipients);
+
+      distribution.await();
+
+      assertTrue(distribution.isDone());
+      assertEquals(9, distribution.getTotalCount());
+      assertEquals(9, distribution.getCompletedCount());
+      assertEquals(8, distribution.getCiphertexts().size());
+      assertEquals(1, distribution.getFailures().size());
+      assertTrue(distribution.getFailures().get(stranger) instanceof NoSessionException);
+
+      byte[] groupMessage = new GroupCipher(aliceSenderKeys, GROUP_SENDER).encrypt("smert za smert".getBytes());
+
+      for (int i=0;i<8;i++) {
+        SignalProtocolStore    store      = recipientStores.get(i);
+        InMemorySenderKeyStore senderKeys = new InMemorySenderKeyStore();
+        PreKeySignalMessage    ciphertext = new PreKeySignalMessage(distribution.getCiphertexts().get(recipients.get(i)).serialize());
+        byte[]                 serialized = new SessionCipher(store, ALICE_ADDRESS).decrypt(ciphertext);
+
+        new GroupSessionBuilder(senderKeys).process(GROUP_SENDER, new SenderKeyDistributionMessage(serialized));
+
+        assertEquals("smert za smert", new String(new GroupCipher(senderKeys, GROUP_SENDER).decrypt(groupMessage)));
+      }
+
+      SenderKeyDistributor.Distribution rotation = distributor.rotate(GROUP_SENDER, recipients.subList(0, 8));
+      rotation.await();
+
+      assertEquals(8, rotation.getCiphertexts().size());
+      assertTrue(rotation.getDistributionMessage().getId() != distribution.getDistributionMessage().getId());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private PreKeyBundle createBundle(SignalProtocolStore store) throws Exception {
+    ECKeyPair preKeyPair            = Curve.generateKeyPair();
+    ECKeyPair signedPreKeyPair      = Curve.generateKeyPair();
+    byte[]    signedPreKeySignature = Curve.calculateSignature(store.getIdentityKeyPair().getPrivateKey(),
+                                                               signedPreKeyPair.getPublicKey().serialize());
+
+    store.storePreKey(31337, new PreKeyRecord(31337, preKeyPair));
+    store.storeSignedPreKey(22, new SignedPreKeyRecord(22, System.currentTimeMillis(), signedPreKeyPair, signedPreKeySignature));
+
+    return new PreKeyBundle(store.getLocalRegistrationId(), 1,
+                            31337, preKeyPair.getPublicKey(),
+                            22, signedPreKeyPair.getPublicKey(), signedPreKeySignature,
+                            store.getIdentityKeyPair().getPublicKey());
+  }
+}
@@ -0,0 +1,167 @@
+package org.whispersystems.libsignal.groups.ratchet;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.util.KeyHelper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class SkippedSenderMessageKeysTest extends TestCase {
+
+  public void testMatchesEagerDerivation() {
+    SkippedSenderMessageKeys       lazy     = new SkippedSenderMessageKeys();
+    LinkedHashMap<Integer, byte[]> eager    = new LinkedHashMap<>();
+    SenderChainKey                 chainKey = new SenderChainKey(0, KeyHelper.generateSenderKey());
+
+    chainKey = skip(lazy, eager, chainKey, 5);
+    lazy.add(5, chainKey.getSenderMessageKey().getSeed());
+    eager.put(5, chainKey.getSenderMessageKey().getSeed());
+    chainKey = chainKey.getNext();
+
+    int[] gaps = {100, 1, 1500, 33, 700, 64};
+
+    for (int gap : gaps) {
+      chainKey = skip(lazy, eager, chainKey, chainKey.getIteration() + gap).getNext();
+
+      List<Integer> held = new ArrayList<>(eager.keySet());
+
+      for (int i=0;i<held.size();i+=7) {
+        int              iteration = held.get(i);
+        SenderMessageKey expected  = new SenderMessageKey(iteration, eager.remove(iteration));
+        SenderMessageKey actual    = lazy.remove(iteration);
+
+        assertEquals(iteration, actual.getIteration());
+        assertTrue(Arrays.equals(expected.getCipherKey(), actual.getCipherKey()));
+        assertFalse(lazy.contains(iteration));
+        assertNull(lazy.remove(iteration));
+      }
+
+      assertEquals(eager.size(), lazy.size());
+      assertMaterialized(eager, lazy);
+    }
+
+    SkippedSenderMessageKeys copy = new SkippedSenderMessageKeys(lazy);
+    int                      last = eager.keySet().iterator().next();
+
+    assertNotNull(copy.remove(last));
+    assertTrue(lazy.contains(last));
+    assertMaterialized(eager, lazy);
+  }
+
+  public void testCopiesAreIndependent() {
+    SkippedSenderMessageKeys       original = new SkippedSenderMessageKeys();
+    LinkedHashMap<Integer, byte[]> eager    = new LinkedHashMap<>();
+    SenderChainKey                 chainKey = new SenderChainKey(0, KeyHelper.generateSenderKey());
+
+    chainKey = skip(original, eager, chainKey, 100).getNext();
+
+    SkippedSenderMessageKeys       first    = new SkippedSenderMessageKeys(original);
+    SkippedSenderMessageKeys       second   = new SkippedSenderMessageKeys(first);
+    LinkedHashMap<Integer, byte[]> snapshot = new LinkedHashMap<>(eager);
+
+    assertTrue(Arrays.equals(snapshot.get(40), first.remove(40).getSeed()));
+    first.skipTo(chainKey, 150);
+
+    assertEquals(148, first.size());
+    assertFalse(first.contains(40));
+    assertTrue(first.contains(120));
+    assertTrue(original.contains(40));
+    assertFalse(original.contains(120));
+
+    assertTrue(Arrays.equals(eager.remove(70), original.remove(70).getSeed()));
+    original.add(101, chainKey.getSenderMessageKey().getSeed());
+    eager.put(101, chainKey.getSenderMessageKey().getSeed());
+
+    assertTrue(first.contains(70));
+    assertMaterialized(eager, original);
+    assertMaterialized(snapshot, second);
+  }
+
+  public void testWindowLimit() {
+    SkippedSenderMessageKeys keys     = new SkippedSenderMessageKeys();
+    SenderChainKey           chainKey = new SenderChainKey(0, KeyHelper.generateSenderKey());
+
+    chainKey = keys.skipTo(chainKey, 1500).getNext();
+    chainKey = keys.skipTo(chainKey, 3000);
+
+    assertEquals(SkippedSenderMessageKeys.MAX_MESSAGE_KEYS, keys.size());
+    assertEquals(3000, chainKey.getIteration());
+    assertFalse(keys.contains(998));
+    assertTrue(keys.contains(999));
+    assertFalse(keys.contains(1500));
+    assertTrue(keys.contains(2999));
+    assertFalse(keys.contains(3000));
+  }
+
+  public void testUsedKeysCantBeRederived() {
+    SkippedSenderMessageKeys       lazy     = new SkippedSenderMessageKeys();
+    LinkedHashMap<Integer, byte[]> eager    = new LinkedHashMap<>();
+    SenderChainKey                 chainKey = new SenderChainKey(0, KeyHelper.generateSenderKey());
+
+    chainKey = skip(lazy, eager, chainKey, 300).getNext();
+    chainKey = skip(lazy, eager, chainKey, 500);
+
+    assertEquals(0, lazy.getOldestCheckpoint());
+
+    int[] used = {0, 1, 2, 40, 3, 399, 301, 450, 100};
+
+    for (int iteration : used) {
+      SenderMessageKey expected = new SenderMessageKey(iteration, eager.remove(iteration));
+      SenderMessageKey actual   = lazy.remove(iteration);
+
+      assertTrue(Arrays.equals(expected.getCipherKey(), actual.getCipherKey()));
+      assertTrue(lazy.getOldestCheckpoint() == -1 || lazy.getOldestCheckpoint() > iteration);
+      assertEquals(eager.size(), lazy.size());
+    }
+
+    assertMaterialized(eager, lazy);
+    assertEquals(-1, lazy.getOldestCheckpoint());
+
+    lazy     = new SkippedSenderMessageKeys();
+    chainKey = lazy.skipTo(new SenderChainKey(0, KeyHelper.generateSenderKey()), 2500);
+
+    assertEquals(SkippedSenderMessageKeys.MAX_MESSAGE_KEYS, lazy.size());
+    assertEquals(500, lazy.getOldestCheckpoint());
+    assertFalse(lazy.contains(499));
+    assertTrue(lazy.contains(500));
+  }
+
+  private SenderChainKey skip(SkippedSenderMessageKeys lazy, Map<Integer, byte[]> eager,
+                              SenderChainKey chainKey, int iteration)
+  {
+    SenderChainKey expected = chainKey;
+
+    while (expected.getIteration() < iteration) {
+      eager.put(expected.getIteration(), expected.getSenderMessageKey().getSeed());
+      expected = expected.getNext();
+
+      if (eager.size() > SkippedSenderMessageKeys.MAX_MESSAGE_KEYS) {
+        Iterator<Integer> oldest = eager.keySet().iterator();
+        oldest.next();
+        oldest.remove();
+      }
+    }
+
+    SenderChainKey actual = lazy.skipTo(chainKey, iteration);
+
+    assertEquals(expected.getIteration(), actual.getIteration());
+    assertTrue(Arrays.equals(expected.getSeed(), actual.getSeed()));
+
+    return actual;
+  }
+
+  private void assertMaterialized(Map<Integer, byte[]> expected, SkippedSenderMessageKeys actual) {
+    Map<Integer, byte[]> materialized = actual.materialize();
+
+    assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(materialized.keySet()));
+
+    for (Map.Entry<Integer, byte[]> entry : expected.entrySet()) {
+      assertTrue(Arrays.equals(entry.getValue(), materialized.get(entry.getKey())));
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package org.whispersystems.libsignal.groups.state;
+
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.InvalidKeyException;
+import org.whispersystems.libsignal.InvalidKeyIdException;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.groups.ratchet.SenderChainKey;
+import org.whispersystems.libsignal.util.KeyHelper;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.whispersystems.libsignal.state.StorageProtos.SenderKeyRecordStructure;
+import static org.whispersystems.libsignal.state.StorageProtos.SenderKeyStateStructure;
+
+public class SenderKeyStateTest extends TestCase {
+
+  public void testWireCompatibility() throws IOException {
+    ECKeyPair      signingKey = KeyHelper.generateSenderSigningKey();
+    SenderChainKey chainKey   = new SenderChainKey(0, KeyHelper.generateSenderKey());
+    SenderKeyState state      = new SenderKeyState(7, 0, chainKey.getSeed(), signingKey);
+
+    SenderKeyStateStructure.Builder expected =
+        SenderKeyStateStructure.newBuilder()
+                               .setSenderKeyId(7)
+                               .setSenderSigningKey(SenderKeyStateStructure.SenderSigningKey.newBuilder()
+                                                                                            .setPublic(ByteString.copyFrom(signingKey.getPublicKey().serialize()))
+                                                                                            .setPrivate(ByteString.copyFrom(signingKey.getPrivateKey().serialize())));
+
+    for (int i=0;i<2010;i++) {
+      state.addSenderMessageKey(chainKey.getSenderMessageKey());
+
+      if (i >= 10 && i != 500) {
+        expected.addSenderMessageKeys(SenderKeyStateStructure.SenderMessageKey.newBuilder()
+                                                                              .setIteration(i)
+                                                                              .setSeed(ByteString.copyFrom(chainKey.getSenderMessageKey().getSeed())));
+      }
+
+      chainKey = chainKey.getNext();
+    }
+
+    assertEquals(2000, state.getSenderMessageKeyCount());
+    assertFalse(state.hasSenderMessageKey(9));
+    assertTrue(state.hasSenderMessageKey(10));
+    assertEquals(500, state.removeSenderMessageKey(500).getIteration());
+    assertNull(state.removeSenderMessageKey(500));
+
+    state.setSenderChainKey(chainKey);
+    expected.setSenderChainKey(SenderKeyStateStructure.SenderChainKey.newBuilder()
+                                                                     .setIteration(chainKey.getIteration())
+                                                                     .setSeed(ByteString.copyFrom(chainKey.getSeed())));
+
+    assertTrue(Arrays.equals(expected.build().toByteArray(), state.getStructure().toByteArray()));
+
+    SenderKeyState parsed = new SenderKeyState(SenderKeyStateStructure.parseFrom(state.getStructure().toByteArray()));
+
+    assertEquals(1999, parsed.getSenderMessageKeyCount());
+    assertTrue(Arrays.equals(expected.build().toByteArray(), parsed.getStructure().toByteArray()));
+  }
+
+  public void testCachedSigningKeys() throws InvalidKeyException {
+    ECKeyPair      signingKey = KeyHelper.generateSenderSigningKey();
+    SenderKeyState state      = new SenderKeyState(1, 0, KeyHelper.generateSenderKey(), signingKey);
+    SenderKeyState parsed     = new SenderKeyState(state.getStructure());
+
+    assertEquals(signingKey.getPublicKey(), parsed.getSigningKeyPublic());
+    assertSame(parsed.getSigningKeyPublic(), parsed.getSigningKeyPublic());
+    assertTrue(Arrays.equals(signingKey.getPrivateKey().serialize(), parsed.getSigningKeyPrivate().serialize()));
+  }
+
+  public void testRecordKeyIdIndex() throws IOException, InvalidKeyIdException {
+    SenderKeyRecord record = new SenderKeyRecord();
+
+    for (int i=1;i<=7;i++) {
+      record.addSenderKeyState(i, 0, KeyHelper.generateSenderKey(), KeyHelper.generateSenderSigningKey().getPublicKey());
+    }
+
+    assertEquals(7, record.getSenderKeyState().getKeyId());
+    assertEquals(3, record.getSenderKeyState(3).getKeyId());
+
+    try {
+      record.getSenderKeyState(2);
+      fail("Evicted state still indexed");
+    } catch (InvalidKeyIdException e) {
+      // good
+    }
+
+    SenderKeyRecord parsed = new SenderKeyRecord(record.serialize());
+    SenderKeyRecord copy   = new SenderKeyRecord(parsed);
+
+    assertEquals(5, SenderKeyRecordStructure.parseFrom(parsed.serialize()).getSenderKeyStatesCount());
+    assertTrue(Arrays.equals(record.serialize(), copy.serialize()));
+
+    copy.getSenderKeyState(4).setSenderChainKey(new SenderChainKey(5, KeyHelper.generateSenderKey()));
+
+    assertEquals(0, parsed.getSenderKeyState(4).getSenderChainKey().getIteration());
+    assertEquals(5, copy.getSenderKeyState(4).getSenderChainKey().getIteration());
+  }
+}
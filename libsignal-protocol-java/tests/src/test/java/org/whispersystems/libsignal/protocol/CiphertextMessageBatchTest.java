@@ -0,0 +1,176 @@
+package org.whispersystems.libsignal.protocol;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.groups.GroupCipher;
+import org.whispersystems.libsignal.groups.GroupSessionBuilder;
+import org.whispersystems.libsignal.groups.InMemorySenderKeyStore;
+import org.whispersystems.libsignal.groups.SenderKeyName;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+public class CiphertextMessageBatchTest extends TestCase {
+
+  private static final SignalProtocolAddress SENDER_ADDRESS = new SignalProtocolAddress("+14150001111", 1);
+  private static final SenderKeyName         GROUP_SENDER   = new SenderKeyName("nihilist history reading group", SENDER_ADDRESS);
+
+  public void testStreamRoundTrip() throws Exception {
+    InMemorySenderKeyStore aliceStore = new InMemorySenderKeyStore();
+    InMemorySenderKeyStore bobStore   = new InMemorySenderKeyStore();
+    GroupCipher            alice      = new GroupCipher(aliceStore, GROUP_SENDER);
+    GroupCipher            bob        = new GroupCipher(bobStore, GROUP_SENDER);
+
+    SenderKeyDistributionMessage distributionMessage = new GroupSessionBuilder(aliceStore).create(GROUP_SENDER);
+    new GroupSessionBuilder(bobStore).process(GROUP_SENDER, distributionMessage);
+
+    List<SignalProtocolAddress>  destinations = new LinkedList<>();
+    ByteArrayOutputStream        output       = new ByteArrayOutputStream();
+    CiphertextMessageBatchWriter writer       = new CiphertextMessageBatchWriter(output);
+
+    writer.write(new SignalProtocolAddress("+14151112222", 1), distributionMessage);
+    destinations.add(new SignalProtocolAddress("+14151112222", 1));
+
+    for (int i=0;i<100;i++) {
+      SignalProtocolAddress destination = new SignalProtocolAddress("+1415555" + i, 1 + (i % 300));
+      writer.write(destination, new SenderKeyMessage(alice.encrypt(("smert ze smert " + i).getBytes())));
+      destinations.add(destination);
+    }
+
+    writer.close();
+    assertEquals(101, writer.getCount());
+
+    CiphertextMessageBatchReader reader   = new CiphertextMessageBatchReader(new ByteArrayInputStream(output.toByteArray()));
+    CiphertextMessageEnvelope    envelope = reader.read();
+
+    assertEquals(CiphertextMessage.SENDERKEY_DISTRIBUTION_TYPE, envelope.getType());
+    assertEquals(destinations.get(0), envelope.getDestination());
+    assertTrue(Arrays.equals(distributionMessage.serialize(), envelope.getMessage().serialize()));
+
+    ByteBuffer plaintext = ByteBuffer.allocate(100);
+
+    for (int i=0;i<100;i++) {
+      envelope = reader.read();
+
+      assertEquals(CiphertextMessage.SENDERKEY_TYPE, envelope.getType());
+      assertEquals(destinations.get(i + 1), envelope.getDestination());
+
+      plaintext.clear();
+      bob.decrypt(envelope.getBody(), plaintext);
+      plaintext.flip();
+
+      assertEquals("smert ze smert " + i, new String(plaintext.array(), 0, plaintext.limit()));
+    }
+
+    assertNull(reader.read());
+  }
+
+  public void testBufferRoundTrip() throws Exception {
+    SignalProtocolAddress destination = new SignalProtocolAddress("+14151112222", 300);
+    byte[]                body        = "not really a message".getBytes();
+    ByteBuffer            direct      = ByteBuffer.allocateDirect(body.length);
+
+    direct.put(body).flip();
+
+    int        size   = 1 + 2 * CiphertextMessageBatchWriter.getSerializedSize(destination, body.length);
+    ByteBuffer output = ByteBuffer.allocateDirect(size);
+
+    CiphertextMessageBatchWriter writer = new CiphertextMessageBatchWriter(output);
+    writer.write(CiphertextMessage.WHISPER_TYPE, destination, body, 0, body.length);
+    writer.write(CiphertextMessage.PREKEY_TYPE, destination, direct);
+
+    assertEquals(size, output.position());
+    assertEquals(body.length, direct.remaining());
+
+    try {
+      writer.write(CiphertextMessage.WHISPER_TYPE, destination, body, 0, body.length);
+      throw new AssertionError("Should have overflowed!");
+    } catch (BufferOverflowException e) {
+      assertEquals(size, output.position());
+    }
+
+    output.flip();
+
+    CiphertextMessageBatchReader reader = new CiphertextMessageBatchReader(output);
+    CiphertextMessageEnvelope    first  = reader.read();
+    CiphertextMessageEnvelope    second = reader.read();
+
+    assertNull(reader.read());
+    assertEquals(0, output.position());
+
+    assertEquals(CiphertextMessage.WHISPER_TYPE, first.getType());
+    assertEquals(CiphertextMessage.PREKEY_TYPE, second.getType());
+    assertEquals(destination, first.getDestination());
+    assertEquals(destination, second.getDestination());
+    assertTrue(Arrays.equals(body, MessageCodec.toByteArray(first.getBody())));
+    assertTrue(Arrays.equals(body, MessageCodec.toByteArray(second.getBody())));
+
+    output.put(size - 1, (byte)'!');
+    assertEquals('!', second.getBody().get(body.length - 1));
+
+    try {
+      first.getMessage();
+      throw new AssertionError("Should have failed to parse!");
+    } catch (InvalidMessageException e) {
+      // good
+    }
+  }
+
+  public void testMalformedBatches() throws Exception {
+    SignalProtocolAddress destination = new SignalProtocolAddress("+14151112222", 1);
+    ByteArrayOutputStream output      = new ByteArrayOutputStream();
+
+    CiphertextMessageBatchWriter writer = new CiphertextMessageBatchWriter(output);
+    writer.write(CiphertextMessage.WHISPER_TYPE, destination, new byte[1000], 0, 1000);
+    writer.close();
+
+    byte[] batch = output.toByteArray();
+
+    for (int length=0;length<batch.length;length++) {
+      byte[] truncated = Arrays.copyOf(batch, length);
+
+      if (length == 1) {
+        assertNull(new CiphertextMessageBatchReader(ByteBuffer.wrap(truncated)).read());
+        assertNull(new CiphertextMessageBatchReader(new ByteArrayInputStream(truncated)).read());
+        continue;
+      }
+
+      try {
+        new CiphertextMessageBatchReader(ByteBuffer.wrap(truncated)).read();
+        throw new AssertionError("Should have failed: " + length);
+      } catch (InvalidMessageException e) {
+        // good
+      }
+
+      try {
+        new CiphertextMessageBatchReader(new ByteArrayInputStream(truncated)).read();
+        throw new AssertionError("Should have failed: " + length);
+      } catch (InvalidMessageException e) {
+        // good
+      }
+    }
+
+    try {
+      new CiphertextMessageBatchReader(new ByteArrayInputStream(batch), 999).read();
+      throw new AssertionError("Should have rejected the body length!");
+    } catch (InvalidMessageException e) {
+      // good
+    }
+
+    batch[0] = 2;
+
+    try {
+      new CiphertextMessageBatchReader(ByteBuffer.wrap(batch));
+      throw new AssertionError("Should have rejected the format version!");
+    } catch (InvalidMessageException e) {
+      // good
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package org.whispersystems.libsignal.protocol;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.util.guava.Optional;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.crypto.spec.SecretKeySpec;
+
+public class CiphertextMessageHeaderTest extends TestCase {
+
+  public void testSignalMessage() throws Exception {
+    ECKeyPair     ratchetKey = Curve.generateKeyPair();
+    SignalMessage message    = createSignalMessage(ratchetKey, 300, 12);
+    byte[]        padded     = new byte[message.serialize().length + 20];
+
+    System.arraycopy(message.serialize(), 0, padded, 7, message.serialize().length);
+
+    CiphertextMessageHeader header = new CiphertextMessageHeader();
+    header.parse(CiphertextMessage.WHISPER_TYPE, padded, 7, message.serialize().length);
+
+    assertEquals(CiphertextMessage.WHISPER_TYPE, header.getType());
+    assertEquals(3, header.getMessageVersion());
+    assertEquals(300, header.getCounter());
+    assertEquals(12, header.getPreviousCounter());
+    assertEquals(40, header.getBodyLength());
+    assertEquals(-1, header.getBaseKeyOffset());
+    assertTrue(header.ratchetKeyEquals(ratchetKey.getPublicKey().serialize()));
+    assertEquals(ratchetKey.getPublicKey(), header.getRatchetKey());
+    assertTrue(Arrays.equals(message.serialize(), header.getMessage().serialize()));
+  }
+
+  public void testPreKeySignalMessage() throws Exception {
+    ECKeyPair           ratchetKey = Curve.generateKeyPair();
+    ECKeyPair           baseKey    = Curve.generateKeyPair();
+    IdentityKey         identity   = new IdentityKey(Curve.generateKeyPair().getPublicKey());
+    PreKeySignalMessage message    = new PreKeySignalMessage(3, 1234, Optional.of(77), 9, baseKey.getPublicKey(),
+                                                             identity, createSignalMessage(ratchetKey, 5, 0));
+    ByteBuffer          buffer     = ByteBuffer.allocateDirect(message.serialize().length);
+
+    buffer.put(message.serialize()).flip();
+
+    CiphertextMessageHeader header = new CiphertextMessageHeader();
+    header.parse(CiphertextMessage.PREKEY_TYPE, buffer);
+
+    assertEquals(0, buffer.position());
+    assertTrue(header.hasPreKeyId());
+    assertEquals(77, header.getPreKeyId());
+    assertEquals(9, header.getSignedPreKeyId());
+    assertEquals(1234, header.getRegistrationId());
+    assertEquals(5, header.getCounter());
+    assertTrue(header.ratchetKeyEquals(ratchetKey.getPublicKey().serialize()));
+    assertFalse(header.baseKeyEquals(ratchetKey.getPublicKey().serialize()));
+
+    byte[] copied = new byte[CiphertextMessageHeader.KEY_LENGTH];
+    header.copyBaseKey(copied, 0);
+
+    assertTrue(Arrays.equals(baseKey.getPublicKey().serialize(), copied));
+    assertTrue(Arrays.equals(message.serialize(), header.getMessage().serialize()));
+  }
+
+  public void testSenderKeyMessage() throws Exception {
+    SenderKeyMessage        message = new SenderKeyMessage(42, 1000, new byte[32], Curve.generateKeyPair().getPrivateKey());
+    CiphertextMessageHeader header  = new CiphertextMessageHeader();
+
+    header.parse(CiphertextMessage.SENDERKEY_TYPE, message.serialize());
+
+    assertEquals(42, header.getKeyId());
+    assertEquals(1000, header.getCounter());
+    assertEquals(32, header.getBodyLength());
+    assertEquals(-1, header.getRatchetKeyOffset());
+    assertTrue(Arrays.equals(message.serialize(), header.getMessage().serialize()));
+
+    header.parse(CiphertextMessage.WHISPER_TYPE, createSignalMessage(Curve.generateKeyPair(), 1, 0).serialize());
+
+    assertEquals(0, header.getKeyId());
+    assertEquals(CiphertextMessage.WHISPER_TYPE, header.getMessage().getType());
+  }
+
+  public void testTruncated() throws Exception {
+    byte[]                  serialized = createSignalMessage(Curve.generateKeyPair(), 1, 0).serialize();
+    CiphertextMessageHeader header     = new CiphertextMessageHeader();
+
+    for (int i=0;i<serialized.length - 8;i++) {
+      try {
+        header.parse(CiphertextMessage.WHISPER_TYPE, serialized, 0, i);
+        throw new AssertionError("Should have failed at " + i);
+      } catch (InvalidMessageException e) {
+        // good
+      }
+    }
+  }
+
+  public void testDeeplyNestedGroups() throws Exception {
+    byte[]                  serialized = new byte[200000];
+    CiphertextMessageHeader header     = new CiphertextMessageHeader();
+
+    Arrays.fill(serialized, (byte)0x0B);
+    serialized[0] = (byte)0x33;
+
+    for (int type : new int[] {CiphertextMessage.WHISPER_TYPE, CiphertextMessage.PREKEY_TYPE,
+                               CiphertextMessage.SENDERKEY_TYPE})
+    {
+      try {
+        header.parse(type, serialized);
+        throw new AssertionError("Should have failed for " + type);
+      } catch (InvalidMessageException e) {
+        // good
+      }
+    }
+  }
+
+  private SignalMessage createSignalMessage(ECKeyPair ratchetKey, int counter, int previousCounter) {
+    IdentityKey identityKey = new IdentityKey(Curve.generateKeyPair().getPublicKey());
+
+    return new SignalMessage(3, new SecretKeySpec(new byte[32], "HmacSHA256"), ratchetKey.getPublicKey(),
+                             counter, previousCounter, new byte[40], identityKey, identityKey);
+  }
+}
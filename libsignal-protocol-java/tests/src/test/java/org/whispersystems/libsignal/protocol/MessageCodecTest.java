@@ -0,0 +1,383 @@
+package org.whispersystems.libsignal.protocol;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.InvalidKeyException;
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.util.ByteUtil;
+import org.whispersystems.libsignal.util.guava.Optional;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public class MessageCodecTest extends TestCase {
+
+  private static final int ITERATIONS = 2000;
+
+  private final long   seed   = System.currentTimeMillis();
+  private final Random random = new Random(seed);
+
+  public void testSignalMessageEncodingParity() throws Exception {
+    IdentityKey   sender   = new IdentityKey(Curve.generateKeyPair().getPublicKey());
+    IdentityKey   receiver = new IdentityKey(Curve.generateKeyPair().getPublicKey());
+    SecretKeySpec macKey   = new SecretKeySpec(randomBytes(32), "HmacSHA256");
+
+    for (int i=0;i<ITERATIONS;i++) {
+      ECKeyPair ratchetKey      = Curve.generateKeyPair();
+      int       version         = 2 + random.nextInt(2);
+      int       counter         = randomUInt32();
+      int       previousCounter = randomUInt32();
+      byte[]    ciphertext      = randomBytes(random.nextInt(300));
+
+      byte[] body = SignalProtos.SignalMessage.newBuilder()
+                                              .setRatchetKey(ByteString.copyFrom(ratchetKey.getPublicKey().serialize()))
+                                              .setCounter(counter)
+                                              .setPreviousCounter(previousCounter)
+                                              .setCiphertext(ByteString.copyFrom(ciphertext))
+                                              .build().toByteArray();
+
+      byte[] prefix   = ByteUtil.combine(new byte[] {ByteUtil.intsToByteHighAndLow(version, 3)}, body);
+      byte[] expected = ByteUtil.combine(prefix, getMac(version, sender, receiver, macKey, prefix));
+      byte[] actual   = new SignalMessage(version, macKey, ratchetKey.getPublicKey(), counter, previousCounter,
+                                          ciphertext, sender, receiver).serialize();
+
+      assertTrue("Seed: " + seed, Arrays.equals(expected, actual));
+      assertEquals(SignalMessage.getSerializedSize(ratchetKey.getPublicKey(), counter, previousCounter,
+                                                   ciphertext.length), actual.length);
+    }
+  }
+
+  public void testPreKeySignalMessageEncodingParity() throws Exception {
+    IdentityKey   identityKey = new IdentityKey(Curve.generateKeyPair().getPublicKey());
+    SecretKeySpec macKey      = new SecretKeySpec(randomBytes(32), "HmacSHA256");
+
+    for (int i=0;i<ITERATIONS;i++) {
+      ECKeyPair         baseKey        = Curve.generateKeyPair();
+      int               registrationId = randomUInt32();
+      int               signedPreKeyId = randomUInt32();
+      Optional<Integer> preKeyId       = random.nextBoolean() ? Optional.of(randomUInt32()) : Optional.<Integer>absent();
+      SignalMessage     message        = new SignalMessage(3, macKey, Curve.generateKeyPair().getPublicKey(),
+                                                           randomUInt32(), randomUInt32(),
+                                                           randomBytes(random.nextInt(300)),
+                                                           identityKey, identityKey);
+
+      SignalProtos.PreKeySignalMessage.Builder builder =
+          SignalProtos.PreKeySignalMessage.newBuilder()
+                                          .setSignedPreKeyId(signedPreKeyId)
+                                          .setBaseKey(ByteString.copyFrom(baseKey.getPublicKey().serialize()))
+                                          .setIdentityKey(ByteString.copyFrom(identityKey.serialize()))
+                                          .setMessage(ByteString.copyFrom(message.serialize()))
+                                          .setRegistrationId(registrationId);
+
+      if (preKeyId.isPresent()) {
+        builder.setPreKeyId(preKeyId.get());
+      }
+
+      byte[] expected = ByteUtil.combine(new byte[] {ByteUtil.intsToByteHighAndLow(3, 3)}, builder.build().toByteArray());
+      byte[] actual   = new PreKeySignalMessage(3, registrationId, preKeyId, signedPreKeyId,
+                                                baseKey.getPublicKey(), identityKey, message).serialize();
+
+      assertTrue("Seed: " + seed, Arrays.equals(expected, actual));
+    }
+  }
+
+  public void testSenderKeyMessageEncodingParity() throws Exception {
+    ECKeyPair signingKey = Curve.generateKeyPair();
+
+    for (int i=0;i<ITERATIONS / 10;i++) {
+      int    keyId      = randomUInt32();
+      int    iteration  = randomUInt32();
+      byte[] ciphertext = randomBytes(random.nextInt(300));
+
+      byte[] body = SignalProtos.SenderKeyMessage.newBuilder()
+                                                 .setId(keyId)
+                                                 .setIteration(iteration)
+                                                 .setCiphertext(ByteString.copyFrom(ciphertext))
+                                                 .build().toByteArray();
+
+      byte[]           expected = ByteUtil.combine(new byte[] {ByteUtil.intsToByteHighAndLow(3, 3)}, body);
+      SenderKeyMessage message  = new SenderKeyMessage(keyId, iteration, ciphertext, signingKey.getPrivateKey());
+      byte[]           actual   = message.serialize();
+
+      assertTrue("Seed: " + seed, Arrays.equals(expected, Arrays.copyOf(actual, actual.length - 64)));
+      assertEquals(SenderKeyMessage.getSerializedSize(keyId, iteration, ciphertext.length), actual.length);
+
+      message.verifySignature(signingKey.getPublicKey());
+    }
+  }
+
+  public void testSignalMessageDecodingParity() throws Exception {
+    IdentityKey   identityKey = new IdentityKey(Curve.generateKeyPair().getPublicKey());
+    SecretKeySpec macKey      = new SecretKeySpec(randomBytes(32), "HmacSHA256");
+    byte[]        valid       = new SignalMessage(3, macKey, Curve.generateKeyPair().getPublicKey(), 7, 3,
+                                                  randomBytes(48), identityKey, identityKey).serialize();
+
+    for (int i=0;i<ITERATIONS;i++) {
+      byte[] mutated = mutate(valid);
+      assertEquals("Seed: " + seed, parseSignalMessageWithProtobuf(mutated), parseSignalMessage(mutated));
+    }
+  }
+
+  public void testPreKeySignalMessageDecodingParity() throws Exception {
+    IdentityKey   identityKey = new IdentityKey(Curve.generateKeyPair().getPublicKey());
+    SecretKeySpec macKey      = new SecretKeySpec(randomBytes(32), "HmacSHA256");
+    SignalMessage message     = new SignalMessage(3, macKey, Curve.generateKeyPair().getPublicKey(), 7, 3,
+                                                  randomBytes(48), identityKey, identityKey);
+    byte[]        valid       = new PreKeySignalMessage(3, 42, Optional.of(9), 10, Curve.generateKeyPair().getPublicKey(),
+                                                        identityKey, message).serialize();
+
+    for (int i=0;i<ITERATIONS;i++) {
+      byte[] mutated = mutate(valid);
+
+      if (mutated.length > 0) {
+        assertEquals("Seed: " + seed, parsePreKeySignalMessageWithProtobuf(mutated), parsePreKeySignalMessage(mutated));
+      }
+    }
+  }
+
+  public void testSenderKeyMessageDecodingParity() throws Exception {
+    byte[] valid = new SenderKeyMessage(5, 1000, randomBytes(48), Curve.generateKeyPair().getPrivateKey()).serialize();
+
+    for (int i=0;i<ITERATIONS;i++) {
+      byte[] mutated = mutate(valid);
+      assertEquals("Seed: " + seed, parseSenderKeyMessageWithProtobuf(mutated), parseSenderKeyMessage(mutated));
+    }
+  }
+
+  public void testDeeplyNestedGroups() throws Exception {
+    byte[] serialized = new byte[200000];
+    Arrays.fill(serialized, (byte)0x0B);
+    serialized[0] = ByteUtil.intsToByteHighAndLow(3, 3);
+
+    try {
+      new SignalMessage(serialized);
+      fail();
+    } catch (InvalidMessageException e) {
+      // good
+    }
+
+    try {
+      new SenderKeyMessage(serialized);
+      fail();
+    } catch (InvalidMessageException e) {
+      // good
+    }
+
+    byte[] nested = new byte[1 + 2 * MessageCodec.MAX_GROUP_DEPTH];
+    nested[0] = ByteUtil.intsToByteHighAndLow(3, 3);
+
+    for (int i=0;i<MessageCodec.MAX_GROUP_DEPTH;i++) {
+      nested[1 + i]                 = (byte)((1 << 3) | MessageCodec.WIRETYPE_START_GROUP);
+      nested[nested.length - 1 - i] = (byte)((1 << 3) | MessageCodec.WIRETYPE_END_GROUP);
+    }
+
+    ByteBuffer input = ByteBuffer.wrap(nested, 1, nested.length - 1);
+    MessageCodec.skipField(input, MessageCodec.readVarint(input));
+    assertFalse(input.hasRemaining());
+  }
+
+  private String parseSignalMessage(byte[] serialized) {
+    try {
+      SignalMessage message = new SignalMessage(serialized);
+      return describe(message.getMessageVersion(), message.getSenderRatchetKey().serialize(), message.getCounter(),
+                      message.getBody());
+    } catch (Exception e) {
+      return e.getClass().getSimpleName();
+    }
+  }
+
+  private String parseSignalMessageWithProtobuf(byte[] serialized) {
+    try {
+      byte[][] parts   = ByteUtil.split(serialized, 1, serialized.length - 1 - 8, 8);
+      int      version = ByteUtil.highBitsToInt(parts[0][0]);
+
+      if (version <= 1) return "LegacyMessageException";
+      if (version > 3)  return "InvalidMessageException";
+
+      SignalProtos.SignalMessage message = SignalProtos.SignalMessage.parseFrom(parts[1]);
+
+      if (!message.hasCiphertext() || !message.hasCounter() || !message.hasRatchetKey()) {
+        return "InvalidMessageException";
+      }
+
+      return describe(version, Curve.decodePoint(message.getRatchetKey().toByteArray(), 0).serialize(),
+                      message.getCounter(), message.getCiphertext().toByteArray());
+    } catch (java.text.ParseException | InvalidProtocolBufferException | InvalidKeyException e) {
+      return "InvalidMessageException";
+    } catch (RuntimeException e) {
+      return e.getClass().getSimpleName();
+    }
+  }
+
+  private String parsePreKeySignalMessage(byte[] serialized) {
+    try {
+      PreKeySignalMessage message = new PreKeySignalMessage(serialized);
+      return describe(message.getRegistrationId(), message.getBaseKey().serialize(), message.getSignedPreKeyId(),
+                      message.getIdentityKey().serialize()) + message.getPreKeyId() +
+             parseSignalMessage(message.getWhisperMessage().serialize());
+    } catch (Exception e) {
+      return e.getClass().getSimpleName();
+    }
+  }
+
+  private String parsePreKeySignalMessageWithProtobuf(byte[] serialized) {
+    try {
+      int version = ByteUtil.highBitsToInt(serialized[0]);
+
+      if (version > 3) return "InvalidVersionException";
+      if (version < 3) return "InvalidMessageException";
+
+      SignalProtos.PreKeySignalMessage message = SignalProtos.PreKeySignalMessage.parseFrom(Arrays.copyOfRange(serialized, 1, serialized.length));
+
+      if (!message.hasSignedPreKeyId() || !message.hasBaseKey() || !message.hasIdentityKey() || !message.hasMessage()) {
+        return "InvalidMessageException";
+      }
+
+      String description = describe(message.getRegistrationId(),
+                                    Curve.decodePoint(message.getBaseKey().toByteArray(), 0).serialize(),
+                                    message.getSignedPreKeyId(),
+                                    Curve.decodePoint(message.getIdentityKey().toByteArray(), 0).serialize());
+      String inner       = parseSignalMessageWithProtobuf(message.getMessage().toByteArray());
+
+      if (inner.endsWith("Exception")) {
+        return inner.equals("LegacyMessageException") ? "InvalidMessageException" : inner;
+      }
+
+      return description + (message.hasPreKeyId() ? Optional.of(message.getPreKeyId()) : Optional.absent()) + inner;
+    } catch (InvalidProtocolBufferException | InvalidKeyException e) {
+      return "InvalidMessageException";
+    } catch (RuntimeException e) {
+      return e.getClass().getSimpleName();
+    }
+  }
+
+  private String parseSenderKeyMessage(byte[] serialized) {
+    try {
+      SenderKeyMessage message = new SenderKeyMessage(serialized);
+      return describe(message.getKeyId(), new byte[0], message.getIteration(), message.getCipherText());
+    } catch (Exception e) {
+      return e.getClass().getSimpleName();
+    }
+  }
+
+  private String parseSenderKeyMessageWithProtobuf(byte[] serialized) {
+    try {
+      byte[][] parts   = ByteUtil.split(serialized, 1, serialized.length - 1 - 64, 64);
+      int      version = ByteUtil.highBitsToInt(parts[0][0]);
+
+      if (version < 3) return "LegacyMessageException";
+      if (version > 3) return "InvalidMessageException";
+
+      SignalProtos.SenderKeyMessage message = SignalProtos.SenderKeyMessage.parseFrom(parts[1]);
+
+      if (!message.hasId() || !message.hasIteration() || !message.hasCiphertext()) {
+        return "InvalidMessageException";
+      }
+
+      return describe(message.getId(), new byte[0], message.getIteration(), message.getCiphertext().toByteArray());
+    } catch (java.text.ParseException | InvalidProtocolBufferException e) {
+      return "InvalidMessageException";
+    }
+  }
+
+  private String describe(int first, byte[] key, int second, byte[] body) {
+    return first + "/" + Arrays.toString(key) + "/" + second + "/" + Arrays.toString(body);
+  }
+
+  private byte[] mutate(byte[] valid) {
+    List<Byte> bytes = new LinkedList<>();
+
+    for (byte b : valid) {
+      bytes.add(b);
+    }
+
+    int mutations = 1 + random.nextInt(3);
+
+    for (int i=0;i<mutations;i++) {
+      switch (random.nextInt(5)) {
+        case 0:
+          if (!bytes.isEmpty()) bytes.set(random.nextInt(bytes.size()), (byte)random.nextInt());
+          break;
+        case 1:
+          if (!bytes.isEmpty()) bytes.subList(random.nextInt(bytes.size()), bytes.size()).clear();
+          break;
+        case 2:
+          bytes.add(random.nextInt(bytes.size() + 1), (byte)random.nextInt());
+          break;
+        case 3:
+          if (!bytes.isEmpty()) bytes.remove(random.nextInt(bytes.size()));
+          break;
+        case 4:
+          byte[] field = randomField();
+          int    index = Math.min(bytes.size(), 1 + random.nextInt(Math.max(1, bytes.size())));
+
+          for (int j=field.length-1;j>=0;j--) {
+            bytes.add(index, field[j]);
+          }
+          break;
+      }
+    }
+
+    byte[] result = new byte[bytes.size()];
+
+    for (int i=0;i<result.length;i++) {
+      result[i] = bytes.get(i);
+    }
+
+    return result;
+  }
+
+  private byte[] randomField() {
+    int fieldNumber = random.nextInt(10);
+
+    switch (random.nextInt(6)) {
+      case 0:  return new byte[] {(byte)(fieldNumber << 3), (byte)random.nextInt(128)};
+      case 1:  return new byte[] {(byte)((fieldNumber << 3) | 2), 2, (byte)random.nextInt(), (byte)random.nextInt()};
+      case 2:  return new byte[] {(byte)((fieldNumber << 3) | 5), 1, 2, 3, 4};
+      case 3:  return new byte[] {(byte)((fieldNumber << 3) | 3), 0x08, 1, (byte)((fieldNumber << 3) | 4)};
+      case 4:  return new byte[] {(byte)((fieldNumber << 3) | 3), 0x08, 1, (byte)(((fieldNumber + 1) << 3) | 4)};
+      default: return new byte[] {(byte)((fieldNumber << 3) | (random.nextInt(8)))};
+    }
+  }
+
+  private int randomUInt32() {
+    switch (random.nextInt(3)) {
+      case 0:  return random.nextInt(128);
+      case 1:  return random.nextInt(1 << 21);
+      default: return random.nextInt();
+    }
+  }
+
+  private byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+
+    return bytes;
+  }
+
+  private byte[] getMac(int version, IdentityKey sender, IdentityKey receiver, SecretKeySpec macKey, byte[] prefix)
+      throws Exception
+  {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(macKey);
+
+    if (version >= 3) {
+      mac.update(sender.getPublicKey().serialize());
+      mac.update(receiver.getPublicKey().serialize());
+    }
+
+    return ByteUtil.trim(mac.doFinal(prefix), 8);
+  }
+}
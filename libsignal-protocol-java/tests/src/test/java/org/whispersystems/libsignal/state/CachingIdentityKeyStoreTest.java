@@ -0,0 +1,174 @@
+package org.whispersystems.libsignal.state;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.state.impl.InMemoryIdentityKeyStore;
+import org.whispersystems.libsignal.util.KeyHelper;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+public class CachingIdentityKeyStoreTest extends TestCase {
+
+  public void testCachedTrustAndSuppressedWrites() {
+    CountingIdentityKeyStore backing = new CountingIdentityKeyStore();
+    CachingIdentityKeyStore  store   = new CachingIdentityKeyStore(backing);
+    IdentityKey              alice   = KeyHelper.generateIdentityKeyPair().getPublicKey();
+    IdentityKey              mallory = KeyHelper.generateIdentityKeyPair().getPublicKey();
+
+    assertTrue(store.isTrustedIdentity("+14151111111", alice));
+    store.saveIdentity("+14151111111", alice);
+
+    assertEquals(1, backing.trustChecks);
+    assertEquals(1, backing.saves);
+
+    for (int i=0;i<10;i++) {
+      assertTrue(store.isTrustedIdentity("+14151111111", new IdentityKey(alice.getPublicKey())));
+      store.saveIdentity("+14151111111", alice);
+    }
+
+    assertEquals(1, backing.trustChecks);
+    assertEquals(1, backing.saves);
+
+    assertFalse(store.isTrustedIdentity("+14151111111", mallory));
+    assertEquals(2, backing.trustChecks);
+
+    store.saveIdentity("+14151111111", mallory);
+    assertEquals(2, backing.saves);
+    assertTrue(store.isTrustedIdentity("+14151111111", mallory));
+    assertEquals(2, backing.trustChecks);
+  }
+
+  public void testTrustChecksDontFillCache() {
+    CountingIdentityKeyStore backing = new CountingIdentityKeyStore();
+    IdentityKey              alice   = KeyHelper.generateIdentityKeyPair().getPublicKey();
+    IdentityKey              mallory = KeyHelper.generateIdentityKeyPair().getPublicKey();
+
+    backing.saveIdentity("+14151111111", alice);
+
+    CachingIdentityKeyStore store = new CachingIdentityKeyStore(backing);
+
+    for (int i=0;i<3;i++) {
+      assertTrue(store.isTrustedIdentity("+14151111111", alice));
+      assertTrue(store.isTrustedIdentity("+14152222222", mallory));
+    }
+
+    assertEquals(6, backing.trustChecks);
+
+    backing.saveIdentity("+14152222222", alice);
+    assertFalse(store.isTrustedIdentity("+14152222222", mallory));
+
+    store.saveIdentity("+14151111111", alice);
+    assertTrue(store.isTrustedIdentity("+14151111111", alice));
+    assertEquals(7, backing.trustChecks);
+  }
+
+  public void testBatchOperations() {
+    CountingIdentityKeyStore backing    = new CountingIdentityKeyStore();
+    CachingIdentityKeyStore  store      = new CachingIdentityKeyStore(backing, 4);
+    Map<String, IdentityKey> identities = new HashMap<>();
+
+    for (int i=0;i<8;i++) {
+      identities.put("+1415000000" + i, KeyHelper.generateIdentityKeyPair().getPublicKey());
+    }
+
+    Map<String, Boolean> trusted = store.isTrustedIdentities(identities);
+
+    assertEquals(8, trusted.size());
+    assertFalse(trusted.containsValue(false));
+
+    store.saveIdentities(identities);
+    assertEquals(8, backing.saves);
+
+    store.saveIdentities(identities);
+    assertEquals(12, backing.saves);
+
+    identities.put("+14150000000", KeyHelper.generateIdentityKeyPair().getPublicKey());
+    assertFalse(backing.isTrustedIdentities(identities).get("+14150000000"));
+    assertFalse(store.isTrustedIdentities(identities).get("+14150000000"));
+  }
+
+  public void testConcurrentSavesMatchBackingStore() throws Exception {
+    for (int round=0;round<50;round++) {
+      final SlowIdentityKeyStore     backing = new SlowIdentityKeyStore();
+      final CachingIdentityKeyStore  store   = new CachingIdentityKeyStore(backing);
+      final IdentityKey[]            keys    = {KeyHelper.generateIdentityKeyPair().getPublicKey(),
+                                                KeyHelper.generateIdentityKeyPair().getPublicKey()};
+      final CountDownLatch           start   = new CountDownLatch(1);
+      Thread[]                       threads = new Thread[2];
+
+      for (int i=0;i<threads.length;i++) {
+        final IdentityKey key = keys[i];
+
+        threads[i] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              start.await();
+            } catch (InterruptedException e) {
+              throw new AssertionError(e);
+            }
+
+            for (int j=0;j<5;j++) {
+              store.saveIdentity("+14151111111", key);
+            }
+          }
+        };
+
+        threads[i].start();
+      }
+
+      start.countDown();
+
+      for (Thread thread : threads) {
+        thread.join();
+      }
+
+      for (IdentityKey key : keys) {
+        assertEquals(backing.isTrustedIdentity("+14151111111", key), store.isTrustedIdentity("+14151111111", key));
+      }
+    }
+  }
+
+  private static class CountingIdentityKeyStore extends InMemoryIdentityKeyStore {
+    private int trustChecks;
+    private int saves;
+
+    public CountingIdentityKeyStore() {
+      super(KeyHelper.generateIdentityKeyPair(), 1);
+    }
+
+    @Override
+    public synchronized void saveIdentity(String name, IdentityKey identityKey) {
+      saves++;
+      super.saveIdentity(name, identityKey);
+    }
+
+    @Override
+    public synchronized void saveIdentities(Map<String, IdentityKey> identities) {
+      saves += identities.size();
+      super.saveIdentities(identities);
+    }
+
+    @Override
+    public synchronized boolean isTrustedIdentity(String name, IdentityKey identityKey) {
+      trustChecks++;
+      return super.isTrustedIdentity(name, identityKey);
+    }
+  }
+
+  private static class SlowIdentityKeyStore extends CountingIdentityKeyStore {
+    @Override
+    public void saveIdentity(String name, IdentityKey identityKey) {
+      super.saveIdentity(name, identityKey);
+
+      try {
+        Thread.sleep(1);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+}
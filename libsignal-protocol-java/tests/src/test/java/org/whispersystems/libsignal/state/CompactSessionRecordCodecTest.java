@@ -0,0 +1,159 @@
+package org.whispersystems.libsignal.state;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.SessionCipher;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.TestInMemorySignalProtocolStore;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.SignalMessage;
+import org.whispersystems.libsignal.ratchet.AliceSignalProtocolParameters;
+import org.whispersystems.libsignal.ratchet.BobSignalProtocolParameters;
+import org.whispersystems.libsignal.ratchet.RatchetingSession;
+import org.whispersystems.libsignal.state.impl.InMemorySessionStore;
+import org.whispersystems.libsignal.util.guava.Optional;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class CompactSessionRecordCodecTest extends TestCase {
+
+  private static final SignalProtocolAddress ALICE_ADDRESS = new SignalProtocolAddress("+14159999999", 1);
+  private static final SignalProtocolAddress BOB_ADDRESS   = new SignalProtocolAddress("+14158888888", 1);
+
+  public void testLosslessConversion() throws Exception {
+    CompactSessionRecordCodec codec  = new CompactSessionRecordCodec();
+    SessionRecord             record = createRecord(5);
+
+    byte[] protobuf = record.serialize();
+    byte[] compact  = codec.encode(record);
+
+    assertEquals(CompactSessionRecordCodec.FORMAT_VERSION, compact[0]);
+    assertTrue(Arrays.equals(protobuf, CompactSessionRecordCodec.toProtobuf(compact)));
+    assertTrue(Arrays.equals(compact, CompactSessionRecordCodec.fromProtobuf(protobuf)));
+    assertTrue(Arrays.equals(protobuf, codec.decode(compact).serialize()));
+    assertTrue(Arrays.equals(protobuf, codec.decode(protobuf).serialize()));
+    assertTrue(Arrays.equals(protobuf, new ProtobufSessionRecordCodec().decode(compact).serialize()));
+
+    SessionRecord fresh = new SessionRecord();
+    assertTrue(Arrays.equals(fresh.serialize(), codec.decode(codec.encode(fresh)).serialize()));
+  }
+
+  public void testCompactSize() throws Exception {
+    SessionRecord record = createRecord(20);
+
+    byte[] protobuf = record.serialize();
+    byte[] compact  = new CompactSessionRecordCodec().encode(record);
+
+    assertTrue(compact.length * 100 < protobuf.length * 85);
+  }
+
+  public void testCorruptCounts() throws Exception {
+    CompactSessionRecordCodec codec = new CompactSessionRecordCodec();
+
+    byte[][] corrupt = {
+        {CompactSessionRecordCodec.FORMAT_VERSION, 0, 0, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x07},
+        {CompactSessionRecordCodec.FORMAT_VERSION, 0, 0, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x0F},
+        {CompactSessionRecordCodec.FORMAT_VERSION, 0, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x0F, 0},
+    };
+
+    for (byte[] encoded : corrupt) {
+      try {
+        codec.decode(encoded);
+        fail("Decoded a corrupt record");
+      } catch (IOException e) {
+        // good
+      }
+    }
+  }
+
+  public void testStoreMigration() throws Exception {
+    InMemorySessionStore protobufStore = new InMemorySessionStore();
+    InMemorySessionStore compactStore  = new InMemorySessionStore(new CompactSessionRecordCodec());
+    SessionRecord        record        = createRecord(2);
+
+    protobufStore.storeSession(BOB_ADDRESS, record);
+    compactStore.storeSession(BOB_ADDRESS, protobufStore.loadSession(BOB_ADDRESS));
+
+    assertTrue(Arrays.equals(record.serialize(), compactStore.loadSession(BOB_ADDRESS).serialize()));
+  }
+
+  private SessionRecord createRecord(int states) throws Exception {
+    IdentityKeyPair aliceIdentityKey = generateIdentityKeyPair();
+    IdentityKeyPair bobIdentityKey   = generateIdentityKeyPair();
+    SessionRecord   record           = null;
+
+    for (int i=0;i<states;i++) {
+      SessionRecord aliceSessionRecord = new SessionRecord();
+      SessionRecord bobSessionRecord   = new SessionRecord();
+
+      initializeSessions(aliceIdentityKey, bobIdentityKey,
+                         aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState());
+
+      SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
+      SignalProtocolStore bobStore   = new TestInMemorySignalProtocolStore();
+
+      aliceStore.storeSession(ALICE_ADDRESS, aliceSessionRecord);
+      bobStore.storeSession(BOB_ADDRESS, bobSessionRecord);
+
+      SessionCipher aliceCipher = new SessionCipher(aliceStore, ALICE_ADDRESS);
+      SessionCipher bobCipher   = new SessionCipher(bobStore, BOB_ADDRESS);
+
+      aliceCipher.encrypt("dropped".getBytes());
+
+      for (int round=0;round<3;round++) {
+        for (int j=0;j<6;j++) {
+          bobCipher.decrypt(new SignalMessage(aliceCipher.encrypt("smert ze smert".getBytes()).serialize()));
+        }
+
+        aliceCipher.decrypt(new SignalMessage(bobCipher.encrypt("smert ze smert".getBytes()).serialize()));
+      }
+
+      SessionState state = bobStore.loadSession(BOB_ADDRESS).getSessionState();
+
+      if (record == null) record = new SessionRecord(state);
+      else                record.promoteState(state);
+    }
+
+    return record;
+  }
+
+  private IdentityKeyPair generateIdentityKeyPair() {
+    ECKeyPair keyPair = Curve.generateKeyPair();
+    return new IdentityKeyPair(new IdentityKey(keyPair.getPublicKey()), keyPair.getPrivateKey());
+  }
+
+  private void initializeSessions(IdentityKeyPair aliceIdentityKey, IdentityKeyPair bobIdentityKey,
+                                  SessionState aliceSessionState, SessionState bobSessionState)
+      throws Exception
+  {
+    ECKeyPair aliceBaseKey = Curve.generateKeyPair();
+    ECKeyPair bobBaseKey   = Curve.generateKeyPair();
+
+    AliceSignalProtocolParameters aliceParameters = AliceSignalProtocolParameters.newBuilder()
+                                                                                 .setOurBaseKey(aliceBaseKey)
+                                                                                 .setOurIdentityKey(aliceIdentityKey)
+                                                                                 .setTheirOneTimePreKey(Optional.<ECPublicKey>absent())
+                                                                                 .setTheirRatchetKey(bobBaseKey.getPublicKey())
+                                                                                 .setTheirSignedPreKey(bobBaseKey.getPublicKey())
+                                                                                 .setTheirIdentityKey(bobIdentityKey.getPublicKey())
+                                                                                 .create();
+
+    BobSignalProtocolParameters bobParameters = BobSignalProtocolParameters.newBuilder()
+                                                                           .setOurRatchetKey(bobBaseKey)
+                                                                           .setOurSignedPreKey(bobBaseKey)
+                                                                           .setOurOneTimePreKey(Optional.<ECKeyPair>absent())
+                                                                           .setOurIdentityKey(bobIdentityKey)
+                                                                           .setTheirIdentityKey(aliceIdentityKey.getPublicKey())
+                                                                           .setTheirBaseKey(aliceBaseKey.getPublicKey())
+                                                                           .create();
+
+    RatchetingSession.initializeSession(aliceSessionState, aliceParameters);
+    RatchetingSession.initializeSession(bobSessionState, bobParameters);
+  }
+}
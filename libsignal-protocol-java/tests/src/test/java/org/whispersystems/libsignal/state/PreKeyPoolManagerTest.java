@@ -0,0 +1,125 @@
+package org.whispersystems.libsignal.state;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.StaticAgreementCache;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.state.impl.InMemoryPreKeyStore;
+import org.whispersystems.libsignal.state.impl.InMemorySignedPreKeyStore;
+import org.whispersystems.libsignal.util.KeyHelper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+public class PreKeyPoolManagerTest extends TestCase {
+
+  private static final long DAY = 24 * 60 * 60 * 1000L;
+
+  private static final Executor DIRECT = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  public void testReplenishAndUpload() {
+    InMemoryPreKeyStore       preKeyStore       = new InMemoryPreKeyStore();
+    InMemorySignedPreKeyStore signedPreKeyStore = new InMemorySignedPreKeyStore();
+    ForkJoinPool              pool              = new ForkJoinPool(2);
+    PreKeyPoolManager         manager           = new PreKeyPoolManager(KeyHelper.generateIdentityKeyPair(),
+                                                                        preKeyStore, signedPreKeyStore,
+                                                                        DIRECT, pool, 1, 10, 50,
+                                                                        7 * DAY, 2 * DAY);
+
+    preKeyStore.storePreKey(0xFFFFFF, KeyHelper.generateLastResortPreKey());
+    manager.maintain(1000);
+
+    assertEquals(50, manager.getRemainingPreKeys());
+    assertEquals(51, manager.getNextPreKeyId());
+
+    PreKeyPoolManager.UploadBatch batch = manager.getUploadBatch();
+
+    assertEquals(50, batch.getPreKeys().size());
+    assertNotNull(batch.getSignedPreKey());
+
+    manager.markUploaded(batch);
+    assertTrue(manager.getUploadBatch().isEmpty());
+
+    for (int i=1;i<=40;i++) {
+      manager.removePreKey(i);
+    }
+
+    assertEquals(10, manager.getRemainingPreKeys());
+
+    manager.removePreKey(41);
+
+    assertEquals(50, manager.getRemainingPreKeys());
+    assertEquals(41, manager.getUploadBatch().getPreKeys().size());
+    assertEquals(51, manager.getUploadBatch().getPreKeys().get(0).getId());
+
+    pool.shutdown();
+  }
+
+  public void testRotationInvalidatesAgreements() throws Exception {
+    InMemoryPreKeyStore       preKeyStore       = new InMemoryPreKeyStore();
+    InMemorySignedPreKeyStore signedPreKeyStore = new InMemorySignedPreKeyStore();
+    ForkJoinPool              pool              = new ForkJoinPool(1);
+    StaticAgreementCache      cache             = new StaticAgreementCache(4);
+    IdentityKey               theirIdentityKey  = new IdentityKey(Curve.generateKeyPair().getPublicKey());
+    PreKeyPoolManager         manager           = new PreKeyPoolManager(KeyHelper.generateIdentityKeyPair(),
+                                                                        preKeyStore, signedPreKeyStore,
+                                                                        DIRECT, pool, 1, 1, 2,
+                                                                        7 * DAY, 2 * DAY, cache);
+
+    manager.maintain(0);
+    SignedPreKeyRecord first = manager.getCurrentSignedPreKey();
+
+    cache.calculateAgreement(theirIdentityKey, first.getId(), first.getKeyPair());
+    cache.calculateAgreement(theirIdentityKey, first.getId(), first.getKeyPair());
+
+    assertEquals(1, cache.getHits());
+
+    manager.maintain(7 * DAY);
+    cache.calculateAgreement(theirIdentityKey, first.getId(), first.getKeyPair());
+
+    assertEquals(2, cache.getHits());
+
+    manager.maintain(9 * DAY);
+    cache.calculateAgreement(theirIdentityKey, first.getId(), first.getKeyPair());
+
+    assertEquals(2, cache.getHits());
+    assertEquals(2, cache.getMisses());
+
+    pool.shutdown();
+  }
+
+  public void testSignedPreKeyRotation() {
+    InMemoryPreKeyStore       preKeyStore       = new InMemoryPreKeyStore();
+    InMemorySignedPreKeyStore signedPreKeyStore = new InMemorySignedPreKeyStore();
+    ForkJoinPool              pool              = new ForkJoinPool(1);
+    PreKeyPoolManager         manager           = new PreKeyPoolManager(KeyHelper.generateIdentityKeyPair(),
+                                                                        preKeyStore, signedPreKeyStore,
+                                                                        DIRECT, pool, 1, 1, 2,
+                                                                        7 * DAY, 2 * DAY);
+
+    manager.maintain(0);
+    int first = manager.getCurrentSignedPreKey().getId();
+
+    manager.maintain(6 * DAY);
+    assertEquals(first, manager.getCurrentSignedPreKey().getId());
+
+    manager.maintain(7 * DAY);
+    int second = manager.getCurrentSignedPreKey().getId();
+
+    assertTrue(first != second);
+    assertTrue(signedPreKeyStore.containsSignedPreKey(first));
+
+    manager.maintain(9 * DAY);
+
+    assertFalse(signedPreKeyStore.containsSignedPreKey(first));
+    assertTrue(signedPreKeyStore.containsSignedPreKey(second));
+
+    pool.shutdown();
+  }
+}
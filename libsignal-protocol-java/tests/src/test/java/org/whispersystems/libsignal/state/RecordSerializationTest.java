@@ -0,0 +1,107 @@
+package org.whispersystems.libsignal.state;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.groups.state.SenderKeyRecord;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class RecordSerializationTest extends TestCase {
+
+  public void testSessionRecord() throws IOException {
+    SessionRecord record = new SessionRecord();
+    record.getSessionState().setRemoteRegistrationId(42);
+    record.archiveCurrentState();
+    record.getSessionState().setRemoteRegistrationId(43);
+
+    byte[] serialized = record.serialize();
+
+    assertEquals(serialized.length, record.serializedSize());
+    assertTrue(Arrays.equals(serialized, writeToStream(record)));
+    assertTrue(Arrays.equals(serialized, SessionRecord.parse(new ByteArrayInputStream(serialized)).serialize()));
+
+    for (ByteBuffer buffer : new ByteBuffer[] {ByteBuffer.allocate(serialized.length + 8),
+                                               ByteBuffer.allocateDirect(serialized.length + 8)})
+    {
+      buffer.position(4);
+      record.writeTo(buffer);
+
+      assertEquals(serialized.length + 4, buffer.position());
+
+      buffer.flip();
+      buffer.position(4);
+
+      assertTrue(Arrays.equals(serialized, SessionRecord.parse(buffer).serialize()));
+      assertFalse(buffer.hasRemaining());
+    }
+  }
+
+  public void testPreKeyRecords() throws IOException {
+    ECKeyPair          keyPair      = Curve.generateKeyPair();
+    PreKeyRecord       preKey       = new PreKeyRecord(1, keyPair);
+    SignedPreKeyRecord signedPreKey = new SignedPreKeyRecord(2, 1000, keyPair, new byte[64]);
+
+    ByteBuffer buffer = ByteBuffer.allocateDirect(preKey.serializedSize());
+    preKey.writeTo(buffer);
+    buffer.flip();
+
+    assertTrue(Arrays.equals(preKey.serialize(), PreKeyRecord.parse(buffer).serialize()));
+
+    try {
+      signedPreKey.writeTo(ByteBuffer.allocate(signedPreKey.serializedSize() - 1));
+      fail();
+    } catch (BufferOverflowException e) {
+      // good
+    }
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    signedPreKey.writeTo(output);
+
+    SignedPreKeyRecord parsed = SignedPreKeyRecord.parse(new ByteArrayInputStream(output.toByteArray()));
+
+    assertEquals(2, parsed.getId());
+    assertEquals(1000, parsed.getTimestamp());
+  }
+
+  public void testSessionRecordSnapshot() throws IOException {
+    SessionRecord record = new SessionRecord();
+    record.getSessionState().setRemoteRegistrationId(42);
+
+    byte[]                 serialized = record.serialize();
+    SessionRecord.Snapshot snapshot   = record.snapshot();
+
+    record.getSessionState().setRemoteRegistrationId(43);
+
+    ByteBuffer buffer = ByteBuffer.allocateDirect(snapshot.serializedSize());
+    snapshot.writeTo(buffer);
+    buffer.flip();
+
+    assertEquals(serialized.length, snapshot.serializedSize());
+    assertTrue(Arrays.equals(serialized, SessionRecord.parse(buffer).serialize()));
+  }
+
+  public void testSenderKeyRecord() throws IOException {
+    SenderKeyRecord record = new SenderKeyRecord();
+    record.setSenderKeyState(7, 0, new byte[32], Curve.generateKeyPair());
+
+    ByteBuffer buffer = ByteBuffer.allocate(record.serializedSize());
+    record.writeTo(buffer);
+    buffer.flip();
+
+    assertTrue(Arrays.equals(record.serialize(), SenderKeyRecord.parse(buffer).serialize()));
+  }
+
+  private byte[] writeToStream(SessionRecord record) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    record.writeTo(output);
+
+    return output.toByteArray();
+  }
+}
@@ -0,0 +1,100 @@
+package org.whispersystems.libsignal.state;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+
+import java.util.LinkedList;
+import java.util.List;
+
+public class ReplayWindowTest extends TestCase {
+
+  public void testSlidingWindow() throws Exception {
+    ReplayWindow window     = new ReplayWindow();
+    ECPublicKey  ratchetKey = Curve.generateKeyPair().getPublicKey();
+    ECPublicKey  otherKey   = Curve.generateKeyPair().getPublicKey();
+
+    window.markReceived(ratchetKey, 10);
+    window.markReceived(ratchetKey, 5);
+
+    assertTrue(window.isReplay(ratchetKey, 10));
+    assertTrue(window.isReplay(ratchetKey, 5));
+    assertFalse(window.isReplay(ratchetKey, 7));
+    assertFalse(window.isReplay(ratchetKey, 11));
+    assertFalse(window.isReplay(otherKey, 10));
+
+    window.markReceived(ratchetKey, 10 + ReplayWindow.WINDOW_SIZE - 1);
+
+    assertTrue(window.isReplay(ratchetKey, 10));
+    assertFalse(window.isReplay(ratchetKey, 5));
+
+    window.markReceived(ratchetKey, 1000);
+
+    assertTrue(window.isReplay(ratchetKey, 1000));
+    assertFalse(window.isReplay(ratchetKey, 10));
+
+    window.markReceived(ratchetKey, 1);
+    assertFalse(window.isReplay(ratchetKey, 1));
+  }
+
+  public void testChainEviction() throws Exception {
+    ReplayWindow      window      = new ReplayWindow();
+    List<ECPublicKey> ratchetKeys = new LinkedList<>();
+
+    for (int i=0;i<20;i++) {
+      ECPublicKey ratchetKey = Curve.generateKeyPair().getPublicKey();
+      window.markReceived(ratchetKey, 0);
+      ratchetKeys.add(ratchetKey);
+    }
+
+    assertFalse(window.isReplay(ratchetKeys.get(0), 0));
+    assertTrue(window.isReplay(ratchetKeys.get(19), 0));
+  }
+
+  public void testPreKeyFilter() throws Exception {
+    ReplayWindow      window   = new ReplayWindow();
+    List<ECPublicKey> baseKeys = new LinkedList<>();
+
+    for (int i=0;i<16;i++) {
+      ECPublicKey baseKey = Curve.generateKeyPair().getPublicKey();
+      window.markPreKeyReceived(baseKey, 0);
+      window.markPreKeyReceived(baseKey, 1);
+      baseKeys.add(baseKey);
+    }
+
+    for (ECPublicKey baseKey : baseKeys.subList(8, 16)) {
+      assertTrue(window.isPreKeyReplay(baseKey, 0));
+      assertTrue(window.isPreKeyReplay(baseKey, 1));
+    }
+
+    int falsePositives = 0;
+
+    for (int i=0;i<1000;i++) {
+      if (window.isPreKeyReplay(Curve.generateKeyPair().getPublicKey(), 0)) {
+        falsePositives++;
+      }
+    }
+
+    assertTrue(falsePositives < 5);
+  }
+
+  public void testSerialization() throws Exception {
+    ReplayWindow window     = new ReplayWindow();
+    ECPublicKey  ratchetKey = Curve.generateKeyPair().getPublicKey();
+    ECPublicKey  baseKey    = Curve.generateKeyPair().getPublicKey();
+
+    byte[] empty = window.serialize();
+    assertTrue(empty.length < 4);
+
+    window.markReceived(ratchetKey, 42);
+    window.markPreKeyReceived(baseKey, 3);
+
+    ReplayWindow restored = new ReplayWindow(window.serialize());
+
+    assertTrue(restored.isReplay(ratchetKey, 42));
+    assertFalse(restored.isReplay(ratchetKey, 41));
+    assertTrue(restored.isPreKeyReplay(baseKey, 3));
+    assertFalse(new ReplayWindow(empty).isPreKeyReplay(baseKey, 3));
+  }
+}
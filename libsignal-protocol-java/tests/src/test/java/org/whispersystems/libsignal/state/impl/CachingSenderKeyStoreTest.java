@@ -0,0 +1,119 @@
+package org.whispersystems.libsignal.state.impl;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.InvalidKeyIdException;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.groups.SenderKeyName;
+import org.whispersystems.libsignal.groups.state.SenderKeyRecord;
+import org.whispersystems.libsignal.util.KeyHelper;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class CachingSenderKeyStoreTest extends TestCase {
+
+  public void testLoadStoreAndEviction() throws InvalidKeyIdException {
+    CachingSenderKeyStore store = new CachingSenderKeyStore(32);
+
+    for (int i=0;i<200;i++) {
+      store.storeSenderKey(createName("group" + (i % 4), i), createRecord(i));
+    }
+
+    assertTrue(store.getLiveRecordCount() <= 32);
+    assertEquals(200, store.getLiveRecordCount() + store.getSerializedRecordCount());
+    assertTrue(store.getSerializedBytes() > 0);
+    assertTrue(store.getLiveBytes() > 0);
+
+    for (int i=0;i<200;i++) {
+      SenderKeyRecord record = store.loadSenderKey(createName("group" + (i % 4), i));
+      assertEquals(i, record.getSenderKeyState().getKeyId());
+    }
+
+    assertTrue(store.loadSenderKey(createName("group0", 1)).isEmpty());
+  }
+
+  public void testLoadReturnsCopy() throws InvalidKeyIdException {
+    CachingSenderKeyStore store = new CachingSenderKeyStore(16);
+    SenderKeyName         name  = createName("group", 1);
+
+    store.storeSenderKey(name, createRecord(1));
+
+    SenderKeyRecord loaded = store.loadSenderKey(name);
+    loaded.addSenderKeyState(2, 0, KeyHelper.generateSenderKey(), KeyHelper.generateSenderSigningKey().getPublicKey());
+
+    assertEquals(1, store.loadSenderKey(name).getSenderKeyState().getKeyId());
+
+    store.storeSenderKey(name, loaded);
+    assertEquals(2, store.loadSenderKey(name).getSenderKeyState().getKeyId());
+  }
+
+  public void testDeleteGroup() {
+    CachingSenderKeyStore store = new CachingSenderKeyStore(8);
+
+    for (int i=0;i<40;i++) {
+      store.storeSenderKey(createName("group" + (i % 2), i), createRecord(i));
+    }
+
+    assertEquals(2, store.getGroupCount());
+    assertEquals(20, store.getSenderKeys("group1").size());
+
+    store.deleteGroup("group1");
+
+    assertEquals(1, store.getGroupCount());
+    assertEquals(20, store.getLiveRecordCount() + store.getSerializedRecordCount());
+    assertFalse(store.containsSenderKey(createName("group1", 1)));
+    assertTrue(store.containsSenderKey(createName("group0", 2)));
+
+    store.deleteSenderKey(createName("group0", 2));
+    assertFalse(store.containsSenderKey(createName("group0", 2)));
+    assertEquals(19, store.getSenderKeys("group0").size());
+  }
+
+  public void testDeleteGroupDuringStores() throws InterruptedException {
+    final CachingSenderKeyStore store   = new CachingSenderKeyStore(64);
+    final SenderKeyRecord       record  = createRecord(1);
+    final AtomicBoolean         running = new AtomicBoolean(true);
+    Thread[]                    writers = new Thread[4];
+
+    for (int i=0;i<writers.length;i++) {
+      final int writer = i;
+
+      writers[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j=0;running.get();j++) {
+            store.storeSenderKey(createName("group", writer * 1000 + (j % 1000)), record);
+          }
+        }
+      };
+
+      writers[i].start();
+    }
+
+    for (int i=0;i<2000;i++) {
+      store.deleteGroup("group");
+    }
+
+    running.set(false);
+
+    for (Thread writer : writers) {
+      writer.join();
+    }
+
+    store.deleteGroup("group");
+
+    assertEquals(0, store.getGroupCount());
+    assertEquals(0, store.getLiveRecordCount() + store.getSerializedRecordCount());
+  }
+
+  private SenderKeyName createName(String groupId, int deviceId) {
+    return new SenderKeyName(groupId, new SignalProtocolAddress("+14150001111", deviceId));
+  }
+
+  private SenderKeyRecord createRecord(int keyId) {
+    SenderKeyRecord record = new SenderKeyRecord();
+    record.setSenderKeyState(keyId, 0, KeyHelper.generateSenderKey(), KeyHelper.generateSenderSigningKey());
+
+    return record;
+  }
+}
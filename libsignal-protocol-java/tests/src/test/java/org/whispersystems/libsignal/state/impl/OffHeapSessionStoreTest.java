@@ -0,0 +1,145 @@
+package org.whispersystems.libsignal.state.impl;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.state.ReplayWindow;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionState;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+public class OffHeapSessionStoreTest extends TestCase {
+
+  public void testStoreLoadDelete() {
+    OffHeapSessionStore store = new OffHeapSessionStore(64 * 1024);
+
+    for (int i=0;i<500;i++) {
+      store.storeSession(new SignalProtocolAddress("+1415000" + (i % 50), i), createRecord(i));
+    }
+
+    assertEquals(500, store.getSessionCount());
+    assertEquals(10, store.getDeviceSessions("+14150007").size());
+
+    for (int i=0;i<500;i++) {
+      SignalProtocolAddress address = new SignalProtocolAddress("+1415000" + (i % 50), i);
+
+      assertTrue(store.containsSession(address));
+      assertEquals(i, store.loadSession(address).getSessionState().getRemoteRegistrationId());
+    }
+
+    assertFalse(store.containsSession(new SignalProtocolAddress("+14150007", 8)));
+
+    for (int i=0;i<500;i+=2) {
+      store.deleteSession(new SignalProtocolAddress("+1415000" + (i % 50), i));
+    }
+
+    store.deleteAllSessions("+14150001");
+
+    assertEquals(240, store.getSessionCount());
+
+    for (int i=1;i<500;i+=2) {
+      SignalProtocolAddress address = new SignalProtocolAddress("+1415000" + (i % 50), i);
+
+      if (i % 50 == 1) {
+        assertFalse(store.containsSession(address));
+      } else {
+        assertEquals(i, store.loadSession(address).getSessionState().getRemoteRegistrationId());
+      }
+    }
+
+    for (int i=0;i<500;i++) {
+      store.deleteSession(new SignalProtocolAddress("+1415000" + (i % 50), i));
+    }
+
+    assertEquals(0, store.getSessionCount());
+    assertEquals(0, store.getAllocatedBytes());
+  }
+
+  public void testGrowingRecordAndMappedFile() throws IOException {
+    File file = File.createTempFile("sessions", ".slab");
+
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+      FileChannel           channel = randomAccessFile.getChannel();
+      OffHeapSessionStore   store   = new OffHeapSessionStore(channel, 16 * 1024);
+      SignalProtocolAddress address = new SignalProtocolAddress("+14150000000", 1);
+      SessionRecord         record  = createRecord(1);
+
+      store.storeSession(address, record);
+      long initial = store.getAllocatedBytes();
+
+      for (int i=0;i<20;i++) {
+        record.promoteState(new SessionState(createRecord(i).getSessionState()));
+      }
+
+      store.storeSession(address, record);
+
+      assertTrue(store.getAllocatedBytes() >= initial);
+      assertEquals(1, store.getSessionCount());
+      assertTrue(Arrays.equals(record.serialize(), store.loadSession(address).serialize()));
+    } finally {
+      file.delete();
+    }
+  }
+
+  public void testReplayWindows() {
+    OffHeapSessionStore store      = new OffHeapSessionStore(64 * 1024);
+    ECPublicKey         ratchetKey = Curve.generateKeyPair().getPublicKey();
+
+    for (int i=0;i<200;i++) {
+      SignalProtocolAddress address = new SignalProtocolAddress("+1415000" + i, 1);
+      ReplayWindow          window  = new ReplayWindow();
+
+      store.storeSession(address, createRecord(i));
+      window.markReceived(ratchetKey, i);
+      store.storeReplayWindow(address, window);
+    }
+
+    for (int i=0;i<200;i+=2) {
+      store.deleteSession(new SignalProtocolAddress("+1415000" + i, 1));
+    }
+
+    for (int i=0;i<200;i++) {
+      ReplayWindow window = store.loadReplayWindow(new SignalProtocolAddress("+1415000" + i, 1));
+
+      assertEquals(i % 2 == 1, window.isReplay(ratchetKey, i));
+      assertFalse(window.isReplay(ratchetKey, i + 1));
+    }
+
+    for (int i=1;i<200;i+=2) {
+      store.deleteSession(new SignalProtocolAddress("+1415000" + i, 1));
+    }
+
+    assertEquals(0, store.getAllocatedBytes());
+  }
+
+  public void testLongNames() {
+    OffHeapSessionStore store = new OffHeapSessionStore(64 * 1024);
+    char[]              chars = new char[40000];
+
+    Arrays.fill(chars, 'a');
+    String first = new String(chars);
+    chars[chars.length - 1] = 'b';
+    String second = new String(chars);
+
+    store.storeSession(new SignalProtocolAddress(first, 1), createRecord(1));
+    store.storeSession(new SignalProtocolAddress(second, 1), createRecord(2));
+
+    assertEquals(1, store.loadSession(new SignalProtocolAddress(first, 1)).getSessionState().getRemoteRegistrationId());
+    assertEquals(2, store.loadSession(new SignalProtocolAddress(second, 1)).getSessionState().getRemoteRegistrationId());
+    assertEquals(Arrays.asList(1), store.getDeviceSessions(first));
+  }
+
+  private SessionRecord createRecord(int registrationId) {
+    SessionRecord record = new SessionRecord();
+    record.getSessionState().setRemoteRegistrationId(registrationId);
+
+    return record;
+  }
+}
@@ -0,0 +1,231 @@
+package org.whispersystems.libsignal.state.impl;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.groups.SenderKeyName;
+import org.whispersystems.libsignal.groups.state.SenderKeyRecord;
+import org.whispersystems.libsignal.state.ReplayWindow;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.util.KeyHelper;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ShardedSignalProtocolStoreTest extends TestCase {
+
+  private static final int RECIPIENTS = 200;
+
+  public void testRoutingAndRebalancing() throws Exception {
+    ShardedSignalProtocolStore store = new ShardedSignalProtocolStore(KeyHelper.generateIdentityKeyPair(), 1,
+                                                                      new InMemoryPreKeyStore(),
+                                                                      new InMemorySignedPreKeyStore(),
+                                                                      64);
+
+    store.addShard("node-1", new InMemoryStoreShard());
+    store.addShard("node-2", new InMemoryStoreShard());
+    store.addShard("node-3", new InMemoryStoreShard());
+
+    Map<String, IdentityKey> identities = new HashMap<>();
+    Map<String, byte[]>      sessions   = new HashMap<>();
+    Map<String, byte[]>      senderKeys = new HashMap<>();
+
+    for (int i=0;i<RECIPIENTS;i++) {
+      String          name        = "+1415000" + i;
+      IdentityKey     identityKey = new IdentityKey(Curve.generateKeyPair().getPublicKey());
+      SenderKeyRecord senderKey   = new SenderKeyRecord();
+      SessionRecord   session     = new SessionRecord();
+
+      senderKey.setSenderKeyState(i, 0, KeyHelper.generateSenderKey(), Curve.generateKeyPair());
+      session.getSessionState().setRemoteRegistrationId(i);
+
+      store.saveIdentity(name, identityKey);
+      store.storeSession(new SignalProtocolAddress(name, 1), session);
+      store.storeSenderKey(new SenderKeyName("group", new SignalProtocolAddress(name, 1)), senderKey);
+
+      identities.put(name, identityKey);
+      sessions.put(name, session.serialize());
+      senderKeys.put(name, senderKey.serialize());
+    }
+
+    assertDistributed(store);
+    assertContents(store, identities, sessions, senderKeys);
+
+    store.addShard("node-4", new InMemoryStoreShard());
+
+    assertEquals(4, store.getShards().size());
+    assertDistributed(store);
+    assertContents(store, identities, sessions, senderKeys);
+
+    store.removeShard("node-2");
+
+    assertEquals(3, store.getShards().size());
+    assertDistributed(store);
+    assertContents(store, identities, sessions, senderKeys);
+  }
+
+  public void testVersionsSurviveRebalancing() throws Exception {
+    ShardedSignalProtocolStore store = new ShardedSignalProtocolStore(KeyHelper.generateIdentityKeyPair(), 1,
+                                                                      new InMemoryPreKeyStore(),
+                                                                      new InMemorySignedPreKeyStore(),
+                                                                      64);
+
+    store.addShard("node-1", new InMemoryStoreShard());
+
+    Map<SignalProtocolAddress, SessionRecord> stale = new HashMap<>();
+
+    for (int i=0;i<RECIPIENTS;i++) {
+      SignalProtocolAddress address = new SignalProtocolAddress("+1415000" + i, 1);
+
+      store.storeSession(address, new SessionRecord());
+      stale.put(address, store.loadSession(address));
+    }
+
+    store.addShard("node-2", new InMemoryStoreShard());
+
+    for (Map.Entry<SignalProtocolAddress, SessionRecord> entry : stale.entrySet()) {
+      SessionRecord current = store.loadSession(entry.getKey());
+
+      assertEquals(entry.getValue().getVersion(), current.getVersion());
+      assertTrue(store.storeSessionIfVersion(entry.getKey(), current, current.getVersion()));
+    }
+
+    for (Map.Entry<SignalProtocolAddress, SessionRecord> entry : stale.entrySet()) {
+      SessionRecord record = entry.getValue();
+      assertFalse(store.storeSessionIfVersion(entry.getKey(), record, record.getVersion()));
+    }
+  }
+
+  public void testReplayWindowsSurviveRebalancing() throws Exception {
+    ShardedSignalProtocolStore store = new ShardedSignalProtocolStore(KeyHelper.generateIdentityKeyPair(), 1,
+                                                                      new InMemoryPreKeyStore(),
+                                                                      new InMemorySignedPreKeyStore(),
+                                                                      64);
+
+    ECPublicKey ratchetKey = Curve.generateKeyPair().getPublicKey();
+
+    store.addShard("node-1", new InMemoryStoreShard());
+
+    for (int i=0;i<RECIPIENTS;i++) {
+      SignalProtocolAddress address = new SignalProtocolAddress("+1415000" + i, 1);
+      ReplayWindow          window  = new ReplayWindow();
+
+      store.storeSession(address, new SessionRecord());
+      window.markReceived(ratchetKey, i);
+      store.storeReplayWindow(address, window);
+    }
+
+    store.addShard("node-2", new InMemoryStoreShard());
+    store.addShard("node-3", new InMemoryStoreShard());
+
+    for (int i=0;i<RECIPIENTS;i++) {
+      ReplayWindow window = store.loadReplayWindow(new SignalProtocolAddress("+1415000" + i, 1));
+
+      assertTrue(window.isReplay(ratchetKey, i));
+      assertFalse(window.isReplay(ratchetKey, i + 1));
+    }
+  }
+
+  public void testVersionsSurviveRestart() throws Exception {
+    InMemoryStoreShard    shard   = new InMemoryStoreShard();
+    SignalProtocolAddress address = new SignalProtocolAddress("+14150001111", 1);
+    SignalProtocolAddress other   = new SignalProtocolAddress("+14150002222", 1);
+
+    ShardedSignalProtocolStore store = new ShardedSignalProtocolStore(KeyHelper.generateIdentityKeyPair(), 1,
+                                                                      new InMemoryPreKeyStore(),
+                                                                      new InMemorySignedPreKeyStore(),
+                                                                      16);
+
+    store.addShard("node-1", shard);
+    store.storeSession(address, new SessionRecord());
+
+    SessionRecord stale = store.loadSession(address);
+
+    store.storeSession(address, store.loadSession(address));
+    store.storeSession(address, store.loadSession(address));
+
+    long maxVersion = shard.getMaxVersion();
+
+    ShardedSignalProtocolStore restarted = new ShardedSignalProtocolStore(KeyHelper.generateIdentityKeyPair(), 1,
+                                                                          new InMemoryPreKeyStore(),
+                                                                          new InMemorySignedPreKeyStore(),
+                                                                          16);
+
+    restarted.addShard("node-1", shard);
+    restarted.storeSession(other, new SessionRecord());
+    restarted.storeSession(address, restarted.loadSession(address));
+
+    assertTrue(restarted.loadSession(other).getVersion() > maxVersion);
+    assertTrue(restarted.loadSession(address).getVersion() > maxVersion);
+    assertFalse(restarted.storeSessionIfVersion(address, stale, stale.getVersion()));
+  }
+
+  public void testStaleVersionsAreBumped() throws Exception {
+    InMemoryStoreShard    shard   = new InMemoryStoreShard();
+    SignalProtocolAddress address = new SignalProtocolAddress("+14150001111", 1);
+    SessionRecord         record  = new SessionRecord();
+
+    shard.storeSession(address, record, 5);
+    SessionRecord stale = shard.loadSession(address);
+
+    shard.storeSession(address, record, 5);
+    assertTrue(record.getVersion() > 5);
+    assertFalse(shard.storeSessionIfVersion(address, stale, stale.getVersion()));
+
+    long current = record.getVersion();
+
+    assertTrue(shard.storeSessionIfVersion(address, record, current, 3));
+    assertTrue(record.getVersion() > current);
+    assertEquals(record.getVersion(), shard.loadSession(address).getVersion());
+  }
+
+  public void testSharedPreKeys() throws Exception {
+    IdentityKeyPair            identityKeyPair = KeyHelper.generateIdentityKeyPair();
+    ShardedSignalProtocolStore store           = new ShardedSignalProtocolStore(identityKeyPair, 1,
+                                                                                new InMemoryPreKeyStore(),
+                                                                                new InMemorySignedPreKeyStore(),
+                                                                                16);
+
+    store.addShard("node-1", new InMemoryStoreShard());
+    store.storePreKey(5, KeyHelper.generateLastResortPreKey());
+    store.addShard("node-2", new InMemoryStoreShard());
+
+    assertTrue(store.containsPreKey(5));
+    assertEquals(identityKeyPair, store.getIdentityKeyPair());
+  }
+
+  private void assertDistributed(ShardedSignalProtocolStore store) {
+    int total = 0;
+
+    for (StoreShard shard : store.getShards().values()) {
+      int names = shard.getNames().size();
+
+      assertTrue(names > 0);
+      total += names;
+    }
+
+    assertEquals(RECIPIENTS, total);
+  }
+
+  private void assertContents(ShardedSignalProtocolStore store,
+                              Map<String, IdentityKey> identities,
+                              Map<String, byte[]> sessions,
+                              Map<String, byte[]> senderKeys)
+  {
+    for (String name : identities.keySet()) {
+      SignalProtocolAddress address = new SignalProtocolAddress(name, 1);
+
+      assertTrue(store.containsSession(address));
+      assertTrue(store.isTrustedIdentity(name, identities.get(name)));
+      assertFalse(store.isTrustedIdentity(name, new IdentityKey(Curve.generateKeyPair().getPublicKey())));
+      assertTrue(Arrays.equals(sessions.get(name), store.loadSession(address).serialize()));
+      assertTrue(Arrays.equals(senderKeys.get(name), store.loadSenderKey(new SenderKeyName("group", address)).serialize()));
+      assertEquals(Arrays.asList(1), store.getDeviceSessions(name));
+    }
+  }
+}
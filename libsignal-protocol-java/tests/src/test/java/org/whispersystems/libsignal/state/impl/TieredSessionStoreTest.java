@@ -0,0 +1,181 @@
+package org.whispersystems.libsignal.state.impl;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.state.ReplayWindow;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionState;
+import org.whispersystems.libsignal.state.SessionStorageException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class TieredSessionStoreTest extends TestCase {
+
+  private static final String HIBERNATED_NAME = "2b3134313530303030303030";
+
+  private File directory;
+
+  @Override
+  protected void setUp() throws IOException {
+    directory = File.createTempFile("sessions", "");
+    assertTrue(directory.delete());
+    assertTrue(directory.mkdirs());
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+
+    directory.delete();
+  }
+
+  public void testCapacityDemotionAndPromotion() throws IOException {
+    TieredSessionStore store = new TieredSessionStore(directory, 2, -1, false);
+
+    for (int i=0;i<5;i++) {
+      store.storeSession(new SignalProtocolAddress("+14150000000", i), createRecord(i));
+    }
+
+    assertEquals(2, store.getStats().getHotSessions());
+    assertEquals(3, store.getStats().getColdSessions());
+    assertEquals(5, store.getDeviceSessions("+14150000000").size());
+
+    for (int i=0;i<5;i++) {
+      SignalProtocolAddress address = new SignalProtocolAddress("+14150000000", i);
+
+      assertTrue(store.containsSession(address));
+      assertEquals(i, store.loadSession(address).getSessionState().getRemoteRegistrationId());
+    }
+
+    TieredSessionStore.Stats stats = store.getStats();
+
+    assertEquals(5, stats.getHotHits() + stats.getColdHits());
+    assertTrue(stats.getColdHits() >= 3);
+    assertEquals(2, stats.getHotSessions());
+    assertTrue(stats.getColdBytes() > 0);
+  }
+
+  public void testHibernationSurvivesRestart() throws IOException {
+    SignalProtocolAddress address = new SignalProtocolAddress("+14150000000", 1);
+    SessionRecord         record  = createRecord(7);
+    TieredSessionStore    store   = new TieredSessionStore(directory, 10, -1, false);
+
+    store.storeSession(address, record);
+
+    assertEquals(1, store.hibernateIdleSessions(0));
+    assertEquals(0, store.getStats().getHotBytes());
+
+    TieredSessionStore reopened = new TieredSessionStore(directory, 10, -1, false);
+
+    assertTrue(reopened.containsSession(address));
+    assertTrue(Arrays.equals(record.serialize(), reopened.loadSession(address).serialize()));
+
+    reopened.deleteAllSessions("+14150000000");
+
+    assertFalse(reopened.containsSession(address));
+    assertEquals(0, directory.listFiles().length);
+  }
+
+  public void testReplayWindowSurvivesHibernation() throws IOException {
+    SignalProtocolAddress address    = new SignalProtocolAddress("+14150000000", 1);
+    ECPublicKey           ratchetKey = Curve.generateKeyPair().getPublicKey();
+    TieredSessionStore    store      = new TieredSessionStore(directory, 10, -1, false);
+    ReplayWindow          window     = new ReplayWindow();
+
+    store.storeSession(address, createRecord(1));
+    window.markReceived(ratchetKey, 5);
+    store.storeReplayWindow(address, window);
+
+    assertEquals(1, store.hibernateIdleSessions(0));
+
+    TieredSessionStore reopened = new TieredSessionStore(directory, 10, -1, false);
+
+    assertTrue(reopened.loadReplayWindow(address).isReplay(ratchetKey, 5));
+    assertFalse(reopened.loadReplayWindow(address).isReplay(ratchetKey, 6));
+
+    reopened.storeSession(address, reopened.loadSession(address));
+    reopened.hibernateIdleSessions(0);
+    reopened.loadSession(address);
+
+    assertTrue(reopened.loadReplayWindow(address).isReplay(ratchetKey, 5));
+
+    reopened.deleteSession(address);
+
+    assertFalse(reopened.loadReplayWindow(address).isReplay(ratchetKey, 5));
+    assertEquals(0, directory.listFiles().length);
+  }
+
+  public void testPruneOnHibernation() throws IOException {
+    SignalProtocolAddress address = new SignalProtocolAddress("+14150000000", 1);
+    SessionRecord         record  = createRecord(1);
+    TieredSessionStore    store   = new TieredSessionStore(directory, 10, 2, true);
+
+    for (int i=0;i<5;i++) {
+      record.promoteState(new SessionState(createRecord(i).getSessionState()));
+    }
+
+    store.storeSession(address, record);
+    store.hibernateIdleSessions(0);
+
+    assertEquals(2, store.loadSession(address).getPreviousSessionStates().size());
+  }
+
+  public void testFailedDemotionKeepsSessionHot() throws IOException {
+    SignalProtocolAddress blocked = new SignalProtocolAddress("+14150000000", 1);
+    SignalProtocolAddress other   = new SignalProtocolAddress("+14150000000", 2);
+    TieredSessionStore    store   = new TieredSessionStore(directory, 1, -1, false);
+
+    assertTrue(new File(directory, HIBERNATED_NAME + ".1.session.tmp").mkdir());
+
+    store.storeSession(blocked, createRecord(1));
+    store.storeSession(other, createRecord(2));
+
+    assertEquals(2, store.getStats().getHotSessions());
+    assertEquals(0, store.getStats().getColdSessions());
+    assertEquals(1, store.loadSession(blocked).getSessionState().getRemoteRegistrationId());
+
+    try {
+      store.hibernateIdleSessions(0);
+      fail("Hibernating to a blocked file should fail");
+    } catch (IOException e) {
+      // good
+    }
+
+    assertEquals(1, store.loadSession(blocked).getSessionState().getRemoteRegistrationId());
+    assertEquals(2, store.loadSession(other).getSessionState().getRemoteRegistrationId());
+  }
+
+  public void testUnreadableColdSession() throws IOException {
+    SignalProtocolAddress address = new SignalProtocolAddress("+14150000000", 1);
+
+    FileOutputStream out = new FileOutputStream(new File(directory, HIBERNATED_NAME + ".1.session"));
+    out.write(new byte[] {0x01, 0x02, 0x03, 0x04});
+    out.close();
+
+    TieredSessionStore store = new TieredSessionStore(directory, 10, -1, false);
+
+    assertTrue(store.containsSession(address));
+
+    try {
+      store.loadSession(address);
+      fail("Loading a corrupt session should fail");
+    } catch (SessionStorageException e) {
+      // good
+    }
+  }
+
+  private SessionRecord createRecord(int registrationId) {
+    SessionRecord record = new SessionRecord();
+    record.getSessionState().setRemoteRegistrationId(registrationId);
+
+    return record;
+  }
+}
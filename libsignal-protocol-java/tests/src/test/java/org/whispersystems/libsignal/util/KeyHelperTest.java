@@ -0,0 +1,49 @@
+package org.whispersystems.libsignal.util;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.impl.InMemoryPreKeyStore;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+public class KeyHelperTest extends TestCase {
+
+  public void testParallelPreKeyIdsWrap() {
+    ForkJoinPool       pool       = new ForkJoinPool(4);
+    int                start      = Medium.MAX_VALUE - 50;
+    List<PreKeyRecord> sequential = KeyHelper.generatePreKeys(start, 100);
+    List<PreKeyRecord> parallel   = KeyHelper.generatePreKeys(start, 100, pool);
+
+    assertEquals(100, parallel.size());
+
+    for (int i=0;i<100;i++) {
+      assertEquals(sequential.get(i).getId(), parallel.get(i).getId());
+    }
+
+    assertEquals(Medium.MAX_VALUE - 1, parallel.get(49).getId());
+    assertEquals(1, parallel.get(50).getId());
+
+    pool.shutdown();
+  }
+
+  public void testBulkPreKeyStore() throws Exception {
+    InMemoryPreKeyStore store   = new InMemoryPreKeyStore();
+    ForkJoinPool        pool    = new ForkJoinPool(2);
+    List<PreKeyRecord>  records = KeyHelper.generatePreKeys(1, 100, pool);
+
+    store.storePreKeys(records);
+
+    assertEquals(100, store.countPreKeys());
+    assertTrue(Arrays.equals(records.get(41).serialize(), store.loadPreKey(42).serialize()));
+
+    store.removePreKeys(Arrays.asList(1, 2, 3, 1000));
+
+    assertEquals(97, store.countPreKeys());
+    assertFalse(store.containsPreKey(2));
+
+    pool.shutdown();
+  }
+}